@@ -91,6 +91,7 @@ langdetectVersion = "1.2"
 buildRoot = '.'
 distDir = os.path.join(buildRoot, "build", "dist")
 distWarDir = os.path.join(buildRoot, "build", "dist-war")
+snapshotDir = os.path.join(buildRoot, "build", "snapshot")
 vnuJar = os.path.join(distDir, "vnu.jar")
 dependencyDir = os.path.join(buildRoot, "dependencies")
 extrasDir = os.path.join(buildRoot, "extras")
@@ -128,6 +129,7 @@ scriptAdditional = ''
 serviceName = 'Validator.nu'
 resultsTitle = 'Validation results'
 messagesLimit = 1000
+messagesAggregate = 0
 maxFileSize = 11264
 disablePromiscuousSsl = 0
 genericHost = ''
@@ -144,6 +146,19 @@ maxConnPerRoute = 100
 maxTotalConnections = 200
 maxRedirects = 20  # Gecko default
 statistics = 0
+asyncValidation = 0
+maxThreads = 100
+httpCache = 0
+httpCacheDir = ''
+resultCache = 0
+admission = 0
+timeBudget = 0
+checkerTimings = 0
+loadTestConcurrency = 8
+loadTestRate = 0
+loadTestDuration = 60
+loadTestOutput = ''
+warmUp = '0'
 miniDoc = '<!doctype html><html lang=""><meta charset=utf-8><title>test</title>'
 
 dependencyPackages = [
@@ -735,6 +750,24 @@ def cleanCssValidator():
     os.chdir("..")
 
 
+def buildStartupSnapshot(classPath):
+    validatorJar = os.path.join(jarsDir, "validator.jar")
+    snapshotPath = os.path.join("nu", "validator", "localentities", "files",
+                                "startup-snapshot")
+    # Snapshots used to be written into the source tree.
+    removeIfExists(os.path.join(filesDir, "startup-snapshot"))
+    removeIfDirExists(snapshotDir)
+    ensureDirExists(os.path.dirname(os.path.join(snapshotDir, snapshotPath)))
+    if runCmd([javaCmd, '-classpath',
+               os.pathsep.join([validatorJar, classPath]),
+               'nu.validator.localentities.StartupSnapshot',
+               os.path.join(snapshotDir, snapshotPath)]):
+        print("Warning: Failed to write the startup snapshot; the spec and"
+              " language data will be parsed at startup instead.")
+        return
+    runCmd([jarCmd, 'uf', validatorJar, '-C', snapshotDir, snapshotPath])
+
+
 def buildEmitters():
     compilerFile = os.path.join(vnuSrc, "xml", "SaxCompiler.java")
     compilerClass = "nu.validator.xml.SaxCompiler"
@@ -814,9 +847,13 @@ def getRunArgs(heap="$((HEAP))", _type="jar"):
         '-Xmx%sk' % heap,
         '-Djava.security.properties=' + os.path.join(buildRoot, "resources", "security.properties"),  # nopep8
         '-Dnu.validator.datatype.warn=true',
+        '-Dnu.validator.messages.aggregate=%d' % messagesAggregate,
         '-Dnu.validator.messages.limit=%d' % messagesLimit,
         '-Dnu.validator.servlet.about-page=' + aboutPage,
+        '-Dnu.validator.servlet.admission=%d' % admission,
+        '-Dnu.validator.servlet.async=%d' % asyncValidation,
         '-Dnu.validator.servlet.bind-address=' + bindAddress,
+        '-Dnu.validator.servlet.checker-timings=%d' % checkerTimings,
         '-Dnu.validator.servlet.deny-list=' + denyList,
         '-Dnu.validator.servlet.connection-timeout=%d' % (connectionTimeoutSeconds * 1000),  # nopep8
         '-Dnu.validator.servlet.filterfile=' + filterFile,
@@ -838,11 +875,17 @@ def getRunArgs(heap="$((HEAP))", _type="jar"):
         '-Dnu.validator.servlet.max-requests=%d' % maxConnPerRoute,
         '-Dnu.validator.servlet.max-total-connections=%d' % maxTotalConnections,  # nopep8
         '-Dnu.validator.servlet.max-redirects=%d' % maxRedirects,
+        '-Dnu.validator.servlet.max-threads=%d' % maxThreads,
+        '-Dnu.validator.servlet.result-cache=%d' % resultCache,
         '-Dnu.validator.servlet.statistics=%d' % statistics,
         '-Dnu.validator.servlet.style-sheet=' + stylesheet,
+        '-Dnu.validator.servlet.time-budget=%d' % timeBudget,
         '-Dnu.validator.servlet.user-agent=' + userAgent,
         '-Dnu.validator.servlet.version=' + validatorVersion,
+        '-Dnu.validator.servlet.warm-up=' + warmUp,
         '-Dnu.validator.spec.html5-link=' + html5specLink,
+        '-Dnu.validator.xml.http-cache=%d' % httpCache,
+        '-Dnu.validator.xml.http-cache.dir=' + httpCacheDir,
         '-Dorg.mortbay.http.HttpRequest.maxFormContentSize=%d' % (maxFileSize * 1024),  # nopep8
     ]
 
@@ -887,6 +930,7 @@ def generateRunScript():
 def clean():
     removeIfDirExists(distDir)
     removeIfDirExists(distWarDir)
+    removeIfDirExists(snapshotDir)
 
 
 def realclean():
@@ -1382,6 +1426,7 @@ class Release():
             jingJarPath())
         buildEmitters()
         buildModule(buildRoot, "validator", classPath)
+        buildStartupSnapshot(classPath)
         self.createJarOrWar("jar")
 
     def runValidator(self):
@@ -1391,6 +1436,27 @@ class Release():
         args = getRunArgs(str(int(heapSize) * 1024))
         execCmd(javaCmd, args)
 
+    def runLoadTest(self):
+        if not os.path.exists(vnuJar):
+            self.createJarOrWar("jar")
+        ensureDirExists(os.path.join(buildRoot, "logs"))
+        args = getRunArgs(str(int(heapSize) * 1024))
+        # LoadTester starts the service in a child VM with the VM options
+        # given to it, and watches the garbage collector and heap of that
+        # VM over JMX.
+        args = args[:args.index('nu.validator.servlet.Main')]
+        args.append('-Dnu.validator.loadtest.port=' + portNumber)
+        args.append('-Dnu.validator.loadtest.concurrency=%d' %
+                    loadTestConcurrency)
+        args.append('-Dnu.validator.loadtest.rate=%d' % loadTestRate)
+        args.append('-Dnu.validator.loadtest.duration=%d' % loadTestDuration)
+        if loadTestOutput:
+            args.append('-Dnu.validator.loadtest.output=' + loadTestOutput)
+        args.append('nu.validator.client.LoadTester')
+        args.append('tests')
+        if runCmd([javaCmd] + args):
+            sys.exit(1)
+
     def runTests(self):
         if not os.path.exists(vnuJar):
             self.createJarOrWar("jar")
@@ -1637,6 +1703,14 @@ def printHelp():
     print("Options:")
     print("  --about=https://about.validator.nu/")
     print("                                Sets URL for the about page")
+    print("  --admission                -- Limits concurrent validations and")
+    print("                                their estimated memory; answers 503")
+    print("                                when too many requests are waiting")
+    print("  --async                    -- Runs validations on a separate")
+    print("                                executor; fetches remote documents")
+    print("                                before a validation thread is used")
+    print("  --checker-timings          -- Times each checker and schema; shows")
+    print("                                the timings on the statistics page")
     print("  --control-port=-1")
     print("                                Sets server control port number")
     print("                                (necessary for daemonizing)")
@@ -1648,13 +1722,30 @@ def printHelp():
     print("                                Sets link URL of the HTML5 spec")
     print("  --html5load=https://html.spec.whatwg.org/")
     print("                                Sets load URL of the HTML5 spec")
+    print("  --http-cache               -- Caches remote schemas, documents and")
+    print("                                other resources in memory")
+    print("  --http-cache-dir=          -- Also caches remote resources in the")
+    print("                                given directory across restarts")
     print("  --jar=/usr/bin/jar         -- Sets path to the jar binary")
     print("  --java=/usr/bin/java       -- Sets path to the java binary")
     print("  --javac=/usr/bin/javac     -- Sets path to the javac binary")
     print("  --javadoc=/usr/bin/javadoc -- Sets path to the javadoc binary")
     print("  --javaversion=N.N          -- Sets Java VM version to build for")
     print("  --jdk-bin=/j2se/bin        -- Sets paths for all JDK tools")
+    print("  --loadtest-concurrency=8   -- Sets how many requests the loadtest")
+    print("                                task keeps in flight")
+    print("  --loadtest-duration=60     -- Sets how many seconds the loadtest")
+    print("                                task measures for")
+    print("  --loadtest-output=         -- Sets the file for the loadtest JSON")
+    print("                                summary (default: standard output)")
+    print("  --loadtest-rate=0          -- Makes the loadtest task start the")
+    print("                                given number of requests per second")
     print("  --log4j=log4j.properties   -- Sets path to log4 configuration")
+    print("  --max-threads=100          -- Sets server request thread count")
+    print("  --messages-aggregate=0")
+    print("                                Sets how many occurrences of the")
+    print("                                same message to report before")
+    print("                                only counting further ones")
     print("  --messages-limit=1000")
     print("                                Sets limit on the maximum number")
     print("                                of error+warning messages to report")
@@ -1663,6 +1754,8 @@ def printHelp():
     print("  --bind-address=0.0.0.0     -- Sets server bind address")
     print("  --port=8888                -- Sets server port number")
     print("  --promiscuous-ssl=on       -- Don't check SSL/TLS trust chain")
+    print("  --result-cache             -- Reuses results for identical POSTed")
+    print("                                documents and options")
     print("  --results-title=Validation results")
     print("                                Sets title to show on results page")
     print("  --script=script.js")
@@ -1678,7 +1771,13 @@ def printHelp():
     print("                                Sets URL for the style sheet")
     print("                                Defaults to just style.css relative")
     print("                                to the validator URL")
+    print("  --time-budget=0            -- Stops checking a document after the")
+    print("                                given number of milliseconds")
     print("  --user-agent                  Sets User-Agent string for checker")
+    print("  --warm-up                  -- Warms up the service at startup before")
+    print("                                accepting connections; with")
+    print("                                --warm-up=background, accepts them")
+    print("                                and reports readiness at /ready")
     print("")
     print("Tasks:")
     print("  update   -- Update git submodules")
@@ -1687,6 +1786,7 @@ def printHelp():
     print("  test     -- Run regression tests")
     print("  check    -- Perform self-test of the system")
     print("  run      -- Run the system")
+    print("  loadtest -- Measure the system under load with the tests corpus")
     print("  all      -- update dldeps build test run")
     print("  bundle   -- Create a Maven release bundle")
     print("  image    -- Create a binary runtime image of the checker")
@@ -1700,11 +1800,15 @@ def main(argv):
         controlPort, log4jProps, heapSize, stackSize, javaTargetVersion, \
         html5specLink, aboutPage, denyList, userAgent, deploymentTarget, \
         scriptAdditional, serviceName, resultsTitle, messagesLimit, \
+        messagesAggregate, \
         pageTemplate, formTemplate, presetsFile, aboutFile, stylesheetFile, \
         scriptFile, filterFile, disablePromiscuousSsl, extrasDir, \
         connectionTimeoutSeconds, socketTimeoutSeconds, maxTotalConnections, \
         maxConnPerRoute, statistics, stylesheet, script, icon, bindAddress, \
-        jdepsCmd, jlinkCmd, javaEnvVersion
+        jdepsCmd, jlinkCmd, javaEnvVersion, asyncValidation, maxThreads, \
+        httpCache, httpCacheDir, resultCache, admission, timeBudget, \
+        checkerTimings, loadTestConcurrency, loadTestRate, loadTestDuration, \
+        loadTestOutput, warmUp
     if len(argv) == 0:
         printHelp()
     else:
@@ -1787,6 +1891,8 @@ def main(argv):
                 serviceName = arg[7:]
             elif arg.startswith("--results-title="):
                 resultsTitle = arg[16:]
+            elif arg.startswith("--messages-aggregate="):
+                messagesAggregate = int(arg[21:])
             elif arg.startswith("--messages-limit="):
                 messagesLimit = int(arg[17:])
             elif arg.startswith("--genericpath="):
@@ -1829,6 +1935,35 @@ def main(argv):
                 maxConnPerRoute = int(arg[16:])
             elif arg == '--statistics':
                 statistics = 1
+            elif arg == '--async':
+                asyncValidation = 1
+            elif arg.startswith("--max-threads="):
+                maxThreads = int(arg[14:])
+            elif arg == '--http-cache':
+                httpCache = 1
+            elif arg.startswith("--http-cache-dir="):
+                httpCache = 1
+                httpCacheDir = arg[17:]
+            elif arg == '--result-cache':
+                resultCache = 1
+            elif arg == '--admission':
+                admission = 1
+            elif arg.startswith("--time-budget="):
+                timeBudget = int(arg[14:])
+            elif arg == '--checker-timings':
+                checkerTimings = 1
+            elif arg.startswith("--loadtest-concurrency="):
+                loadTestConcurrency = int(arg[23:])
+            elif arg.startswith("--loadtest-rate="):
+                loadTestRate = int(arg[16:])
+            elif arg.startswith("--loadtest-duration="):
+                loadTestDuration = int(arg[20:])
+            elif arg.startswith("--loadtest-output="):
+                loadTestOutput = arg[18:]
+            elif arg == '--warm-up':
+                warmUp = '1'
+            elif arg.startswith("--warm-up="):
+                warmUp = arg[10:]
             elif arg == '--help':
                 printHelp()
             elif arg == 'update':
@@ -1955,6 +2090,8 @@ def main(argv):
                 if not icon:
                     icon = 'icon.png'
                 release.checkService()
+            elif arg == 'loadtest':
+                release.runLoadTest()
             elif arg == 'clean':
                 clean()
             elif arg == 'realclean':
@@ -1,10 +1,8 @@
 package nu.validator.checker;
 
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Static utilities for working with (X)HTML5 attribute values.
@@ -19,12 +17,6 @@ public final class AttributeUtil {
      */
     private final static String[] EMPTY_STRING_ARRAY = {};
 
-    /**
-     * The pattern for extracting an integer by skipping white space and ignoring 
-     * trailing garbage.
-     */
-    private static Pattern INTEGER_PATTERN = Pattern.compile("^[ \t\n\r]*(-?[0-9]+)");
-
     /**
      * Private constructor to prevent instantiation.
      */
@@ -45,12 +37,29 @@ public final class AttributeUtil {
         if (attrVal == null) {
             return Integer.MIN_VALUE;
         }
-        Matcher m = INTEGER_PATTERN.matcher(attrVal);
-        if (!m.matches()) {
+        // The whole value must match [ \t\n\r]*(-?[0-9]+)
+        int len = attrVal.length();
+        int start = 0;
+        while (start < len) {
+            char c = attrVal.charAt(start);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            start++;
+        }
+        int i = start;
+        if (i < len && attrVal.charAt(i) == '-') {
+            i++;
+        }
+        int digits = i;
+        while (i < len && attrVal.charAt(i) >= '0' && attrVal.charAt(i) <= '9') {
+            i++;
+        }
+        if (i == digits || i != len) {
             return Integer.MIN_VALUE;
         }
         try {
-            return Integer.parseInt(m.group(1));
+            return Integer.parseInt(attrVal.substring(start));
         } catch (NumberFormatException e) {
             return Integer.MIN_VALUE;
         }
@@ -104,7 +113,7 @@ public final class AttributeUtil {
             return EMPTY_STRING_ARRAY;
         }
         int len = value.length();
-        List<String> list = new LinkedList<>();
+        List<String> list = new ArrayList<>();
         boolean collectingSpace = true;
         int start = 0;
         for (int i = 0; i < len; i++) {
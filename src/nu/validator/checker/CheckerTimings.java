@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * Collects the time spent in each part of the validator pipeline during one
+ * validation.
+ *
+ * <p>The code running a validation installs the collector for its thread
+ * with <code>start()</code> and removes it with <code>end()</code>. Each
+ * checker or schema validator is timed by putting the content handler
+ * returned by <code>wrap()</code> in front of it; code that wants to time
+ * part of its own work gets the collector with <code>current()</code>,
+ * which returns <code>null</code> when timing is off, and calls
+ * <code>add()</code>.
+ */
+public final class CheckerTimings {
+
+    private static final ThreadLocal<CheckerTimings> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The total nanoseconds by name, in the order the names were first seen.
+     * The value is an array so that a timing handler can add to it without
+     * a map lookup.
+     */
+    private final Map<String, long[]> totals = new LinkedHashMap<>();
+
+    /**
+     * Installs a collector for the current thread.
+     *
+     * @param timings
+     *            the collector or <code>null</code> for no timing
+     */
+    public static void start(CheckerTimings timings) {
+        if (timings == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(timings);
+        }
+    }
+
+    /**
+     * Removes the collector of the current thread.
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Returns the collector of the current thread or <code>null</code> if
+     * timing is off.
+     */
+    public static CheckerTimings current() {
+        return CURRENT.get();
+    }
+
+    private long[] total(String name) {
+        long[] total = totals.get(name);
+        if (total == null) {
+            total = new long[1];
+            totals.put(name, total);
+        }
+        return total;
+    }
+
+    /**
+     * Adds to the time spent under a name.
+     *
+     * @param name
+     *            the name
+     * @param nanos
+     *            the time in nanoseconds
+     */
+    public void add(String name, long nanos) {
+        total(name)[0] += nanos;
+    }
+
+    /**
+     * Returns the names seen so far, in order.
+     */
+    public String[] getNames() {
+        return totals.keySet().toArray(new String[totals.size()]);
+    }
+
+    /**
+     * Returns the time spent under a name in nanoseconds.
+     */
+    public long getNanos(String name) {
+        long[] total = totals.get(name);
+        return total == null ? 0 : total[0];
+    }
+
+    /**
+     * Returns a content handler that passes events to another one and adds
+     * the time taken by each of them to a name.
+     *
+     * @param name
+     *            the name
+     * @param delegate
+     *            the content handler to time
+     * @return the timing content handler
+     */
+    public ContentHandler wrap(String name, ContentHandler delegate) {
+        return new TimingContentHandler(delegate, total(name));
+    }
+
+    private static final class TimingContentHandler implements ContentHandler {
+
+        private final ContentHandler delegate;
+
+        private final long[] total;
+
+        TimingContentHandler(ContentHandler delegate, long[] total) {
+            this.delegate = delegate;
+            this.total = total;
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            long start = System.nanoTime();
+            try {
+                delegate.setDocumentLocator(locator);
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.startDocument();
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.endDocument();
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri)
+                throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.startPrefixMapping(prefix, uri);
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.endPrefixMapping(prefix);
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.startElement(uri, localName, qName, atts);
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.endElement(uri, localName, qName);
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+                throws SAXException {
+            long begin = System.nanoTime();
+            try {
+                delegate.characters(ch, start, length);
+            } finally {
+                total[0] += System.nanoTime() - begin;
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length)
+                throws SAXException {
+            long begin = System.nanoTime();
+            try {
+                delegate.ignorableWhitespace(ch, start, length);
+            } finally {
+                total[0] += System.nanoTime() - begin;
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data)
+                throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.processingInstruction(target, data);
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+            long start = System.nanoTime();
+            try {
+                delegate.skippedEntity(name);
+            } finally {
+                total[0] += System.nanoTime() - start;
+            }
+        }
+    }
+}
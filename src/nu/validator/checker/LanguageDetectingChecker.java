@@ -639,6 +639,7 @@ public class LanguageDetectingChecker extends Checker {
                         declaredLangCode) >= 0) {
             return;
         }
+        TimeBudget.current().checkNow();
         try {
             String textContent = documentContent.toString() //
                     .replaceAll("\\s+", " ");
@@ -23,14 +23,12 @@
 package nu.validator.checker;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
@@ -66,6 +64,12 @@ import org.xml.sax.SAXException;
  * constraints are only checked if the itemscope attribute is
  * present. However, the checks are chained such that if a document
  * validates with no errors, then all the constraints are satisfied.
+ *
+ * Elements are numbered in tree order. The properties of each item are
+ * found once, and items are then checked with an explicit stack, marking
+ * the items on the current path (to find cycles) and the items whose
+ * check found no errors (so that checking them again can be skipped, as it
+ * would find none either).
  */
 public class MicrodataChecker extends Checker {
     /**
@@ -88,13 +92,38 @@ public class MicrodataChecker extends Checker {
         // tree order of the element, for cheap sorting and hashing
         private final int order;
 
+        // whether the element is a property of some item
+        private boolean referenced;
+
+        // the elements referenced by itemref, by tree order, or -1
+        private int[] refs;
+
+        // the nested items found by the properties-of-an-item algorithm,
+        // by tree order, in the order the algorithm finds them
+        private int[] subitems;
+
+        // whether the algorithm found the same element more than once
+        private boolean redundantRefs;
+
+        // whether the item is on the path being checked
+        private boolean onPath;
+
+        // whether checking the item found no errors
+        private boolean checked;
+
+        // index of the next entry of subitems to check
+        private int next;
+
+        // error count when the check of the item started
+        private int errorsBefore;
+
         public Element(Locator locator, String[] itemProp, String[] itemRef,
                 boolean itemScope) {
             this.locator = locator;
             this.itemProp = itemProp;
             this.itemRef = itemRef;
             this.itemScope = itemScope;
-            this.children = new LinkedList<>();
+            this.children = new ArrayList<>();
             this.order = counter++;
         }
 
@@ -131,17 +160,29 @@ public class MicrodataChecker extends Checker {
 
     private Element.Builder builder;
 
-    private static int counter;
+    private int counter;
+
+    // all elements, in tree order
+    private List<Element> elements;
 
     // top-level items (itemscope but not itemprop)
     private List<Element> items;
 
     // property elements (itemprop)
-    private Set<Element> properties;
+    private List<Element> properties;
 
     // mapping from id to Element (like getElementById)
     private Map<String, Element> idmap;
 
+    // the items whose check is in progress
+    private Deque<Element> path;
+
+    // per element, the order + 1 of the last item whose properties were
+    // looked for through it
+    private int[] marks;
+
+    private int errors;
+
     private Locator locator;
 
     /**
@@ -152,9 +193,13 @@ public class MicrodataChecker extends Checker {
         depth = 0;
         builder = null;
         counter = 0;
-        items = new LinkedList<>();
-        properties = new LinkedHashSet<>();
+        elements = new ArrayList<>();
+        items = new ArrayList<>();
+        properties = new ArrayList<>();
         idmap = new HashMap<>();
+        path = new ArrayDeque<>();
+        marks = null;
+        errors = 0;
     }
 
     /**
@@ -195,13 +240,14 @@ public class MicrodataChecker extends Checker {
         if (id != null || itemProp != null || itemScope) {
             Element elm = new Element(new LocatorImpl(locator), itemProp,
                     itemRef, itemScope);
+            elements.add(elm);
 
             if (itemProp != null) {
                 properties.add(elm);
             } else if (itemScope) {
                 items.add(elm);
             }
-            if (!idmap.containsKey(id)) {
+            if (id != null && !idmap.containsKey(id)) {
                 idmap.put(id, elm);
             }
 
@@ -230,81 +276,138 @@ public class MicrodataChecker extends Checker {
      */
     @Override
     public void endDocument() throws SAXException {
+        marks = new int[elements.size()];
+
         // check all top-level items
         for (Element item : items) {
-            checkItem(item, new ArrayDeque<Element>());
+            checkItem(item);
         }
 
         // emit errors for unreferenced properties
         for (Element prop : properties) {
-            err("The \u201Citemprop\u201D attribute was specified,"
-                + " but the element is not a property of any item.",
-                    prop.locator);
+            if (!prop.referenced) {
+                err("The \u201Citemprop\u201D attribute was specified,"
+                    + " but the element is not a property of any item.",
+                        prop.locator);
+            }
         }
     }
 
     /**
      * Check itemref constraints.
      *
-     * This mirrors the "the properties of an item" algorithm, modified to
-     * recursively check sub-items.
+     * Sub-items are checked each time they are found as the value of a
+     * property, as a recursive check would, so the errors are reported in
+     * the same order.
+     */
+    private void checkItem(Element root) throws SAXException {
+        enter(root);
+        while (!path.isEmpty()) {
+            Element item = path.peek();
+            if (item.next < item.subitems.length) {
+                Element current = elements.get(item.subitems[item.next++]);
+                if (current.checked) {
+                    continue;
+                }
+                if (current.onPath) {
+                    error("The \u201Citemref\u201D attribute created a"
+                        + " circular reference with another item.",
+                            current.locator);
+                } else {
+                    enter(current);
+                }
+            } else {
+                if (item.redundantRefs) {
+                    error("The \u201Citemref\u201D attribute contained redundant references.",
+                            item.locator);
+                }
+                path.pop();
+                item.onPath = false;
+                // An item whose check found nothing has no cycle through
+                // it, so no path can lead back to it and a later check
+                // would find nothing either.
+                item.checked = errors == item.errorsBefore;
+            }
+        }
+    }
+
+    private void enter(Element item) throws SAXException {
+        if (item.subitems == null) {
+            findProperties(item);
+        }
+        item.onPath = true;
+        item.next = 0;
+        item.errorsBefore = errors;
+        path.push(item);
+        if (item.refs != null) {
+            for (int i = 0; i < item.refs.length; i++) {
+                if (item.refs[i] == -1) {
+                    error("The \u201Citemref\u201D attribute referenced \u201C"
+                            + item.itemRef[i]
+                            + "\u201D, but there is no element with an"
+                            + " \u201Cid\u201D attribute with that value.",
+                            item.locator);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the properties of an item once, recording its sub-items.
+     *
+     * This mirrors the "the properties of an item" algorithm.
      *
      * http://www.whatwg.org/specs/web-apps/current-work/multipage/microdata.html#the-properties-of-an-item
      */
-    private void checkItem(Element root, Deque<Element> parents)
-            throws SAXException {
+    private void findProperties(Element root) {
+        int mark = root.order + 1;
         Deque<Element> pending = new ArrayDeque<>();
-        Set<Element> memory = new HashSet<>();
-        memory.add(root);
+        marks[root.order] = mark;
         for (Element child : root.children) {
             pending.push(child);
         }
         if (root.itemRef != null) {
-            for (String id : root.itemRef) {
-                Element refElm = idmap.get(id);
+            root.refs = new int[root.itemRef.length];
+            for (int i = 0; i < root.itemRef.length; i++) {
+                Element refElm = idmap.get(root.itemRef[i]);
                 if (refElm != null) {
+                    root.refs[i] = refElm.order;
                     pending.push(refElm);
                 } else {
-                    err("The \u201Citemref\u201D attribute referenced \u201C"
-                            + id
-                            + "\u201D, but there is no element with an"
-                            + " \u201Cid\u201D attribute with that value.",
-                            root.locator);
+                    root.refs[i] = -1;
                 }
             }
         }
-        boolean memoryError = false;
-        while (pending.size() > 0) {
+        int[] subitems = new int[4];
+        int count = 0;
+        while (!pending.isEmpty()) {
             Element current = pending.pop();
-            if (memory.contains(current)) {
-                memoryError = true;
+            if (marks[current.order] == mark) {
+                root.redundantRefs = true;
                 continue;
             }
-            memory.add(current);
+            marks[current.order] = mark;
             if (!current.itemScope) {
                 for (Element child : current.children) {
                     pending.push(child);
                 }
             }
             if (current.itemProp != null) {
-                properties.remove(current);
+                current.referenced = true;
                 if (current.itemScope) {
-                    if (!parents.contains(current)) {
-                        parents.push(root);
-                        checkItem(current, parents);
-                        parents.pop();
-                    } else {
-                        err("The \u201Citemref\u201D attribute created a"
-                            + " circular reference with another item.",
-                                current.locator);
+                    if (count == subitems.length) {
+                        subitems = Arrays.copyOf(subitems, count * 2);
                     }
+                    subitems[count++] = current.order;
                 }
             }
         }
-        if (memoryError) {
-            err("The \u201Citemref\u201D attribute contained redundant references.",
-                    root.locator);
-        }
+        root.subitems = Arrays.copyOf(subitems, count);
+    }
+
+    private void error(String message, Locator locator) throws SAXException {
+        errors++;
+        err(message, locator);
     }
 
     /**
@@ -70,6 +70,20 @@ public final class NormalizationChecker extends Checker {
             "[[:nfc_qc=maybe:][:^ccc=0:]]").freeze();
     // see http://sourceforge.net/mailarchive/message.php?msg_id=37279908
 
+    /**
+     * The lowest code point that is composing or cannot occur in NFC. A
+     * string of code points below it is in NFC and does not compose with
+     * what precedes it, so each of them starts a stable segment.
+     */
+    private static final int FIRST_NON_TRIVIAL = new UnicodeSet(
+            "[[:nfc_qc=maybe:][:nfc_qc=no:][:^ccc=0:]]").charAt(0);
+
+    /**
+     * The number of code units that <code>indexOfNonTrivial()</code>
+     * examines at a time.
+     */
+    private static final int SCAN_BLOCK = 16;
+
     /**
      * A buffer for holding sequences overlap the SAX buffer boundary.
      */
@@ -128,7 +142,106 @@ public final class NormalizationChecker extends Checker {
      * <code>false</code> otherwise
      */
     private static boolean isComposingChar(int c) {
-        return COMPOSING_CHARACTERS.contains(c);
+        return c >= FIRST_NON_TRIVIAL && COMPOSING_CHARACTERS.contains(c);
+    }
+
+    /**
+     * Returns the index of the first code unit in a slice that is not below
+     * <code>FIRST_NON_TRIVIAL</code> or <code>end</code> if there is none.
+     * 
+     * @param ch the array to scan
+     * @param start the index of the first element to scan
+     * @param end the index of the first element not to scan
+     * @return the index of the first non-trivial code unit or 
+     * <code>end</code>
+     */
+    private static int indexOfNonTrivial(char[] ch, int start, int end) {
+        int i = start;
+        // The inner loop has no early exit, so the JIT can unroll and
+        // vectorize it. A block whose bits reach FIRST_NON_TRIVIAL is
+        // rescanned one code unit at a time below.
+        while (end - i >= SCAN_BLOCK) {
+            int bits = 0;
+            for (int j = i; j < i + SCAN_BLOCK; j++) {
+                bits |= ch[j];
+            }
+            if (bits >= FIRST_NON_TRIVIAL) {
+                break;
+            }
+            i += SCAN_BLOCK;
+        }
+        while (i < end && ch[i] < FIRST_NON_TRIVIAL) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index of the first code unit in a string that is not below
+     * <code>FIRST_NON_TRIVIAL</code> or the length of the string if there is
+     * none. Scans in blocks like <code>indexOfNonTrivial(char[], int,
+     * int)</code>.
+     * 
+     * @param str the string to scan
+     * @return the index of the first non-trivial code unit or the length
+     */
+    private static int indexOfNonTrivial(String str) {
+        int len = str.length();
+        int i = 0;
+        while (len - i >= SCAN_BLOCK) {
+            int bits = 0;
+            for (int j = i; j < i + SCAN_BLOCK; j++) {
+                bits |= str.charAt(j);
+            }
+            if (bits >= FIRST_NON_TRIVIAL) {
+                break;
+            }
+            i += SCAN_BLOCK;
+        }
+        while (i < len && str.charAt(i) < FIRST_NON_TRIVIAL) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns <code>true</code> if a slice of an UTF-16 code unit array is 
+     * in NFC. ICU is only consulted from the last stable starter before the 
+     * first non-trivial code unit.
+     * 
+     * @param ch the array to check
+     * @param start the index of the first element to check
+     * @param end the index of the first element not to check
+     * @return <code>true</code> if the slice is in NFC
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean isNormalized(char[] ch, int start, int end) {
+        int i = indexOfNonTrivial(ch, start, end);
+        if (i == end) {
+            return true;
+        }
+        if (i > start) {
+            i--;
+        }
+        return Normalizer.isNormalized(ch, i, end, Normalizer.NFC, 0);
+    }
+
+    /**
+     * Returns <code>true</code> if a string is in NFC. ICU is only 
+     * consulted from the last stable starter before the first non-trivial 
+     * code unit.
+     * 
+     * @param str the string to check
+     * @return <code>true</code> if the string is in NFC
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean isNormalized(String str) {
+        int i = indexOfNonTrivial(str);
+        if (i == str.length()) {
+            return true;
+        }
+        return Normalizer.isNormalized(i > 1 ? str.substring(i - 1) : str,
+                Normalizer.NFC, 0);
     }
 
     /**
@@ -205,7 +318,6 @@ public final class NormalizationChecker extends Checker {
      * 
      * @see nu.validator.checker.Checker#characters(char[], int, int)
      */
-    @SuppressWarnings("deprecation")
     @Override
     public void characters(char[] ch, int start, int length)
             throws SAXException {
@@ -251,7 +363,7 @@ public final class NormalizationChecker extends Checker {
             if (i == stop) {
                 return;
             } else {
-                if (!Normalizer.isNormalized(buf, 0, pos, Normalizer.NFC, 0)) {
+                if (!isNormalized(buf, 0, pos)) {
                     errAboutTextRun();
                 }
                 pos = 0;
@@ -263,8 +375,7 @@ public final class NormalizationChecker extends Checker {
             while (i > start && isComposingCharOrSurrogate(ch[i])) {
                 i--;
             }
-            if (i > start
-                    && !Normalizer.isNormalized(ch, start, i, Normalizer.NFC, 0)) {
+            if (i > start && !isNormalized(ch, start, i)) {
                 errAboutTextRun();
             }
             appendToBuf(ch, i, stop);
@@ -325,7 +436,6 @@ public final class NormalizationChecker extends Checker {
      * @see nu.validator.checker.Checker#processingInstruction(java.lang.String,
      *      java.lang.String)
      */
-    @SuppressWarnings("deprecation")
     @Override
     public void processingInstruction(String target, String data)
             throws SAXException {
@@ -336,7 +446,7 @@ public final class NormalizationChecker extends Checker {
         if (!data.isEmpty()) {
             if (startsWithComposingChar(data)) {
                 warn("Processing instruction data starts with a composing character.");
-            } else if (!Normalizer.isNormalized(data, Normalizer.NFC, 0)) {
+            } else if (!isNormalized(data)) {
                 warn("Processing instruction data in not in Unicode Normalization Form C.");
             }
         }
@@ -346,7 +456,6 @@ public final class NormalizationChecker extends Checker {
      * @see nu.validator.checker.Checker#startElement(java.lang.String,
      *      java.lang.String, java.lang.String, org.xml.sax.Attributes)
      */
-    @SuppressWarnings("deprecation")
     @Override
     public void startElement(String uri, String localName, String qName,
             Attributes atts) throws SAXException {
@@ -375,7 +484,7 @@ public final class NormalizationChecker extends Checker {
                                             + "\u201D") + " on element \u201C"
                             + localName + "\u201D from namespace \u201C" + uri
                             + "\u201D starts with a composing character.");
-                } else if (!Normalizer.isNormalized(value, Normalizer.NFC, 0)) {
+                } else if (!isNormalized(value)) {
                     warn("The value of attribute \u201C"
                             + atts.getLocalName(i)
                             + "\u201D"
@@ -412,10 +521,9 @@ public final class NormalizationChecker extends Checker {
      * 
      * @throws SAXException if the <code>ErrorHandler</code> throws.
      */
-    @SuppressWarnings("deprecation")
     public void flush() throws SAXException {
         if (!alreadyComplainedAboutThisRun
-                && !Normalizer.isNormalized(buf, 0, pos, Normalizer.NFC, 0)) {
+                && !isNormalized(buf, 0, pos)) {
             errAboutTextRun();
         }
         reset();
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A limit on the wall-clock and CPU time that one validation may take.
+ *
+ * <p>The code running a validation installs a budget for its thread with
+ * <code>start()</code> and removes it with <code>end()</code>. Parsing and
+ * checking code gets the budget with <code>current()</code> and calls
+ * <code>check()</code> as it goes; that only reads the clocks once every
+ * <code>INTERVAL</code> calls and throws
+ * <code>TimeBudgetExceededException</code> once the budget has run out.
+ * Without an installed budget, <code>current()</code> returns one that
+ * never runs out.
+ */
+public final class TimeBudget {
+
+    private static final int INTERVAL = 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final TimeBudget UNLIMITED = new TimeBudget(0, 0);
+
+    private static final ThreadLocal<TimeBudget> CURRENT = new ThreadLocal<>();
+
+    private final long wallMillis;
+
+    private final long cpuMillis;
+
+    private final long wallDeadline;
+
+    private final long cpuDeadline;
+
+    private int countdown = INTERVAL;
+
+    private boolean exceeded;
+
+    private TimeBudget(long wallMillis, long cpuMillis) {
+        this.wallMillis = wallMillis;
+        this.cpuMillis = cpuMillis > 0
+                && THREADS.isCurrentThreadCpuTimeSupported() ? cpuMillis : 0;
+        this.wallDeadline = System.nanoTime() + wallMillis * 1000000L;
+        this.cpuDeadline = this.cpuMillis > 0
+                ? THREADS.getCurrentThreadCpuTime() + cpuMillis * 1000000L
+                : 0;
+    }
+
+    /**
+     * Installs a budget for the current thread.
+     *
+     * @param wallMillis
+     *            the wall-clock time allowed or 0 for no limit
+     * @param cpuMillis
+     *            the CPU time of the current thread allowed or 0 for no
+     *            limit
+     * @return the budget
+     */
+    public static TimeBudget start(long wallMillis, long cpuMillis) {
+        TimeBudget budget = wallMillis > 0 || cpuMillis > 0
+                ? new TimeBudget(Math.max(0, wallMillis),
+                        Math.max(0, cpuMillis))
+                : UNLIMITED;
+        CURRENT.set(budget);
+        return budget;
+    }
+
+    /**
+     * Removes the budget of the current thread.
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Returns the budget of the current thread.
+     */
+    public static TimeBudget current() {
+        TimeBudget budget = CURRENT.get();
+        return budget == null ? UNLIMITED : budget;
+    }
+
+    /**
+     * Throws if the budget has run out, reading the clocks only once in a
+     * while. Cheap enough to call for each parse event or loop iteration.
+     *
+     * @throws TimeBudgetExceededException
+     *             if the budget has run out
+     */
+    public void check() throws TimeBudgetExceededException {
+        if (this == UNLIMITED || --countdown > 0) {
+            return;
+        }
+        countdown = INTERVAL;
+        checkNow();
+    }
+
+    /**
+     * Throws if the budget has run out. For use before and after work that
+     * cannot be interrupted.
+     *
+     * @throws TimeBudgetExceededException
+     *             if the budget has run out
+     */
+    public void checkNow() throws TimeBudgetExceededException {
+        if (isExceeded()) {
+            throw new TimeBudgetExceededException(wallMillis, cpuMillis);
+        }
+    }
+
+    private boolean isExceeded() {
+        if (this == UNLIMITED) {
+            return false;
+        }
+        if (!exceeded) {
+            exceeded = (wallMillis > 0 && System.nanoTime() - wallDeadline > 0)
+                    || (cpuMillis > 0 && THREADS.getCurrentThreadCpuTime()
+                            - cpuDeadline > 0);
+        }
+        return exceeded;
+    }
+
+    /**
+     * Wraps a reader so that it reports the end of the input once the
+     * budget has run out, which makes code that cannot check the budget
+     * itself, like the CSS parser, finish early.
+     *
+     * @param reader
+     *            the reader to wrap
+     * @return the wrapped reader
+     */
+    public Reader limit(Reader reader) {
+        if (this == UNLIMITED) {
+            return reader;
+        }
+        return new FilterReader(reader) {
+            @Override
+            public int read() throws IOException {
+                return isExceeded() ? -1 : super.read();
+            }
+
+            @Override
+            public int read(char[] cbuf, int off, int len)
+                    throws IOException {
+                return isExceeded() ? -1 : super.read(cbuf, off, len);
+            }
+        };
+    }
+}
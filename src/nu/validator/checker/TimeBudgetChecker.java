@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+/**
+ * Stops parsing once the <code>TimeBudget</code> of the current thread has
+ * run out. Meant to see every parse event, for example as a wiretap.
+ */
+public final class TimeBudgetChecker extends Checker {
+
+    private TimeBudget budget = TimeBudget.current();
+
+    /**
+     * @see nu.validator.checker.Checker#startDocument()
+     */
+    @Override
+    public void startDocument() throws SAXException {
+        budget = TimeBudget.current();
+        budget.checkNow();
+    }
+
+    /**
+     * @see nu.validator.checker.Checker#startElement(java.lang.String,
+     *      java.lang.String, java.lang.String, org.xml.sax.Attributes)
+     */
+    @Override
+    public void startElement(String uri, String localName, String qName,
+            Attributes atts) throws SAXException {
+        budget.check();
+    }
+
+    /**
+     * @see nu.validator.checker.Checker#endElement(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    @Override
+    public void endElement(String uri, String localName, String qName)
+            throws SAXException {
+        budget.check();
+    }
+
+    /**
+     * @see nu.validator.checker.Checker#characters(char[], int, int)
+     */
+    @Override
+    public void characters(char[] ch, int start, int length)
+            throws SAXException {
+        budget.check();
+    }
+}
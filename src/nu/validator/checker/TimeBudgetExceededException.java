@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Thrown when a validation has used up its <code>TimeBudget</code>. What
+ * was reported before it was thrown stands, but the results are
+ * incomplete.
+ */
+public class TimeBudgetExceededException extends SAXException {
+
+    TimeBudgetExceededException(long wallMillis, long cpuMillis) {
+        super("Checking was stopped because it took longer than "
+                + describe(wallMillis, cpuMillis)
+                + ". The results are incomplete.");
+    }
+
+    private static String describe(long wallMillis, long cpuMillis) {
+        String wall = wallMillis > 0 ? wallMillis + " ms" : null;
+        String cpu = cpuMillis > 0 ? cpuMillis + " ms of CPU time" : null;
+        if (wall == null) {
+            return cpu;
+        } else if (cpu == null) {
+            return wall;
+        }
+        return wall + " or " + cpu;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker.jing;
+
+import nu.validator.checker.CheckerTimings;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+
+import com.thaiopensource.validate.Validator;
+
+/**
+ * Wraps a Jing <code>Validator</code> so that the time spent in its content
+ * handler is added to a <code>CheckerTimings</code>.
+ */
+public final class TimedValidator implements Validator {
+
+    private final Validator validator;
+
+    private final ContentHandler contentHandler;
+
+    /**
+     * Constructor
+     *
+     * @param validator
+     *            the <code>Validator</code> to wrap
+     * @param timings
+     *            the collector to add to
+     * @param name
+     *            the name to add the time under
+     */
+    public TimedValidator(Validator validator, CheckerTimings timings,
+            String name) {
+        super();
+        this.validator = validator;
+        this.contentHandler = timings.wrap(name,
+                validator.getContentHandler());
+    }
+
+    /**
+     * Returns the timing content handler.
+     * @see com.thaiopensource.validate.Validator#getContentHandler()
+     */
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    /**
+     * Returns the DTD handler of the wrapped <code>Validator</code>.
+     * @see com.thaiopensource.validate.Validator#getDTDHandler()
+     */
+    @Override
+    public DTDHandler getDTDHandler() {
+        return validator.getDTDHandler();
+    }
+
+    /**
+     * Resets the wrapped <code>Validator</code>.
+     * @see com.thaiopensource.validate.Validator#reset()
+     */
+    @Override
+    public void reset() {
+        validator.reset();
+    }
+
+}
@@ -40,8 +40,10 @@ import javax.servlet.http.HttpServletRequest;
 
 import nu.validator.checker.AttributeUtil;
 import nu.validator.checker.Checker;
+import nu.validator.checker.CheckerTimings;
 import nu.validator.checker.LocatorImpl;
 import nu.validator.checker.TaintableLocatorImpl;
+import nu.validator.checker.TimeBudget;
 import nu.validator.checker.VnuBadAttrValueException;
 import nu.validator.checker.VnuBadElementNameException;
 import nu.validator.client.TestRunner;
@@ -1132,6 +1134,12 @@ public class Assertions extends Checker {
 
     private HttpServletRequest request;
 
+    private TimeBudget budget = TimeBudget.current();
+
+    private static final String CSS_TIMING = "Assertions: CSS";
+
+    private CheckerTimings timings;
+
     private boolean sourceIsCss;
 
     public void setSourceIsCss(boolean sourceIsCss) {
@@ -1520,11 +1528,19 @@ public class Assertions extends Checker {
                 ac.setTreatCssHacksAsWarnings(true);
                 ac.setWarningLevel(-1);
                 ac.setFakeURL("file://localhost/StyleElement");
+                budget.checkNow();
+                long cssStart = timings == null ? 0 : System.nanoTime();
                 StyleSheetParser styleSheetParser = new StyleSheetParser();
                 styleSheetParser.parseStyleSheet(ac,
-                        new StringReader(styleContents.substring(lineOffset)),
+                        budget.limit(new StringReader(
+                                styleContents.substring(lineOffset))),
                         null);
+                // Errors from a style sheet cut short are not reported.
+                budget.checkNow();
                 styleSheetParser.getStyleSheet().findConflicts(ac);
+                if (timings != null) {
+                    timings.add(CSS_TIMING, System.nanoTime() - cssStart);
+                }
                 Errors errors = styleSheetParser.getStyleSheet().getErrors();
                 if (errors.getErrorCount() > 0) {
                     incrementUseCounter("style-element-errors-found");
@@ -1615,6 +1631,8 @@ public class Assertions extends Checker {
     public void startDocument() throws SAXException {
         reset();
         request = getRequest();
+        budget = TimeBudget.current();
+        timings = CheckerTimings.current();
         stack = new StackNode[32];
         currentPtr = 0;
         currentFigurePtr = -1;
@@ -1751,6 +1769,9 @@ public class Assertions extends Checker {
                         ac.setTreatCssHacksAsWarnings(true);
                         ac.setWarningLevel(-1);
                         ac.setFakeURL("file://localhost/StyleAttribute");
+                        budget.checkNow();
+                        long cssStart = timings == null ? 0
+                                : System.nanoTime();
                         StyleSheetParser styleSheetParser = //
                                 new StyleSheetParser();
                         styleSheetParser.parseStyleAttribute(ac,
@@ -1758,7 +1779,12 @@ public class Assertions extends Checker {
                                         styleContents.getBytes()),
                                 "", ac.getFakeURL(),
                                 getDocumentLocator().getLineNumber());
+                        budget.checkNow();
                         styleSheetParser.getStyleSheet().findConflicts(ac);
+                        if (timings != null) {
+                            timings.add(CSS_TIMING,
+                                    System.nanoTime() - cssStart);
+                        }
                         Errors errors = //
                                 styleSheetParser.getStyleSheet().getErrors();
                         if (errors.getErrorCount() > 0) {
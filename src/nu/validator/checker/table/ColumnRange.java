@@ -26,7 +26,7 @@ import org.xml.sax.Locator;
 
 /**
  * Represents a contiguous range of columns that was established by a single 
- * element and that does not yet have cells in it.
+ * element.
  * 
  * @version $Id$
  * @author hsivonen
@@ -46,17 +46,12 @@ final class ColumnRange {
     /**
      * The leftmost column that is part of this range.
      */
-    private int left;
+    private final int left;
 
     /**
      * The first column to the right that is not part of this range.
      */
-    private int right;
-
-    /**
-     * The next range in the linked list of ranges.
-     */
-    private ColumnRange next;
+    private final int right;
 
     /**
      * Constructor
@@ -68,12 +63,10 @@ final class ColumnRange {
      */
     public ColumnRange(String element, Locator locator, int left, int right) {
         super();
-        assert right > left;
         this.element = element;
         this.locator = locator;
         this.left = left;
         this.right = right;
-        this.next = null;
     }
 
     /**
@@ -95,67 +88,21 @@ final class ColumnRange {
     }
 
     /**
-     * Hit testing.
-     * @param column column index
-     * @return -1 if the column is to the left of this range, 
-     * 0 if the column is in this range and 
-     * 1 if the column is to the right of this range
-     */
-    int hits(int column) {
-        if (column < left) {
-            return -1;
-        } if (column >= right) {
-            return 1;
-        } else {
-            return 0;
-        }
-    }
-
-    /**
-     * Removes a column from the range possibly asking it to be destroyed or 
-     * splitting it.
-     * @param column a column index
-     * @return <code>null</code> if this range gets destroyed, 
-     * <code>this</code> if the range gets resized and
-     * the new right half range if the range gets split
-     */
-    ColumnRange removeColumn(int column) {
-        // first, let's see if this is a 1-column range that should 
-        // be destroyed
-        if (isSingleCol()) {
-            return null;
-        } else if (column == left) {
-            left++;
-            return this;
-        } else if (column + 1 == right) {
-            right--;
-            return this;
-        } else {
-            ColumnRange created = new ColumnRange(this.element, this.locator,
-                    column + 1, this.right);
-            created.next = this.next;
-            this.next = created;
-            this.right = column;
-            return created;
-        }
-    }
-
-    /**
-     * Returns the next.
+     * Returns the left.
      * 
-     * @return the next
+     * @return the left
      */
-    ColumnRange getNext() {
-        return next;
+    int getLeft() {
+        return left;
     }
 
     /**
-     * Sets the next.
+     * Returns the right.
      * 
-     * @param next the next to set
+     * @return the right
      */
-    void setNext(ColumnRange next) {
-        this.next = next;
+    int getRight() {
+        return right;
     }
 
     boolean isSingleCol() {
@@ -24,9 +24,6 @@
 package nu.validator.checker.table;
 
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import org.xml.sax.SAXException;
 
@@ -54,7 +51,7 @@ final class RowGroup {
     private int insertionPoint = 0;
 
     /**
-     * The index of the next uninspected item in <code>cellsOnCurrentRow</code>.
+     * The index of the next uninspected item in <code>cellsInEffect</code>.
      */
     private int nextOldCell = 0;
 
@@ -64,16 +61,33 @@ final class RowGroup {
     private final Table owner;
 
     /**
-     * The set of cells from previous rows that are still in effect extending
-     * downwards.
+     * The cells from previous rows that are still in effect extending
+     * downwards, sorted by their <code>left</code> field. (No two of them
+     * can start on the same column.)
      */
-    private final SortedSet<Cell> cellsIfEffect = new TreeSet<>(
-            VerticalCellComparator.THE_INSTANCE);
+    private Cell[] cellsInEffect = EMPTY_CELL_ARRAY;
 
     /**
-     * A temporary copy of <code>cellsIfEffect</code> sorted differently.
+     * The number of items in <code>cellsInEffect</code>.
      */
-    private Cell[] cellsOnCurrentRow;
+    private int cellsInEffectCount = 0;
+
+    /**
+     * The cells beginning on the current row that extend downwards, sorted
+     * by their <code>left</code> field.
+     */
+    private Cell[] cellsStarted = new Cell[8];
+
+    /**
+     * The number of items in <code>cellsStarted</code>.
+     */
+    private int cellsStartedCount = 0;
+
+    /**
+     * An array to merge <code>cellsInEffect</code> and
+     * <code>cellsStarted</code> into for the next row.
+     */
+    private Cell[] spare = EMPTY_CELL_ARRAY;
 
     /**
      * Whether the current row has had cells.
@@ -98,11 +112,21 @@ final class RowGroup {
         cell.setPosition(currentRow, insertionPoint);
         owner.cell(cell);
         if (cell.getBottom() > currentRow + 1) {
-            cellsIfEffect.add(cell);
+            if (cellsStartedCount == cellsStarted.length) {
+                cellsStarted = Arrays.copyOf(cellsStarted,
+                        cellsStartedCount * 2);
+            }
+            cellsStarted[cellsStartedCount++] = cell;
         }
         insertionPoint = cell.getRight();
-        for (int i = nextOldCell; i < cellsOnCurrentRow.length; i++) {
-            cellsOnCurrentRow[i].errOnHorizontalOverlap(cell);
+        // The remaining old cells start to the right of this cell, so only
+        // the ones that start before its right edge overlap it.
+        for (int i = nextOldCell; i < cellsInEffectCount; i++) {
+            Cell other = cellsInEffect[i];
+            if (other.getLeft() >= insertionPoint) {
+                break;
+            }
+            other.errOnHorizontalOverlap(cell);
         }
     }
 
@@ -110,8 +134,8 @@ final class RowGroup {
      *
      */
     private void findInsertionPoint() {
-        while (nextOldCell < cellsOnCurrentRow.length) {
-            Cell other = cellsOnCurrentRow[nextOldCell];
+        while (nextOldCell < cellsInEffectCount) {
+            Cell other = cellsInEffect[nextOldCell];
             if (insertionPoint < other.getLeft()) {
                 break;
             }
@@ -124,7 +148,10 @@ final class RowGroup {
     }
 
     public void end() throws SAXException {
-        for (Cell cell : cellsIfEffect) {
+        Cell[] cells = Arrays.copyOf(cellsInEffect, cellsInEffectCount);
+        Arrays.sort(cells, VerticalCellComparator.THE_INSTANCE);
+        for (Cell cell : cells) {
+            owner.getBudget().check();
             cell.errIfNotRowspanZero(type);
         }
     }
@@ -141,7 +168,6 @@ final class RowGroup {
         }
 
         findInsertionPoint();
-        cellsOnCurrentRow = null;
 
         int columnCount = owner.getColumnCount();
         if (owner.isHardWidth()) {
@@ -173,13 +199,34 @@ final class RowGroup {
             }
         }
 
-        // Get rid of cells that don't span to the next row
-        for (Iterator<Cell> iter = cellsIfEffect.iterator(); iter.hasNext();) {
-            Cell cell = iter.next();
-            if (cell.shouldBeCulled(currentRow + 1)) {
-                iter.remove();
+        // Merge the cells that began on this row into the cells in effect
+        // and get rid of cells that don't span to the next row
+        int size = cellsInEffectCount + cellsStartedCount;
+        if (spare.length < size) {
+            spare = new Cell[Math.max(size, spare.length * 2)];
+        }
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < cellsInEffectCount || j < cellsStartedCount) {
+            Cell cell;
+            if (j == cellsStartedCount || (i < cellsInEffectCount
+                    && cellsInEffect[i].getLeft() < cellsStarted[j].getLeft())) {
+                cell = cellsInEffect[i++];
+            } else {
+                cell = cellsStarted[j++];
+            }
+            if (!cell.shouldBeCulled(currentRow + 1)) {
+                spare[count++] = cell;
             }
         }
+        Arrays.fill(cellsInEffect, 0, cellsInEffectCount, null);
+        Arrays.fill(cellsStarted, 0, cellsStartedCount, null);
+        Cell[] merged = spare;
+        spare = cellsInEffect;
+        cellsInEffect = merged;
+        cellsInEffectCount = count;
+        cellsStartedCount = 0;
     }
 
     public void startRow() {
@@ -187,9 +234,6 @@ final class RowGroup {
         insertionPoint = 0;
         nextOldCell = 0;
         rowHadCells = false;
-        cellsOnCurrentRow = cellsIfEffect.toArray(EMPTY_CELL_ARRAY);
-        // the array should already be in the right order most of the time
-        Arrays.sort(cellsOnCurrentRow, HorizontalCellComparator.THE_INSTANCE);
     }
 
 }
@@ -22,12 +22,14 @@
 
 package nu.validator.checker.table;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
 import nu.validator.checker.AttributeUtil;
+import nu.validator.checker.TimeBudget;
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
@@ -155,9 +157,10 @@ final class Table {
     private final Set<String> headerIds = new HashSet<>();
 
     /**
-     * A list of cells that refer to headers (in the document order).
+     * A list of cells that refer to headers not seen yet (in the document
+     * order).
      */
-    private final List<Cell> cellsReferringToHeaders = new LinkedList<>();
+    private final List<Cell> cellsReferringToHeaders = new ArrayList<>();
 
     /**
      * The owning checker.
@@ -170,24 +173,20 @@ final class Table {
     private RowGroup current;
 
     /**
-     * The head of the column range list.
+     * The column ranges established by column markup or by cells that 
+     * widened the table, in column order.
      */
-    private ColumnRange first = null;
+    private final List<ColumnRange> columnRanges = new ArrayList<>();
 
     /**
-     * The tail of the column range list.
+     * The columns in which cells begin.
      */
-    private ColumnRange last = null;
+    private final BitSet columnsWithCells = new BitSet();
 
     /**
-     * The range under inspection.
+     * The time budget of the validation.
      */
-    private ColumnRange currentColRange = null;
-
-    /**
-     * The previous range that was inspected.
-     */
-    private ColumnRange previousColRange = null;
+    private final TimeBudget budget = TimeBudget.current();
 
     /**
      * Constructor.
@@ -198,6 +197,15 @@ final class Table {
         this.owner = owner;
     }
 
+    /**
+     * Returns the time budget of the validation.
+     * 
+     * @return the time budget
+     */
+    TimeBudget getBudget() {
+        return budget;
+    }
+
     private boolean needSuppressStart() {
         if (suppressedStarts > 0) {
             suppressedStarts++;
@@ -271,8 +279,6 @@ final class Table {
                 suppressedStarts = 1;
                 return;
         }
-        currentColRange = first;
-        previousColRange = null;
         current.startRow();
     }
 
@@ -327,8 +333,11 @@ final class Table {
                 Math.abs(AttributeUtil.parseNonNegativeInteger(attributes.getValue(
                         "", "rowspan"))), headers, header,
                 owner.getDocumentLocator(), owner.getErrorHandler());
-        if (headers.length > 0) {
-            cellsReferringToHeaders.add(cell);
+        for (String heading : headers) {
+            if (!headerIds.contains(heading)) {
+                cellsReferringToHeaders.add(cell);
+                break;
+            }
         }
         current.cell(cell);
     }
@@ -426,18 +435,12 @@ final class Table {
     }
 
     /**
-     * Appends a column range to the linked list of column ranges.
+     * Appends a column range to the list of column ranges.
      * 
      * @param colRange the range to append
      */
     private void appendColumnRange(ColumnRange colRange) {
-        if (last == null) {
-            first = colRange;
-            last = colRange;
-        } else {
-            last.setNext(colRange);
-            last = colRange;
-        }
+        columnRanges.add(colRange);
     }
 
     void warn(String message) throws SAXException {
@@ -480,6 +483,7 @@ final class Table {
 
         // Check referential integrity
         for (Cell cell : cellsReferringToHeaders) {
+            budget.check();
             for (String heading : cell.getHeadings()) {
                 if (!headerIds.contains(heading)) {
                     cell.err("The \u201Cheaders\u201D attribute on the element \u201C"
@@ -492,24 +496,43 @@ final class Table {
         }
 
         // Check that each column has non-extended cells
-        ColumnRange colRange = first;
-        while (colRange != null) {
-            if (colRange.isSingleCol()) {
-                owner.getErrorHandler().error(
-                        new SAXParseException("Table column " + colRange
-                                + " established by element \u201C"
-                                + colRange.getElement()
-                                + "\u201D has no cells beginning in it.",
-                                colRange.getLocator()));
-            } else {
-                owner.getErrorHandler().error(
-                        new SAXParseException("Table columns in range "
-                                + colRange + " established by element \u201C"
-                                + colRange.getElement()
-                                + "\u201D have no cells beginning in them.",
-                                colRange.getLocator()));
+        for (ColumnRange colRange : columnRanges) {
+            budget.check();
+            int right = colRange.getRight();
+            int left = columnsWithCells.nextClearBit(colRange.getLeft());
+            while (left < right) {
+                int end = columnsWithCells.nextSetBit(left);
+                if (end == -1 || end > right) {
+                    end = right;
+                }
+                errNoCells(new ColumnRange(colRange.getElement(),
+                        colRange.getLocator(), left, end));
+                left = columnsWithCells.nextClearBit(end);
             }
-            colRange = colRange.getNext();
+        }
+    }
+
+    /**
+     * Reports columns in which no cells begin.
+     * 
+     * @param colRange the columns
+     * @throws SAXException if the <code>ErrorHandler</code> throws
+     */
+    private void errNoCells(ColumnRange colRange) throws SAXException {
+        if (colRange.isSingleCol()) {
+            owner.getErrorHandler().error(
+                    new SAXParseException("Table column " + colRange
+                            + " established by element \u201C"
+                            + colRange.getElement()
+                            + "\u201D has no cells beginning in it.",
+                            colRange.getLocator()));
+        } else {
+            owner.getErrorHandler().error(
+                    new SAXParseException("Table columns in range "
+                            + colRange + " established by element \u201C"
+                            + colRange.getElement()
+                            + "\u201D have no cells beginning in them.",
+                            colRange.getLocator()));
         }
     }
 
@@ -551,7 +574,8 @@ final class Table {
     void cell(Cell cell) {
         int left = cell.getLeft();
         int right = cell.getRight();
-        // first see if we've got a cell past the last col
+        columnsWithCells.set(left);
+        // see if we've got a cell past the last col
         if (right > realColumnCount) {
             // are we past last col entirely?
             if (left == realColumnCount) {
@@ -559,43 +583,11 @@ final class Table {
                 if (left + 1 != right) {
                     appendColumnRange(new ColumnRange(cell.elementName(), cell, left + 1, right));
                 }
-                realColumnCount = right;
-                return;
             } else {
                 // not past entirely
                 appendColumnRange(new ColumnRange(cell.elementName(), cell, realColumnCount, right));                
-                realColumnCount = right;
-            }
-        }
-        while (currentColRange != null) {
-            int hit = currentColRange.hits(left);
-            if (hit == 0) {
-                ColumnRange newRange = currentColRange.removeColumn(left);
-                if (newRange == null) {
-                    // zap a list item
-                    if (previousColRange != null) {
-                        previousColRange.setNext(currentColRange.getNext());
-                    }
-                    if (first == currentColRange) {
-                        first = currentColRange.getNext();
-                    }
-                    if (last == currentColRange) {
-                        last = previousColRange;
-                    }
-                    currentColRange = currentColRange.getNext();
-                } else {
-                    if (last == currentColRange) {
-                        last = newRange;
-                    }
-                    currentColRange = newRange;
-                }
-                return;
-            } else if (hit == -1) {
-                return;
-            } else if (hit == 1) {
-                previousColRange = currentColRange;
-                currentColRange = currentColRange.getNext();                                
             }
+            realColumnCount = right;
         }
     }
 }
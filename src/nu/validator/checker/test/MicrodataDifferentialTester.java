@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.checker.test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Compares two builds of <code>MicrodataChecker</code>. Each build is
+ * loaded from its own class directory or jar, and both check the same
+ * random documents of up to 40 elements with <code>id</code>,
+ * <code>itemprop</code>, <code>itemscope</code> and <code>itemref</code>
+ * attributes. The ids are drawn from a small set, so documents have
+ * duplicate ids, references to missing ids, redundant references, items
+ * that reach themselves through <code>itemref</code> and sub-items reached
+ * along several paths. The errors, their order and their locations must
+ * be identical; the differences are printed.
+ *
+ * <p>Usage: <code>MicrodataDifferentialTester OLD NEW [COUNT [SEED]]</code>,
+ * where <code>OLD</code> and <code>NEW</code> are class paths that each
+ * contain the checker and its dependencies and <code>COUNT</code> is the
+ * number of documents.
+ */
+public class MicrodataDifferentialTester {
+
+    private static final String NS = "http://www.w3.org/1999/xhtml";
+
+    private static final String[] IDS = { "a", "b", "c", "d", "e", "f" };
+
+    private static final int MAX_ELEMENTS = 40;
+
+    private static final int MAX_SHOWN = 30;
+
+    /**
+     * A start tag with its attributes and line, or an end tag.
+     */
+    private static final class Event {
+        final String uri;
+
+        final Attributes atts;
+
+        final int line;
+
+        Event(String uri, Attributes atts, int line) {
+            this.uri = uri;
+            this.atts = atts;
+            this.line = line;
+        }
+    }
+
+    private static ClassLoader loader(String path) throws Exception {
+        String[] entries = path.split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            urls[i] = new File(entries[i]).toURI().toURL();
+        }
+        return new URLClassLoader(urls, null);
+    }
+
+    private static String ids(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(random.nextInt(8) == 0 ? "z"
+                    : IDS[random.nextInt(IDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static Attributes attributes(Random random) {
+        AttributesImpl atts = new AttributesImpl();
+        if (random.nextBoolean()) {
+            atts.addAttribute("", "id", "id", "ID",
+                    IDS[random.nextInt(IDS.length)]);
+        }
+        if (random.nextInt(5) < 2) {
+            atts.addAttribute("", "itemprop", "itemprop", "CDATA",
+                    random.nextInt(4) == 0 ? "p q" : "p");
+        }
+        if (random.nextInt(5) < 2) {
+            atts.addAttribute("", "itemscope", "itemscope", "CDATA", "");
+        }
+        if (random.nextInt(3) == 0) {
+            atts.addAttribute("", "itemref", "itemref", "CDATA",
+                    ids(random));
+        }
+        return atts;
+    }
+
+    /**
+     * Generates a random tree; end tags are events without attributes.
+     */
+    private static List<Event> document(Random random) {
+        List<Event> events = new ArrayList<>();
+        int elements = 1 + random.nextInt(MAX_ELEMENTS);
+        int depth = 0;
+        int line = 0;
+        while (elements > 0 || depth > 0) {
+            if (elements > 0 && (depth == 0 || random.nextInt(3) > 0)) {
+                String uri = random.nextInt(30) == 0
+                        ? "http://www.w3.org/2000/svg" : NS;
+                events.add(new Event(uri, attributes(random), ++line));
+                elements--;
+                depth++;
+            } else {
+                events.add(new Event(null, null, ++line));
+                depth--;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Runs the events through a fresh checker from <code>loader</code> and
+     * returns its messages as "line: W|E message".
+     */
+    private static List<String> run(ClassLoader loader, List<Event> events)
+            throws Exception {
+        Object checker = Class.forName("nu.validator.checker.MicrodataChecker",
+                true, loader).getConstructor().newInstance();
+        final List<String> messages = new ArrayList<>();
+        Method setErrorHandler = checker.getClass().getMethod(
+                "setErrorHandler", ErrorHandler.class);
+        setErrorHandler.invoke(checker, new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+                messages.add(e.getLineNumber() + ": W " + e.getMessage());
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+                messages.add(e.getLineNumber() + ": E " + e.getMessage());
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) throws SAXException {
+                throw e;
+            }
+        });
+        ContentHandler handler = (ContentHandler) checker;
+        LocatorImpl locator = new LocatorImpl();
+        handler.setDocumentLocator(locator);
+        handler.startDocument();
+        List<String> open = new ArrayList<>();
+        for (Event event : events) {
+            locator.setLineNumber(event.line);
+            if (event.atts != null) {
+                handler.startElement(event.uri, "div", "div", event.atts);
+                open.add(event.uri);
+            } else {
+                handler.endElement(open.remove(open.size() - 1), "div",
+                        "div");
+            }
+        }
+        handler.endDocument();
+        return messages;
+    }
+
+    private static String describe(List<Event> events) {
+        StringBuilder sb = new StringBuilder();
+        for (Event event : events) {
+            if (event.atts == null) {
+                sb.append("</>");
+                continue;
+            }
+            sb.append('<').append(event.line);
+            if (event.uri != NS) {
+                sb.append(" svg");
+            }
+            for (int i = 0; i < event.atts.getLength(); i++) {
+                sb.append(' ').append(event.atts.getLocalName(i)).append(
+                        "=\"").append(event.atts.getValue(i)).append('"');
+            }
+            sb.append('>');
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println(
+                    "Usage: MicrodataDifferentialTester OLD NEW [COUNT [SEED]]");
+            System.exit(2);
+        }
+        ClassLoader oldLoader = loader(args[0]);
+        ClassLoader newLoader = loader(args[1]);
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 700000;
+        Random random = new Random(args.length > 3 ? Long.parseLong(args[3])
+                : 42);
+        long messages = 0;
+        long differences = 0;
+        for (int i = 0; i < count; i++) {
+            List<Event> events = document(random);
+            List<String> oldMessages = run(oldLoader, events);
+            List<String> newMessages = run(newLoader, events);
+            messages += newMessages.size();
+            if (!oldMessages.equals(newMessages)) {
+                differences++;
+                if (differences <= MAX_SHOWN) {
+                    System.out.println(describe(events) + "\n  old "
+                            + oldMessages + "\n  new " + newMessages);
+                }
+            }
+        }
+        System.out.println(count + " documents, " + messages + " messages, "
+                + differences + " differences");
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
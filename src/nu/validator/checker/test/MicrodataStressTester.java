@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker.test;
+
+import nu.validator.checker.MicrodataChecker;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Times <code>MicrodataChecker</code> on generated documents with thousands
+ * of items: deeply nested items, many items sharing properties through
+ * <code>itemref</code>, and layers of items that each reference both items
+ * of the next layer.
+ */
+public class MicrodataStressTester {
+
+    private static final String NS = "http://www.w3.org/1999/xhtml";
+
+    private static final int ROUNDS = 20;
+
+    private static int errors;
+
+    private interface Document {
+        void emit(MicrodataChecker checker) throws SAXException;
+    }
+
+    private static AttributesImpl attributes(String id, boolean itemProp,
+            boolean itemScope, String itemRef) {
+        AttributesImpl atts = new AttributesImpl();
+        if (id != null) {
+            atts.addAttribute("", "id", "id", "CDATA", id);
+        }
+        if (itemProp) {
+            atts.addAttribute("", "itemprop", "itemprop", "CDATA", "p");
+        }
+        if (itemScope) {
+            atts.addAttribute("", "itemscope", "itemscope", "CDATA", "");
+        }
+        if (itemRef != null) {
+            atts.addAttribute("", "itemref", "itemref", "CDATA", itemRef);
+        }
+        return atts;
+    }
+
+    private static void element(MicrodataChecker checker,
+            AttributesImpl atts) throws SAXException {
+        checker.startElement(NS, "div", "div", atts);
+        checker.endElement(NS, "div", "div");
+    }
+
+    /**
+     * An item with <code>n</code> levels of nested items.
+     */
+    private static Document nested(final int n) {
+        return new Document() {
+            @Override
+            public void emit(MicrodataChecker checker) throws SAXException {
+                checker.startElement(NS, "div", "div",
+                        attributes(null, false, true, null));
+                for (int i = 0; i < n; i++) {
+                    checker.startElement(NS, "div", "div",
+                            attributes(null, true, true, null));
+                }
+                for (int i = 0; i <= n; i++) {
+                    checker.endElement(NS, "div", "div");
+                }
+            }
+        };
+    }
+
+    /**
+     * <code>n</code> items that all reference the same 100 properties.
+     */
+    private static Document shared(final int n) {
+        return new Document() {
+            @Override
+            public void emit(MicrodataChecker checker) throws SAXException {
+                StringBuilder refs = new StringBuilder();
+                for (int i = 0; i < 100; i++) {
+                    element(checker, attributes("p" + i, true, false, null));
+                    refs.append(" p").append(i);
+                }
+                for (int i = 0; i < n; i++) {
+                    element(checker, attributes(null, false, true,
+                            refs.toString()));
+                }
+            }
+        };
+    }
+
+    /**
+     * <code>n</code> layers of two items, each referencing both items of
+     * the next layer.
+     */
+    private static Document layers(final int n) {
+        return new Document() {
+            @Override
+            public void emit(MicrodataChecker checker) throws SAXException {
+                element(checker, attributes(null, false, true, "a0 b0"));
+                for (int i = 0; i < n; i++) {
+                    String next = i + 1 < n ? "a" + (i + 1) + " b" + (i + 1)
+                            : null;
+                    element(checker, attributes("a" + i, true, true, next));
+                    element(checker, attributes("b" + i, true, true, next));
+                }
+            }
+        };
+    }
+
+    private static void time(String name, Document document)
+            throws SAXException {
+        MicrodataChecker checker = new MicrodataChecker();
+        checker.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+                errors++;
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) {
+            }
+        });
+        checker.setDocumentLocator(new LocatorImpl());
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            checker.startDocument();
+            document.emit(checker);
+            checker.endDocument();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-20s %8.3f ms%n", name, best / 1e6);
+    }
+
+    public static void main(String[] args) throws SAXException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        time("nested " + n, nested(n));
+        time("shared " + n, shared(n));
+        time("layers " + n, layers(n));
+        System.out.println(errors + " errors");
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.checker.test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Compares two builds of <code>NormalizationChecker</code>. Each build is
+ * loaded from its own class directory or jar, and both check the same
+ * random event streams: text runs split into chunks of 1 to 40 code units,
+ * elements with attribute values, and processing instructions. The text
+ * mixes long ASCII and Latin-1 runs with composing characters, precomposed
+ * and decomposed pairs, Hangul jamo, singletons and supplementary
+ * characters, so non-trivial code units fall at every offset of a scan
+ * block and on both sides of a chunk boundary. The warnings and their
+ * order must be identical; the differences are printed.
+ *
+ * <p>Usage: <code>NormalizationDifferentialTester OLD NEW [COUNT [SEED]]</code>,
+ * where <code>OLD</code> and <code>NEW</code> are class paths that each
+ * contain the checker and its dependencies, including ICU, and
+ * <code>COUNT</code> is the number of event streams.
+ */
+public class NormalizationDifferentialTester {
+
+    private static final String NS = "http://www.w3.org/1999/xhtml";
+
+    private static final String[] ATOMS = { "a", "b", "Z", " ",
+            "The quick brown fox ", "\u00E9", "\u00FF", "\u0250", "\u02FF",
+            "e\u0301", "\u0301", "\u0300", "\u0327", "\u4E2D", "\uAC00",
+            "\u1100\u1161", "\u1161", "\uD834\uDD5E", "\uD83D\uDE00",
+            "\u0374", "\u212B", "A\u030A", "\u0915\u093C", "\u0958",
+            "\u1E0D\u0307", "d\u0323\u0307", "<", "\u0100" };
+
+    private static final int MAX_SHOWN = 30;
+
+    private static final int MAX_EVENTS = 20;
+
+    /**
+     * A SAX event that can be sent to several checkers.
+     */
+    private interface Event {
+        void replay(ContentHandler handler) throws SAXException;
+    }
+
+    private static ClassLoader loader(String path) throws Exception {
+        String[] entries = path.split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            urls[i] = new File(entries[i]).toURI().toURL();
+        }
+        return new URLClassLoader(urls, null);
+    }
+
+    /**
+     * Returns up to <code>max</code> atoms. One string in three is mostly
+     * ASCII, so it has long trivial runs.
+     */
+    private static String text(Random random, int max) {
+        StringBuilder sb = new StringBuilder();
+        int atoms = random.nextInt(max);
+        boolean ascii = random.nextInt(3) == 0;
+        for (int i = 0; i < atoms; i++) {
+            if (ascii && random.nextInt(30) > 0) {
+                sb.append(ATOMS[random.nextInt(5)]);
+            } else {
+                sb.append(ATOMS[random.nextInt(ATOMS.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Event characters(final char[] ch, final int start,
+            final int length) {
+        return new Event() {
+            @Override
+            public void replay(ContentHandler handler) throws SAXException {
+                handler.characters(ch, start, length);
+            }
+        };
+    }
+
+    private static List<Event> stream(Random random) {
+        List<Event> events = new ArrayList<>();
+        int count = random.nextInt(MAX_EVENTS);
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(6);
+            if (kind < 3) {
+                String text = text(random, 80);
+                // Surround the run so that reads outside the slice show.
+                char[] ch = ("\u0301" + text + "\u0301").toCharArray();
+                int end = 1 + text.length();
+                int start = 1;
+                while (start < end) {
+                    int length = 1 + random.nextInt(Math.min(end - start,
+                            random.nextBoolean() ? 3 : 40));
+                    events.add(characters(ch, start, length));
+                    start += length;
+                }
+            } else if (kind == 3) {
+                final String name = text(random, 3) + "e";
+                final AttributesImpl atts = new AttributesImpl();
+                int attributes = random.nextInt(3);
+                for (int j = 0; j < attributes; j++) {
+                    atts.addAttribute("", "a" + j, "a" + j, "CDATA",
+                            text(random, 30));
+                }
+                events.add(new Event() {
+                    @Override
+                    public void replay(ContentHandler handler)
+                            throws SAXException {
+                        handler.startElement(NS, name, name, atts);
+                    }
+                });
+            } else if (kind == 4) {
+                events.add(new Event() {
+                    @Override
+                    public void replay(ContentHandler handler)
+                            throws SAXException {
+                        handler.endElement(NS, "e", "e");
+                    }
+                });
+            } else {
+                final String target = text(random, 3);
+                final String data = text(random, 30);
+                events.add(new Event() {
+                    @Override
+                    public void replay(ContentHandler handler)
+                            throws SAXException {
+                        handler.processingInstruction(target, data);
+                    }
+                });
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Runs the events through a fresh checker from <code>loader</code> and
+     * returns its messages, including the exceptions it throws.
+     */
+    private static List<String> run(ClassLoader loader, List<Event> events)
+            throws Exception {
+        Object checker = Class.forName(
+                "nu.validator.checker.NormalizationChecker", true,
+                loader).getConstructor().newInstance();
+        final List<String> messages = new ArrayList<>();
+        Method setErrorHandler = checker.getClass().getMethod(
+                "setErrorHandler", ErrorHandler.class);
+        setErrorHandler.invoke(checker, new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+                messages.add("W " + e.getMessage());
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+                messages.add("E " + e.getMessage());
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) throws SAXException {
+                throw e;
+            }
+        });
+        ContentHandler handler = (ContentHandler) checker;
+        handler.setDocumentLocator(new LocatorImpl());
+        handler.startDocument();
+        for (Event event : events) {
+            try {
+                event.replay(handler);
+            } catch (SAXException e) {
+                messages.add("X " + e.getMessage());
+            }
+        }
+        handler.endDocument();
+        return messages;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println(
+                    "Usage: NormalizationDifferentialTester OLD NEW [COUNT [SEED]]");
+            System.exit(2);
+        }
+        ClassLoader oldLoader = loader(args[0]);
+        ClassLoader newLoader = loader(args[1]);
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        Random random = new Random(seed);
+        long messages = 0;
+        long differences = 0;
+        for (int i = 0; i < count; i++) {
+            List<Event> events = stream(random);
+            List<String> oldMessages = run(oldLoader, events);
+            List<String> newMessages = run(newLoader, events);
+            messages += newMessages.size();
+            if (!oldMessages.equals(newMessages)) {
+                differences++;
+                if (differences <= MAX_SHOWN) {
+                    System.out.println("stream " + i + "\n  old "
+                            + oldMessages + "\n  new " + newMessages);
+                }
+            }
+        }
+        System.out.println(count + " streams, " + messages + " messages, "
+                + differences + " differences");
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker.test;
+
+import nu.validator.checker.NormalizationChecker;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Times <code>NormalizationChecker</code> on generated documents of
+ * paragraphs with a title attribute each: plain ASCII, Latin-1, English
+ * mixed with other scripts, and Vietnamese with combining marks. Text is
+ * reported in chunks of the size parsers typically use, so runs cross
+ * chunk boundaries.
+ */
+public class NormalizationStressTester {
+
+    private static final String NS = "http://www.w3.org/1999/xhtml";
+
+    private static final int ROUNDS = 20;
+
+    private static final int CHUNK = 2048;
+
+    private static final String ASCII = "The quick brown fox jumps over the lazy dog. ";
+
+    private static final String LATIN1 = "Voix ambigu\u00EB d\u2019un c\u0153ur qui au z\u00E9phyr pr\u00E9f\u00E8re les jattes de kiwis. ";
+
+    private static final String MIXED = "Tokyo (\u6771\u4EAC), Moscow (\u041C\u043E\u0441\u043A\u0432\u0430), Athens (\u0391\u03B8\u03AE\u03BD\u03B1), Seoul (\uC11C\uC6B8) and \uD83D\uDE00. ";
+
+    private static final String COMBINING = "Ti\u00EA\u0301ng Vi\u00EA\u0323t co\u0301 da\u0302\u0301u. ";
+
+    private static int warnings;
+
+    private static char[] text(String sample, int length) {
+        StringBuilder sb = new StringBuilder(length + sample.length());
+        while (sb.length() < length) {
+            sb.append(sample);
+        }
+        return sb.toString().toCharArray();
+    }
+
+    private static void time(String name, String sample, int paragraphs)
+            throws SAXException {
+        char[] text = text(sample, 4 * CHUNK);
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "title", "title", "CDATA", sample + sample);
+        NormalizationChecker checker = new NormalizationChecker();
+        checker.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+                warnings++;
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) {
+            }
+        });
+        checker.setDocumentLocator(new LocatorImpl());
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            checker.startDocument();
+            for (int j = 0; j < paragraphs; j++) {
+                checker.startElement(NS, "p", "p", atts);
+                for (int k = 0; k < text.length; k += CHUNK) {
+                    checker.characters(text, k, Math.min(CHUNK,
+                            text.length - k));
+                }
+                checker.endElement(NS, "p", "p");
+            }
+            checker.endDocument();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-20s %8.3f ms%n", name, best / 1e6);
+    }
+
+    public static void main(String[] args) throws SAXException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        time("ascii " + n, ASCII, n);
+        time("latin1 " + n, LATIN1, n);
+        time("mixed " + n, MIXED, n);
+        time("combining " + n, COMBINING, n);
+        System.out.println(warnings + " warnings");
+    }
+
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.checker.test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Compares two builds of <code>TableChecker</code>. Each build is loaded
+ * from its own class directory or jar, and both check the same random
+ * tables: column markup with and without spans, implicit and explicit row
+ * groups, colspans, rowspans (including zero), <code>headers</code>
+ * references and the occasional nested table. Every message except the
+ * "has no cells beginning" column errors must be identical in both builds.
+ * The column errors of the new build must match an independent model that
+ * places the cells on a grid and reports the columns of each range in
+ * which no cell begins; the old build's column errors are only counted,
+ * because its range bookkeeping is known to be wrong. Both builds'
+ * <code>AttributeUtil.parseInteger</code> are compared on random strings
+ * as well.
+ *
+ * <p>Usage: <code>TableDifferentialTester OLD NEW [COUNT [SEED]]</code>,
+ * where <code>OLD</code> and <code>NEW</code> are class paths that each
+ * contain the checker and its dependencies and <code>COUNT</code> is the
+ * number of tables.
+ */
+public class TableDifferentialTester {
+
+    private static final String NS = "http://www.w3.org/1999/xhtml";
+
+    private static final String[] SPANS = { null, null, "0", "1", "2", "3",
+            " 2", "x", "-1", "1001" };
+
+    private static final int[] SPAN_VALUES = { 1, 1, 0, 1, 2, 3, 2, 1, 1,
+            1000 };
+
+    private static final String[] COLSPANS = { null, null, null, "0", "1",
+            "2", "3", "4", "x", "\t3" };
+
+    private static final int[] COLSPAN_VALUES = { 1, 1, 1, 1, 1, 2, 3, 4, 1,
+            3 };
+
+    private static final String[] ROWSPANS = { null, null, null, "0", "1",
+            "2", "3" };
+
+    private static final int[] ROWSPAN_VALUES = { 1, 1, 1, 0, 1, 2, 3 };
+
+    private static final String[] GROUPS = { "tbody", "thead", "tfoot" };
+
+    private static final char[] DIGITS = "0123456789- \t\n\r+x".toCharArray();
+
+    private static final int MAX_SHOWN = 30;
+
+    /**
+     * A start or end tag with the line it is reported on.
+     */
+    private static final class Event {
+        final boolean start;
+
+        final String name;
+
+        final Attributes atts;
+
+        final int line;
+
+        Event(boolean start, String name, Attributes atts, int line) {
+            this.start = start;
+            this.name = name;
+            this.atts = atts;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The expected column errors of one table. Cells are placed on a grid
+     * of occupied slots, independently of <code>RowGroup</code>.
+     */
+    private static final class ColumnModel {
+        private final List<int[]> ranges = new ArrayList<>();
+
+        private final List<String> rangeElements = new ArrayList<>();
+
+        private final BitSet starts = new BitSet();
+
+        private final List<int[]> groupCells = new ArrayList<>();
+
+        private int columnCount = 0;
+
+        private int realColumnCount = 0;
+
+        private int row;
+
+        private int cursor;
+
+        private void range(String element, int left, int right, int line) {
+            ranges.add(new int[] { left, right, line });
+            rangeElements.add(element);
+        }
+
+        void col(int span, int line) {
+            range("col", columnCount, columnCount + span, line);
+            columnCount += span;
+            realColumnCount = columnCount;
+        }
+
+        void endColGroup(int pendingSpan, int line) {
+            if (pendingSpan != 0) {
+                range("colgroup", columnCount, columnCount + pendingSpan,
+                        line);
+                columnCount += pendingSpan;
+            }
+            realColumnCount = columnCount;
+        }
+
+        void startRowGroup() {
+            groupCells.clear();
+            row = -1;
+        }
+
+        void startRow() {
+            row++;
+            cursor = 0;
+        }
+
+        void cell(String element, int colspan, int rowspan, int line) {
+            int x = cursor;
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                for (int[] other : groupCells) {
+                    if (other[2] < row && row < other[3] && other[0] <= x
+                            && x < other[1]) {
+                        x = other[1];
+                        moved = true;
+                    }
+                }
+            }
+            int right = x + colspan;
+            groupCells.add(new int[] { x, right, row,
+                    rowspan == 0 ? Integer.MAX_VALUE : row + rowspan });
+            cursor = right;
+            starts.set(x);
+            if (right > realColumnCount) {
+                if (x == realColumnCount) {
+                    if (x + 1 != right) {
+                        range(element, x + 1, right, line);
+                    }
+                } else {
+                    range(element, realColumnCount, right, line);
+                }
+                realColumnCount = right;
+            }
+        }
+
+        void end(List<String> expected) {
+            for (int i = 0; i < ranges.size(); i++) {
+                int[] range = ranges.get(i);
+                int left = range[0];
+                while (left < range[1]) {
+                    if (starts.get(left)) {
+                        left++;
+                        continue;
+                    }
+                    int end = left;
+                    while (end < range[1] && !starts.get(end)) {
+                        end++;
+                    }
+                    expected.add(range[2] + ": E "
+                            + columnError(rangeElements.get(i), left, end));
+                    left = end;
+                }
+            }
+        }
+    }
+
+    private static String columnError(String element, int left, int right) {
+        if (left + 1 == right) {
+            return "Table column " + right + " established by element \u201C"
+                    + element + "\u201D has no cells beginning in it.";
+        }
+        return "Table columns in range " + (left + 1) + "\u2026" + right
+                + " established by element \u201C" + element
+                + "\u201D have no cells beginning in them.";
+    }
+
+    private static boolean isColumnError(String message) {
+        return message.contains(": E Table column");
+    }
+
+    private static ClassLoader loader(String path) throws Exception {
+        String[] entries = path.split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            urls[i] = new File(entries[i]).toURI().toURL();
+        }
+        return new URLClassLoader(urls, null);
+    }
+
+    /**
+     * Generates the events of a table into <code>events</code> and its
+     * expected column errors into <code>expected</code>.
+     */
+    private static void table(Random random, List<Event> events,
+            List<String> expected, boolean nested) {
+        ColumnModel model = new ColumnModel();
+        start(events, "table", new AttributesImpl());
+        if (random.nextInt(5) < 2) {
+            int items = 1 + random.nextInt(3);
+            for (int i = 0; i < items; i++) {
+                int span = random.nextInt(SPANS.length);
+                if (random.nextBoolean()) {
+                    int line = start(events, "col", span(span));
+                    model.col(SPAN_VALUES[span], line);
+                    end(events, "col");
+                } else {
+                    start(events, "colgroup", span(span));
+                    int pending = SPAN_VALUES[span];
+                    int cols = random.nextInt(3);
+                    for (int j = 0; j < cols; j++) {
+                        int colSpan = random.nextInt(SPANS.length);
+                        int line = start(events, "col", span(colSpan));
+                        model.col(SPAN_VALUES[colSpan], line);
+                        pending = 0;
+                        end(events, "col");
+                    }
+                    model.endColGroup(pending, end(events, "colgroup"));
+                }
+            }
+        }
+        int groups = random.nextInt(4);
+        boolean implicit = false;
+        for (int i = 0; i < groups; i++) {
+            implicit = !implicit && random.nextInt(3) == 0;
+            String group = GROUPS[random.nextInt(GROUPS.length)];
+            if (!implicit) {
+                start(events, group, new AttributesImpl());
+            }
+            model.startRowGroup();
+            int rows = 1 + random.nextInt(4);
+            for (int j = 0; j < rows; j++) {
+                start(events, "tr", new AttributesImpl());
+                model.startRow();
+                int cells = random.nextInt(5);
+                for (int k = 0; k < cells; k++) {
+                    String name = random.nextInt(3) == 0 ? "th" : "td";
+                    int colspan = random.nextInt(COLSPANS.length);
+                    int rowspan = random.nextInt(ROWSPANS.length);
+                    AttributesImpl atts = new AttributesImpl();
+                    add(atts, "colspan", COLSPANS[colspan]);
+                    add(atts, "rowspan", ROWSPANS[rowspan]);
+                    if ("th".equals(name) && random.nextBoolean()) {
+                        atts.addAttribute("", "id", "id", "ID",
+                                "h" + random.nextInt(6));
+                    }
+                    if (random.nextInt(4) == 0) {
+                        add(atts, "headers", "h" + random.nextInt(6)
+                                + (random.nextBoolean() ? " h"
+                                        + random.nextInt(6) : ""));
+                    }
+                    int line = start(events, name, atts);
+                    model.cell(name, COLSPAN_VALUES[colspan],
+                            ROWSPAN_VALUES[rowspan], line);
+                    if (!nested && random.nextInt(40) == 0) {
+                        table(random, events, expected, true);
+                    }
+                    end(events, name);
+                }
+                end(events, "tr");
+            }
+            if (!implicit) {
+                end(events, group);
+            }
+        }
+        end(events, "table");
+        model.end(expected);
+    }
+
+    private static AttributesImpl span(int index) {
+        AttributesImpl atts = new AttributesImpl();
+        add(atts, "span", SPANS[index]);
+        return atts;
+    }
+
+    private static void add(AttributesImpl atts, String name, String value) {
+        if (value != null) {
+            atts.addAttribute("", name, name, "CDATA", value);
+        }
+    }
+
+    private static int start(List<Event> events, String name,
+            Attributes atts) {
+        int line = events.size() + 1;
+        events.add(new Event(true, name, atts, line));
+        return line;
+    }
+
+    private static int end(List<Event> events, String name) {
+        int line = events.size() + 1;
+        events.add(new Event(false, name, null, line));
+        return line;
+    }
+
+    /**
+     * Runs the events through a fresh checker from <code>loader</code> and
+     * returns its messages as "line: W|E message".
+     */
+    private static List<String> run(ClassLoader loader, List<Event> events)
+            throws Exception {
+        Object checker = Class.forName(
+                "nu.validator.checker.table.TableChecker", true,
+                loader).getConstructor().newInstance();
+        final List<String> messages = new ArrayList<>();
+        Method setErrorHandler = checker.getClass().getMethod(
+                "setErrorHandler", ErrorHandler.class);
+        setErrorHandler.invoke(checker, new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+                messages.add(e.getLineNumber() + ": W " + e.getMessage());
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+                messages.add(e.getLineNumber() + ": E " + e.getMessage());
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) throws SAXException {
+                throw e;
+            }
+        });
+        ContentHandler handler = (ContentHandler) checker;
+        LocatorImpl locator = new LocatorImpl();
+        handler.setDocumentLocator(locator);
+        handler.startDocument();
+        for (Event event : events) {
+            locator.setLineNumber(event.line);
+            if (event.start) {
+                handler.startElement(NS, event.name, event.name, event.atts);
+            } else {
+                handler.endElement(NS, event.name, event.name);
+            }
+        }
+        handler.endDocument();
+        return messages;
+    }
+
+    private static List<String> select(List<String> messages,
+            boolean columnErrors) {
+        List<String> selected = new ArrayList<>();
+        for (String message : messages) {
+            if (isColumnError(message) == columnErrors) {
+                selected.add(message);
+            }
+        }
+        return selected;
+    }
+
+    private static void show(long count, String what, List<String> expected,
+            List<String> actual) {
+        if (count <= MAX_SHOWN) {
+            System.out.println(what + "\n  expected " + expected
+                    + "\n  actual   " + actual);
+        }
+    }
+
+    private static String integer(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            sb.append(DIGITS[random.nextInt(DIGITS.length)]);
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println(
+                    "Usage: TableDifferentialTester OLD NEW [COUNT [SEED]]");
+            System.exit(2);
+        }
+        ClassLoader oldLoader = loader(args[0]);
+        ClassLoader newLoader = loader(args[1]);
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+        Random random = new Random(args.length > 3 ? Long.parseLong(args[3])
+                : 42);
+        long messages = 0;
+        long differences = 0;
+        long modelMismatches = 0;
+        long oldModelMismatches = 0;
+        for (int i = 0; i < count; i++) {
+            List<Event> events = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            table(random, events, expected, false);
+            List<String> oldMessages = run(oldLoader, events);
+            List<String> newMessages = run(newLoader, events);
+            messages += newMessages.size();
+            List<String> oldOther = select(oldMessages, false);
+            List<String> newOther = select(newMessages, false);
+            if (!oldOther.equals(newOther)) {
+                differences++;
+                show(differences + modelMismatches, "table " + i
+                        + ": messages differ from the old checker",
+                        oldOther, newOther);
+            }
+            List<String> newColumns = select(newMessages, true);
+            if (!expected.equals(newColumns)) {
+                modelMismatches++;
+                show(differences + modelMismatches, "table " + i
+                        + ": column errors differ from the model", expected,
+                        newColumns);
+            }
+            if (!expected.equals(select(oldMessages, true))) {
+                oldModelMismatches++;
+            }
+        }
+        Method oldParse = Class.forName("nu.validator.checker.AttributeUtil",
+                true, oldLoader).getMethod("parseInteger", String.class);
+        Method newParse = Class.forName("nu.validator.checker.AttributeUtil",
+                true, newLoader).getMethod("parseInteger", String.class);
+        long parseDifferences = 0;
+        for (int i = 0; i < count; i++) {
+            String value = integer(random);
+            Object oldValue = oldParse.invoke(null, value);
+            Object newValue = newParse.invoke(null, value);
+            if (!oldValue.equals(newValue)) {
+                parseDifferences++;
+                if (parseDifferences <= MAX_SHOWN) {
+                    System.out.println("parseInteger \"" + value + "\": old "
+                            + oldValue + ", new " + newValue);
+                }
+            }
+        }
+        System.out.println(count + " tables, " + messages + " messages, "
+                + differences + " differences, " + modelMismatches
+                + " column error mismatches (old checker: "
+                + oldModelMismatches + ")");
+        System.out.println(count + " integers, " + parseDifferences
+                + " differences");
+        if (differences > 0 || modelMismatches > 0 || parseDifferences > 0) {
+            System.exit(1);
+        }
+    }
+}
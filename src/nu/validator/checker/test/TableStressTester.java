@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.checker.test;
+
+import nu.validator.checker.table.TableChecker;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Times <code>TableChecker</code> on generated tables with tens of
+ * thousands of rows: plain cells, staggered rowspans, wide colspans over
+ * column markup, and cells whose <code>headers</code> attributes refer to
+ * header cells later in the table.
+ */
+public class TableStressTester {
+
+    private static final String NS = "http://www.w3.org/1999/xhtml";
+
+    private static final int ROUNDS = 10;
+
+    private static final AttributesImpl NONE = attributes();
+
+    private static final AttributesImpl ROWSPAN = attributes("rowspan", "20");
+
+    private static final AttributesImpl COLSPAN = attributes("colspan", "50");
+
+    private static final AttributesImpl SHORT_COLSPAN = attributes("colspan",
+            "49");
+
+    private static int errors;
+
+    private interface Document {
+        void emit(TableChecker checker) throws SAXException;
+    }
+
+    private static AttributesImpl attributes(String... namesAndValues) {
+        AttributesImpl atts = new AttributesImpl();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            atts.addAttribute("", namesAndValues[i], namesAndValues[i],
+                    "id".equals(namesAndValues[i]) ? "ID" : "CDATA",
+                    namesAndValues[i + 1]);
+        }
+        return atts;
+    }
+
+    private static void element(TableChecker checker, String name,
+            AttributesImpl atts) throws SAXException {
+        checker.startElement(NS, name, name, atts);
+        checker.endElement(NS, name, name);
+    }
+
+    /**
+     * <code>rows</code> rows of 20 cells.
+     */
+    private static Document plain(final int rows) {
+        return new Document() {
+            @Override
+            public void emit(TableChecker checker) throws SAXException {
+                checker.startElement(NS, "table", "table", NONE);
+                for (int i = 0; i < rows; i++) {
+                    checker.startElement(NS, "tr", "tr", NONE);
+                    for (int j = 0; j < 20; j++) {
+                        element(checker, "td", NONE);
+                    }
+                    checker.endElement(NS, "tr", "tr");
+                }
+                checker.endElement(NS, "table", "table");
+            }
+        };
+    }
+
+    /**
+     * <code>rows</code> rows of 100 columns where every other column has a
+     * cell spanning 20 rows, staggered so that some start on each row.
+     */
+    private static Document rowspans(final int rows) {
+        return new Document() {
+            @Override
+            public void emit(TableChecker checker) throws SAXException {
+                checker.startElement(NS, "table", "table", NONE);
+                checker.startElement(NS, "tbody", "tbody", NONE);
+                for (int i = 0; i < rows; i++) {
+                    checker.startElement(NS, "tr", "tr", NONE);
+                    for (int j = 0; j < 100; j++) {
+                        if (j % 2 == 1 && (i + j / 2) % 20 == 0) {
+                            element(checker, "td", ROWSPAN);
+                        } else if (j % 2 == 0 || i < 20) {
+                            element(checker, "td", NONE);
+                        }
+                    }
+                    checker.endElement(NS, "tr", "tr");
+                }
+                checker.endElement(NS, "tbody", "tbody");
+                checker.endElement(NS, "table", "table");
+            }
+        };
+    }
+
+    /**
+     * 1000 columns of column markup with <code>rows</code> rows of cells
+     * spanning 50 columns, shifted by one column on alternate rows.
+     */
+    private static Document colspans(final int rows) {
+        return new Document() {
+            @Override
+            public void emit(TableChecker checker) throws SAXException {
+                checker.startElement(NS, "table", "table", NONE);
+                for (int j = 0; j < 1000; j++) {
+                    element(checker, "col", NONE);
+                }
+                for (int i = 0; i < rows; i++) {
+                    checker.startElement(NS, "tr", "tr", NONE);
+                    if (i % 2 == 1) {
+                        element(checker, "td", NONE);
+                    }
+                    for (int j = 0; j < 19; j++) {
+                        element(checker, "td", COLSPAN);
+                    }
+                    element(checker, "td",
+                            i % 2 == 1 ? SHORT_COLSPAN : COLSPAN);
+                    checker.endElement(NS, "tr", "tr");
+                }
+                checker.endElement(NS, "table", "table");
+            }
+        };
+    }
+
+    /**
+     * <code>rows</code> rows of cells referring to the header cells of the
+     * last row.
+     */
+    private static Document headers(final int rows) {
+        final AttributesImpl[] refs = new AttributesImpl[20];
+        final AttributesImpl[] ids = new AttributesImpl[20];
+        for (int j = 0; j < 20; j++) {
+            refs[j] = attributes("headers", "h" + j + " h" + ((j + 1) % 20));
+            ids[j] = attributes("id", "h" + j);
+        }
+        return new Document() {
+            @Override
+            public void emit(TableChecker checker) throws SAXException {
+                checker.startElement(NS, "table", "table", NONE);
+                for (int i = 0; i < rows; i++) {
+                    checker.startElement(NS, "tr", "tr", NONE);
+                    for (int j = 0; j < 20; j++) {
+                        element(checker, "td", refs[j]);
+                    }
+                    checker.endElement(NS, "tr", "tr");
+                }
+                checker.startElement(NS, "tr", "tr", NONE);
+                for (int j = 0; j < 20; j++) {
+                    element(checker, "th", ids[j]);
+                }
+                checker.endElement(NS, "tr", "tr");
+                checker.endElement(NS, "table", "table");
+            }
+        };
+    }
+
+    private static void time(String name, Document document)
+            throws SAXException {
+        TableChecker checker = new TableChecker();
+        checker.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+                errors++;
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) {
+            }
+        });
+        checker.setDocumentLocator(new LocatorImpl());
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            checker.startDocument();
+            document.emit(checker);
+            checker.endDocument();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-20s %8.3f ms%n", name, best / 1e6);
+    }
+
+    public static void main(String[] args) throws SAXException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        time("plain " + rows, plain(rows));
+        time("rowspans " + rows, rowspans(rows));
+        time("colspans " + rows, colspans(rows));
+        time("headers " + rows, headers(rows));
+        System.out.println(errors + " errors");
+    }
+
+}
@@ -37,10 +37,12 @@ import org.xml.sax.SAXParseException;
 
 import nu.validator.htmlparser.sax.XmlSerializer;
 import nu.validator.json.Serializer;
+import nu.validator.messages.FailFastException;
 import nu.validator.messages.GnuMessageEmitter;
 import nu.validator.messages.JsonMessageEmitter;
 import nu.validator.messages.MessageEmitter;
 import nu.validator.messages.MessageEmitterAdapter;
+import nu.validator.messages.StatusMessageEmitter;
 import nu.validator.messages.TextMessageEmitter;
 import nu.validator.messages.XmlMessageEmitter;
 import nu.validator.servlet.imagereview.ImageCollector;
@@ -56,11 +58,12 @@ public class EmbeddedValidator {
     public static final String SCHEMA_URL = "http://s.validator.nu/html5-all.rnc";
 
     public static enum OutputFormat {
-        TEXT, XML, JSON, GNU
+        TEXT, XML, JSON, GNU, STATUS
     }
 
     private boolean asciiQuotes = false;
     private boolean detectLanguages = false;
+    private boolean failFast = false;
     private boolean forceHTML = false;
     private int lineOffset = 0;
     private boolean loadEntities = false;
@@ -79,7 +82,7 @@ public class EmbeddedValidator {
      * @throws SAXException
      */
     public String validate(Path path) throws IOException, SAXException {
-        try (OneOffValidator validator = new OneOffValidator(asciiQuotes, detectLanguages, forceHTML, lineOffset, loadEntities, noStream, outputFormat, schemaUrl)) {
+        try (OneOffValidator validator = new OneOffValidator(asciiQuotes, detectLanguages, failFast, forceHTML, lineOffset, loadEntities, noStream, outputFormat, schemaUrl)) {
             return validator.validate(path);
         }
     }
@@ -95,7 +98,7 @@ public class EmbeddedValidator {
      * @throws SAXException
      */
     public String validate(InputStream in) throws IOException, SAXException {
-        try (OneOffValidator validator = new OneOffValidator(asciiQuotes, detectLanguages, forceHTML, lineOffset, loadEntities, noStream, outputFormat, schemaUrl)) {
+        try (OneOffValidator validator = new OneOffValidator(asciiQuotes, detectLanguages, failFast, forceHTML, lineOffset, loadEntities, noStream, outputFormat, schemaUrl)) {
             return validator.validate(in);
         }
     }
@@ -156,6 +159,19 @@ public class EmbeddedValidator {
         this.noStream = noStream;
     }
 
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    /**
+     * @param failFast
+     *            if {@code true}, checking stops at the first error; useful
+     *            with {@link OutputFormat#STATUS}
+     */
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
     public boolean isForceHTML() {
         return forceHTML;
     }
@@ -231,10 +247,11 @@ public class EmbeddedValidator {
         private final MessageEmitterAdapter errorHandler;
         private final boolean forceHtml;
 
-        private OneOffValidator(boolean asciiQuotes, boolean detectLanguages, boolean forceHtml, int lineOffset, boolean loadEntities,
-                boolean noStream, OutputFormat outputFormat, String schemaUrl) throws SAXException {
+        private OneOffValidator(boolean asciiQuotes, boolean detectLanguages, boolean failFast, boolean forceHtml, int lineOffset,
+                boolean loadEntities, boolean noStream, OutputFormat outputFormat, String schemaUrl) throws SAXException {
             this.validator = new SimpleDocumentValidator(true, false, !detectLanguages);
             this.errorHandler = newErrorHandler(lineOffset, asciiQuotes, outputFormat);
+            this.errorHandler.setFailFast(failFast);
             this.forceHtml = forceHtml;
             try {
                 this.validator.setUpMainSchema(schemaUrl == null ? SCHEMA_URL : schemaUrl, new SystemErrErrorHandler());
@@ -266,6 +283,8 @@ public class EmbeddedValidator {
                         asciiQuotes);
             case XML:
                 return new XmlMessageEmitter(new XmlSerializer(this.out));
+            case STATUS:
+                return new StatusMessageEmitter(new Serializer(this.out), null);
             default:
                 throw new UnsupportedOperationException("OutputFormat " + outputFormat + " not supported");
             }
@@ -290,6 +309,8 @@ public class EmbeddedValidator {
                 } else {
                     errorHandler.warning(new SAXParseException(EXTENSION_ERROR, null, path.toString(), -1, -1));
                 }
+            } catch (FailFastException e) {
+                // Stopped at the first error.
             } catch (SAXException e) {
                 errorHandler.warning(new SAXParseException(e.getMessage(), null, path.toString(), -1, -1));
             }
@@ -312,7 +333,11 @@ public class EmbeddedValidator {
             if (!used.compareAndSet(false, true)) {
                 throw new IllegalStateException("OneOffValidator instances are not reusable");
             }
-            validator.checkHtmlInputSource(new InputSource(in));
+            try {
+                validator.checkHtmlInputSource(new InputSource(in));
+            } catch (FailFastException e) {
+                // Stopped at the first error.
+            }
             errorHandler.end(MSG_SUCCESS, MSG_FAIL, "");
             return new String(out.toByteArray(), StandardCharsets.UTF_8);
         }
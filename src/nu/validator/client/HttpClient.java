@@ -22,23 +22,55 @@
 
 package nu.validator.client;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.IOException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.net.ConnectException;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Sends documents to a running checker service and prints the results.
+ *
+ * <p>Arguments name files, or directories to search recursively for
+ * <code>*.html</code>, <code>*.htm</code> and <code>*.xhtml</code> files;
+ * <code>-</code> (or no argument) reads a document from standard input.
+ * Up to <code>nu.validator.client.threads</code> documents are in flight at
+ * once over persistent connections, request bodies are gzipped when
+ * <code>nu.validator.client.gzip</code> is <code>yes</code>, and results are
+ * printed in the order the documents were given.
+ */
 public class HttpClient {
 
+    private static final int THREADS = Math.max(1,
+            Integer.getInteger("nu.validator.client.threads", 1));
+
+    private static final boolean GZIP = "yes".equals(
+            System.getProperty("nu.validator.client.gzip"));
+
+    private static final String STDIN = "[stdin]";
+
+    private static final AtomicLong bytesRead = new AtomicLong();
+
+    private static final AtomicLong bytesSent = new AtomicLong();
+
     public static void main(String[] args) {
-        URLConnection connection = null;
-        InputStream input  = null;
         String host = System.getProperty("nu.validator.client.host",
                 "127.0.0.1");
         String port = System.getProperty("nu.validator.client.port", "8888");
@@ -65,70 +97,186 @@ public class HttpClient {
         if (charset != null) {
             url += "&charset=" + charset;
         }
+        if (System.getProperty("http.maxConnections") == null) {
+            // Keep a reusable connection per worker thread.
+            System.setProperty("http.maxConnections",
+                    Integer.toString(Math.max(5, THREADS)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
         try {
-            String filepath = null;
-            String filename = null;
-            int filecount = (args.length == 0 ? 1 : args.length);
-            for (int i = 0; i < filecount; i++) {
-                if (args.length == 0 || "-".equals(args[i])) {
-                  System.err.println("Waiting for document content on standard input...");
-                    input = System.in;
-                    filename = "[stdin]";
-                } else {
-                    filename = args[i];
-                    filepath = filename;
-                    input = new FileInputStream(filepath);
-                }
-                URL validator = new URL(url + "&doc=" + filename);
-                connection = validator.openConnection();
-                if (filename.endsWith(".xhtml")) {
-                    contentType = (contentType == null ? "application/xhtml+xml"
-                            : contentType);
-                } else {
-                    contentType = (contentType == null ? "text/html"
-                            : contentType);
-                }
-                if ("application/xhtml+xml".equals(contentType)) {
-                    parser = (parser == null ? "xml" : parser);
-                }
-                connection.setRequestProperty("Content-Type", contentType);
-                connection.setDoOutput(true);
-                connection.setReadTimeout(10000);
-                byte buffer[] = new byte[4096];
-                int len = 4096;
-                try (OutputStream output = connection.getOutputStream()) {
-                    while ((len = input.read(buffer, 0, 4096)) != -1) {
-                        output.write(buffer, 0, len);
+            List<String> filenames = new ArrayList<>();
+            if (args.length == 0) {
+                filenames.add("-");
+            }
+            for (String arg : args) {
+                addFiles(filenames, arg);
+            }
+            byte[] stdin = null;
+            if (filenames.contains("-")) {
+                System.err.println("Waiting for document content on standard input...");
+                stdin = readFully(System.in);
+            }
+            long start = System.nanoTime();
+            // Keep a bounded window of requests in flight and print each
+            // response as soon as every earlier one has been printed.
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            int next = 0;
+            while (next < filenames.size() || !pending.isEmpty()) {
+                while (next < filenames.size()
+                        && pending.size() < 2 * THREADS) {
+                    String filename = filenames.get(next++);
+                    String type = contentType;
+                    if (type == null) {
+                        type = filename.endsWith(".xhtml") ? "application/xhtml+xml"
+                                : "text/html";
                     }
+                    pending.add(executor.submit(new Request(url, filename, type,
+                            "-".equals(filename) ? stdin : null)));
                 }
-                input.close();
-                try (BufferedReader responseReader = new BufferedReader(new InputStreamReader(
-                        connection.getInputStream()))) {
-                    int c;
-                    while ((c = responseReader.read()) != -1) {
-                        System.out.print((char) c);
-                        hasErrors = true;
-                    }
+                byte[] response = pending.remove().get();
+                if (response.length > 0) {
+                    System.out.write(response);
+                    System.out.flush();
+                    hasErrors = true;
                 }
             }
+            if (filenames.size() > 1) {
+                reportThroughput(filenames.size(), System.nanoTime() - start);
+            }
             System.exit(hasErrors ? 1 : 0);
-        } catch (MalformedURLException | ProtocolException e) {
-            e.printStackTrace();
-            System.exit(1);
-        } catch (IOException e) {
-            if (e instanceof ConnectException) {
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConnectException) {
                 System.out.printf(
                         "\nerror: Expected to find validator service"
                                 + " at %s but could not connect. Stopping.\n",
                         origin);
-                System.exit(1);
             } else {
-                e.printStackTrace();
-                System.exit(1);
+                cause.printStackTrace();
             }
+            System.exit(1);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
         } finally {
-            connection = null;
-            input = null;
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds a file, or the checkable files below a directory in name order.
+     */
+    private static void addFiles(List<String> filenames, String path) {
+        File file = new File(path);
+        if (!file.isDirectory()) {
+            filenames.add(path);
+            return;
+        }
+        String[] names = file.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.startsWith(".")) {
+                continue;
+            }
+            File child = new File(file, name);
+            if (child.isDirectory()) {
+                addFiles(filenames, child.getPath());
+            } else if (name.endsWith(".html") || name.endsWith(".htm")
+                    || name.endsWith(".xhtml")) {
+                filenames.add(child.getPath());
+            }
+        }
+    }
+
+    private static void reportThroughput(int documents, long nanos) {
+        double seconds = nanos / 1e9;
+        System.err.printf(
+                "Checked %d documents (%d bytes, %d bytes sent) in %.2f s:"
+                        + " %.1f documents/s, %.1f KB/s.%n",
+                documents, bytesRead.get(), bytesSent.get(), seconds,
+                documents / seconds, bytesRead.get() / 1024.0 / seconds);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Posts one document and returns the response body.
+     */
+    private static final class Request implements Callable<byte[]> {
+
+        private final String url;
+
+        private final String filename;
+
+        private final String contentType;
+
+        private final byte[] content;
+
+        Request(String url, String filename, String contentType,
+                byte[] content) {
+            this.url = url;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            String doc = content == null ? filename : STDIN;
+            byte[] body = content == null
+                    ? Files.readAllBytes(new File(filename).toPath())
+                    : content;
+            bytesRead.addAndGet(body.length);
+            if (GZIP) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+                        body.length / 4 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(body);
+                }
+                body = compressed.toByteArray();
+            }
+            bytesSent.addAndGet(body.length);
+            HttpURLConnection connection = (HttpURLConnection) new URL(url
+                    + "&doc=" + URLEncoder.encode(doc, "UTF-8")).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", contentType);
+            if (GZIP) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setReadTimeout(10000);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+            InputStream input;
+            try {
+                input = connection.getInputStream();
+            } catch (IOException e) {
+                // Drain the error body so that the connection can be reused.
+                try (InputStream error = connection.getErrorStream()) {
+                    if (error != null) {
+                        readFully(error);
+                    }
+                }
+                throw e;
+            }
+            // Reading to the end and closing returns the connection to the
+            // keep-alive cache for the next request.
+            try (InputStream in = input) {
+                return readFully(in);
+            }
         }
     }
 
@@ -0,0 +1,839 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ajax.JSON;
+
+/**
+ * Starts the checker service in a child VM and measures it under load.
+ *
+ * <p>Arguments name files, or directories to search recursively for
+ * <code>*.html</code>, <code>*.htm</code>, <code>*.xhtml</code> and
+ * <code>*.svg</code> files; with no arguments, the <code>tests</code>
+ * directory is used. <code>nu.validator.loadtest.large-documents</code>
+ * synthetic documents of 256 KB and up are added to the corpus.
+ *
+ * <p>Requests cycle through the documents and through the output formats
+ * in <code>nu.validator.loadtest.formats</code>. A
+ * <code>nu.validator.loadtest.fetch-ratio</code> share of them has the
+ * service fetch the document with <code>doc=</code> from a local stand-in
+ * HTTP server; the rest POST it. The load is either
+ * <code>nu.validator.loadtest.concurrency</code> requests in flight at all
+ * times or, if <code>nu.validator.loadtest.rate</code> is set, that many
+ * requests started per second; latency is then measured from when each
+ * request was due, so a saturated service shows up as growing latency
+ * rather than as a lower request rate.
+ *
+ * <p>After <code>nu.validator.loadtest.warmup</code> seconds, requests are
+ * measured for <code>nu.validator.loadtest.duration</code> seconds. The
+ * summary is written as JSON to <code>nu.validator.loadtest.output</code>
+ * (standard output by default). It gives throughput, latency percentiles
+ * overall and for each format and input method, error counts, garbage
+ * collection pauses and three heap figures: <code>maxUsedBytes</code>,
+ * the highest heap use seen by sampling every 50 ms;
+ * <code>poolPeakBytes</code>, the sum of the peak use the heap memory pools
+ * recorded, each at its own moment; and <code>maxBytes</code>, the maximum
+ * heap size.
+ *
+ * <p>The service runs in a child VM started with the class path and the VM
+ * options of this one, except for the <code>nu.validator.loadtest</code>
+ * properties, so the heap size and the service settings given to this VM
+ * apply to the service. The load generator and the document stand-in stay
+ * in this VM, and the output of the service goes to standard error. The
+ * garbage collection and heap figures are read from the child over JMX on
+ * a free local port, so they are those of the service alone.
+ */
+public class LoadTester {
+
+    private static final int PORT = Integer.getInteger(
+            "nu.validator.loadtest.port", 8888);
+
+    private static final int CONCURRENCY = Math.max(1,
+            Integer.getInteger("nu.validator.loadtest.concurrency", 8));
+
+    private static final double RATE = Double.parseDouble(System.getProperty(
+            "nu.validator.loadtest.rate", "0"));
+
+    private static final int WARMUP = Integer.getInteger(
+            "nu.validator.loadtest.warmup", 20);
+
+    private static final int DURATION = Math.max(1,
+            Integer.getInteger("nu.validator.loadtest.duration", 60));
+
+    private static final String[] FORMATS = System.getProperty(
+            "nu.validator.loadtest.formats", "json,gnu,xhtml").split(",");
+
+    private static final double FETCH_RATIO = Double.parseDouble(
+            System.getProperty("nu.validator.loadtest.fetch-ratio", "0.25"));
+
+    private static final int LARGE_DOCUMENTS = Integer.getInteger(
+            "nu.validator.loadtest.large-documents", 3);
+
+    private static final String OUTPUT = System.getProperty(
+            "nu.validator.loadtest.output", "-");
+
+    private static final long SIZE_LIMIT = Integer.parseInt(System.getProperty(
+            "nu.validator.servlet.max-file-size", "2097152"));
+
+    private static final String MINI_DOC = "<!doctype html><html lang=\"\">"
+            + "<meta charset=utf-8><title>test</title>";
+
+    /**
+     * The notification type of <code>com.sun.management</code> garbage
+     * collection notifications.
+     */
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private static final class Document {
+
+        final String name;
+
+        final String contentType;
+
+        final byte[] body;
+
+        Document(String name, String contentType, byte[] body) {
+            this.name = name;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A growable list of latencies in nanoseconds.
+     */
+    private static final class Samples {
+
+        private long[] values = new long[1024];
+
+        private int size;
+
+        private int errors;
+
+        /**
+         * The number of requests that finished while measuring.
+         */
+        private int completed;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        Map<String, Object> summarize() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long value : sorted) {
+                total += value;
+            }
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("mean", size == 0 ? 0 : millis(total / size));
+            latency.put("p50", millis(percentile(sorted, 50)));
+            latency.put("p95", millis(percentile(sorted, 95)));
+            latency.put("p99", millis(percentile(sorted, 99)));
+            latency.put("max", millis(size == 0 ? 0 : sorted[size - 1]));
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("requests", size);
+            summary.put("errors", errors);
+            summary.put("throughput", round(completed / (double) DURATION));
+            summary.put("latencyMillis", latency);
+            return summary;
+        }
+    }
+
+    /**
+     * Tracks garbage collection pauses and heap use of the service VM while
+     * measuring.
+     */
+    private static final class Monitor implements NotificationListener {
+
+        private final MemoryMXBean memory;
+
+        private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+        private volatile boolean measuring;
+
+        private long pauses;
+
+        private long pauseNanos;
+
+        private long maxPauseNanos;
+
+        private long maxHeapUsed;
+
+        private Thread sampler;
+
+        Monitor(MBeanServerConnection connection) throws Exception {
+            memory = ManagementFactory.getPlatformMXBean(connection,
+                    MemoryMXBean.class);
+            for (GarbageCollectorMXBean collector : ManagementFactory.getPlatformMXBeans(
+                    connection, GarbageCollectorMXBean.class)) {
+                // Beans for concurrent cycles, like "G1 Concurrent GC" or
+                // "ZGC Cycles", report work that does not stop the
+                // application.
+                String name = collector.getName();
+                if (name.contains("Concurrent") || name.endsWith("Cycles")) {
+                    continue;
+                }
+                connection.addNotificationListener(collector.getObjectName(),
+                        this, null, null);
+            }
+            for (MemoryPoolMXBean pool : ManagementFactory.getPlatformMXBeans(
+                    connection, MemoryPoolMXBean.class)) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heapPools.add(pool);
+                }
+            }
+        }
+
+        void start() {
+            for (MemoryPoolMXBean pool : heapPools) {
+                pool.resetPeakUsage();
+            }
+            measuring = true;
+            sampler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (measuring) {
+                        sampleHeap();
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "heap sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        void stop() throws InterruptedException {
+            measuring = false;
+            sampler.join();
+            sampleHeap();
+        }
+
+        private synchronized void sampleHeap() {
+            maxHeapUsed = Math.max(maxHeapUsed,
+                    memory.getHeapMemoryUsage().getUsed());
+        }
+
+        @Override
+        public void handleNotification(Notification notification,
+                Object handback) {
+            if (!measuring || !GC_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            CompositeData info = (CompositeData) ((CompositeData) notification.getUserData()).get(
+                    "gcInfo");
+            long nanos = ((Long) info.get("duration")).longValue() * 1000000L;
+            synchronized (this) {
+                pauses++;
+                pauseNanos += nanos;
+                maxPauseNanos = Math.max(maxPauseNanos, nanos);
+            }
+        }
+
+        synchronized Map<String, Object> summarizeGc() {
+            Map<String, Object> gc = new LinkedHashMap<>();
+            gc.put("pauses", pauses);
+            gc.put("pauseMillis", millis(pauseNanos));
+            gc.put("maxPauseMillis", millis(maxPauseNanos));
+            gc.put("pauseFraction",
+                    round(pauseNanos / (DURATION * 1000000000.0)));
+            return gc;
+        }
+
+        synchronized Map<String, Object> summarizeHeap() {
+            long poolPeaks = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                poolPeaks += pool.getPeakUsage().getUsed();
+            }
+            Map<String, Object> heap = new LinkedHashMap<>();
+            heap.put("maxUsedBytes", maxHeapUsed);
+            heap.put("poolPeakBytes", poolPeaks);
+            heap.put("maxBytes", memory.getHeapMemoryUsage().getMax());
+            return heap;
+        }
+    }
+
+    private static final List<Document> documents = new ArrayList<>();
+
+    private static final Map<String, Samples> samples = new TreeMap<>();
+
+    private static final Samples overall = new Samples();
+
+    private static final Map<String, Integer> statuses = new TreeMap<>();
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    /**
+     * A buffer per load thread for discarding response bodies.
+     */
+    private static final ThreadLocal<byte[]> discardBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[65536];
+        }
+    };
+
+    private static Process service;
+
+    private static String serviceUrl;
+
+    private static String documentUrl;
+
+    private static long measureStart;
+
+    private static long measureEnd;
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args.length == 0 ? new String[] { "tests" } : args) {
+            addDocuments(new File(arg));
+        }
+        for (int i = 0; i < LARGE_DOCUMENTS; i++) {
+            int size = Math.min(256 * 1024 << i, (int) SIZE_LIMIT * 3 / 4);
+            documents.add(new Document("synthetic-" + i + ".html",
+                    "text/html", syntheticDocument(i, size)));
+        }
+        if (documents.isEmpty()) {
+            System.err.println("No documents to send.");
+            System.exit(1);
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    Integer.toString(Math.max(5, CONCURRENCY)));
+        }
+        documentUrl = "http://127.0.0.1:" + startDocumentServer() + "/";
+        serviceUrl = "http://127.0.0.1:" + PORT + "/";
+        int jmxPort = freePort();
+        startService(jmxPort);
+        System.err.println("Waiting for the service to be ready...");
+        waitUntilReady();
+        JMXConnector jmx = JMXConnectorFactory.connect(new JMXServiceURL(
+                "service:jmx:rmi:///jndi/rmi://127.0.0.1:" + jmxPort
+                        + "/jmxrmi"));
+        Monitor monitor = new Monitor(jmx.getMBeanServerConnection());
+        long start = System.nanoTime();
+        measureStart = start + WARMUP * 1000000000L;
+        measureEnd = measureStart + DURATION * 1000000000L;
+        System.err.printf("Sending %s for %d s of warm-up and %d s of"
+                + " measurement to %s with %d documents.%n",
+                RATE > 0 ? RATE + " requests/s" : CONCURRENCY
+                        + " concurrent requests",
+                WARMUP, DURATION, serviceUrl, documents.size());
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        Thread dispatcher = null;
+        if (RATE > 0) {
+            dispatcher = dispatchAtRate(executor, start);
+        } else {
+            runConcurrently(executor);
+        }
+        sleepUntil(measureStart);
+        monitor.start();
+        sleepUntil(measureEnd);
+        monitor.stop();
+        if (dispatcher != null) {
+            dispatcher.join();
+        }
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.MINUTES);
+        writeSummary(monitor);
+        jmx.close();
+        stopService();
+        System.exit(0);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Starts <code>nu.validator.servlet.Main</code> in a child VM with the
+     * class path and VM options of this VM and a local JMX connector on
+     * <code>jmxPort</code>. Its output goes to standard error.
+     */
+    private static void startService(int jmxPort) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-Dnu.validator.loadtest.")) {
+                command.add(argument);
+            }
+        }
+        command.add("-Dcom.sun.management.jmxremote.port=" + jmxPort);
+        command.add("-Dcom.sun.management.jmxremote.rmi.port=" + jmxPort);
+        command.add("-Dcom.sun.management.jmxremote.authenticate=false");
+        command.add("-Dcom.sun.management.jmxremote.ssl=false");
+        command.add("-Dcom.sun.management.jmxremote.local.only=true");
+        command.add("-Djava.rmi.server.hostname=127.0.0.1");
+        command.add("-classpath");
+        command.add(System.getProperty("java.class.path"));
+        command.add("nu.validator.servlet.Main");
+        command.add(Integer.toString(PORT));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        // Standard output of this VM may carry the summary.
+        builder.redirectErrorStream(true);
+        service = builder.start();
+        Thread pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try (InputStream in = service.getInputStream()) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        System.err.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    // The service is gone.
+                }
+            }
+        }, "service output");
+        pump.setDaemon(true);
+        pump.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                service.destroy();
+            }
+        });
+    }
+
+    private static void stopService() throws InterruptedException {
+        service.destroy();
+        if (!service.waitFor(30, TimeUnit.SECONDS)) {
+            service.destroyForcibly();
+        }
+    }
+
+    /**
+     * Adds a file, or the checkable files below a directory in name order.
+     */
+    private static void addDocuments(File file) throws IOException {
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            if (names == null) {
+                return;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                if (!name.startsWith(".")) {
+                    addDocuments(new File(file, name));
+                }
+            }
+            return;
+        }
+        String name = file.getName();
+        String contentType;
+        if (name.endsWith(".html") || name.endsWith(".htm")) {
+            contentType = "text/html";
+        } else if (name.endsWith(".xhtml")) {
+            contentType = "application/xhtml+xml";
+        } else if (name.endsWith(".svg")) {
+            contentType = "image/svg+xml";
+        } else {
+            return;
+        }
+        if (file.length() > SIZE_LIMIT) {
+            return;
+        }
+        documents.add(new Document(file.getPath(), contentType,
+                Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * Makes an HTML document of about the given size with sections of
+     * paragraphs, links, tables and lists, and the occasional error.
+     */
+    private static byte[] syntheticDocument(int seed, int size) {
+        Random random = new Random(seed);
+        String[] words = { "lorem", "ipsum", "dolor", "sit", "amet",
+                "consectetur", "adipiscing", "elit", "sed", "do", "eiusmod",
+                "tempor", "incididunt", "ut", "labore", "et", "dolore",
+                "magna", "aliqua" };
+        StringBuilder sb = new StringBuilder(size + 4096);
+        sb.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n"
+                + "<meta charset=\"utf-8\">\n<title>Synthetic document ");
+        sb.append(seed);
+        sb.append("</title>\n<style>td { padding: 2px }</style>\n"
+                + "</head>\n<body>\n");
+        int section = 0;
+        while (sb.length() < size) {
+            section++;
+            sb.append("<section id=\"s").append(section).append("\">\n<h2>");
+            sb.append("Section ").append(section).append("</h2>\n");
+            for (int i = 0; i < 8; i++) {
+                sb.append("<p style=\"color: #333\">");
+                for (int j = 0; j < 40; j++) {
+                    sb.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                sb.append("<a href=\"#s").append(random.nextInt(section) + 1);
+                sb.append("\">see also</a></p>\n");
+            }
+            sb.append("<table>\n<tr><th>Name<th>Value\n");
+            for (int i = 0; i < 10; i++) {
+                sb.append("<tr><td>").append(words[random.nextInt(words.length)]);
+                sb.append("<td>").append(random.nextInt(100000)).append('\n');
+            }
+            sb.append("</table>\n<ul>\n");
+            for (int i = 0; i < 5; i++) {
+                sb.append("<li><img src=\"i").append(i).append(".png\" alt=\"");
+                sb.append(words[random.nextInt(words.length)]).append("\">\n");
+            }
+            sb.append("</ul>\n");
+            if (section % 10 == 0) {
+                sb.append("<center>Obsolete</center>\n");
+            }
+            sb.append("</section>\n");
+        }
+        sb.append("</body>\n</html>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts the stand-in server for <code>doc=</code> fetches, which serves
+     * document number N at <code>/N</code>, and returns its port.
+     */
+    private static int startDocumentServer() throws Exception {
+        Server server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest,
+                    HttpServletRequest request, HttpServletResponse response)
+                    throws IOException {
+                baseRequest.setHandled(true);
+                int index;
+                try {
+                    index = Integer.parseInt(target.substring(1));
+                } catch (NumberFormatException e) {
+                    index = -1;
+                }
+                if (index < 0 || index >= documents.size()) {
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                Document document = documents.get(index);
+                response.setContentType(document.contentType);
+                response.setContentLength(document.body.length);
+                try (OutputStream out = response.getOutputStream()) {
+                    out.write(document.body);
+                }
+            }
+        });
+        server.start();
+        return connector.getLocalPort();
+    }
+
+    /**
+     * Sends a small document until the service answers, which also has it
+     * load its schemas.
+     */
+    private static void waitUntilReady() throws InterruptedException {
+        Document mini = new Document("mini.html", "text/html",
+                MINI_DOC.getBytes(StandardCharsets.UTF_8));
+        for (;;) {
+            if (!service.isAlive()) {
+                System.err.println("The service exited with status "
+                        + service.exitValue() + ".");
+                System.exit(1);
+            }
+            try {
+                if (send(serviceUrl + "?out=gnu", mini, 300000) == 200) {
+                    return;
+                }
+            } catch (ConnectException e) {
+                // Not listening yet.
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Keeps <code>CONCURRENCY</code> requests in flight until the end.
+     */
+    private static void runConcurrently(ExecutorService executor) {
+        for (int i = 0; i < CONCURRENCY; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (;;) {
+                        long due = System.nanoTime();
+                        if (due - measureEnd >= 0) {
+                            return;
+                        }
+                        request(counter.getAndIncrement(), due);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts a thread that hands <code>RATE</code> requests per second to
+     * the executor until the end.
+     */
+    private static Thread dispatchAtRate(final ExecutorService executor,
+            final long start) {
+        Thread dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                double interval = 1000000000.0 / RATE;
+                for (long i = 0;; i++) {
+                    final long index = i;
+                    final long due = start + (long) (i * interval);
+                    if (due - measureEnd >= 0) {
+                        return;
+                    }
+                    try {
+                        sleepUntil(due);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            request(index, due);
+                        }
+                    });
+                }
+            }
+        }, "load dispatcher");
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    /**
+     * Sends request number <code>index</code>. Its latency is recorded if it
+     * was due while measuring and its completion if it finished while
+     * measuring.
+     */
+    private static void request(long index, long due) {
+        Document document = documents.get((int) (index % documents.size()));
+        String format = FORMATS[(int) ((index / documents.size())
+                % FORMATS.length)];
+        // Spread fetches evenly: request i fetches when the running count of
+        // fetches owed, i * FETCH_RATIO, passes a whole number.
+        boolean fetch = (long) ((index + 1) * FETCH_RATIO) > (long) (index
+                * FETCH_RATIO);
+        int status;
+        try {
+            status = send(serviceUrl + "?out=" + format, fetch ? null
+                    : document, fetch ? (documentUrl + (index
+                            % documents.size())) : null, 60000);
+        } catch (IOException e) {
+            status = -1;
+        }
+        long done = System.nanoTime();
+        boolean dueWhileMeasuring = due - measureStart >= 0
+                && due - measureEnd < 0;
+        boolean doneWhileMeasuring = done - measureStart >= 0
+                && done - measureEnd < 0;
+        if (!dueWhileMeasuring && !doneWhileMeasuring) {
+            return;
+        }
+        String kind = format + (fetch ? "/doc" : "/post");
+        synchronized (samples) {
+            Samples kindSamples = samples.get(kind);
+            if (kindSamples == null) {
+                kindSamples = new Samples();
+                samples.put(kind, kindSamples);
+            }
+            if (doneWhileMeasuring) {
+                kindSamples.completed++;
+                overall.completed++;
+            }
+            if (!dueWhileMeasuring) {
+                return;
+            }
+            kindSamples.add(done - due);
+            overall.add(done - due);
+            if (status != 200) {
+                kindSamples.errors++;
+                overall.errors++;
+                String key = status == -1 ? "exception"
+                        : Integer.toString(status);
+                Integer count = statuses.get(key);
+                statuses.put(key, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
+    private static int send(String url, Document document, int timeout)
+            throws IOException {
+        return send(url, document, null, timeout);
+    }
+
+    /**
+     * Sends a document, or has the service fetch one, reads the whole
+     * response and returns its status.
+     */
+    private static int send(String url, Document document, String doc,
+            int timeout) throws IOException {
+        if (doc != null) {
+            url += "&doc=" + URLEncoder.encode(doc, "UTF-8");
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                url).openConnection();
+        connection.setReadTimeout(timeout);
+        if (document != null) {
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type",
+                    document.contentType);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(document.body.length);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(document.body);
+            }
+        }
+        int status = connection.getResponseCode();
+        InputStream input = status < 400 ? connection.getInputStream()
+                : connection.getErrorStream();
+        if (input != null) {
+            // Reading to the end and closing returns the connection to the
+            // keep-alive cache for the next request.
+            try (InputStream in = input) {
+                byte[] buffer = discardBuffers.get();
+                while (in.read(buffer) != -1) {
+                    // Discard.
+                }
+            }
+        }
+        return status;
+    }
+
+    private static void writeSummary(Monitor monitor) throws IOException {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("mode", RATE > 0 ? "rate" : "concurrency");
+        summary.put("concurrency", CONCURRENCY);
+        summary.put("rate", RATE);
+        summary.put("warmupSeconds", WARMUP);
+        summary.put("durationSeconds", DURATION);
+        summary.put("documents", documents.size());
+        summary.put("formats", Arrays.asList(FORMATS));
+        summary.put("fetchRatio", FETCH_RATIO);
+        Map<String, Object> byKind = new LinkedHashMap<>();
+        synchronized (samples) {
+            summary.putAll(overall.summarize());
+            for (Map.Entry<String, Samples> entry : samples.entrySet()) {
+                byKind.put(entry.getKey(), entry.getValue().summarize());
+            }
+            summary.put("errorStatuses", new TreeMap<>(statuses));
+        }
+        summary.put("byKind", byKind);
+        summary.put("gc", monitor.summarizeGc());
+        summary.put("heap", monitor.summarizeHeap());
+        String json = JSON.toString(summary);
+        if ("-".equals(OUTPUT)) {
+            System.out.println(json);
+            System.out.flush();
+        } else {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(
+                    OUTPUT), StandardCharsets.UTF_8)) {
+                writer.write(json);
+                writer.write('\n');
+            }
+            System.err.println("Wrote " + OUTPUT);
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return round(nanos / 1000000.0);
+    }
+
+    private static double round(double d) {
+        return Math.round(d * 1000) / 1000.0;
+    }
+}
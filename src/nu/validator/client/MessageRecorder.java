@@ -0,0 +1,689 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import nu.validator.messages.ImageReviewHandler;
+import nu.validator.messages.MessageEmitter;
+import nu.validator.messages.MessageTextHandler;
+import nu.validator.messages.ResultHandler;
+import nu.validator.messages.types.MessageType;
+import nu.validator.saxtree.DocumentFragment;
+import nu.validator.source.SourceHandler;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Passes messages through to another emitter and, while recording, also
+ * writes them to a tape that can later be replayed into that emitter. Used
+ * by <code>SimpleCommandLineValidator</code> to repeat the messages of
+ * files that have not changed since they were last checked.
+ */
+final class MessageRecorder extends MessageEmitter {
+
+    private static final MessageType[] TYPES = { MessageType.ERROR,
+            MessageType.FATAL, MessageType.INFO, MessageType.INTERNAL,
+            MessageType.IO, MessageType.NON_DOCUMENT, MessageType.SCHEMA,
+            MessageType.WARNING };
+
+    private static final int START_MESSAGE = 1;
+
+    private static final int END_MESSAGE = 2;
+
+    private static final int START_TEXT = 3;
+
+    private static final int END_TEXT = 4;
+
+    private static final int START_SOURCE = 5;
+
+    private static final int END_SOURCE = 6;
+
+    private static final int START_ELABORATION = 7;
+
+    private static final int END_ELABORATION = 8;
+
+    private static final int TEXT_CHARACTERS = 10;
+
+    private static final int START_CODE = 11;
+
+    private static final int END_CODE = 12;
+
+    private static final int START_LINK = 13;
+
+    private static final int END_LINK = 14;
+
+    private static final int SOURCE_START = 20;
+
+    private static final int SOURCE_LINE_ERRORS = 21;
+
+    private static final int SOURCE_END = 22;
+
+    private static final int SOURCE_CHARACTERS = 23;
+
+    private static final int NEW_LINE = 24;
+
+    private static final int START_RANGE = 25;
+
+    private static final int END_RANGE = 26;
+
+    private static final int START_CHAR_HILITE = 27;
+
+    private static final int END_CHAR_HILITE = 28;
+
+    private static final int START_DOCUMENT = 30;
+
+    private static final int END_DOCUMENT = 31;
+
+    private static final int START_PREFIX_MAPPING = 32;
+
+    private static final int END_PREFIX_MAPPING = 33;
+
+    private static final int START_ELEMENT = 34;
+
+    private static final int END_ELEMENT = 35;
+
+    private static final int CHARACTERS = 36;
+
+    private final MessageEmitter delegate;
+
+    private ByteArrayOutputStream buffer;
+
+    private DataOutputStream tape;
+
+    private boolean replayable;
+
+    MessageRecorder(MessageEmitter delegate) {
+        this.delegate = delegate;
+    }
+
+    void startRecording() {
+        buffer = new ByteArrayOutputStream();
+        tape = new DataOutputStream(buffer);
+        replayable = true;
+    }
+
+    /**
+     * Stops recording.
+     *
+     * @return the tape or <code>null</code> if something was emitted that
+     *         cannot be replayed
+     */
+    byte[] stopRecording() {
+        byte[] rv = replayable ? buffer.toByteArray() : null;
+        buffer = null;
+        tape = null;
+        return rv;
+    }
+
+    private void record(int op) throws SAXException {
+        if (tape == null) {
+            return;
+        }
+        try {
+            tape.writeByte(op);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    private void record(int op, int... values) throws SAXException {
+        if (tape == null) {
+            return;
+        }
+        try {
+            tape.writeByte(op);
+            for (int value : values) {
+                tape.writeInt(value);
+            }
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    private void record(int op, String... values) throws SAXException {
+        if (tape == null) {
+            return;
+        }
+        try {
+            tape.writeByte(op);
+            for (String value : values) {
+                writeString(value);
+            }
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    private void recordCharacters(int op, char[] ch, int start, int length)
+            throws SAXException {
+        if (tape == null) {
+            return;
+        }
+        try {
+            tape.writeByte(op);
+            tape.writeInt(length);
+            for (int i = start; i < start + length; i++) {
+                tape.writeChar(ch[i]);
+            }
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            tape.writeInt(-1);
+            return;
+        }
+        tape.writeInt(s.length());
+        tape.writeChars(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        return new String(readChars(in, length));
+    }
+
+    private static char[] readChars(DataInputStream in, int length)
+            throws IOException {
+        char[] ch = new char[length];
+        for (int i = 0; i < length; i++) {
+            ch[i] = in.readChar();
+        }
+        return ch;
+    }
+
+    /**
+     * Replays a tape made by this recorder into the underlying emitter.
+     */
+    void replay(byte[] recorded) throws SAXException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(recorded));
+        MessageTextHandler text = null;
+        SourceHandler source = null;
+        ContentHandler elaboration = null;
+        try {
+            while (in.available() > 0) {
+                int op = in.readByte();
+                switch (op) {
+                    case START_MESSAGE:
+                        delegate.startMessage(TYPES[in.readInt()],
+                                readString(in), in.readInt(), in.readInt(),
+                                in.readInt(), in.readInt(), in.readBoolean());
+                        break;
+                    case END_MESSAGE:
+                        delegate.endMessage();
+                        break;
+                    case START_TEXT:
+                        text = delegate.startText();
+                        break;
+                    case END_TEXT:
+                        delegate.endText();
+                        text = null;
+                        break;
+                    case START_SOURCE:
+                        source = delegate.startSource();
+                        break;
+                    case END_SOURCE:
+                        delegate.endSource();
+                        source = null;
+                        break;
+                    case START_ELABORATION:
+                        elaboration = delegate.startElaboration();
+                        break;
+                    case END_ELABORATION:
+                        delegate.endElaboration();
+                        elaboration = null;
+                        break;
+                    case TEXT_CHARACTERS:
+                        char[] textChars = readChars(in, in.readInt());
+                        text.characters(textChars, 0, textChars.length);
+                        break;
+                    case START_CODE:
+                        text.startCode();
+                        break;
+                    case END_CODE:
+                        text.endCode();
+                        break;
+                    case START_LINK:
+                        text.startLink(readString(in), readString(in));
+                        break;
+                    case END_LINK:
+                        text.endLink();
+                        break;
+                    case SOURCE_START:
+                        source.startSource(readString(in), readString(in));
+                        break;
+                    case SOURCE_LINE_ERRORS:
+                        SortedSet<Integer> lines = new TreeSet<>();
+                        for (int i = in.readInt(); i > 0; i--) {
+                            lines.add(in.readInt());
+                        }
+                        source.setLineErrors(lines);
+                        break;
+                    case SOURCE_END:
+                        source.endSource();
+                        break;
+                    case SOURCE_CHARACTERS:
+                        char[] sourceChars = readChars(in, in.readInt());
+                        source.characters(sourceChars, 0, sourceChars.length);
+                        break;
+                    case NEW_LINE:
+                        source.newLine();
+                        break;
+                    case START_RANGE:
+                        source.startRange(in.readInt(), in.readInt());
+                        break;
+                    case END_RANGE:
+                        source.endRange();
+                        break;
+                    case START_CHAR_HILITE:
+                        source.startCharHilite(in.readInt(), in.readInt());
+                        break;
+                    case END_CHAR_HILITE:
+                        source.endCharHilite();
+                        break;
+                    case START_DOCUMENT:
+                        elaboration.startDocument();
+                        break;
+                    case END_DOCUMENT:
+                        elaboration.endDocument();
+                        break;
+                    case START_PREFIX_MAPPING:
+                        elaboration.startPrefixMapping(readString(in),
+                                readString(in));
+                        break;
+                    case END_PREFIX_MAPPING:
+                        elaboration.endPrefixMapping(readString(in));
+                        break;
+                    case START_ELEMENT:
+                        String uri = readString(in);
+                        String localName = readString(in);
+                        String qName = readString(in);
+                        AttributesImpl attributes = new AttributesImpl();
+                        for (int i = in.readInt(); i > 0; i--) {
+                            attributes.addAttribute(readString(in),
+                                    readString(in), readString(in),
+                                    readString(in), readString(in));
+                        }
+                        elaboration.startElement(uri, localName, qName,
+                                attributes);
+                        break;
+                    case END_ELEMENT:
+                        elaboration.endElement(readString(in),
+                                readString(in), readString(in));
+                        break;
+                    case CHARACTERS:
+                        char[] chars = readChars(in, in.readInt());
+                        elaboration.characters(chars, 0, chars.length);
+                        break;
+                    default:
+                        throw new SAXException("Corrupt message tape.");
+                }
+            }
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void startMessages(String documentUri, boolean willShowSource)
+            throws SAXException {
+        delegate.startMessages(documentUri, willShowSource);
+    }
+
+    @Override
+    public void endMessages(String language) throws SAXException {
+        delegate.endMessages(language);
+    }
+
+    @Override
+    public void startMessage(MessageType type, String systemId,
+            int oneBasedFirstLine, int oneBasedFirstColumn,
+            int oneBasedLastLine, int oneBasedLastColumn, boolean exact)
+            throws SAXException {
+        delegate.startMessage(type, systemId, oneBasedFirstLine,
+                oneBasedFirstColumn, oneBasedLastLine, oneBasedLastColumn,
+                exact);
+        if (tape == null) {
+            return;
+        }
+        int index = -1;
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i] == type) {
+                index = i;
+            }
+        }
+        if (index == -1) {
+            replayable = false;
+            return;
+        }
+        try {
+            tape.writeByte(START_MESSAGE);
+            tape.writeInt(index);
+            writeString(systemId);
+            tape.writeInt(oneBasedFirstLine);
+            tape.writeInt(oneBasedFirstColumn);
+            tape.writeInt(oneBasedLastLine);
+            tape.writeInt(oneBasedLastColumn);
+            tape.writeBoolean(exact);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void endMessage() throws SAXException {
+        delegate.endMessage();
+        record(END_MESSAGE);
+    }
+
+    @Override
+    public MessageTextHandler startText() throws SAXException {
+        final MessageTextHandler handler = delegate.startText();
+        record(START_TEXT);
+        if (handler == null || tape == null) {
+            return handler;
+        }
+        return new MessageTextHandler() {
+
+            @Override
+            public void characters(char[] ch, int start, int length)
+                    throws SAXException {
+                handler.characters(ch, start, length);
+                recordCharacters(TEXT_CHARACTERS, ch, start, length);
+            }
+
+            @Override
+            public void startCode() throws SAXException {
+                handler.startCode();
+                record(START_CODE);
+            }
+
+            @Override
+            public void endCode() throws SAXException {
+                handler.endCode();
+                record(END_CODE);
+            }
+
+            @Override
+            public void startLink(String href, String title)
+                    throws SAXException {
+                handler.startLink(href, title);
+                record(START_LINK, href, title);
+            }
+
+            @Override
+            public void endLink() throws SAXException {
+                handler.endLink();
+                record(END_LINK);
+            }
+        };
+    }
+
+    @Override
+    public void endText() throws SAXException {
+        delegate.endText();
+        record(END_TEXT);
+    }
+
+    @Override
+    public SourceHandler startSource() throws SAXException {
+        final SourceHandler handler = delegate.startSource();
+        record(START_SOURCE);
+        if (handler == null || tape == null) {
+            return handler;
+        }
+        return new SourceHandler() {
+
+            @Override
+            public void startSource(String type, String encoding)
+                    throws SAXException {
+                handler.startSource(type, encoding);
+                record(SOURCE_START, type, encoding);
+            }
+
+            @Override
+            public void setLineErrors(SortedSet<Integer> oneBasedLineErrors)
+                    throws SAXException {
+                handler.setLineErrors(oneBasedLineErrors);
+                if (tape == null) {
+                    return;
+                }
+                try {
+                    tape.writeByte(SOURCE_LINE_ERRORS);
+                    tape.writeInt(oneBasedLineErrors.size());
+                    for (Integer line : oneBasedLineErrors) {
+                        tape.writeInt(line);
+                    }
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+            }
+
+            @Override
+            public void endSource() throws SAXException {
+                handler.endSource();
+                record(SOURCE_END);
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length)
+                    throws SAXException {
+                handler.characters(ch, start, length);
+                recordCharacters(SOURCE_CHARACTERS, ch, start, length);
+            }
+
+            @Override
+            public void newLine() throws SAXException {
+                handler.newLine();
+                record(NEW_LINE);
+            }
+
+            @Override
+            public void startRange(int oneBasedLine, int oneBasedColumn)
+                    throws SAXException {
+                handler.startRange(oneBasedLine, oneBasedColumn);
+                record(START_RANGE, oneBasedLine, oneBasedColumn);
+            }
+
+            @Override
+            public void endRange() throws SAXException {
+                handler.endRange();
+                record(END_RANGE);
+            }
+
+            @Override
+            public void startCharHilite(int oneBasedLine, int oneBasedColumn)
+                    throws SAXException {
+                handler.startCharHilite(oneBasedLine, oneBasedColumn);
+                record(START_CHAR_HILITE, oneBasedLine, oneBasedColumn);
+            }
+
+            @Override
+            public void endCharHilite() throws SAXException {
+                handler.endCharHilite();
+                record(END_CHAR_HILITE);
+            }
+        };
+    }
+
+    @Override
+    public void endSource() throws SAXException {
+        delegate.endSource();
+        record(END_SOURCE);
+    }
+
+    @Override
+    public ContentHandler startElaboration() throws SAXException {
+        final ContentHandler handler = delegate.startElaboration();
+        record(START_ELABORATION);
+        if (handler == null || tape == null) {
+            return handler;
+        }
+        return new ContentHandler() {
+
+            @Override
+            public void setDocumentLocator(Locator locator) {
+                handler.setDocumentLocator(locator);
+            }
+
+            @Override
+            public void startDocument() throws SAXException {
+                handler.startDocument();
+                record(START_DOCUMENT);
+            }
+
+            @Override
+            public void endDocument() throws SAXException {
+                handler.endDocument();
+                record(END_DOCUMENT);
+            }
+
+            @Override
+            public void startPrefixMapping(String prefix, String uri)
+                    throws SAXException {
+                handler.startPrefixMapping(prefix, uri);
+                record(START_PREFIX_MAPPING, prefix, uri);
+            }
+
+            @Override
+            public void endPrefixMapping(String prefix) throws SAXException {
+                handler.endPrefixMapping(prefix);
+                record(END_PREFIX_MAPPING, prefix);
+            }
+
+            @Override
+            public void startElement(String uri, String localName,
+                    String qName, Attributes atts) throws SAXException {
+                handler.startElement(uri, localName, qName, atts);
+                if (tape == null) {
+                    return;
+                }
+                try {
+                    tape.writeByte(START_ELEMENT);
+                    writeString(uri);
+                    writeString(localName);
+                    writeString(qName);
+                    tape.writeInt(atts.getLength());
+                    for (int i = 0; i < atts.getLength(); i++) {
+                        writeString(atts.getURI(i));
+                        writeString(atts.getLocalName(i));
+                        writeString(atts.getQName(i));
+                        writeString(atts.getType(i));
+                        writeString(atts.getValue(i));
+                    }
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName)
+                    throws SAXException {
+                handler.endElement(uri, localName, qName);
+                record(END_ELEMENT, uri, localName, qName);
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length)
+                    throws SAXException {
+                handler.characters(ch, start, length);
+                recordCharacters(CHARACTERS, ch, start, length);
+            }
+
+            @Override
+            public void ignorableWhitespace(char[] ch, int start, int length)
+                    throws SAXException {
+                handler.ignorableWhitespace(ch, start, length);
+                recordCharacters(CHARACTERS, ch, start, length);
+            }
+
+            @Override
+            public void processingInstruction(String target, String data)
+                    throws SAXException {
+                handler.processingInstruction(target, data);
+                replayable = false;
+            }
+
+            @Override
+            public void skippedEntity(String name) throws SAXException {
+                handler.skippedEntity(name);
+                replayable = false;
+            }
+        };
+    }
+
+    @Override
+    public void endElaboration() throws SAXException {
+        delegate.endElaboration();
+        record(END_ELABORATION);
+    }
+
+    @Override
+    public SourceHandler startFullSource(int lineOffset) throws SAXException {
+        replayable = false;
+        return delegate.startFullSource(lineOffset);
+    }
+
+    @Override
+    public void endFullSource() throws SAXException {
+        delegate.endFullSource();
+    }
+
+    @Override
+    public ResultHandler startResult() throws SAXException {
+        return delegate.startResult();
+    }
+
+    @Override
+    public void endResult() throws SAXException {
+        delegate.endResult();
+    }
+
+    @Override
+    public ImageReviewHandler startImageReview(DocumentFragment instruction,
+            boolean fatal) throws SAXException {
+        replayable = false;
+        return delegate.startImageReview(instruction, fatal);
+    }
+
+    @Override
+    public void endImageReview() throws SAXException {
+        delegate.endImageReview();
+    }
+}
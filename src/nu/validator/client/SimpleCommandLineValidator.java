@@ -37,9 +37,12 @@ import java.util.regex.Pattern;
 
 import nu.validator.htmlparser.sax.XmlSerializer;
 import nu.validator.io.SystemIdIOException;
+import nu.validator.messages.FailFastException;
 import nu.validator.messages.GnuMessageEmitter;
 import nu.validator.messages.JsonMessageEmitter;
+import nu.validator.messages.MessageEmitter;
 import nu.validator.messages.MessageEmitterAdapter;
+import nu.validator.messages.StatusMessageEmitter;
 import nu.validator.messages.TextMessageEmitter;
 import nu.validator.messages.XmlMessageEmitter;
 import nu.validator.servlet.imagereview.ImageCollector;
@@ -102,10 +105,14 @@ public class SimpleCommandLineValidator {
 
     private static boolean asciiQuotes;
 
+    private static boolean quietCount;
+
+    private static boolean failFast;
+
     private static int lineOffset;
 
     private static enum OutputFormat {
-        HTML, XHTML, TEXT, XML, JSON, RELAXED, SOAP, UNICORN, GNU
+        HTML, XHTML, TEXT, XML, JSON, RELAXED, SOAP, UNICORN, GNU, STATUS
     }
 
     private static OutputFormat outputFormat;
@@ -114,6 +121,16 @@ public class SimpleCommandLineValidator {
 
     private static boolean hasSchemaOption;
 
+    private static ValidationCache cache;
+
+    private static String cacheOptions;
+
+    private static MessageRecorder recorder;
+
+    private static byte[] cacheDigest;
+
+    private static int[] countsBeforeCheck;
+
     public static void main(String[] args) throws SAXException, Exception {
         Enumeration<URL> resources = SimpleCommandLineValidator.class. //
                 getClassLoader().getResources("META-INF/MANIFEST.MF");
@@ -144,6 +161,8 @@ public class SimpleCommandLineValidator {
         noStream = false;
         lineOffset = 0;
         asciiQuotes = false;
+        quietCount = false;
+        failFast = false;
         verbose = false;
 
         filterPattern = null;
@@ -153,6 +172,7 @@ public class SimpleCommandLineValidator {
         hasSchemaOption = false;
         boolean hasFileArgs = false;
         boolean readFromStdIn = false;
+        String cacheDir = null;
         int fileArgsStart = 0;
         if (args.length == 0) {
             usage();
@@ -251,6 +271,12 @@ public class SimpleCommandLineValidator {
                     noLangDetect = true;
                 } else if ("--no-stream".equals(args[i])) {
                     noStream = true;
+                } else if ("--cache-dir".equals(args[i])) {
+                    cacheDir = args[++i];
+                } else if ("--quiet-count".equals(args[i])) {
+                    quietCount = true;
+                } else if ("--fail-fast".equals(args[i])) {
+                    failFast = true;
                 } else if ("--schema".equals(args[i])) {
                     hasSchemaOption = true;
                     schemaUrl = args[++i];
@@ -268,7 +294,9 @@ public class SimpleCommandLineValidator {
         if (schemaUrl == null) {
             schemaUrl = "http://s.validator.nu/html5-all.rnc";
         }
-        if (outFormat == null) {
+        if (quietCount) {
+            outputFormat = OutputFormat.STATUS;
+        } else if (outFormat == null) {
             outputFormat = OutputFormat.GNU;
         } else {
             if ("text".equals(outFormat)) {
@@ -294,12 +322,16 @@ public class SimpleCommandLineValidator {
                 validator = new SimpleDocumentValidator();
             }
             setup(schemaUrl);
-            if (forceCSS) {
-                validator.checkCssInputSource(is);
-            } else if (forceSVG) {
-                checkSvgInputSource(is);
-            } else {
-                validator.checkHtmlInputSource(is);
+            try {
+                if (forceCSS) {
+                    validator.checkCssInputSource(is);
+                } else if (forceSVG) {
+                    checkSvgInputSource(is);
+                } else {
+                    validator.checkHtmlInputSource(is);
+                }
+            } catch (FailFastException e) {
+                // Stopped at the first error.
             }
             end();
         } else if (hasFileArgs) {
@@ -308,6 +340,9 @@ public class SimpleCommandLineValidator {
             } else {
                 validator = new SimpleDocumentValidator(true, false, true);
             }
+            if (cacheDir != null) {
+                openCache(cacheDir, filterString);
+            }
             setup(schemaUrl);
             checkFiles(args, fileArgsStart);
             end();
@@ -349,7 +384,77 @@ public class SimpleCommandLineValidator {
         setSchema(schemaUrl);
     }
 
+    private static void openCache(String cacheDir, String filterString) {
+        try {
+            cache = new ValidationCache(new File(cacheDir),
+                    version == null ? "[unknown version]" : version);
+        } catch (IOException e) {
+            System.err.println("warning: Not using the cache: "
+                    + e.getMessage());
+            return;
+        }
+        cacheOptions = String.format(
+                "%s %b %b %b %b %b %b %b %b %b %b %b %b %b %b %d %s\n%s",
+                schemaUrl, hasSchemaOption, errorsOnly, asciiQuotes,
+                alsoCheckCSS, skipNonCSS, forceCSS, alsoCheckSVG, skipNonSVG,
+                forceSVG, skipNonHTML, forceHTML, loadEntities, noLangDetect,
+                noStream, lineOffset, outputFormat, filterString);
+    }
+
+    /**
+     * Replays the messages of a file that has not changed since it was last
+     * checked with the same options. Otherwise starts recording messages
+     * for <code>storeInCache</code>.
+     *
+     * @return whether the messages were replayed
+     */
+    private static boolean replayFromCache(File file)
+            throws IOException, SAXException {
+        if (cache == null) {
+            return false;
+        }
+        cacheDigest = ValidationCache.digest(file, cacheOptions);
+        ValidationCache.Entry entry = cache.get(file.getPath(), cacheDigest);
+        if (entry != null) {
+            if (recorder != null) {
+                recorder.replay(entry.messages);
+            }
+            errorHandler.addCounts(entry.errors, entry.warnings,
+                    entry.fatalErrors);
+            return true;
+        }
+        countsBeforeCheck = new int[] { errorHandler.getErrors(),
+                errorHandler.getWarnings(), errorHandler.getFatalErrors() };
+        if (recorder != null) {
+            recorder.startRecording();
+        }
+        return false;
+    }
+
+    private static void storeInCache(File file) throws IOException {
+        if (cache == null) {
+            return;
+        }
+        byte[] messages = recorder == null ? new byte[0]
+                : recorder.stopRecording();
+        if (messages != null) {
+            cache.put(file.getPath(), new ValidationCache.Entry(cacheDigest,
+                    errorHandler.getErrors() - countsBeforeCheck[0],
+                    errorHandler.getWarnings() - countsBeforeCheck[1],
+                    errorHandler.getFatalErrors() - countsBeforeCheck[2],
+                    messages));
+        }
+    }
+
     private static void end() throws SAXException {
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                System.err.println("warning: Could not write the cache: "
+                        + e.getMessage());
+            }
+        }
         errorHandler.end("Document checking completed. No errors found.",
                 "Document checking completed.", "");
         if (errorHandler.getErrors() > 0 || errorHandler.getFatalErrors() > 0
@@ -360,11 +465,13 @@ public class SimpleCommandLineValidator {
 
     private static void checkFiles(String[] args, int fileArgsStart)
             throws IOException, Exception, SAXException {
-        for (int i = fileArgsStart; i < args.length; i++) {
+        for (int i = fileArgsStart; i < args.length && !failedFast(); i++) {
             if (args[i].startsWith("http://") || args[i].startsWith("https://")) {
                 emitFilename(args[i]);
                 try {
                     validator.checkHttpURL(args[i], userAgent, errorHandler);
+                } catch (FailFastException e) {
+                    // Stopped at the first error.
                 } catch (IOException e) {
                     errorHandler.fatalError(new SAXParseException(e.getMessage(),
                             null, args[i], -1, -1,
@@ -402,7 +509,9 @@ public class SimpleCommandLineValidator {
         if (directory.canRead()) {
             File[] files = directory.listFiles();
             for (File file : files) {
-                if (file.isDirectory()) {
+                if (failedFast()) {
+                    return;
+                } else if (file.isDirectory()) {
                     recurseDirectory(file);
                 } else if (forceCSS) {
                     checkCssFile(file);
@@ -448,6 +557,8 @@ public class SimpleCommandLineValidator {
             } else {
                 emitFilename(path);
             }
+        } catch (FailFastException e) {
+            // Stopped at the first error.
         } catch (SAXException e) {
             if (!errorsOnly) {
                 System.err.printf("\"%s\":-1:-1: warning: %s\n",
@@ -468,8 +579,14 @@ public class SimpleCommandLineValidator {
                 return;
             } else {
                 emitFilename(path);
+                if (replayFromCache(file)) {
+                    return;
+                }
                 validator.checkCssFile(file, true);
+                storeInCache(file);
             }
+        } catch (FailFastException e) {
+            // Stopped at the first error.
         } catch (SAXException e) {
             if (!errorsOnly) {
                 System.err.printf("\"%s\":-1:-1: warning: %s\n",
@@ -490,6 +607,9 @@ public class SimpleCommandLineValidator {
                 return;
             } else if (isXhtml(file)) {
                 emitFilename(path);
+                if (replayFromCache(file)) {
+                    return;
+                }
                 if (forceHTML) {
                     validator.checkHtmlFile(file, true);
                 } else {
@@ -499,13 +619,18 @@ public class SimpleCommandLineValidator {
                     }
                     validator.checkXmlFile(file);
                 }
+                storeInCache(file);
             } else if (isHtml(file)) {
                 emitFilename(path);
+                if (replayFromCache(file)) {
+                    return;
+                }
                 if (!"http://s.validator.nu/html5-all.rnc".equals(
                         validator.getMainSchemaUrl()) && !hasSchemaOption) {
                     setSchema("http://s.validator.nu/html5-all.rnc");
                 }
                 validator.checkHtmlFile(file, true);
+                storeInCache(file);
             } else {
                 if (verbose) {
                     errorHandler.warning(new SAXParseException(
@@ -514,6 +639,8 @@ public class SimpleCommandLineValidator {
                             null, file.toURI().toURL().toString(), -1, -1));
                 }
             }
+        } catch (FailFastException e) {
+            // Stopped at the first error.
         } catch (SAXException e) {
             if (!errorsOnly) {
                 System.err.printf("\"%s\":-1:-1: warning: %s\n",
@@ -522,6 +649,11 @@ public class SimpleCommandLineValidator {
         }
     }
 
+    private static boolean failedFast() {
+        return failFast && (errorHandler.getErrors() > 0
+                || errorHandler.getFatalErrors() > 0);
+    }
+
     private static boolean cssCheckingEnabled() {
         return forceCSS || alsoCheckCSS;
     }
@@ -556,29 +688,32 @@ public class SimpleCommandLineValidator {
         SourceCode sourceCode = validator.getSourceCode();
         ImageCollector imageCollector = new ImageCollector(sourceCode);
         boolean showSource = false;
+        MessageEmitter emitter;
         if (outputFormat == OutputFormat.TEXT) {
-            errorHandler = new MessageEmitterAdapter(filterPattern, sourceCode,
-                    showSource, imageCollector, lineOffset, true,
-                    new TextMessageEmitter(out, asciiQuotes));
+            emitter = new TextMessageEmitter(out, asciiQuotes);
         } else if (outputFormat == OutputFormat.GNU) {
-            errorHandler = new MessageEmitterAdapter(filterPattern, sourceCode,
-                    showSource, imageCollector, lineOffset, true,
-                    new GnuMessageEmitter(out, asciiQuotes));
+            emitter = new GnuMessageEmitter(out, asciiQuotes);
         } else if (outputFormat == OutputFormat.XML) {
-            errorHandler = new MessageEmitterAdapter(filterPattern, sourceCode,
-                    showSource, imageCollector, lineOffset, true,
-                    new XmlMessageEmitter(new XmlSerializer(out)));
+            emitter = new XmlMessageEmitter(new XmlSerializer(out));
         } else if (outputFormat == OutputFormat.JSON) {
             String callback = null;
-            errorHandler = new MessageEmitterAdapter(filterPattern, sourceCode,
-                    showSource, imageCollector, lineOffset, true,
-                    new JsonMessageEmitter(
-                            new nu.validator.json.Serializer(out), callback,
-                            asciiQuotes));
+            emitter = new JsonMessageEmitter(
+                    new nu.validator.json.Serializer(out), callback,
+                    asciiQuotes);
+        } else if (outputFormat == OutputFormat.STATUS) {
+            emitter = new StatusMessageEmitter(
+                    new nu.validator.json.Serializer(System.out), null);
         } else {
             throw new RuntimeException("Bug. Should be unreachable.");
         }
+        if (cache != null && outputFormat != OutputFormat.STATUS) {
+            recorder = new MessageRecorder(emitter);
+            emitter = recorder;
+        }
+        errorHandler = new MessageEmitterAdapter(filterPattern, sourceCode,
+                showSource, imageCollector, lineOffset, true, emitter);
         errorHandler.setErrorsOnly(errorsOnly);
+        errorHandler.setFailFast(failFast);
     }
 
     private static void usage() {
@@ -595,6 +730,7 @@ public class SimpleCommandLineValidator {
         System.out.println("    --filterpattern PATTERN --css --skip-non-css --also-check-css --svg");
         System.out.println("    --skip-non-svg --also-check-svg --html --skip-non-html");
         System.out.println("    --format gnu|xml|json|text --help --verbose --version");
+        System.out.println("    --cache-dir DIRECTORY --quiet-count --fail-fast");
         System.out.println("");
         System.out.println("For detailed usage information, try the \"--help\" option or see:");
         System.out.println("");
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The per-file message cache behind the <code>--cache-dir</code> option of
+ * <code>SimpleCommandLineValidator</code>.
+ *
+ * <p>The cache is a single append-only file. After a header naming the
+ * validator version, each record holds a file path, a digest of the file
+ * contents and the options, the message counts and the recorded messages
+ * (see <code>MessageRecorder</code>). The last record for a path wins.
+ * A cache written by a different validator version is discarded, and the
+ * file is rewritten without superseded records once they make up most of it.
+ */
+final class ValidationCache {
+
+    static final class Entry {
+
+        final byte[] digest;
+
+        final int errors;
+
+        final int warnings;
+
+        final int fatalErrors;
+
+        final byte[] messages;
+
+        Entry(byte[] digest, int errors, int warnings, int fatalErrors,
+                byte[] messages) {
+            this.digest = digest;
+            this.errors = errors;
+            this.warnings = warnings;
+            this.fatalErrors = fatalErrors;
+            this.messages = messages;
+        }
+    }
+
+    private static final String FILE_NAME = "vnu-cache";
+
+    private static final int MAGIC = 0x766E7543;
+
+    private final File file;
+
+    private final String version;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private int records;
+
+    private boolean needsRewrite;
+
+    private DataOutputStream out;
+
+    ValidationCache(File directory, String version) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory "
+                    + directory.getPath());
+        }
+        this.file = new File(directory, FILE_NAME);
+        this.version = version;
+        load();
+    }
+
+    private void load() throws IOException {
+        if (!file.isFile()) {
+            needsRewrite = true;
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || !version.equals(in.readUTF())) {
+                needsRewrite = true;
+                return;
+            }
+            for (;;) {
+                String path;
+                try {
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                int errors = in.readInt();
+                int warnings = in.readInt();
+                int fatalErrors = in.readInt();
+                byte[] messages = new byte[in.readInt()];
+                in.readFully(messages);
+                entries.put(path, new Entry(digest, errors, warnings,
+                        fatalErrors, messages));
+                records++;
+            }
+        } catch (EOFException e) {
+            // A run was interrupted while appending.
+            needsRewrite = true;
+        }
+    }
+
+    /**
+     * Computes the digest for a file checked with the given options.
+     */
+    static byte[] digest(File file, String options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the cached messages for a path if its digest matches.
+     */
+    Entry get(String path, byte[] digest) {
+        Entry entry = entries.get(path);
+        if (entry != null && Arrays.equals(entry.digest, digest)) {
+            return entry;
+        }
+        return null;
+    }
+
+    void put(String path, Entry entry) throws IOException {
+        entries.put(path, entry);
+        records++;
+        if (needsRewrite) {
+            return;
+        }
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file, true)));
+        }
+        write(out, path, entry);
+    }
+
+    private static void write(DataOutputStream out, String path, Entry entry)
+            throws IOException {
+        out.writeUTF(path);
+        out.writeByte(entry.digest.length);
+        out.write(entry.digest);
+        out.writeInt(entry.errors);
+        out.writeInt(entry.warnings);
+        out.writeInt(entry.fatalErrors);
+        out.writeInt(entry.messages.length);
+        out.write(entry.messages);
+    }
+
+    /**
+     * Flushes appended records, compacting the file if needed.
+     */
+    void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        if (!needsRewrite && records <= 2 * entries.size() + 64) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream rewrite = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            rewrite.writeInt(MAGIC);
+            rewrite.writeUTF(version);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                write(rewrite, entry.getKey(), entry.getValue());
+            }
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file.getPath());
+            }
+        }
+        records = entries.size();
+        needsRewrite = false;
+    }
+}
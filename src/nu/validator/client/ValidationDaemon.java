@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import nu.validator.json.Serializer;
+import nu.validator.messages.JsonMessageEmitter;
+import nu.validator.messages.MessageEmitterAdapter;
+import nu.validator.servlet.imagereview.ImageCollector;
+import nu.validator.validation.SimpleDocumentValidator;
+import nu.validator.xml.SystemErrErrorHandler;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Keeps a checker loaded between documents so that editors and other tools
+ * do not pay for JVM startup and schema compilation on every check.
+ *
+ * <p>Each request is a header line <code>TYPE LENGTH [NAME]</code>, where
+ * <code>TYPE</code> is <code>html</code>, <code>xhtml</code>,
+ * <code>svg</code> or <code>css</code>, followed by <code>LENGTH</code>
+ * bytes of UTF-8 document content. Each response is the messages for that
+ * document in the JSON output format, on one line. Requests are read from
+ * standard input, or, with <code>--port</code>, from connections to a
+ * loopback port. With <code>--client</code>, this class instead sends
+ * files to a running daemon and prints the responses.
+ */
+public class ValidationDaemon {
+
+    private static final String HTML_SCHEMA = "http://s.validator.nu/html5-all.rnc";
+
+    private static final String XHTML_SCHEMA = "http://s.validator.nu/xhtml5-all.rnc";
+
+    private static final String SVG_SCHEMA = "http://s.validator.nu/svg-xhtml5-rdf-mathml.rnc";
+
+    private static final int MAX_HEADER_LENGTH = 8192;
+
+    private final SimpleDocumentValidator validator;
+
+    private final boolean asciiQuotes;
+
+    private String schemaUrl;
+
+    ValidationDaemon(boolean noLangDetect, boolean asciiQuotes)
+            throws Exception {
+        this.validator = new SimpleDocumentValidator(true, false,
+                !noLangDetect);
+        this.asciiQuotes = asciiQuotes;
+        setSchema(HTML_SCHEMA);
+    }
+
+    private void setSchema(String url) throws Exception {
+        if (!url.equals(schemaUrl)) {
+            validator.setUpMainSchema(url, new SystemErrErrorHandler());
+            schemaUrl = url;
+        }
+    }
+
+    /**
+     * Checks one document and returns its messages as a line of JSON.
+     */
+    synchronized byte[] check(String type, String name, byte[] content)
+            throws Exception {
+        boolean css = "css".equals(type);
+        if ("xhtml".equals(type)) {
+            setSchema(XHTML_SCHEMA);
+        } else if ("svg".equals(type)) {
+            setSchema(SVG_SCHEMA);
+        } else if (css || "html".equals(type)) {
+            setSchema(HTML_SCHEMA);
+        } else {
+            return error("Unsupported document type \"" + type
+                    + "\". Must be \"html\", \"xhtml\", \"svg\" or \"css\".");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageEmitterAdapter errorHandler = new MessageEmitterAdapter(null,
+                validator.getSourceCode(), false,
+                new ImageCollector(validator.getSourceCode()), css ? -1 : 0,
+                true, new JsonMessageEmitter(new Serializer(out), null,
+                        asciiQuotes));
+        errorHandler.setHtml(true);
+        errorHandler.start(null);
+        validator.setAllowCss(css);
+        validator.setUpValidatorAndParsers(errorHandler, false, false);
+        InputSource is = new InputSource(new ByteArrayInputStream(content));
+        is.setSystemId(name);
+        try {
+            if (css) {
+                validator.checkCssInputSource(is);
+            } else if ("html".equals(type)) {
+                validator.checkHtmlInputSource(is);
+            } else {
+                validator.checkXmlInputSource(is);
+            }
+        } catch (SAXException e) {
+            // Already reported to the error handler.
+        } finally {
+            errorHandler.end("Document checking completed. No errors found.",
+                    "Document checking completed.", "");
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] error(String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Serializer serializer = new Serializer(out);
+        try {
+            serializer.startDocument(null);
+            serializer.startObject();
+            serializer.key("messages");
+            serializer.startArray();
+            serializer.startObject();
+            serializer.key("type");
+            serializer.string("non-document-error");
+            serializer.key("subType");
+            serializer.string("internal");
+            serializer.key("message");
+            serializer.string(message);
+            serializer.endObject();
+            serializer.endArray();
+            serializer.endObject();
+            serializer.endDocument();
+        } catch (SAXException e) {
+            throw new IOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Answers requests until the input ends or a header cannot be parsed.
+     */
+    void serve(InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(input, 65536));
+        OutputStream out = new BufferedOutputStream(output, 65536);
+        String header;
+        while ((header = readLine(in)) != null) {
+            if (header.isEmpty()) {
+                continue;
+            }
+            String[] fields = header.split(" ", 3);
+            int length;
+            try {
+                length = fields.length < 2 ? -1 : Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0) {
+                out.write(error("Malformed request header \"" + header
+                        + "\". Expected \"TYPE LENGTH [NAME]\"."));
+                out.flush();
+                return;
+            }
+            byte[] content = new byte[length];
+            in.readFully(content);
+            byte[] response;
+            try {
+                response = check(fields[0],
+                        fields.length > 2 ? fields[2] : null, content);
+            } catch (Exception e) {
+                response = error(e.getMessage() == null ? e.toString()
+                        : e.getMessage());
+            }
+            out.write(response);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads a UTF-8 header line or returns <code>null</code> at the end of
+     * the input.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Truncated request header.");
+            }
+            if (line.size() == MAX_HEADER_LENGTH) {
+                throw new IOException("Request header too long.");
+            }
+            line.write(b);
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private void listen(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50,
+                InetAddress.getLoopbackAddress())) {
+            System.err.printf("Listening on %s:%d.%n",
+                    server.getInetAddress().getHostAddress(),
+                    server.getLocalPort());
+            for (;;) {
+                final Socket socket = server.accept();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (Socket s = socket) {
+                            serve(s.getInputStream(), s.getOutputStream());
+                        } catch (IOException e) {
+                            System.err.println("warning: " + e.getMessage());
+                        }
+                    }
+                }, "vnu-daemon-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    private static String typeOf(String name) {
+        if (name.endsWith(".xhtml") || name.endsWith(".xht")) {
+            return "xhtml";
+        } else if (name.endsWith(".svg")) {
+            return "svg";
+        } else if (name.endsWith(".css")) {
+            return "css";
+        }
+        return "html";
+    }
+
+    /**
+     * Sends files to a daemon listening on a loopback port, prints the
+     * responses and returns whether any reported an error.
+     */
+    private static boolean runClient(int port, String[] args, int start)
+            throws IOException {
+        boolean hasErrors = false;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                port)) {
+            OutputStream out = new BufferedOutputStream(
+                    socket.getOutputStream(), 65536);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream(), 65536));
+            for (int i = start; i < args.length; i++) {
+                byte[] content = "-".equals(args[i])
+                        ? readFully(System.in)
+                        : Files.readAllBytes(new File(args[i]).toPath());
+                String name = "-".equals(args[i]) ? "[stdin]"
+                        : new File(args[i]).getAbsoluteFile().toURI().toString();
+                out.write((typeOf(args[i]) + " " + content.length + " "
+                        + name + "\n").getBytes(StandardCharsets.UTF_8));
+                out.write(content);
+                out.flush();
+                String response = readLine(in);
+                if (response == null) {
+                    throw new EOFException("The daemon closed the connection.");
+                }
+                System.out.println(response);
+                // Serialized JSON escapes quotes inside strings, so this
+                // only matches message types.
+                if (response.contains("\"type\":\"error\"")
+                        || response.contains("\"type\":\"non-document-error\"")) {
+                    hasErrors = true;
+                }
+            }
+        }
+        return hasErrors;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static void usage() {
+        System.err.println("Usage:");
+        System.err.println("");
+        System.err.println("    java -cp vnu.jar nu.validator.client.ValidationDaemon [--port PORT]");
+        System.err.println("        [--no-langdetect] [--asciiquotes]");
+        System.err.println("    java -cp vnu.jar nu.validator.client.ValidationDaemon --client");
+        System.err.println("        --port PORT FILES");
+        System.err.println("");
+        System.err.println("Without --port, requests are read from standard input.");
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean client = false;
+        boolean noLangDetect = false;
+        boolean asciiQuotes = false;
+        int port = -1;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if ("--client".equals(args[i])) {
+                client = true;
+            } else if ("--no-langdetect".equals(args[i])) {
+                noLangDetect = true;
+            } else if ("--asciiquotes".equals(args[i])) {
+                asciiQuotes = true;
+            } else if ("--port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+                System.exit(1);
+            }
+        }
+        if (client) {
+            if (port < 0 || i == args.length) {
+                usage();
+                System.exit(1);
+            }
+            try {
+                System.exit(runClient(port, args, i) ? 1 : 0);
+            } catch (ConnectException e) {
+                System.err.printf("error: Expected to find a validation"
+                        + " daemon on port %d but could not connect.%n", port);
+                System.exit(1);
+            }
+        }
+        if (i != args.length) {
+            usage();
+            System.exit(1);
+        }
+        System.setProperty("nu.validator.datatype.warn", "true");
+        // Responses own standard output; send logging to standard error.
+        OutputStream responses = System.out;
+        System.setOut(System.err);
+        ValidationDaemon daemon = new ValidationDaemon(noLangDetect,
+                asciiQuotes);
+        if (port < 0) {
+            daemon.serve(System.in, responses);
+        } else {
+            daemon.listen(port);
+        }
+    }
+}
@@ -31,6 +31,12 @@ import org.relaxng.datatype.DatatypeException;
 /**
  * Superclass for various datetime datatypes. 
  * 
+ * <p>The regular expression returned by <code>getPattern()</code> defines
+ * the format of each datatype. The datatypes that are checked often
+ * override <code>checkValid()</code> with a scanner that accepts the same
+ * literals and reports the same errors without a <code>Matcher</code> or
+ * any substrings; the helpers for those scanners follow the range checks.
+ * 
  * @version $Id$
  * @author hsivonen
  */
@@ -59,7 +65,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkYear(int year) throws DatatypeException {
+    final void checkYear(int year) throws DatatypeException {
         if (year < 1) {
             throw newDatatypeException("Year cannot be less than 1.");
         } else if (WARN && (year < 1000 || year >= 3000)) {
@@ -67,7 +73,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkMonth(int year, int month)
+    final void checkMonth(int year, int month)
             throws DatatypeException {
         if (month < 1) {
             throw newDatatypeException("Month cannot be less than 1.");
@@ -88,7 +94,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkDate(int year, int month, int day)
+    final void checkDate(int year, int month, int day)
             throws DatatypeException {
         if (month < 1) {
             throw newDatatypeException("Month cannot be less than 1.");
@@ -121,7 +127,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkYearlessDate(int month, int day)
+    final void checkYearlessDate(int month, int day)
             throws DatatypeException {
         if (month < 1) {
             throw newDatatypeException("Month cannot be less than 1.");
@@ -143,7 +149,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkWeek(int year, int week)
+    final void checkWeek(int year, int week)
             throws DatatypeException {
         if (week< 1) {
             throw newDatatypeException("Week cannot be less than 1.");
@@ -162,7 +168,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkHour(int hour) throws DatatypeException {
+    final void checkHour(int hour) throws DatatypeException {
         if (hour > 23) {
             throw newDatatypeException("Hour cannot be greater than 23.");
         }
@@ -176,7 +182,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkMinute(int minute) throws DatatypeException {
+    final void checkMinute(int minute) throws DatatypeException {
         if (minute > 59) {
             throw newDatatypeException("Minute cannot be greater than 59.");
         }
@@ -190,14 +196,18 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkSecond(int second) throws DatatypeException {
+    final void checkSecond(int second) throws DatatypeException {
         if (second > 59) {
             throw newDatatypeException("Second cannot be greater than 59.");
         }
     }
 
     protected final void checkMilliSecond(String millisecond) throws DatatypeException {
-        if (millisecond.length() > 3) {
+        checkMilliSecond(millisecond.length());
+    }
+
+    final void checkMilliSecond(int digits) throws DatatypeException {
+        if (digits > 3) {
             throw newDatatypeException("A fraction of a second must be one, two, or three digits.");
         }
     }
@@ -217,7 +227,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
-    private void checkTzd(int hours, int minutes, boolean offsetIsNegative)
+    final void checkTzd(int hours, int minutes, boolean offsetIsNegative)
             throws DatatypeException {
         if (offsetIsNegative && (hours == 0 && minutes == 0)) {
             throw newDatatypeException("Minus sign not allowed in time zone"
@@ -243,6 +253,187 @@ abstract class AbstractDatetime extends AbstractDatatype {
         }
     }
 
+    /**
+     * Returns the index after the run of ASCII digits that starts at
+     * <code>from</code>.
+     */
+    final int digitsEnd(CharSequence literal, int from, int end) {
+        while (from < end && isAsciiDigit(literal.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Returns whether there are exactly two ASCII digits at
+     * <code>at</code>, not counting any digits that follow.
+     */
+    final boolean twoDigitsAt(CharSequence literal, int at, int end) {
+        return at + 1 < end && isAsciiDigit(literal.charAt(at))
+                && isAsciiDigit(literal.charAt(at + 1));
+    }
+
+    static int twoDigits(CharSequence literal, int at) {
+        return (literal.charAt(at) - '0') * 10 + (literal.charAt(at + 1) - '0');
+    }
+
+    /**
+     * Returns the value of the ASCII digits from <code>from</code> to
+     * <code>to</code> or -1 if it does not fit in an <code>int</code>.
+     */
+    static int digitsValue(CharSequence literal, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = literal.charAt(i) - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the index after the <code>hh:mm</code>,
+     * <code>hh:mm:ss</code> or <code>hh:mm:ss.s</code> time at
+     * <code>from</code>, or -1 if there is none. A fraction longer than
+     * <code>maxFraction</code> digits is not consumed.
+     */
+    final int timeEnd(CharSequence literal, int from, int end,
+            int maxFraction) {
+        if (!twoDigitsAt(literal, from, end) || from + 2 >= end
+                || literal.charAt(from + 2) != ':'
+                || !twoDigitsAt(literal, from + 3, end)) {
+            return -1;
+        }
+        int i = from + 5;
+        if (i < end && literal.charAt(i) == ':'
+                && twoDigitsAt(literal, i + 1, end)) {
+            i += 3;
+            if (i < end && literal.charAt(i) == '.') {
+                int fractionEnd = digitsEnd(literal, i + 1, end);
+                int digits = fractionEnd - (i + 1);
+                if (digits > 0 && digits <= maxFraction) {
+                    i = fractionEnd;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Range-checks a time found by <code>timeEnd</code>.
+     */
+    final void checkTime(CharSequence literal, int from, int to)
+            throws DatatypeException {
+        checkHour(twoDigits(literal, from));
+        checkMinute(twoDigits(literal, from + 3));
+        if (to > from + 5) {
+            checkSecond(twoDigits(literal, from + 6));
+        }
+        if (to > from + 8) {
+            checkMilliSecond(to - (from + 9));
+        }
+    }
+
+    /**
+     * Returns the index after the <code>Z</code>, <code>+hh:mm</code> or
+     * <code>+hhmm</code> time-zone offset at <code>from</code>, or -1 if
+     * there is none.
+     */
+    final int tzdEnd(CharSequence literal, int from, int end) {
+        if (from >= end) {
+            return -1;
+        }
+        char c = literal.charAt(from);
+        if (c == 'Z') {
+            return from + 1;
+        }
+        if ((c != '+' && c != '-') || !twoDigitsAt(literal, from + 1, end)) {
+            return -1;
+        }
+        int i = from + 3;
+        if (i < end && literal.charAt(i) == ':') {
+            i++;
+        }
+        return twoDigitsAt(literal, i, end) ? i + 2 : -1;
+    }
+
+    /**
+     * Range-checks a time-zone offset found by <code>tzdEnd</code>.
+     */
+    final void checkTzd(CharSequence literal, int from, int to)
+            throws DatatypeException {
+        char sign = literal.charAt(from);
+        if (sign == 'Z') {
+            return;
+        }
+        int hours = twoDigits(literal, from + 1);
+        checkTzd(sign == '-' ? -hours : hours, twoDigits(literal, to - 2),
+                sign == '-');
+    }
+
+    /**
+     * Returns the index after the <code>yyyy-mm-dd</code> date at
+     * <code>from</code>, or -1 if there is none. The year has at least four
+     * digits.
+     */
+    final int dateEnd(CharSequence literal, int from, int end) {
+        int yearEnd = digitsEnd(literal, from, end);
+        if (yearEnd - from < 4 || yearEnd + 5 >= end
+                || literal.charAt(yearEnd) != '-'
+                || !twoDigitsAt(literal, yearEnd + 1, end)
+                || literal.charAt(yearEnd + 3) != '-'
+                || !twoDigitsAt(literal, yearEnd + 4, end)) {
+            return -1;
+        }
+        return yearEnd + 6;
+    }
+
+    /**
+     * Range-checks a date found by <code>dateEnd</code>.
+     */
+    final void checkDate(CharSequence literal, int from, int to)
+            throws DatatypeException {
+        int year = digitsValue(literal, from, to - 6);
+        if (year == -1) {
+            throw newDatatypeException("Year, month, or day out of range.");
+        }
+        checkDate(year, twoDigits(literal, to - 5), twoDigits(literal, to - 2));
+    }
+
+    /**
+     * Returns the index after the <code>yyyy-mm-dd</code> date, the
+     * <code>T</code> or space and the time at <code>from</code>, or -1.
+     */
+    final int dateTimeEnd(CharSequence literal, int from, int end,
+            int maxFraction) {
+        int i = dateEnd(literal, from, end);
+        if (i == -1 || i >= end
+                || (literal.charAt(i) != 'T' && literal.charAt(i) != ' ')) {
+            return -1;
+        }
+        return timeEnd(literal, i + 1, end, maxFraction);
+    }
+
+    /**
+     * Range-checks the year and month of a year-month string starting at
+     * <code>from</code> whose year ends at <code>yearEnd</code>.
+     */
+    final void checkMonth(CharSequence literal, int from, int yearEnd)
+            throws DatatypeException {
+        int year = digitsValue(literal, from, yearEnd);
+        if (year == -1) {
+            throw newDatatypeException("Year or month out of range.");
+        }
+        checkMonth(year, twoDigits(literal, yearEnd + 1));
+    }
+
+    final DatatypeException newFormatException() {
+        return newDatatypeException(
+                "The literal did not satisfy the " + getName() + " format.");
+    }
+
     protected abstract Pattern getPattern();
 
     @Override
@@ -376,8 +567,7 @@ abstract class AbstractDatetime extends AbstractDatatype {
                 return;
             }
         } else {
-            throw newDatatypeException(
-                    "The literal did not satisfy the " + getName() + " format.");
+            throw newFormatException();
         }
     }
 
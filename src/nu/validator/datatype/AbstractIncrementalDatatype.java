@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.datatype;
+
+import org.relaxng.datatype.DatatypeException;
+import org.relaxng.datatype.DatatypeStreamingValidator;
+import org.relaxng.datatype.ValidationContext;
+
+/**
+ * Superclass for datatypes that check a value one character at a time.
+ * Their streaming validators check text content as it arrives, in constant
+ * memory, instead of buffering it all the way
+ * <code>DatatypeStreamingValidatorImpl</code> does.
+ * 
+ * <p>Subclasses implement <code>newScan()</code>; <code>checkValid()</code>
+ * runs the same scan over a whole literal.
+ */
+public abstract class AbstractIncrementalDatatype extends AbstractDatatype {
+
+    /**
+     * The state of checking one value.
+     */
+    protected interface Scan {
+
+        /**
+         * Consumes the next character.
+         * 
+         * @throws DatatypeException
+         *             if the value is already known to be invalid
+         */
+        void next(char c) throws DatatypeException;
+
+        /**
+         * Reports any error that only shows at the end of the value. Must
+         * not change the state, since a streaming validator may be asked
+         * more than once.
+         */
+        void end() throws DatatypeException;
+    }
+
+    AbstractIncrementalDatatype() {
+        super();
+    }
+
+    /**
+     * Returns a scan positioned at the start of a value.
+     */
+    protected abstract Scan newScan();
+
+    @Override
+    public void checkValid(CharSequence literal) throws DatatypeException {
+        Scan scan = newScan();
+        for (int i = 0; i < literal.length(); i++) {
+            scan.next(literal.charAt(i));
+        }
+        scan.end();
+    }
+
+    @Override
+    public DatatypeStreamingValidator createStreamingValidator(
+            ValidationContext context) {
+        final Scan scan = newScan();
+        return new DatatypeStreamingValidator() {
+
+            private DatatypeException error;
+
+            @Override
+            public void addCharacters(char[] buf, int start, int len) {
+                if (error != null) {
+                    return;
+                }
+                try {
+                    for (int i = start; i < start + len; i++) {
+                        scan.next(buf[i]);
+                    }
+                } catch (DatatypeException e) {
+                    error = e;
+                }
+            }
+
+            @Override
+            public void checkValid() throws DatatypeException {
+                if (error != null) {
+                    throw error;
+                }
+                scan.end();
+            }
+
+            @Override
+            public boolean isValid() {
+                try {
+                    checkValid();
+                    return true;
+                } catch (DatatypeException e) {
+                    return false;
+                }
+            }
+
+        };
+    }
+}
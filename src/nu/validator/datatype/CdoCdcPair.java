@@ -24,7 +24,7 @@ package nu.validator.datatype;
 
 import org.relaxng.datatype.DatatypeException;
 
-public class CdoCdcPair extends AbstractDatatype {
+public class CdoCdcPair extends AbstractIncrementalDatatype {
 
     private enum State {
         DATA, LESS_THAN_SIGN, LESS_THAN_SIGN_BANG, LESS_THAN_SIGN_BANG_HYPHEN, HAS_CDO, HAS_CDO_AND_HYPHEN, HAS_CDO_AND_DOUBLE_HYPHEN
@@ -39,72 +39,86 @@ public class CdoCdcPair extends AbstractDatatype {
         super();
     }
 
-    @Override
-    public void checkValid(CharSequence literal) throws DatatypeException {
-        State state = State.DATA;
-        for (int i = 0; i < literal.length(); i++) {
-            char c = literal.charAt(i);
+    /**
+     * Follows <code>&lt;!--</code> and <code>--&gt;</code> through the
+     * content.
+     */
+    final class CdoCdcScan implements Scan {
+
+        private State state = State.DATA;
+
+        @Override
+        public void next(char c) {
             switch (state) {
                 case DATA:
                     if ('<' == c) {
                         state = State.LESS_THAN_SIGN;
-                        continue;
+                        return;
                     }
-                    continue;
+                    return;
                 case LESS_THAN_SIGN:
                     if ('!' == c) {
                         state = State.LESS_THAN_SIGN_BANG;
-                        continue;
+                        return;
                     }
                     state = State.DATA;
-                    continue;
+                    return;
                 case LESS_THAN_SIGN_BANG:
                     if ('-' == c) {
                         state = State.LESS_THAN_SIGN_BANG_HYPHEN;
-                        continue;
+                        return;
                     }
                     state = State.DATA;
-                    continue;
+                    return;
                 case LESS_THAN_SIGN_BANG_HYPHEN:
                     if ('-' == c) {
                         state = State.HAS_CDO;
-                        continue;
+                        return;
                     }
                     state = State.DATA;
-                    continue;
+                    return;
                 case HAS_CDO:
                     if ('-' == c) {
                         state = State.HAS_CDO_AND_HYPHEN;
-                        continue;
+                        return;
                     }
-                    continue;
+                    return;
                 case HAS_CDO_AND_HYPHEN:
                     if ('-' == c) {
                         state = State.HAS_CDO_AND_DOUBLE_HYPHEN;
-                        continue;
+                        return;
                     }
                     state = State.HAS_CDO;
-                    continue;
+                    return;
                 case HAS_CDO_AND_DOUBLE_HYPHEN:
                     if ('>' == c) {
                         state = State.DATA;
-                        continue;
+                        return;
                     } else if ('-' == c) {
-                        continue;
+                        return;
                     }
                     state = State.HAS_CDO;
-                    continue;
+                    return;
                 default:
                     assert false : state;
             }
         }
-        if (state == State.HAS_CDO) {
-            throw newDatatypeException(
-                    "Content contains the character sequence \u201c<!--\u201d without"
-                            + " a later occurrence of the character sequence \u201c-->\u201d.");
+
+        @Override
+        public void end() throws DatatypeException {
+            if (state == State.HAS_CDO) {
+                throw newDatatypeException(
+                        "Content contains the character sequence \u201c<!--\u201d without"
+                                + " a later occurrence of the character sequence \u201c-->\u201d.");
+            }
         }
     }
 
+    @Override
+    protected Scan newScan() {
+        return new CdoCdcScan();
+    }
+
     @Override
     public String getName() {
         return "text content with CDO-CDC pair";
@@ -25,6 +25,8 @@ package nu.validator.datatype;
 
 import java.util.regex.Pattern;
 
+import org.relaxng.datatype.DatatypeException;
+
 /**
  * This datatype shall accept strings that conform to the format specified for 
  * <a href='http://whatwg.org/specs/web-forms/current-work/#date'><code>date</code></a> 
@@ -57,6 +59,16 @@ public final class Date extends AbstractDatetime {
         super();
     }
 
+    @Override
+    public void checkValid(CharSequence literal)
+            throws DatatypeException {
+        int end = literal.length();
+        if (dateEnd(literal, 0, end) != end) {
+            throw newFormatException();
+        }
+        checkDate(literal, 0, end);
+    }
+
     /**
      * Returns the regexp for this datatype.
      * 
@@ -24,6 +24,8 @@ package nu.validator.datatype;
 
 import java.util.regex.Pattern;
 
+import org.relaxng.datatype.DatatypeException;
+
 /**
  * This datatype shall accept strings that conform to the format specified for
  * <a href='http://whatwg.org/specs/web-forms/current-work/#datetime-local'><code>datetime-local</code></a>
@@ -53,6 +55,19 @@ public final class DatetimeLocal extends AbstractDatetime {
         super();
     }
     
+    @Override
+    public void checkValid(CharSequence literal)
+            throws DatatypeException {
+        int end = literal.length();
+        if (dateTimeEnd(literal, 0, end, 3) != end) {
+            throw newFormatException();
+        }
+        // The groups of THE_PATTERN line up with the year-month groups of
+        // AbstractDatetime#checkValid, so only the year and month are
+        // range-checked.
+        checkMonth(literal, 0, digitsEnd(literal, 0, end));
+    }
+
     /**
      * Returns the regexp for this datatype.
      * 
@@ -25,6 +25,8 @@ package nu.validator.datatype;
 
 import java.util.regex.Pattern;
 
+import org.relaxng.datatype.DatatypeException;
+
 /**
  * This datatype shall accept strings that conform to the format specified for 
  * <a href='http://whatwg.org/specs/web-apps/current-work/#datetime'><code>datetime</code></a> 
@@ -62,6 +64,26 @@ public final class DatetimeTz extends AbstractDatetime {
         super();
     }
 
+    @Override
+    public void checkValid(CharSequence literal)
+            throws DatatypeException {
+        int end = literal.length();
+        int afterDate = dateEnd(literal, 0, end);
+        if (afterDate == -1 || afterDate >= end
+                || (literal.charAt(afterDate) != 'T'
+                        && literal.charAt(afterDate) != ' ')) {
+            throw newFormatException();
+        }
+        int afterTime = timeEnd(literal, afterDate + 1, end,
+                Integer.MAX_VALUE);
+        if (afterTime == -1 || tzdEnd(literal, afterTime, end) != end) {
+            throw newFormatException();
+        }
+        checkDate(literal, 0, afterDate);
+        checkTime(literal, afterDate + 1, afterTime);
+        checkTzd(literal, afterTime, end);
+    }
+
     /**
      * Returns the regexp for this datatype.
      * 
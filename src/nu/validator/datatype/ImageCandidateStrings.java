@@ -22,9 +22,7 @@
 
 package nu.validator.datatype;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
 import org.relaxng.datatype.DatatypeException;
 
@@ -54,236 +52,431 @@ public class ImageCandidateStrings extends AbstractDatatype {
         super();
     }
 
+    /**
+     * The candidates seen so far. URLs are kept as ranges of the literal and
+     * only turned into strings for error messages.
+     */
+    private static final class Candidates {
+
+        private int[] urlStarts = new int[8];
+
+        private int[] urlEnds = new int[8];
+
+        private int urlCount;
+
+        private int[] widths = new int[8];
+
+        private int widthCount;
+
+        private float[] denses = new float[8];
+
+        private int densityCount;
+
+        private final FirstIndex widthIndex = new FirstIndex();
+
+        private final FirstIndex densityIndex = new FirstIndex();
+
+        void addUrl(int start, int end) {
+            if (urlCount == urlStarts.length) {
+                urlStarts = Arrays.copyOf(urlStarts, urlCount * 2);
+                urlEnds = Arrays.copyOf(urlEnds, urlCount * 2);
+            }
+            urlStarts[urlCount] = start;
+            urlEnds[urlCount] = end;
+            urlCount++;
+        }
+
+        CharSequence url(CharSequence literal, int ix) {
+            if (ix >= urlCount) {
+                throw new IndexOutOfBoundsException(Integer.toString(ix));
+            }
+            return literal.subSequence(urlStarts[ix], urlEnds[ix]);
+        }
+
+        void addWidth(int width) {
+            if (widthCount == widths.length) {
+                widths = Arrays.copyOf(widths, widthCount * 2);
+            }
+            if (width != NO_WIDTH) {
+                widthIndex.putIfAbsent(width, widthCount);
+            }
+            widths[widthCount++] = width;
+        }
+
+        void addDensity(float density) {
+            if (densityCount == denses.length) {
+                denses = Arrays.copyOf(denses, densityCount * 2);
+            }
+            if (density != NO_DENSITY) {
+                densityIndex.putIfAbsent(Float.floatToIntBits(density),
+                        densityCount);
+            }
+            denses[densityCount++] = density;
+        }
+
+        /**
+         * Returns the index of the first candidate with the given width, or
+         * -1.
+         */
+        int indexOfWidth(int width) {
+            return widthIndex.get(width);
+        }
+
+        /**
+         * Returns the index of the first candidate with the given density,
+         * or -1.
+         */
+        int indexOfDensity(float density) {
+            return densityIndex.get(Float.floatToIntBits(density));
+        }
+    }
+
+    /**
+     * An open-addressing map from <code>int</code> keys to the index at which
+     * each key was first added, for finding duplicate descriptors without
+     * boxing or a linear search.
+     */
+    private static final class FirstIndex {
+
+        private int[] keys;
+
+        /**
+         * Index plus one; zero marks a free slot.
+         */
+        private int[] indexes;
+
+        private int size;
+
+        int get(int key) {
+            if (keys == null) {
+                return -1;
+            }
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask;; slot = (slot + 1) & mask) {
+                if (indexes[slot] == 0) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return indexes[slot] - 1;
+                }
+            }
+        }
+
+        void putIfAbsent(int key, int index) {
+            if (keys == null) {
+                keys = new int[16];
+                indexes = new int[16];
+            } else if (2 * (size + 1) > keys.length) {
+                int[] oldKeys = keys;
+                int[] oldIndexes = indexes;
+                keys = new int[oldKeys.length * 2];
+                indexes = new int[oldKeys.length * 2];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldIndexes[i] != 0) {
+                        putIfAbsent(oldKeys[i], oldIndexes[i] - 1);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask;; slot = (slot + 1) & mask) {
+                if (indexes[slot] == 0) {
+                    keys[slot] = key;
+                    indexes[slot] = index + 1;
+                    size++;
+                    return;
+                }
+                if (keys[slot] == key) {
+                    return;
+                }
+            }
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
     @Override
     public void checkValid(CharSequence literal) throws DatatypeException {
         if (literal.length() == 0) {
             err("Must contain one or more image candidate strings.");
         }
-        List<String> urls = new ArrayList<>();
-        List<Integer> widths = new ArrayList<>();
-        List<Float> denses = new ArrayList<>();
-        StringBuilder url = new StringBuilder();
-        StringBuilder tok = new StringBuilder();
-        StringBuilder extract = new StringBuilder();
+        // The URL and the descriptor token being collected are ranges of the
+        // literal, and the text quoted in error messages ("extract") is the
+        // literal up to and including the current character; neither is
+        // copied unless there is an error to report.
+        Candidates candidates = new Candidates();
+        int urlStart = 0;
+        int tokStart = -1;
         boolean eof = false;
         boolean waitingForCandidate = true;
         int ix = 0;
         State state = State.SPLITTING_LOOP;
         for (int i = 0; i < literal.length(); i++) {
             char c = literal.charAt(i);
-            extract.append(c);
             eof = i == literal.length() - 1;
             switch (state) {
                 case SPLITTING_LOOP:
                     if (isWhitespace(c)) {
                         continue;
                     } else if (',' == c) {
-                        if (urls.isEmpty()) {
+                        if (candidates.urlCount == 0) {
                             err("Starts with empty image-candidate string.");
                         }
                         if (waitingForCandidate) {
-                            errEmpty(extract);
+                            errEmpty(literal.subSequence(0, i + 1));
                         }
-                        commaHandler(extract);
+                        endsWithComma(literal, 0, i + 1);
                         waitingForCandidate = true;
-                        url.setLength(0);
                         continue;
                     }
+                    urlStart = i;
                     // fall through
                 case URL:
                     waitingForCandidate = false;
                     if (eof || isWhitespace(c)) {
-                        if (!isWhitespace(c)) {
-                            url.append(c);
-                        }
+                        int urlEnd = isWhitespace(c) ? i : i + 1;
                         state = State.COLLECTING_DESCRIPTOR_TOKENS;
-                        if (endsWithComma(url)) {
-                            url.deleteCharAt(url.length() - 1);
+                        if (endsWithComma(literal, urlStart, urlEnd)) {
+                            urlEnd--;
                             waitingForCandidate = true;
                             state = State.SPLITTING_LOOP;
                         }
+                        CharSequence url = literal.subSequence(urlStart,
+                                urlEnd);
                         IC_URL.checkValid(url);
-                        urls.add(url.toString());
-                        url.setLength(0);
-                        tok.setLength(0);
+                        candidates.addUrl(urlStart, urlEnd);
+                        tokStart = -1;
                         if (eof || waitingForCandidate) {
-                            adjustWidths(urls, widths, ix);
-                            adjustDenses(urls, denses, ix);
+                            adjustWidths(literal, candidates, ix);
+                            adjustDenses(literal, candidates, ix);
                             ix++;
                         }
                         continue;
                     } else {
-                        url.append(c);
                         state = State.URL;
                         continue;
                     }
                 case COLLECTING_DESCRIPTOR_TOKENS: // spec labels this "Start"
                     if (isWhitespace(c)) {
-                        checkToken(tok, extract, urls, widths, denses, ix);
-                        tok.setLength(0);
+                        checkToken(literal, tokStart, i, i + 1, candidates,
+                                ix);
+                        tokStart = -1;
                         state = State.AFTER_TOKEN;
                         continue;
                     } else if (',' == c) {
-                        checkToken(tok, extract, urls, widths, denses, ix);
+                        checkToken(literal, tokStart, i, i + 1, candidates,
+                                ix);
                         ix++;
                         waitingForCandidate = true;
                         state = State.SPLITTING_LOOP;
                         continue;
-                    } else if ('(' == c) {
-                        tok.append(c);
+                    }
+                    if (tokStart == -1) {
+                        tokStart = i;
+                    }
+                    if ('(' == c) {
                         state = State.IN_PARENS;
                         continue;
                     } else if (eof) {
-                        tok.append(c);
-                        checkToken(tok, extract, urls, widths, denses, ix);
+                        checkToken(literal, tokStart, i + 1, i + 1,
+                                candidates, ix);
                         break;
                     } else {
-                        tok.append(c);
                         continue;
                     }
                 case IN_PARENS:
                     if (')' == c) {
-                        tok.append(c);
                         if (eof) {
-                            checkToken(tok, extract, urls, widths, denses, ix);
+                            checkToken(literal, tokStart, i + 1, i + 1,
+                                    candidates, ix);
                             break;
                         }
                         state = State.COLLECTING_DESCRIPTOR_TOKENS;
+                        continue;
                     } else if (eof) {
-                        errNoRightParen(tok, extract);
+                        errNoRightParen(literal.subSequence(tokStart, i),
+                                literal.subSequence(0, i + 1));
                     } else {
-                        tok.append(c);
                         continue;
                     }
                 case AFTER_TOKEN:
                     if (isWhitespace(c)) {
-                        if (eof) {
-                            checkToken(tok, extract, urls, widths, denses, ix);
-                            break;
-                        }
                         continue;
                     } else {
                         i--;
-                        extract.setLength(extract.length() - 1);
                         state = State.COLLECTING_DESCRIPTOR_TOKENS;
                     }
             }
         }
-        checkWidths(widths, urls);
+        checkWidths(literal, candidates);
         if (waitingForCandidate) {
             err("Ends with empty image-candidate string.");
         }
     }
 
-    private int commaHandler(CharSequence cs) throws DatatypeException {
-        if (',' != cs.charAt(cs.length() - 1)) {
-            return cs.length();
+    /**
+     * Returns whether the text from <code>from</code> to <code>to</code> ends
+     * with a comma, reporting an empty image-candidate string if it ends with
+     * two.
+     */
+    private boolean endsWithComma(CharSequence literal, int from, int to)
+            throws DatatypeException {
+        if (',' != literal.charAt(to - 1)) {
+            return false;
         }
-        for (int i = cs.length() - 2; i > 0; i--) {
-            if (',' != cs.charAt(i)) {
-                break;
-            }
-            errEmpty(cs);
+        if (to - from > 2 && ',' == literal.charAt(to - 2)) {
+            errEmpty(literal.subSequence(from, to));
         }
-        return cs.length() - 1;
-    }
-
-    private boolean endsWithComma(CharSequence cs) throws DatatypeException {
-        int end = commaHandler(cs);
-        return end == cs.length() - 1;
+        return true;
     }
 
-    private void checkToken(StringBuilder tok, CharSequence extract,
-            List<String> urls, List<Integer> widths, List<Float> denses, int ix)
+    /**
+     * Checks the descriptor token from <code>tokStart</code> to
+     * <code>tokEnd</code>; <code>tokStart</code> is -1 if there is none.
+     */
+    private void checkToken(CharSequence literal, int tokStart, int tokEnd,
+            int extractEnd, Candidates candidates, int ix)
                     throws DatatypeException {
-        if (tok.length() > 0) {
-            if (widths.size() > ix || denses.size() > ix) {
-                errExtraDescriptor(tok, extract);
-            }
-            char first = tok.charAt(0);
-            char last = tok.charAt(tok.length() - 1);
-            if (!('w' == last) && widthRequired()) {
-                errNotWidthDescriptor(tok, extract);
-            }
-            if (!('w' == last || 'x' == last)) {
-                errNotSupportedFormat(tok, extract);
+        if (tokStart == -1) {
+            return;
+        }
+        if (candidates.widthCount > ix || candidates.densityCount > ix) {
+            errExtraDescriptor(literal.subSequence(tokStart, tokEnd),
+                    literal.subSequence(0, extractEnd));
+        }
+        char first = literal.charAt(tokStart);
+        char last = literal.charAt(tokEnd - 1);
+        if (!('w' == last) && widthRequired()) {
+            errNotWidthDescriptor(literal.subSequence(tokStart, tokEnd),
+                    literal.subSequence(0, extractEnd));
+        }
+        if (!('w' == last || 'x' == last)) {
+            errNotSupportedFormat(literal.subSequence(tokStart, tokEnd),
+                    literal.subSequence(0, extractEnd));
+        }
+        int numEnd = tokEnd - 1;
+        if ('-' == first) {
+            errNotNumberGreaterThanZero(literal.subSequence(tokStart, numEnd),
+                    literal.subSequence(0, extractEnd));
+        }
+        if ('+' == first) {
+            errLeadingPlusSign(literal.subSequence(tokStart, numEnd),
+                    literal.subSequence(0, extractEnd));
+        }
+        if ('w' == last) {
+            // see nu.validator.checker.schematronequiv.Assertions
+            System.setProperty(
+                    "nu.validator.checker.imageCandidateString.hasWidth",
+                    "1");
+            int width = parseWidth(literal, tokStart, numEnd);
+            if (width == -1) {
+                errNotInteger(literal.subSequence(tokStart, numEnd).toString(),
+                        literal.subSequence(0, extractEnd));
             }
-            String num = tok.subSequence(0, tok.length() - 1).toString();
-            if ('-' == first) {
-                errNotNumberGreaterThanZero(num, extract);
+            if (width == 0) {
+                errNotNumberGreaterThanZero(
+                        literal.subSequence(tokStart, numEnd),
+                        literal.subSequence(0, extractEnd));
             }
-            if ('+' == first) {
-                errLeadingPlusSign(num, extract);
+            int other = candidates.indexOfWidth(width);
+            if (other != -1) {
+                errSameWidth(candidates.url(literal, ix),
+                        candidates.url(literal, other));
             }
-            if ('w' == last) {
-                // see nu.validator.checker.schematronequiv.Assertions
-                System.setProperty(
-                        "nu.validator.checker.imageCandidateString.hasWidth",
-                        "1");
+            candidates.addWidth(width);
+            candidates.addDensity(NO_DENSITY);
+        }
+        if ('x' == last) {
+            String num = literal.subSequence(tokStart, numEnd).toString();
+            try {
                 try {
-                    int width = Integer.parseInt(num, 10);
-                    if (width <= 0) {
-                        errNotNumberGreaterThanZero(num, extract);
-                    }
-                    if (!widths.isEmpty() && widths.contains(width)) {
-                        errSameWidth(urls.get(ix),
-                                urls.get(widths.indexOf(width)));
-                    }
-                    widths.add(width);
-                    denses.add(NO_DENSITY);
-                } catch (NumberFormatException e) {
-                    errNotInteger(num, extract);
+                    FLOAT.checkValid(num);
+                } catch (DatatypeException e) {
+                    errFromOtherDatatype(e.getMessage(),
+                            literal.subSequence(0, extractEnd));
                 }
-            }
-            if ('x' == last) {
-                try {
-                    try {
-                        FLOAT.checkValid(num);
-                    } catch (DatatypeException e) {
-                        errFromOtherDatatype(e.getMessage(), extract);
-                    }
-                    float density = Float.parseFloat(num);
-                    if (!denses.isEmpty() && denses.contains(density)) {
-                        errSameDensity(urls.get(ix),
-                                urls.get(denses.indexOf(density)));
-                    }
-                    denses.add(density);
-                    widths.add(NO_WIDTH);
-                } catch (NumberFormatException e) {
-                    errNotFloatingPointNumber(num, extract);
+                float density = Float.parseFloat(num);
+                int other = candidates.indexOfDensity(density);
+                if (other != -1) {
+                    errSameDensity(candidates.url(literal, ix),
+                            candidates.url(literal, other));
                 }
+                candidates.addDensity(density);
+                candidates.addWidth(NO_WIDTH);
+            } catch (NumberFormatException e) {
+                errNotFloatingPointNumber(num,
+                        literal.subSequence(0, extractEnd));
             }
         }
     }
 
-    private void checkWidths(List<Integer> widths, List<String> urls)
-            throws DatatypeException {
-        if (widths.contains(NO_WIDTH)
-                && Collections.frequency(widths, NO_WIDTH) != widths.size()) {
-            errNoWidth(urls.get(widths.indexOf(NO_WIDTH)),
-                    urls.get(widths.indexOf(Collections.max(widths))));
+    /**
+     * Parses a width the way <code>Integer.parseInt</code> does for a string
+     * without a sign, returning -1 where that would throw.
+     */
+    private static int parseWidth(CharSequence literal, int from, int to) {
+        if (from == to) {
+            return -1;
         }
+        int width = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(literal.charAt(i), 10);
+            if (digit < 0 || width > (Integer.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            width = width * 10 + digit;
+        }
+        return width;
     }
 
-    private void adjustWidths(List<String> urls, List<Integer> widths, int ix)
+    private void checkWidths(CharSequence literal, Candidates candidates)
             throws DatatypeException {
-        if (widths.size() == ix || (widths.size() != 0 && widths.size() > ix
-                && widths.get(ix) == NO_WIDTH)) {
+        int firstNoWidth = -1;
+        int noWidthCount = 0;
+        int widest = -1;
+        for (int i = 0; i < candidates.widthCount; i++) {
+            int width = candidates.widths[i];
+            if (width == NO_WIDTH) {
+                if (firstNoWidth == -1) {
+                    firstNoWidth = i;
+                }
+                noWidthCount++;
+            }
+            if (widest == -1 || width > candidates.widths[widest]) {
+                widest = i;
+            }
+        }
+        if (firstNoWidth != -1 && noWidthCount != candidates.widthCount) {
+            errNoWidth(candidates.url(literal, firstNoWidth),
+                    candidates.url(literal, widest));
+        }
+    }
+
+    private void adjustWidths(CharSequence literal, Candidates candidates,
+            int ix) throws DatatypeException {
+        int size = candidates.widthCount;
+        if (size == ix || (size != 0 && size > ix
+                && candidates.widths[ix] == NO_WIDTH)) {
             if (widthRequired()) {
-                errNoWidth(urls.get(ix), null);
-            } else if (widths.size() == ix) {
-                widths.add(NO_WIDTH);
+                errNoWidth(candidates.url(literal, ix), null);
+            } else if (size == ix) {
+                candidates.addWidth(NO_WIDTH);
             }
         }
     }
 
-    private void adjustDenses(List<String> urls, List<Float> denses, int ix)
-            throws DatatypeException {
-        if (denses.size() == ix) {
-            if (denses.indexOf(ONE) != -1) {
-                errSameDensity(urls.get(ix), urls.get(denses.indexOf(ONE)));
+    private void adjustDenses(CharSequence literal, Candidates candidates,
+            int ix) throws DatatypeException {
+        if (candidates.densityCount == ix) {
+            int other = candidates.indexOfDensity(ONE);
+            if (other != -1) {
+                errSameDensity(candidates.url(literal, ix),
+                        candidates.url(literal, other));
             }
-            denses.add(ONE);
+            candidates.addDensity(ONE);
         }
     }
 
@@ -22,9 +22,6 @@
 
 package nu.validator.datatype;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import org.relaxng.datatype.DatatypeException;
 
 import com.shapesecurity.salvation.data.Base64Value;
@@ -36,9 +33,6 @@ public final class IntegrityMetadata extends AbstractDatatype {
      */
     public static final IntegrityMetadata THE_INSTANCE = new IntegrityMetadata();
 
-    private static final Pattern THE_PATTERN = Pattern.compile(
-            "^(?:sha256|sha384|sha512)-(.+$)", Pattern.CASE_INSENSITIVE);
-
     private IntegrityMetadata() {
         super();
     }
@@ -48,48 +42,66 @@ public final class IntegrityMetadata extends AbstractDatatype {
 
     @Override
     public void checkValid(CharSequence literal) throws DatatypeException {
-        StringBuilder builder = new StringBuilder();
         int len = literal.length();
-        for (int i = 0; i < len; i++) {
-            char c = literal.charAt(i);
-            if (isWhitespace(c) && builder.length() > 0) {
-                checkToken(literal, builder, i);
-                builder.setLength(0);
-            } else if (!isWhitespace(c)) {
-                builder.append(c);
+        int i = 0;
+        while (i < len) {
+            if (isWhitespace(literal.charAt(i))) {
+                i++;
+                continue;
             }
-        }
-        if (builder.length() > 0) {
-            checkToken(literal, builder, len);
+            int start = i;
+            while (i < len && !isWhitespace(literal.charAt(i))) {
+                i++;
+            }
+            checkToken(literal, start, i);
         }
     }
 
-    private void checkToken(CharSequence literal, StringBuilder builder, int i)
+    /**
+     * Checks the token that ends just before <code>i</code>.
+     */
+    private void checkToken(CharSequence literal, int start, int i)
             throws DatatypeException {
-        String token = builder.toString();
-        Matcher m = getPattern().matcher(token);
-        if (m.matches()) {
-            try {
-                new Base64Value(m.group(1));
-            } catch (IllegalArgumentException e) {
-                throw newDatatypeException(i - 1, e.getMessage(), WARN);
-            }
-        } else {
+        if (!isHashPrefix(literal, start, i)) {
             throw newDatatypeException(i - 1,
                     "Values must start with"
                             + " \u201csha256-\u201d or \u201csha384-\u201d"
                             + " or \u201csha512-\u201d.");
         }
+        try {
+            new Base64Value(literal.subSequence(start + 7, i).toString());
+        } catch (IllegalArgumentException e) {
+            throw newDatatypeException(i - 1, e.getMessage(), WARN);
+        }
     }
 
     /**
-     * Returns the regexp for this datatype.
-     *
-     * @return the base regexp for this datatype
-     * @see nu.validator.datatype.AbstractDatetime#getPattern()
+     * Returns whether the token is a hash algorithm name (in any ASCII
+     * case), a hyphen and at least one character that is not a line
+     * terminator.
      */
-    protected Pattern getPattern() {
-        return THE_PATTERN;
+    private boolean isHashPrefix(CharSequence literal, int start, int i) {
+        if (i - start < 8 || literal.charAt(start + 6) != '-'
+                || toAsciiLowerCase(literal.charAt(start)) != 's'
+                || toAsciiLowerCase(literal.charAt(start + 1)) != 'h'
+                || toAsciiLowerCase(literal.charAt(start + 2)) != 'a') {
+            return false;
+        }
+        char c1 = literal.charAt(start + 3);
+        char c2 = literal.charAt(start + 4);
+        char c3 = literal.charAt(start + 5);
+        if (!((c1 == '2' && c2 == '5' && c3 == '6')
+                || (c1 == '3' && c2 == '8' && c3 == '4')
+                || (c1 == '5' && c2 == '1' && c3 == '2'))) {
+            return false;
+        }
+        for (int j = start + 7; j < i; j++) {
+            char c = literal.charAt(j);
+            if (c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
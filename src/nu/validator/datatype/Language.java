@@ -33,6 +33,7 @@ import java.util.regex.Pattern;
 
 import org.relaxng.datatype.DatatypeException;
 import nu.validator.datatype.data.LanguageData;
+import nu.validator.localentities.StartupSnapshot;
 
 /**
  *
@@ -79,7 +80,7 @@ public final class Language extends AbstractDatatype {
 
     static {
         try {
-            LanguageData data = new LanguageData();
+            LanguageData data = StartupSnapshot.loadLanguageData();
             languages = data.getLanguages();
             extlangs = data.getExtlangs();
             scripts = data.getScripts();
@@ -23,6 +23,8 @@
 package nu.validator.datatype;
 
 import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.relaxng.datatype.DatatypeException;
 import org.w3c.css.css.StyleSheetParser;
@@ -31,6 +33,17 @@ import org.w3c.css.parser.CssParseException;
 import org.w3c.css.parser.Errors;
 import org.w3c.css.util.ApplContext;
 
+/**
+ * Checks media queries (and, in <code>MediaCondition</code>, media
+ * conditions) with the CSS parser.
+ *
+ * <p>A page or site uses only a handful of distinct media strings, so the
+ * outcome of the most recent checks is cached; each string that is not
+ * cached is parsed in a fresh parser context. The
+ * <code>nu.validator.datatype.media-query.cache-size</code> system
+ * property sets the number of strings remembered (1024 by default;
+ * <code>0</code> disables the cache).
+ */
 public class MediaQuery extends AbstractDatatype {
 
     /**
@@ -38,12 +51,71 @@ public class MediaQuery extends AbstractDatatype {
      */
     public static final MediaQuery THE_INSTANCE = new MediaQuery();
 
+    private static final int CACHE_SIZE = Integer.getInteger(
+            "nu.validator.datatype.media-query.cache-size", 1024);
+
+    /**
+     * Longer strings are checked every time rather than cached.
+     */
+    private static final int MAX_CACHED_LENGTH = 512;
+
+    /**
+     * The outcome of a check that found no error. Error messages are never
+     * empty.
+     */
+    private static final String VALID = "";
+
+    /**
+     * Error messages (or <code>VALID</code>) of recently checked strings, in
+     * access order. Each check parses with a context of its own, so the
+     * outcome depends on the string alone: an <code>@charset</code> or
+     * <code>@namespace</code> rule smuggled into one string cannot affect
+     * the next.
+     */
+    private final Map<String, String> results = new LinkedHashMap<String, String>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
     protected MediaQuery() {
         super();
     }
 
     @Override
     public void checkValid(CharSequence literal) throws DatatypeException {
+        String literalString = literal.toString();
+        boolean cacheable = CACHE_SIZE > 0
+                && literalString.length() <= MAX_CACHED_LENGTH;
+        String message = null;
+        if (cacheable) {
+            synchronized (results) {
+                message = results.get(literalString);
+            }
+        }
+        if (message == null) {
+            message = check(literalString);
+            if (cacheable) {
+                synchronized (results) {
+                    results.put(literalString, message);
+                }
+            }
+        }
+        if (!VALID.equals(message)) {
+            throw newDatatypeException(message);
+        }
+    }
+
+    /**
+     * Returns the message for the first error the CSS parser reports, or
+     * <code>VALID</code>.
+     */
+    private String check(String literalString) {
         ApplContext ac = new ApplContext("en");
         ac.setCssVersionAndProfile("css3svg");
         ac.setMedium("all");
@@ -52,7 +124,6 @@ public class MediaQuery extends AbstractDatatype {
         ac.setTreatCssHacksAsWarnings(true);
         ac.setWarningLevel(-1);
         ac.setFakeURL("file://localhost/StyleElement");
-        String literalString = literal.toString();
         String style;
         if (isMediaCondition()) {
             style = String.format("@media all and %s %s", literalString, "{}");
@@ -89,9 +160,10 @@ public class MediaQuery extends AbstractDatatype {
                 message = ex.getMessage();
             }
             if (!"".equals(message)) {
-                throw newDatatypeException(message);
+                return message;
             }
         }
+        return VALID;
     }
 
     protected boolean isMediaCondition() {
@@ -22,9 +22,6 @@
 
 package nu.validator.datatype;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import org.relaxng.datatype.DatatypeException;
 
 /**
@@ -40,11 +37,6 @@ public final class Month extends AbstractDatatype {
      */
     public static final Month THE_INSTANCE = new Month();
 
-    /**
-     * The rexexp for this datatype.
-     */
-    private static final Pattern THE_PATTERN = Pattern.compile("^([0-9]{4,})-([0-9]{2})$");
-
     /**
      * Constructor.
      */
@@ -52,11 +44,6 @@ public final class Month extends AbstractDatatype {
         super();
     }
 
-    private void checkMonth(String year, String month)
-            throws DatatypeException {
-        checkMonth(Integer.parseInt(year), Integer.parseInt(month));
-    }
-
     private void checkMonth(int year, int month)
             throws DatatypeException {
         if (year < 1) {
@@ -73,13 +60,24 @@ public final class Month extends AbstractDatatype {
     @Override
     public void checkValid(CharSequence literal)
             throws DatatypeException {
-        Matcher m = THE_PATTERN.matcher(literal);
-        if (m.matches()) {
-            checkMonth(m.group(1), m.group(2));
-        } else {
+        // ^([0-9]{4,})-([0-9]{2})$
+        int end = literal.length();
+        int yearEnd = 0;
+        while (yearEnd < end && isAsciiDigit(literal.charAt(yearEnd))) {
+            yearEnd++;
+        }
+        if (yearEnd < 4 || yearEnd + 3 != end
+                || literal.charAt(yearEnd) != '-'
+                || !isAsciiDigit(literal.charAt(yearEnd + 1))
+                || !isAsciiDigit(literal.charAt(yearEnd + 2))) {
             throw newDatatypeException(
                     "The literal did not satisfy the format for month.");
         }
+        int year = AbstractDatetime.digitsValue(literal, 0, yearEnd);
+        if (year == -1) {
+            throw newDatatypeException("Year or month out of range.");
+        }
+        checkMonth(year, AbstractDatetime.twoDigits(literal, yearEnd + 1));
     }
 
     @Override
@@ -39,27 +39,29 @@ public final class ScriptDocumentation extends CdoCdcPair {
         super();
     }
 
-    @Override
-    public void checkValid(CharSequence literal) throws DatatypeException {
-        State state = State.BEFORE_DOCUMENTATION;
-        for (int i = 0; i < literal.length(); i++) {
-            char c = literal.charAt(i);
+    /**
+     * Checks that the content is only comments and whitespace, and runs the
+     * CDO-CDC check alongside.
+     */
+    private final class DocumentationScan implements Scan {
+
+        private final CdoCdcScan cdoCdcScan = new CdoCdcScan();
+
+        private State state = State.BEFORE_DOCUMENTATION;
+
+        @Override
+        public void next(char c) throws DatatypeException {
+            cdoCdcScan.next(c);
             switch (state) {
                 case BEFORE_DOCUMENTATION:
                     switch (c) {
                         case ' ':
                         case '\t':
                         case '\n':
-                            continue;
+                            return;
                         case '/':
-                            if (i == literal.length() - 1) {
-                                throw newDatatypeException(
-                                        "Expected asterisk or slash but content"
-                                                + " ended with a single slash"
-                                                + " instead.");
-                            }
                             state = State.SLASH;
-                            continue;
+                            return;
                         default:
                             throw newDatatypeException(
                                     "Expected space, tab, newline, or slash but"
@@ -70,10 +72,10 @@ public final class ScriptDocumentation extends CdoCdcPair {
                     switch (c) {
                         case '*':
                             state = State.IN_COMMENT;
-                            continue;
+                            return;
                         case '/':
                             state = State.IN_LINE_COMMENT;
-                            continue;
+                            return;
                         default:
                             throw newDatatypeException(
                                     "Expected asterisk or slash but found \u201c"
@@ -83,41 +85,55 @@ public final class ScriptDocumentation extends CdoCdcPair {
                     switch (c) {
                         case '*':
                             state = State.STAR;
-                            continue;
+                            return;
                         default:
-                            continue;
+                            return;
                     }
                 case STAR:
                     switch (c) {
                         case '/':
                             state = State.BEFORE_DOCUMENTATION;
-                            continue;
+                            return;
                         default:
-                            continue;
+                            return;
                     }
                 case IN_LINE_COMMENT:
                     switch (c) {
                         case '\n':
                             state = State.BEFORE_DOCUMENTATION;
-                            continue;
+                            return;
                         default:
-                            continue;
+                            return;
                     }
                 default:
                     throw newDatatypeException("Content ended prematurely.");
             }
         }
-        if (state == State.IN_LINE_COMMENT) {
-            throw newDatatypeException("Content contains a line starting with"
-                    + " the character sequence \u201c//\u201d but not ending"
-                    + " with a newline.");
-        }
-        if (state == State.IN_COMMENT || state == State.STAR) {
-            throw newDatatypeException("Content contains the character"
-                    + " sequence \u201c/*\u201d without a later occurrence of"
-                    + " the character sequence \u201c*/\u201d.");
+
+        @Override
+        public void end() throws DatatypeException {
+            if (state == State.SLASH) {
+                throw newDatatypeException("Expected asterisk or slash but"
+                        + " content ended with a single slash instead.");
+            }
+            if (state == State.IN_LINE_COMMENT) {
+                throw newDatatypeException("Content contains a line starting"
+                        + " with the character sequence \u201c//\u201d but"
+                        + " not ending with a newline.");
+            }
+            if (state == State.IN_COMMENT || state == State.STAR) {
+                throw newDatatypeException("Content contains the character"
+                        + " sequence \u201c/*\u201d without a later"
+                        + " occurrence of the character sequence"
+                        + " \u201c*/\u201d.");
+            }
+            cdoCdcScan.end();
         }
-        super.checkValid(literal);
+    }
+
+    @Override
+    protected Scan newScan() {
+        return new DocumentationScan();
     }
 
     @Override
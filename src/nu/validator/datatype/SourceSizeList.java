@@ -77,100 +77,124 @@ public class SourceSizeList extends AbstractDatatype {
 
     @Override
     public void checkValid(CharSequence literal) throws DatatypeException {
-        if (literal.length() == 0) {
+        int length = literal.length();
+        if (length == 0) {
             err("Must not be empty.");
         }
         int offset = 0;
         boolean isFirst = true;
-        String currentChunk;
-        StringBuilder unparsedSize = new StringBuilder();
-        StringBuilder extract = new StringBuilder();
-        for (int i = 0; i < literal.length(); i++) {
-            char c = literal.charAt(i);
-            extract.append(c);
-            if (',' == c) {
-                currentChunk = literal.subSequence(offset, i).toString();
-                checkForInvalidComments(currentChunk, extract);
-                unparsedSize.append(currentChunk);
-                unparsedSize = removeComments(unparsedSize, extract);
-                checkSize(unparsedSize, literal, extract, isFirst, false);
+        for (int i = 0; i < length; i++) {
+            if (',' == literal.charAt(i)) {
+                checkSourceSize(literal, offset, i, i + 1, isFirst, false);
                 isFirst = false;
-                unparsedSize.setLength(0);
                 offset = i + 1;
             }
         }
-        currentChunk = literal.subSequence(offset, literal.length()).toString();
-        checkForInvalidComments(currentChunk, extract);
-        unparsedSize.append(currentChunk);
-        unparsedSize = removeComments(unparsedSize, extract);
-        checkSize(unparsedSize, literal, extract, isFirst, true);
+        checkSourceSize(literal, offset, length, length, isFirst, true);
     }
 
-    private void checkSize(StringBuilder unparsedSize, CharSequence literal,
-            StringBuilder extract, boolean isFirst, boolean isLast)
+    /**
+     * Checks the source size from <code>start</code> to <code>end</code>.
+     * Error messages quote the literal up to <code>extractEnd</code>; that
+     * text is only copied when there is an error to report.
+     */
+    private void checkSourceSize(CharSequence literal, int start, int end,
+            int extractEnd, boolean isFirst, boolean isLast)
                     throws DatatypeException {
-        String size;
-        trimWhitespace(unparsedSize);
-        if (unparsedSize.length() == 0) {
-            errEmpty(isFirst, isLast, extract);
+        if (indexOf(literal, start, end, "/") != -1) {
+            checkForInvalidComments(literal, start, end, extractEnd);
+            if (indexOf(literal, start, end, "/*") != -1) {
+                StringBuilder withoutComments = removeComments(literal, start,
+                        end, extractEnd);
+                checkSize(withoutComments, 0, withoutComments.length(),
+                        literal, extractEnd, isFirst, isLast);
+                return;
+            }
+        }
+        checkSize(literal, start, end, literal, extractEnd, isFirst, isLast);
+    }
+
+    private void checkSize(CharSequence cs, int start, int end,
+            CharSequence literal, int extractEnd, boolean isFirst,
+            boolean isLast) throws DatatypeException {
+        while (end > start && isWhitespace(cs.charAt(end - 1))) {
+            end--;
+        }
+        while (start < end && isWhitespace(cs.charAt(start))) {
+            start++;
+        }
+        if (start == end) {
+            errEmpty(isFirst, isLast, literal.subSequence(0, extractEnd));
             return;
         }
-        if (')' == unparsedSize.charAt(unparsedSize.length() - 1)) {
-            checkCalc(unparsedSize, extract, isLast);
+        if (')' == cs.charAt(end - 1)) {
+            checkCalc(cs, start, end, literal, extractEnd, isLast);
             return;
         }
-        int sizeValueStart = lastSpaceIndex(unparsedSize);
-        size = unparsedSize.substring(lastSpaceIndex(unparsedSize),
-                unparsedSize.length());
-        try {
-            if (Float.parseFloat(size) == 0) {
-                return;
+        int sizeValueStart = lastSpaceIndex(cs, start, end);
+        if (mayParseAsFloat(cs.charAt(end - 1))) {
+            try {
+                if (Float.parseFloat(
+                        cs.subSequence(sizeValueStart, end).toString()) == 0) {
+                    return;
+                }
+            } catch (NumberFormatException e) {
             }
-        } catch (NumberFormatException e) {
         }
-        String units = getUnits(size);
-        String num = size.substring(0, size.length() - units.length());
+        int unitsStart = unitsStart(cs, sizeValueStart, end);
+        CharSequence num = cs.subSequence(sizeValueStart, unitsStart);
         boolean sizeIsLessThanZero = false;
         try {
             CSS_NUMBER_TOKEN.checkValid(num);
-            if (Float.parseFloat(num) < 0) {
+            // Only a leading minus sign can make a valid number negative.
+            if ((num.length() == 0 || '-' == num.charAt(0))
+                    && Float.parseFloat(num.toString()) < 0) {
                 sizeIsLessThanZero = true;
             }
         } catch (DatatypeException e) {
-            errFromOtherDatatype(e.getMessage(), extract);
+            errFromOtherDatatype(e.getMessage(),
+                    literal.subSequence(0, extractEnd));
         } catch (NumberFormatException e) {
-            errNotNumber(num, extract);
+            errNotNumber(num, literal.subSequence(0, extractEnd));
         }
         if (sizeIsLessThanZero) {
-            errNotPositive(size, extract);
+            errNotPositive(cs.subSequence(sizeValueStart, end),
+                    literal.subSequence(0, extractEnd));
         }
-        if (!LENGTH_UNITS.contains(units)) {
-            errNotUnits(units, extract);
+        if (!isLengthUnit(cs, unitsStart, end)) {
+            errNotUnits(cs.subSequence(unitsStart, end),
+                    literal.subSequence(0, extractEnd));
         }
-        unparsedSize.setLength(sizeValueStart);
-        trimTrailingWhitespace(unparsedSize);
-        if (unparsedSize.length() == 0) {
+        int conditionEnd = sizeValueStart;
+        while (conditionEnd > start
+                && isWhitespace(cs.charAt(conditionEnd - 1))) {
+            conditionEnd--;
+        }
+        if (conditionEnd == start) {
             if (!isLast) {
-                errNoMediaCondition(unparsedSize, extract);
+                errNoMediaCondition("", literal.subSequence(0, extractEnd));
             }
             return;
         }
         try {
-            MEDIA_CONDITION.checkValid(unparsedSize);
+            MEDIA_CONDITION.checkValid(cs.subSequence(start, conditionEnd));
         } catch (DatatypeException e) {
-            errFromOtherDatatype(e.getMessage(), extract);
+            errFromOtherDatatype(e.getMessage(),
+                    literal.subSequence(0, extractEnd));
         }
     }
 
-    private void checkCalc(StringBuilder sb, CharSequence extract,
-            boolean isLast) throws DatatypeException {
-        int firstParenPosition = sb.length() - 1;
+    private void checkCalc(CharSequence cs, int start, int end,
+            CharSequence literal, int extractEnd, boolean isLast)
+                    throws DatatypeException {
+        int firstParenPosition = end - 1;
         int unMatchedParenCount = 1;
         while (unMatchedParenCount > 0) {
-            if (firstParenPosition == 0) {
-                errMismatchedParens(sb, extract);
+            if (firstParenPosition == start) {
+                errMismatchedParens(cs.subSequence(start, end),
+                        literal.subSequence(0, extractEnd));
             }
-            char c = sb.charAt(--firstParenPosition);
+            char c = cs.charAt(--firstParenPosition);
             if ('(' == c) {
                 unMatchedParenCount--;
             } else if (')' == c) {
@@ -178,49 +202,50 @@ public class SourceSizeList extends AbstractDatatype {
             }
         }
         int CALC_START = firstParenPosition - "calc".length(); // readability
-        boolean hasCalc = CALC_START > -1 && "calc".equals(toAsciiLowerCase(
-                sb.subSequence(CALC_START, firstParenPosition)));
-        boolean startsWithCalc = hasCalc && CALC_START == 0;
-        boolean hasWhitespaceThenCalc = hasCalc && CALC_START > 0
-                && isWhitespace(sb.charAt(CALC_START - 1));
+        boolean hasCalc = CALC_START >= start
+                && equalsIgnoreAsciiCase(cs, CALC_START, "calc");
+        boolean startsWithCalc = hasCalc && CALC_START == start;
+        boolean hasWhitespaceThenCalc = hasCalc && CALC_START > start
+                && isWhitespace(cs.charAt(CALC_START - 1));
         if (!isLast && startsWithCalc) {
-            errNoMediaCondition(sb, extract);
+            errNoMediaCondition(cs.subSequence(start, end),
+                    literal.subSequence(0, extractEnd));
         }
-        if (startsWithCalc || hasWhitespaceThenCalc) {
-            sb.setLength(CALC_START);
-            trimTrailingWhitespace(sb);
-        } else {
-            errNotNumber(sb, extract);
+        if (!startsWithCalc && !hasWhitespaceThenCalc) {
+            errNotNumber(cs.subSequence(start, end),
+                    literal.subSequence(0, extractEnd));
         }
     }
 
-    private void checkForInvalidComments(String currentChunk,
-            StringBuilder extract) throws DatatypeException {
-        if (currentChunk.contains("+/")) {
-            errNotNumber("+/", extract);
+    private void checkForInvalidComments(CharSequence literal, int start,
+            int end, int extractEnd) throws DatatypeException {
+        if (indexOf(literal, start, end, "+/") != -1) {
+            errNotNumber("+/", literal.subSequence(0, extractEnd));
         }
-        if (currentChunk.contains("-/")) {
-            errNotNumber("-/", extract);
+        if (indexOf(literal, start, end, "-/") != -1) {
+            errNotNumber("-/", literal.subSequence(0, extractEnd));
         }
         for (String units : LENGTH_UNITS) {
-            if (currentChunk.contains("/" + units)) {
-                errNotUnits("/" + units, extract);
+            int slash = indexOf(literal, start, end, "/");
+            while (slash != -1) {
+                if (regionMatches(literal, slash + 1, end, units)) {
+                    errNotUnits("/" + units,
+                            literal.subSequence(0, extractEnd));
+                }
+                slash = indexOf(literal, slash + 1, end, "/");
             }
         }
     }
 
-    private StringBuilder removeComments(StringBuilder sb, CharSequence extract)
-            throws DatatypeException {
-        if (sb.indexOf("/*") == -1) {
-            return sb;
-        }
-        StringBuilder sb2 = new StringBuilder();
+    private StringBuilder removeComments(CharSequence literal, int start,
+            int end, int extractEnd) throws DatatypeException {
+        StringBuilder sb2 = new StringBuilder(end - start);
         State state = State.IN_SIZE;
-        for (int i = 0; i < sb.length(); i++) {
-            char c = sb.charAt(i);
+        for (int i = start; i < end; i++) {
+            char c = literal.charAt(i);
             switch (state) {
                 case IN_SIZE:
-                    if ('/' == sb.charAt(i)) {
+                    if ('/' == c) {
                         sb2.append('/');
                         state = State.AFTER_SLASH;
                         continue;
@@ -229,7 +254,7 @@ public class SourceSizeList extends AbstractDatatype {
                         continue;
                     }
                 case AFTER_SLASH:
-                    if ('*' == sb.charAt(i)) {
+                    if ('*' == c) {
                         sb2.setLength(sb2.length() - 1);
                         state = State.IN_COMMENT;
                         continue;
@@ -238,14 +263,14 @@ public class SourceSizeList extends AbstractDatatype {
                         continue;
                     }
                 case IN_COMMENT:
-                    if ('*' == sb.charAt(i)) {
+                    if ('*' == c) {
                         state = State.IN_COMMENT_AFTER_ASTERISK;
                         continue;
                     } else {
                         continue;
                     }
                 case IN_COMMENT_AFTER_ASTERISK:
-                    if ('/' == sb.charAt(i)) {
+                    if ('/' == c) {
                         state = State.IN_SIZE;
                         continue;
                     } else {
@@ -255,54 +280,94 @@ public class SourceSizeList extends AbstractDatatype {
         }
         if (state == State.IN_COMMENT
                 || state == State.IN_COMMENT_AFTER_ASTERISK) {
-            trimWhitespace(sb);
-            errUnclosedComment(sb, extract);
+            while (end > start && isWhitespace(literal.charAt(end - 1))) {
+                end--;
+            }
+            while (start < end && isWhitespace(literal.charAt(start))) {
+                start++;
+            }
+            errUnclosedComment(literal.subSequence(start, end),
+                    literal.subSequence(0, extractEnd));
         }
         return sb2;
     }
 
-    private int lastSpaceIndex(StringBuilder sb) {
-        for (int i = sb.length(); i > 0; i--) {
-            char c = sb.charAt(i - 1);
+    private int lastSpaceIndex(CharSequence cs, int start, int end) {
+        for (int i = end; i > start; i--) {
+            char c = cs.charAt(i - 1);
             if (isWhitespace(c)) {
                 return i;
             }
         }
-        return 0;
+        return start;
     }
 
-    private void trimWhitespace(StringBuilder sb) {
-        trimTrailingWhitespace(sb);
-        trimLeadingWhitespace(sb);
+    /**
+     * Returns the index after the last ASCII digit, or <code>end</code> if
+     * there is no digit.
+     */
+    private int unitsStart(CharSequence cs, int start, int end) {
+        for (int i = end; i > start; i--) {
+            if (isAsciiDigit(cs.charAt(i - 1))) {
+                return i;
+            }
+        }
+        return end;
     }
 
-    private void trimTrailingWhitespace(StringBuilder sb) {
-        for (int i = sb.length(); i > 0; i--) {
-            if (isWhitespace(sb.charAt(i - 1))) {
-                sb.setLength(i - 1);
-            } else {
-                return;
+    /**
+     * Returns whether a string ending in <code>c</code> could be accepted by
+     * <code>Float.parseFloat</code>, which rejects strings that end in any
+     * letter other than a type suffix or the last letter of
+     * <code>NaN</code> or <code>Infinity</code>. This spares the usual
+     * <code>100vw</code> a thrown exception.
+     */
+    private boolean mayParseAsFloat(char c) {
+        char lower = toAsciiLowerCase(c);
+        return lower < 'a' || lower > 'z' || lower == 'f' || lower == 'd'
+                || c == 'N' || c == 'y';
+    }
+
+    private boolean isLengthUnit(CharSequence cs, int start, int end) {
+        for (String units : LENGTH_UNITS) {
+            if (units.length() == end - start
+                    && regionMatches(cs, start, end, units)) {
+                return true;
             }
         }
+        return false;
     }
 
-    private void trimLeadingWhitespace(StringBuilder sb) {
-        for (int i = 0; i < sb.length(); i++) {
-            if (!isWhitespace(sb.charAt(i))) {
-                sb.delete(0, i);
-                return;
+    private static boolean regionMatches(CharSequence cs, int from, int end,
+            String s) {
+        if (end - from < s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (cs.charAt(from + i) != s.charAt(i)) {
+                return false;
             }
         }
+        return true;
     }
 
-    private String getUnits(String val) {
-        for (int i = val.length(); i > 0; i--) {
-            char c = val.charAt(i - 1);
-            if ((c >= '0' && c <= '9')) {
-                return val.substring(i, val.length());
+    private static boolean equalsIgnoreAsciiCase(CharSequence cs, int from,
+            String lowerCase) {
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if (toAsciiLowerCase(cs.charAt(from + i)) != lowerCase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence cs, int from, int end, String s) {
+        for (int i = from; i <= end - s.length(); i++) {
+            if (regionMatches(cs, i, end, s)) {
+                return i;
             }
         }
-        return "";
+        return -1;
     }
 
     private void err(String message) throws DatatypeException {
@@ -346,7 +411,7 @@ public class SourceSizeList extends AbstractDatatype {
                 + ".");
     }
 
-    private void errNotUnits(CharSequence units, StringBuilder extract)
+    private void errNotUnits(CharSequence units, CharSequence extract)
             throws DatatypeException {
         String msg = "Expected units (one of" + VALID_UNITS + ") but found ";
         if ("".equals(units)) {
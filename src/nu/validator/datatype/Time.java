@@ -22,7 +22,6 @@
 
 package nu.validator.datatype;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.relaxng.datatype.DatatypeException;
@@ -55,18 +54,12 @@ public final class Time extends AbstractDatetime {
     @Override
     public void checkValid(CharSequence literal)
             throws DatatypeException {
-        Matcher m = getPattern().matcher(literal);
-        if (m.matches()) {
-            checkHour(m.group(1));
-            checkMinute(m.group(2));
-            String seconds = m.group(3);
-            if (seconds != null) {
-                checkSecond(seconds);
-            }
-        } else {
+        int end = literal.length();
+        if (timeEnd(literal, 0, end, 3) != end) {
             throw newDatatypeException(
                     "The literal did not satisfy the format for time.");
         }
+        checkTime(literal, 0, end);
     }
 
     /**
@@ -25,6 +25,8 @@ package nu.validator.datatype;
 
 import java.util.regex.Pattern;
 
+import org.relaxng.datatype.DatatypeException;
+
 public final class TimeDatetime extends AbstractDatetime {
     /**
      * The singleton instance.
@@ -102,6 +104,248 @@ public final class TimeDatetime extends AbstractDatetime {
         super();
     }
 
+    /**
+     * Scans for the same literals as THE_PATTERN, branching on the first
+     * characters instead of trying each alternative in turn, and applies
+     * the same checks as AbstractDatetime#checkValid.
+     */
+    @Override
+    public void checkValid(CharSequence literal)
+            throws DatatypeException {
+        int start = 0;
+        int end = literal.length();
+        while (start < end && isWhitespace(literal.charAt(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(literal.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            throw newFormatException();
+        }
+        char c = literal.charAt(start);
+        if (c == 'Z' || c == '+' || c == '-') {
+            // valid time-zone offset string
+            if (tzdEnd(literal, start, end) != end) {
+                throw newFormatException();
+            }
+            checkTzd(literal, start, end);
+            return;
+        }
+        if (c == 'P') {
+            checkIsoDuration(literal, start + 1, end);
+            return;
+        }
+        int afterDigits = digitsEnd(literal, start, end);
+        int digits = afterDigits - start;
+        if (digits == 0) {
+            throw newFormatException();
+        }
+        if (afterDigits == end) {
+            // valid year (valid non-negative integer)
+            if (digits < 4) {
+                throw newFormatException();
+            }
+            int year = digitsValue(literal, start, end);
+            if (year == -1) {
+                throw newDatatypeException("Year out of range.");
+            }
+            checkYear(year);
+            return;
+        }
+        c = literal.charAt(afterDigits);
+        if (c == '-' && digits >= 4) {
+            checkYearPrefixed(literal, start, afterDigits, end);
+        } else if (c == '-' && digits == 2) {
+            // valid yearless date string
+            if (afterDigits + 3 != end
+                    || !twoDigitsAt(literal, afterDigits + 1, end)) {
+                throw newFormatException();
+            }
+            checkYearlessDate(twoDigits(literal, start),
+                    twoDigits(literal, afterDigits + 1));
+        } else if (c == ':' && digits == 2) {
+            // valid time string
+            if (timeEnd(literal, start, end, Integer.MAX_VALUE) != end) {
+                throw newFormatException();
+            }
+            checkTime(literal, start, end);
+        } else if (c == '-' || c == ':') {
+            throw newFormatException();
+        } else {
+            checkComponentDuration(literal, start, end);
+        }
+    }
+
+    /**
+     * Checks the strings that start with a year followed by a hyphen: month,
+     * week, date and local or global date and time strings.
+     */
+    private void checkYearPrefixed(CharSequence literal, int start,
+            int yearEnd, int end) throws DatatypeException {
+        int i = yearEnd + 1;
+        if (i < end && literal.charAt(i) == 'W') {
+            // valid week string
+            if (i + 3 != end || !twoDigitsAt(literal, i + 1, end)) {
+                throw newFormatException();
+            }
+            int year = digitsValue(literal, start, yearEnd);
+            if (year == -1) {
+                throw newDatatypeException("Year or week out of range.");
+            }
+            checkWeek(year, twoDigits(literal, i + 1));
+            return;
+        }
+        if (!twoDigitsAt(literal, i, end)) {
+            throw newFormatException();
+        }
+        if (i + 2 == end) {
+            // valid month string
+            checkMonth(literal, start, yearEnd);
+            return;
+        }
+        int afterDate = dateEnd(literal, start, end);
+        if (afterDate == end) {
+            // valid date string
+            checkDate(literal, start, afterDate);
+            return;
+        }
+        if (afterDate == -1 || (literal.charAt(afterDate) != 'T'
+                && literal.charAt(afterDate) != ' ')) {
+            throw newFormatException();
+        }
+        int afterTime = timeEnd(literal, afterDate + 1, end,
+                Integer.MAX_VALUE);
+        if (afterTime == end) {
+            // valid local date and time string
+            checkDate(literal, start, afterDate);
+            checkTime(literal, afterDate + 1, afterTime);
+            return;
+        }
+        if (afterTime == -1 || tzdEnd(literal, afterTime, end) != end) {
+            throw newFormatException();
+        }
+        // valid global date and time string
+        checkDate(literal, start, afterDate);
+        checkTime(literal, afterDate + 1, afterTime);
+        checkTzd(literal, afterTime, end);
+    }
+
+    /**
+     * Checks a valid duration string in the ISO 8601-like form that starts
+     * with <code>P</code>; <code>from</code> is the index after the
+     * <code>P</code>.
+     */
+    private void checkIsoDuration(CharSequence literal, int from, int end)
+            throws DatatypeException {
+        int i = from;
+        int n = digitsEnd(literal, i, end);
+        if (n > i && n < end && literal.charAt(n) == 'D') {
+            i = n + 1;
+            if (i == end) {
+                return;
+            }
+        }
+        if (i == end || literal.charAt(i) != 'T') {
+            throw newFormatException();
+        }
+        i++;
+        // 1 after hours, 2 after minutes, 3 after seconds
+        int component = 0;
+        int fraction = -1;
+        while (i < end) {
+            n = digitsEnd(literal, i, end);
+            if (n == i || n == end) {
+                throw newFormatException();
+            }
+            char unit = literal.charAt(n);
+            if (unit == 'H' && component < 1) {
+                component = 1;
+            } else if (unit == 'M' && component < 2) {
+                component = 2;
+            } else if ((unit == 'S' || unit == '.') && component < 3) {
+                if (unit == '.') {
+                    int fractionEnd = digitsEnd(literal, n + 1, end);
+                    if (fractionEnd == n + 1 || fractionEnd == end
+                            || literal.charAt(fractionEnd) != 'S') {
+                        throw newFormatException();
+                    }
+                    fraction = fractionEnd - (n + 1);
+                    n = fractionEnd;
+                }
+                component = 3;
+            } else {
+                throw newFormatException();
+            }
+            i = n + 1;
+        }
+        if (component == 0) {
+            throw newFormatException();
+        }
+        if (fraction != -1) {
+            checkMilliSecond(fraction);
+        }
+    }
+
+    /**
+     * Checks a valid duration string made of whitespace-separated
+     * components such as <code>1h 30m</code>. Like the regexp, only the
+     * fraction of the last component that has one is checked.
+     */
+    private void checkComponentDuration(CharSequence literal, int start,
+            int end) throws DatatypeException {
+        int i = start;
+        int fraction = -1;
+        while (i < end) {
+            while (isWhitespace(literal.charAt(i))) {
+                i++;
+            }
+            int n = digitsEnd(literal, i, end);
+            if (n == i) {
+                throw newFormatException();
+            }
+            i = n;
+            boolean hasFraction = i < end && literal.charAt(i) == '.';
+            if (hasFraction) {
+                n = digitsEnd(literal, i + 1, end);
+                if (n == i + 1) {
+                    throw newFormatException();
+                }
+                fraction = n - (i + 1);
+                i = n;
+            }
+            while (i < end && isWhitespace(literal.charAt(i))) {
+                i++;
+            }
+            if (i == end) {
+                throw newFormatException();
+            }
+            switch (literal.charAt(i)) {
+                case 'S':
+                case 's':
+                    break;
+                case 'W':
+                case 'w':
+                case 'D':
+                case 'd':
+                case 'H':
+                case 'h':
+                case 'M':
+                case 'm':
+                    if (!hasFraction) {
+                        break;
+                    }
+                    // fall through
+                default:
+                    throw newFormatException();
+            }
+            i++;
+        }
+        if (fraction != -1) {
+            checkMilliSecond(fraction);
+        }
+    }
+
     @Override
     protected Pattern getPattern() {
         return THE_PATTERN;
@@ -24,8 +24,6 @@
 package nu.validator.datatype;
 
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.relaxng.datatype.DatatypeException;
 
@@ -60,11 +58,6 @@ public final class Week extends AbstractDatatype {
      */
     public static final Week THE_INSTANCE = new Week();
     
-    /**
-     * The rexexp for this datatype.
-     */
-    private static final Pattern THE_PATTERN = Pattern.compile("^([0-9]{4,})-W([0-9]{2})$");
-
     /**
      * Constructor.
      */
@@ -72,11 +65,6 @@ public final class Week extends AbstractDatatype {
         super();
     }
 
-    private void checkWeek(String year, String week)
-            throws DatatypeException {
-        checkWeek(Integer.parseInt(year), Integer.parseInt(week));
-    }
-
     private void checkWeek(int year, int week)
             throws DatatypeException {
         if (year < 1) {
@@ -97,13 +85,25 @@ public final class Week extends AbstractDatatype {
     @Override
     public void checkValid(CharSequence literal)
             throws DatatypeException {
-        Matcher m = THE_PATTERN.matcher(literal);
-        if (m.matches()) {
-            checkWeek(m.group(1), m.group(2));
-        } else {
+        // ^([0-9]{4,})-W([0-9]{2})$
+        int end = literal.length();
+        int yearEnd = 0;
+        while (yearEnd < end && isAsciiDigit(literal.charAt(yearEnd))) {
+            yearEnd++;
+        }
+        if (yearEnd < 4 || yearEnd + 4 != end
+                || literal.charAt(yearEnd) != '-'
+                || literal.charAt(yearEnd + 1) != 'W'
+                || !isAsciiDigit(literal.charAt(yearEnd + 2))
+                || !isAsciiDigit(literal.charAt(yearEnd + 3))) {
             throw newDatatypeException(
                     "The literal did not satisfy the format for week.");
         }
+        int year = AbstractDatetime.digitsValue(literal, 0, yearEnd);
+        if (year == -1) {
+            throw newDatatypeException("Year or week out of range.");
+        }
+        checkWeek(year, AbstractDatetime.twoDigits(literal, yearEnd + 2));
     }
 
     @Override
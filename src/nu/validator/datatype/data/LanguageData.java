@@ -24,6 +24,8 @@
 package nu.validator.datatype.data;
 
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Arrays;
@@ -120,6 +122,101 @@ public class LanguageData {
         prepareArrays();
     }
 
+    private LanguageData(DataInput in) throws IOException {
+        super();
+        languages = readStrings(in);
+        extlangs = readStrings(in);
+        scripts = readStrings(in);
+        regions = readStrings(in);
+        variants = readStrings(in);
+        grandfathered = readStrings(in);
+        redundant = readStrings(in);
+        deprecatedLang = readStrings(in);
+        deprecated = readStrings(in);
+        suppressedScriptByLanguage = readInts(in);
+        prefixByExtlang = readInts(in);
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            preferredValueByLanguageMap.put(in.readUTF(), in.readUTF());
+        }
+        prefixesByVariant = new String[in.readInt()][][];
+        for (int i = 0; i < prefixesByVariant.length; i++) {
+            prefixesByVariant[i] = new String[in.readInt()][];
+            for (int j = 0; j < prefixesByVariant[i].length; j++) {
+                prefixesByVariant[i][j] = readStrings(in);
+            }
+        }
+    }
+
+    /**
+     * Reads data written by <code>writeTo</code> instead of parsing the
+     * registry.
+     */
+    public static LanguageData readFrom(DataInput in) throws IOException {
+        return new LanguageData(in);
+    }
+
+    /**
+     * Writes the prepared arrays in the format read by <code>readFrom</code>.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeStrings(out, languages);
+        writeStrings(out, extlangs);
+        writeStrings(out, scripts);
+        writeStrings(out, regions);
+        writeStrings(out, variants);
+        writeStrings(out, grandfathered);
+        writeStrings(out, redundant);
+        writeStrings(out, deprecatedLang);
+        writeStrings(out, deprecated);
+        writeInts(out, suppressedScriptByLanguage);
+        writeInts(out, prefixByExtlang);
+        out.writeInt(preferredValueByLanguageMap.size());
+        for (Map.Entry<String, String> entry : preferredValueByLanguageMap.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.writeInt(prefixesByVariant.length);
+        for (String[][] prefixes : prefixesByVariant) {
+            out.writeInt(prefixes.length);
+            for (String[] prefix : prefixes) {
+                writeStrings(out, prefix);
+            }
+        }
+    }
+
+    private static void writeStrings(DataOutput out, String[] strings)
+            throws IOException {
+        out.writeInt(strings.length);
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static String[] readStrings(DataInput in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    private static void writeInts(DataOutput out, int[] ints)
+            throws IOException {
+        out.writeInt(ints.length);
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+    }
+
+    private static int[] readInts(DataInput in) throws IOException {
+        int[] ints = new int[in.readInt()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = in.readInt();
+        }
+        return ints;
+    }
+
     private void consumeRegistry() throws IOException {
         while (consumeRecord()) {
             // spin
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.datatype.test;
+
+import java.util.Arrays;
+
+import nu.validator.datatype.Date;
+import nu.validator.datatype.DatetimeTz;
+import nu.validator.datatype.IntegrityMetadata;
+import nu.validator.datatype.Month;
+import nu.validator.datatype.Time;
+import nu.validator.datatype.TimeDatetime;
+import nu.validator.datatype.Week;
+
+import org.relaxng.datatype.Datatype;
+import org.relaxng.datatype.DatatypeException;
+
+/**
+ * Measures <code>checkValid</code> of the date, time and integrity
+ * datatypes on valid and invalid literals. Each case is warmed up first and
+ * then timed in several rounds of <code>CALLS</code> calls; the fastest and
+ * the median round are reported in nanoseconds per call. The outcomes are
+ * counted so that the calls cannot be optimized away.
+ */
+public class DatetimeBenchmark {
+
+    private static final int WARM_UP_ROUNDS = 5;
+
+    private static final int ROUNDS = 15;
+
+    private static final int CALLS = 200000;
+
+    private static final Object[][] CASES = { //
+            { Date.THE_INSTANCE, "2020-02-29" }, //
+            { Date.THE_INSTANCE, "2021-02-29" }, //
+            { DatetimeTz.THE_INSTANCE, "2020-01-01T10:00:00.123+05:30" }, //
+            { Time.THE_INSTANCE, "23:59:59.999" }, //
+            { Time.THE_INSTANCE, "24:00" }, //
+            { TimeDatetime.THE_INSTANCE, "2020-01-01T10:00:00Z" }, //
+            { TimeDatetime.THE_INSTANCE, "1h 30m" }, //
+            { TimeDatetime.THE_INSTANCE, "PT1H2M3S" }, //
+            { Month.THE_INSTANCE, "2020-12" }, //
+            { Week.THE_INSTANCE, "2020-W53" }, //
+            { IntegrityMetadata.THE_INSTANCE,
+                    "sha384-oqVuAfXRKap7fdgcCY5uykM6+R9GqQ8K/uxy9rx7HNQlGYl1kPzQho1wx4JwY8wC" }, //
+    };
+
+    private static int valid;
+
+    private static int invalid;
+
+    private static long round(Datatype datatype, String literal) {
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            try {
+                datatype.checkValid(literal, null);
+                valid++;
+            } catch (DatatypeException e) {
+                invalid++;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        for (Object[] c : CASES) {
+            Datatype datatype = (Datatype) c[0];
+            String literal = (String) c[1];
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                round(datatype, literal);
+            }
+            long[] times = new long[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                times[i] = round(datatype, literal);
+            }
+            Arrays.sort(times);
+            System.out.printf("%-18s %-32.32s best %5d ns  median %5d ns%n",
+                    datatype.getClass().getSimpleName(), literal,
+                    times[0] / CALLS, times[ROUNDS / 2] / CALLS);
+        }
+        System.out.println(valid + " valid, " + invalid + " invalid");
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.datatype.test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares two builds of the date, time and integrity datatypes. Each
+ * build is loaded from its own class directory or jar, and both check the
+ * same seed literals and random mutations of them. For every literal the
+ * outcome, the message and the error positions must match; the
+ * differences are printed.
+ *
+ * <p>Usage: <code>DatetimeDifferentialTester OLD NEW [COUNT [SEED]]</code>,
+ * where <code>OLD</code> and <code>NEW</code> are class paths that each
+ * contain the datatypes and their dependencies and <code>COUNT</code> is
+ * the number of mutated literals per datatype.
+ */
+public class DatetimeDifferentialTester {
+
+    private static final String[] TYPES = { "Date", "Datetime",
+            "DatetimeLocal", "DatetimeTz", "Time", "TimeDatetime", "Month",
+            "Week", "IntegrityMetadata" };
+
+    private static final String[] SEEDS = { "2020-02-29", "0000-01-01",
+            "99999-12-31", "2020-13-01", "2021-02-29", "2020-01-01T10:00Z",
+            "2020-01-01 10:00:59.123Z", "2020-01-01T10:00:59.1234Z",
+            "2020-01-01T24:00", "2020-01-01T10:00:00.5",
+            "2020-01-01T10:00:00+05:30", "2020-01-01T10:00:00.12345-00:00",
+            "2020-01-01T10:00-0800", "2020-01-01T10:00:00Z", "10:00",
+            "23:59:59.999", "24:00", "10:60", "2020-01", "2020-00", "0000-12",
+            "2020-W53", "2015-W53", "2020-W54", "2020-W00", "12-25", "02-30",
+            "13-01", " 2020 ", "0999", "99999999999", "Z", "+05:30", "-00:00",
+            "+2400", "PT1H", "P1D", "P1DT1H2M3.5S", "PT1.1234S", "PT", "P",
+            "PT1M1H", "1h 30m", "1.5s", "1.1234 S", " 5w 3d 2h 1m 1.2s ",
+            "1 h", "1..5s", "1.s", "12:30:00.1234",
+            "2020-01-01T10:00:00.1234", "sha256-abcd",
+            "SHA384-ab+/ sha512-xyz=", "sha256-", "sha1-abc",
+            "sha256-ab\u0085c", "  sha512-AAAA  ", "sha256abcd",
+            "Sha256-AAAA ", "2147483648-01", "99999999999-W01",
+            "99999999999-01-01", "99999999999-01-01T10:00Z", "21474836470",
+            "2147483647-02-29" };
+
+    private static final char[] ALPHABET = "0123456789-:T ZWPDHMS+.dhmswz\t\n\u0085\u00A0shaA=/x".toCharArray();
+
+    private static final int MAX_SHOWN = 30;
+
+    private static ClassLoader loader(String path) throws Exception {
+        String[] entries = path.split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            urls[i] = new File(entries[i]).toURI().toURL();
+        }
+        return new URLClassLoader(urls, null);
+    }
+
+    private static Object instance(ClassLoader loader, String type)
+            throws Exception {
+        return Class.forName("nu.validator.datatype." + type, true,
+                loader).getField("THE_INSTANCE").get(null);
+    }
+
+    private static Method checkValid(Object datatype) throws Exception {
+        return datatype.getClass().getMethod("checkValid", CharSequence.class);
+    }
+
+    /**
+     * Returns the outcome of a check: "ok" or the exception with its
+     * message and the values of its getters.
+     */
+    private static String outcome(Method checkValid, Object datatype,
+            String literal) throws IllegalAccessException {
+        try {
+            checkValid.invoke(datatype, literal);
+            return "ok";
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getCause();
+            StringBuilder sb = new StringBuilder(
+                    t.getClass().getSimpleName()).append(": ").append(
+                    t.getMessage());
+            for (Method getter : t.getClass().getMethods()) {
+                String name = getter.getName();
+                if (getter.getParameterTypes().length == 0
+                        && getter.getDeclaringClass() != Object.class
+                        && getter.getDeclaringClass() != Throwable.class
+                        && (name.startsWith("get") || name.startsWith("is"))) {
+                    try {
+                        Object value = getter.invoke(t);
+                        sb.append(' ').append(name).append('=').append(
+                                value instanceof Object[] ? Arrays.toString((Object[]) value)
+                                        : String.valueOf(value));
+                    } catch (InvocationTargetException ex) {
+                        sb.append(' ').append(name).append(" threw");
+                    }
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private static String mutate(Random random) {
+        StringBuilder sb = new StringBuilder(
+                SEEDS[random.nextInt(SEEDS.length)]);
+        if (random.nextInt(20) == 0) {
+            sb.setLength(0);
+            int length = random.nextInt(16);
+            for (int i = 0; i < length; i++) {
+                sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+            }
+            return sb.toString();
+        }
+        int edits = random.nextInt(4);
+        for (int i = 0; i < edits; i++) {
+            int at = random.nextInt(sb.length() + 1);
+            char c = random.nextInt(3) == 0 ? (char) ('0' + random.nextInt(10))
+                    : ALPHABET[random.nextInt(ALPHABET.length)];
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.insert(at, c);
+                    break;
+                case 1:
+                    if (at < sb.length()) {
+                        sb.deleteCharAt(at);
+                    }
+                    break;
+                case 2:
+                    if (at < sb.length()) {
+                        sb.setCharAt(at, c);
+                    }
+                    break;
+                default:
+                    String seed = SEEDS[random.nextInt(SEEDS.length)];
+                    sb.insert(at, seed.substring(0,
+                            Math.min(seed.length(), random.nextInt(4))));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c > 0x7E) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println(
+                    "Usage: DatetimeDifferentialTester OLD NEW [COUNT [SEED]]");
+            System.exit(2);
+        }
+        ClassLoader oldLoader = loader(args[0]);
+        ClassLoader newLoader = loader(args[1]);
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        Random random = new Random(args.length > 3 ? Long.parseLong(args[3])
+                : 42);
+        long cases = 0;
+        long differences = 0;
+        for (String type : TYPES) {
+            Object oldType = instance(oldLoader, type);
+            Object newType = instance(newLoader, type);
+            Method oldCheck = checkValid(oldType);
+            Method newCheck = checkValid(newType);
+            List<String> literals = new ArrayList<>(Arrays.asList(SEEDS));
+            for (int i = 0; i < count; i++) {
+                literals.add(mutate(random));
+            }
+            for (String literal : literals) {
+                cases++;
+                String oldOutcome = outcome(oldCheck, oldType, literal);
+                String newOutcome = outcome(newCheck, newType, literal);
+                if (!oldOutcome.equals(newOutcome)) {
+                    differences++;
+                    if (differences <= MAX_SHOWN) {
+                        System.out.println(type + " \"" + escape(literal)
+                                + "\"\n  old " + oldOutcome + "\n  new "
+                                + newOutcome);
+                    }
+                }
+            }
+        }
+        System.out.println(cases + " cases, " + differences + " differences");
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
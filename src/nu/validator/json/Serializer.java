@@ -1,5 +1,5 @@
 /*
- * Copyright (c) 2007-2018 Mozilla Foundation
+ * Copyright (c) 2007-2020 Mozilla Foundation
  *
  * Permission is hereby granted, free of charge, to any person obtaining a 
  * copy of this software and associated documentation files (the "Software"), 
@@ -20,77 +20,278 @@
  * DEALINGS IN THE SOFTWARE.
  */
 
+
 package nu.validator.json;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
 
 import org.xml.sax.SAXException;
 
+/**
+ * Serializes JSON as UTF-8. Characters are escaped and encoded straight into
+ * a byte buffer, which is written to the underlying stream in large chunks.
+ * Unpaired surrogates are replaced with <code>?</code>.
+ */
 public class Serializer implements JsonHandler {
 
-    private enum State {
-        INITIAL, DOCUMENT, ARRAY, OBJECT, VALUE, STRING
+    private static final int INITIAL = 0;
+
+    private static final int DOCUMENT = 1;
+
+    private static final int ARRAY = 2;
+
+    private static final int OBJECT = 3;
+
+    private static final int VALUE = 4;
+
+    private static final int STRING = 5;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Output is passed on at the end of an object once this much of it has
+     * accumulated, so that clients still see results while checking goes
+     * on.
+     */
+    private static final int FLUSH_THRESHOLD = 8 * 1024;
+
+    /**
+     * For each ASCII character, the character to put after the backslash
+     * when escaping it, 'u' for a <code>\\u</code> escape or 0 if it
+     * does not need escaping.
+     */
+    private static final byte[] ESCAPES = new byte[128];
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(
+            StandardCharsets.US_ASCII);
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            ESCAPES[i] = 'u';
+        }
+        ESCAPES['\"'] = '\"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\u0008'] = 'b';
+        ESCAPES['\u000C'] = 'f';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
     }
 
-    private final List<State> stack = new ArrayList<>();
+    /**
+     * Buffers left behind by serializers that have finished, one per thread.
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    private int[] stack = new int[16];
+
+    private int depth = 0;
 
     private boolean hadCallback = false;
 
     private boolean first = false;
 
-    private final Writer writer;
+    private final OutputStream out;
+
+    private byte[] buffer;
+
+    private int pos = 0;
+
+    /**
+     * A high surrogate at the end of one <code>characters</code> call
+     * waiting for its low surrogate or 0.
+     */
+    private char pendingHighSurrogate = 0;
 
-    private static Writer newOutputStreamWriter(OutputStream out) {
-        CharsetEncoder enc = Charset.forName("UTF-8").newEncoder();
-        enc.onMalformedInput(CodingErrorAction.REPLACE);
-        enc.onUnmappableCharacter(CodingErrorAction.REPLACE);
-        return new OutputStreamWriter(out, enc);
-    }
-    
     public Serializer(OutputStream out) {
-        this.writer = newOutputStreamWriter(out);
-        push(State.INITIAL);
+        this.out = out;
+        byte[] buf = BUFFERS.get();
+        if (buf == null) {
+            buf = new byte[BUFFER_SIZE];
+        } else {
+            BUFFERS.set(null);
+        }
+        this.buffer = buf;
+        push(INITIAL);
     }
 
-    private void push(State state) {
-        stack.add(state);
+    private void push(int state) {
+        if (depth == stack.length) {
+            int[] newStack = new int[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+        }
+        stack[depth++] = state;
     }
 
     private void pop() {
-        stack.remove(stack.size() - 1);
+        depth--;
     }
 
-    private State peek() {
-        int size = stack.size();
-        if (size == 0) {
-            return null;
+    private int peek() {
+        if (depth == 0) {
+            return -1;
         } else {
-            return stack.get(size - 1);
+            return stack[depth - 1];
+        }
+    }
+
+    private void drain() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private void write(char c) throws IOException {
+        if (pos == buffer.length) {
+            drain();
+        }
+        buffer[pos++] = (byte) c;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        int length = s.length();
+        if (pos + length > buffer.length) {
+            drain();
+        }
+        if (length > buffer.length) {
+            out.write(s.getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[pos++] = (byte) s.charAt(i);
         }
     }
 
+    private void writeRaw(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (pos + bytes.length > buffer.length) {
+            drain();
+        }
+        if (bytes.length > buffer.length) {
+            out.write(bytes);
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void endPendingSurrogate() throws IOException {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            write('?');
+        }
+    }
+
+    private void charactersImpl(char[] ch, int start, int length)
+            throws IOException {
+        int i = start;
+        int end = start + length;
+        if (pendingHighSurrogate != 0 && i < end) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(ch[i])) {
+                writeCodePoint(Character.toCodePoint(high, ch[i]));
+                i++;
+            } else {
+                write('?');
+            }
+        }
+        byte[] buf = buffer;
+        int p = pos;
+        while (i < end) {
+            // The longest escape or encoding is six bytes.
+            if (p + 6 > buf.length) {
+                pos = p;
+                drain();
+                p = pos;
+            }
+            char c = ch[i];
+            if (c < 0x80) {
+                byte escape = ESCAPES[c];
+                if (escape == 0) {
+                    int limit = Math.min(end, i + buf.length - p);
+                    buf[p++] = (byte) c;
+                    i++;
+                    while (i < limit) {
+                        c = ch[i];
+                        if (c >= 0x80 || ESCAPES[c] != 0) {
+                            break;
+                        }
+                        buf[p++] = (byte) c;
+                        i++;
+                    }
+                    continue;
+                }
+                buf[p++] = '\\';
+                buf[p++] = escape;
+                if (escape == 'u') {
+                    buf[p++] = '0';
+                    buf[p++] = '0';
+                    buf[p++] = HEX[c >> 4];
+                    buf[p++] = HEX[c & 0xF];
+                }
+            } else if (c < 0x800) {
+                buf[p++] = (byte) (0xC0 | (c >> 6));
+                buf[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 == end) {
+                    pendingHighSurrogate = c;
+                } else if (Character.isLowSurrogate(ch[i + 1])) {
+                    int cp = Character.toCodePoint(c, ch[++i]);
+                    buf[p++] = (byte) (0xF0 | (cp >> 18));
+                    buf[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[p++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    buf[p++] = '?';
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                buf[p++] = '?';
+            } else {
+                buf[p++] = (byte) (0xE0 | (c >> 12));
+                buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+            i++;
+        }
+        pos = p;
+    }
+
+    private void writeCodePoint(int cp) throws IOException {
+        if (pos + 4 > buffer.length) {
+            drain();
+        }
+        buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+        buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+    }
+
+    private void stringImpl(String string) throws IOException {
+        write('\"');
+        charactersImpl(string.toCharArray(), 0, string.length());
+        endPendingSurrogate();
+        write('\"');
+    }
+
     @Override
     public void bool(boolean bool) throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case ARRAY:
                     if (!first) {
-                        writer.write(',');
+                        write(',');
                     }
                     // fall thru
                 case DOCUMENT:
                 case VALUE:
-                    writer.write(Boolean.toString(bool));
-                    if (state == State.VALUE) {
+                    writeAscii(Boolean.toString(bool));
+                    if (state == VALUE) {
                         pop();
                     }
                     first = false;
@@ -103,63 +304,11 @@ public class Serializer implements JsonHandler {
         }
     }
 
-    private void charactersImpl(char[] ch, int start, int length)
-            throws IOException {
-        int s = start;
-        int end = start + length;
-        for (int i = start; i < end; i++) {
-            char c = ch[i];
-            if (c <= '\u001F' || c == '\"' || c == '\\') {
-                if (s < i) {
-                    writer.write(ch, s, i - s);
-                }
-                s = i + 1;
-                writer.write('\\');
-                switch (c) {
-                    case '\"':
-                        writer.write('\"');
-                        break;
-                    case '\\':
-                        writer.write('\\');
-                        break;
-                    case '\u0008':
-                        writer.write('b');
-                        break;
-                    case '\u000C':
-                        writer.write('f');
-                        break;
-                    case '\n':
-                        writer.write('n');
-                        break;
-                    case '\r':
-                        writer.write('r');
-                        break;
-                    case '\t':
-                        writer.write('t');
-                        break;
-                    default:
-                        String hex = Integer.toHexString(c);
-                        if (hex.length() == 1) {
-                            writer.write("u000");
-                            writer.write(hex);
-                        } else {
-                            writer.write("u00");
-                            writer.write(hex);                            
-                        }
-                        break;
-                }
-            }
-        }
-        if (s < end) {
-            writer.write(ch, s, end - s);
-        }
-    }
-
     @Override
     public void characters(char[] ch, int start, int length)
             throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case STRING:
                     charactersImpl(ch, start, length);
@@ -175,13 +324,13 @@ public class Serializer implements JsonHandler {
     @Override
     public void endArray() throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case ARRAY:
-                    writer.write(']');
+                    write(']');
                     pop();
                     first = false;
-                    if (peek() == State.VALUE) {
+                    if (peek() == VALUE) {
                         pop();
                     }
                     break;
@@ -196,16 +345,18 @@ public class Serializer implements JsonHandler {
     @Override
     public void endDocument() throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case DOCUMENT:
                     if (hadCallback) {
-                        writer.write(')');
+                        write(')');
                     }
-                    writer.write('\n');
-                    writer.flush();
-                    writer.close();
+                    write('\n');
+                    drain();
+                    out.flush();
+                    out.close();
                     pop();
+                    BUFFERS.set(buffer);
                     break;
                 default:
                     throw new SAXException("Illegal state for callback.");
@@ -218,14 +369,17 @@ public class Serializer implements JsonHandler {
     @Override
     public void endObject() throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case OBJECT:
-                    writer.write('}');
-                    writer.flush();
+                    write('}');
+                    if (pos >= FLUSH_THRESHOLD) {
+                        drain();
+                        out.flush();
+                    }
                     pop();
                     first = false;
-                    if (peek() == State.VALUE) {
+                    if (peek() == VALUE) {
                         pop();
                     }
                     break;
@@ -240,13 +394,14 @@ public class Serializer implements JsonHandler {
     @Override
     public void endString() throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case STRING:
-                    writer.write('\"');
+                    endPendingSurrogate();
+                    write('\"');
                     pop();
                     first = false;
-                    if (peek() == State.VALUE) {
+                    if (peek() == VALUE) {
                         pop();
                     }
                     break;
@@ -261,17 +416,15 @@ public class Serializer implements JsonHandler {
     @Override
     public void key(String key) throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case OBJECT:
                     if (!first) {
-                        writer.write(',');
+                        write(',');
                     }
-                    writer.write('\"');
-                    charactersImpl(key.toCharArray(), 0, key.length());
-                    writer.write('\"');
-                    writer.write(':');
-                    push(State.VALUE);
+                    stringImpl(key);
+                    write(':');
+                    push(VALUE);
                     break;
                 default:
                     throw new SAXException("Illegal state for callback.");
@@ -283,96 +436,37 @@ public class Serializer implements JsonHandler {
 
     @Override
     public void number(int number) throws SAXException {
-        try {
-            State state = peek();
-            switch (state) {
-                case ARRAY:
-                    if (!first) {
-                        writer.write(',');
-                    }
-                    // fall thru
-                case DOCUMENT:
-                case VALUE:
-                    writer.write(Integer.toString(number));
-                    if (state == State.VALUE) {
-                        pop();
-                    }
-                    first = false;
-                    break;
-                default:
-                    throw new SAXException("Illegal state for callback.");
-            }
-        } catch (IOException e) {
-            throw new SAXException(e.getMessage(), e);
-        }
+        number(Integer.toString(number));
     }
 
     @Override
     public void number(long number) throws SAXException {
-        try {
-            State state = peek();
-            switch (state) {
-                case ARRAY:
-                    if (!first) {
-                        writer.write(',');
-                    }
-                    // fall thru
-                case DOCUMENT:
-                case VALUE:
-                    writer.write(Long.toString(number));
-                    if (state == State.VALUE) {
-                        pop();
-                    }
-                    first = false;
-                    break;
-                default:
-                    throw new SAXException("Illegal state for callback.");
-            }
-        } catch (IOException e) {
-            throw new SAXException(e.getMessage(), e);
-        }
+        number(Long.toString(number));
     }
 
     @Override
     public void number(float number) throws SAXException {
-        try {
-            State state = peek();
-            switch (state) {
-                case ARRAY:
-                    if (!first) {
-                        writer.write(',');
-                    }
-                    // fall thru
-                case DOCUMENT:
-                case VALUE:
-                    writer.write(Float.toString(number));
-                    if (state == State.VALUE) {
-                        pop();
-                    }
-                    first = false;
-                    break;
-                default:
-                    throw new SAXException("Illegal state for callback.");
-            }
-        } catch (IOException e) {
-            throw new SAXException(e.getMessage(), e);
-        }
+        number(Float.toString(number));
     }
 
     @Override
     public void number(double number) throws SAXException {
+        number(Double.toString(number));
+    }
+
+    private void number(String number) throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case ARRAY:
                     if (!first) {
-                        writer.write(',');
+                        write(',');
                     }
                     // fall thru
                 case DOCUMENT:
                 case VALUE:
-                    writer.write(Double.toString(number));
-                    if (state == State.VALUE) {
+                    writeAscii(number);
+                    if (state == VALUE) {
                         pop();
                     }
                     first = false;
@@ -388,17 +482,17 @@ public class Serializer implements JsonHandler {
     @Override
     public void startArray() throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case ARRAY:
                     if (!first) {
-                        writer.write(',');
+                        write(',');
                     }
                     // fall thru
                 case DOCUMENT:
                 case VALUE:
-                    writer.write('[');
-                    push(State.ARRAY);
+                    write('[');
+                    push(ARRAY);
                     first = true;
                     break;
                 default:
@@ -412,17 +506,17 @@ public class Serializer implements JsonHandler {
     @Override
     public void startDocument(String callback) throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case INITIAL:
                     if (callback == null) {
                         hadCallback = false;
                     } else {
                         hadCallback = true;
-                        writer.write(callback);
-                        writer.write('(');
+                        writeRaw(callback);
+                        write('(');
                     }
-                    push(State.DOCUMENT);
+                    push(DOCUMENT);
                     first = true;
                     break;
                 default:
@@ -436,17 +530,17 @@ public class Serializer implements JsonHandler {
     @Override
     public void startObject() throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case ARRAY:
                     if (!first) {
-                        writer.write(',');
+                        write(',');
                     }
                     // fall thru
                 case DOCUMENT:
                 case VALUE:
-                    writer.write('{');
-                    push(State.OBJECT);
+                    write('{');
+                    push(OBJECT);
                     first = true;
                     break;
                 default:
@@ -460,17 +554,17 @@ public class Serializer implements JsonHandler {
     @Override
     public void startString() throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case ARRAY:
                     if (!first) {
-                        writer.write(',');
+                        write(',');
                     }
                     // fall thru
                 case DOCUMENT:
                 case VALUE:
-                    writer.write('\"');
-                    push(State.STRING);
+                    write('\"');
+                    push(STRING);
                     break;
                 default:
                     throw new SAXException("Illegal state for callback.");
@@ -483,23 +577,21 @@ public class Serializer implements JsonHandler {
     @Override
     public void string(String string) throws SAXException {
         try {
-            State state = peek();
+            int state = peek();
             switch (state) {
                 case ARRAY:
                     if (!first) {
-                        writer.write(',');
+                        write(',');
                     }
                     // fall thru
                 case DOCUMENT:
                 case VALUE:
                     if (string == null) {
-                        writer.write("null");
+                        writeAscii("null");
                     } else {
-                        writer.write('\"');
-                        charactersImpl(string.toCharArray(), 0, string.length());
-                        writer.write('\"');
+                        stringImpl(string);
                     }
-                    if (state == State.VALUE) {
+                    if (state == VALUE) {
                         pop();
                     }
                     first = false;
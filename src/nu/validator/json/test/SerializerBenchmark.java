@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.json.test;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import nu.validator.json.JsonHandler;
+import nu.validator.json.Serializer;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Measures <code>Serializer</code> against <code>ReferenceSerializer</code>
+ * on a result like the one the service writes for a large page: 2000
+ * messages with ASCII, escapes, non-ASCII text and surrogate pairs, and a
+ * 2 MB source passed in 4 KB chunks. The output goes to a stream that only
+ * counts the bytes. Each serializer is warmed up first and then timed in
+ * several rounds; the fastest and the median round are reported.
+ */
+public class SerializerBenchmark {
+
+    private static final int WARM_UP_ROUNDS = 20;
+
+    private static final int ROUNDS = 30;
+
+    private static final int MESSAGES = 2000;
+
+    private static final int CHUNK = 4096;
+
+    private static final String[] TEXTS = {
+            "Element \u201Cdiv\u201D not allowed as child of element \u201Cspan\u201D in this context.",
+            "Bad value \u201C</script>\u201D for attribute \u201Csrc\u201D:\tIllegal character \"\\\".",
+            "Text \u201C\u00E9t\u00E9 \u20AC 5\u201D with a \uD83D\uDE00 and a \u0001 control.",
+            "\u0420\u0443\u0441\u0441\u043A\u0438\u0439 \u0442\u0435\u043A\u0441\u0442 \u4E2D\u6587" };
+
+    private static final char[] SOURCE;
+
+    static {
+        StringBuilder sb = new StringBuilder(2 * 1024 * 1024);
+        while (sb.length() < 2 * 1024 * 1024) {
+            sb.append("<p class=\"x\">Some text, \u00E9t\u00E9 \uD83D\uDE00 & \"quotes\"</p>\n");
+        }
+        SOURCE = sb.toString().toCharArray();
+    }
+
+    private interface Serializers {
+        JsonHandler create(OutputStream out);
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static long bytes;
+
+    private static void write(JsonHandler handler) throws SAXException {
+        handler.startDocument(null);
+        handler.startObject();
+        handler.key("messages");
+        handler.startArray();
+        for (int i = 0; i < MESSAGES; i++) {
+            handler.startObject();
+            handler.key("type");
+            handler.string("error");
+            handler.key("lastLine");
+            handler.number(i);
+            handler.key("message");
+            handler.string(TEXTS[i % TEXTS.length]);
+            handler.key("extract");
+            handler.string(TEXTS[(i + 1) % TEXTS.length]);
+            handler.endObject();
+        }
+        handler.endArray();
+        handler.key("source");
+        handler.startObject();
+        handler.key("code");
+        handler.startString();
+        for (int i = 0; i < SOURCE.length; i += CHUNK) {
+            handler.characters(SOURCE, i, Math.min(CHUNK, SOURCE.length - i));
+        }
+        handler.endString();
+        handler.endObject();
+        handler.endObject();
+        handler.endDocument();
+    }
+
+    private static long round(Serializers serializers) throws SAXException {
+        CountingOutputStream out = new CountingOutputStream();
+        long start = System.nanoTime();
+        write(serializers.create(out));
+        long time = System.nanoTime() - start;
+        bytes = out.count;
+        return time;
+    }
+
+    private static void measure(String name, Serializers serializers)
+            throws SAXException {
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            round(serializers);
+        }
+        long[] times = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            times[i] = round(serializers);
+        }
+        Arrays.sort(times);
+        System.out.printf("%-20s best %7.2f ms  median %7.2f ms  %d bytes%n",
+                name, times[0] / 1e6, times[ROUNDS / 2] / 1e6, bytes);
+    }
+
+    public static void main(String[] args) throws SAXException {
+        measure("ReferenceSerializer", new Serializers() {
+            @Override
+            public JsonHandler create(OutputStream out) {
+                return new ReferenceSerializer(out);
+            }
+        });
+        measure("Serializer", new Serializers() {
+            @Override
+            public JsonHandler create(OutputStream out) {
+                return new Serializer(out);
+            }
+        });
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.json.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import nu.validator.json.JsonHandler;
+import nu.validator.json.Serializer;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Checks that <code>Serializer</code> writes the same bytes as
+ * <code>ReferenceSerializer</code>, the implementation it replaced. Fixed
+ * documents cover message strings with every control character, quotes,
+ * backslashes, <code>&lt;/</code>, line and paragraph separators, non-ASCII
+ * text, surrogate pairs whole and split across <code>characters</code>
+ * calls, unpaired surrogates, a JSONP callback and strings longer than the
+ * output buffer. Random documents then mix these with random chunking.
+ *
+ * <p>Usage: <code>SerializerTester [COUNT [SEED]]</code>, where
+ * <code>COUNT</code> is the number of random documents.
+ */
+public class SerializerTester {
+
+    private interface Document {
+        void write(JsonHandler handler) throws SAXException;
+    }
+
+    private interface Serializers {
+        JsonHandler create(OutputStream out);
+    }
+
+    private static final Serializers NEW = new Serializers() {
+        @Override
+        public JsonHandler create(OutputStream out) {
+            return new Serializer(out);
+        }
+    };
+
+    private static final Serializers REFERENCE = new Serializers() {
+        @Override
+        public JsonHandler create(OutputStream out) {
+            return new ReferenceSerializer(out);
+        }
+    };
+
+    private static final String[] PIECES = { "a", "Bad value", " ", "\"",
+            "\\", "/", "</", "</script>", "<!--", "\u0000", "\u0008", "\t",
+            "\n", "\u000C", "\r", "\u001B", "\u001F", "\u007F", "\u0085",
+            "\u00A0", "\u00E9", "\u2028", "\u2029", "\u20AC", "\uFEFF",
+            "\uFFFD", "\uFFFF", "\uD83D\uDE00", "\uD800", "\uDFFF",
+            "\uDBFF\uDFFF", "\u0440\u0443\u0441" };
+
+    private static final int MAX_SHOWN = 10;
+
+    private static byte[] serialize(Serializers serializers,
+            Document document) throws SAXException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.write(serializers.create(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a message the way the JSON message emitter does, with the
+     * message text passed in the given chunks.
+     */
+    private static void message(JsonHandler handler, String type,
+            String[] chunks) throws SAXException {
+        handler.startObject();
+        handler.key("type");
+        handler.string(type);
+        handler.key("lastLine");
+        handler.number(12);
+        handler.key("firstColumn");
+        handler.number(3L);
+        handler.key("message");
+        handler.startString();
+        for (String chunk : chunks) {
+            char[] ch = ("[" + chunk + "]").toCharArray();
+            // Pass the chunk from an offset into a larger array.
+            handler.characters(ch, 1, ch.length - 2);
+        }
+        handler.endString();
+        handler.key("extract");
+        handler.string(null);
+        handler.endObject();
+    }
+
+    private static Document messages(final String callback,
+            final String[]... messages) {
+        return new Document() {
+            @Override
+            public void write(JsonHandler handler) throws SAXException {
+                handler.startDocument(callback);
+                handler.startObject();
+                handler.key("messages");
+                handler.startArray();
+                for (String[] chunks : messages) {
+                    message(handler, "error", chunks);
+                }
+                handler.endArray();
+                handler.key("key \"</\u0001\uD83D\uDE00");
+                handler.startArray();
+                handler.bool(true);
+                handler.bool(false);
+                handler.number(1.5f);
+                handler.number(-0.25d);
+                handler.number(Double.NaN);
+                handler.startArray();
+                handler.endArray();
+                handler.startObject();
+                handler.endObject();
+                handler.string("");
+                handler.endArray();
+                handler.endObject();
+                handler.endDocument();
+            }
+        };
+    }
+
+    private static String controls() {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 0x20; c++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String longString(int length, String tail) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            sb.append("abcdefg\u00E9");
+        }
+        sb.setLength(length);
+        return sb.append(tail).toString();
+    }
+
+    private static Object[][] fixed() {
+        return new Object[][] {
+                { "control characters", messages(null,
+                        new String[] { controls() }) },
+                { "quotes and backslashes", messages(null,
+                        new String[] { "\"a\\\"b\\\\\"" }) },
+                { "end tags", messages(null,
+                        new String[] { "</script><script>alert(1)</script>" },
+                        new String[] { "</", "/", "<", "/" }) },
+                { "separators", messages(null,
+                        new String[] { "a\u2028b\u2029c\u0085d" }) },
+                { "surrogate pair", messages(null,
+                        new String[] { "x\uD83D\uDE00y\uDBFF\uDFFF" }) },
+                { "split surrogate pair", messages(null,
+                        new String[] { "x\uD83D", "\uDE00y" },
+                        new String[] { "\uD83D", "\uDE00" }) },
+                { "unpaired surrogates", messages(null,
+                        new String[] { "a\uD800b" },
+                        new String[] { "\uDFFFa" },
+                        new String[] { "a\uD800" },
+                        new String[] { "\uD800\uD800\uDC00" }) },
+                { "unpaired surrogate at end of string", messages(null,
+                        new String[] { "a\uD83D" }, new String[] { "\uDE00" }) },
+                { "callback", messages("cb",
+                        new String[] { "text" }) },
+                { "strings longer than the buffer", messages(null,
+                        new String[] { longString(40000, "\uD83D\uDE00") },
+                        new String[] { longString(32767, "\u20AC"),
+                                longString(32766, "\uD83D"), "\uDE00" }) },
+                { "source-sized string", messages(null,
+                        new String[] { longString(2 * 1024 * 1024, "</") }) }, };
+    }
+
+    private static Document random(Random random) {
+        String[][] messages = new String[1 + random.nextInt(20)][];
+        for (int i = 0; i < messages.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int pieces = random.nextInt(30);
+            for (int j = 0; j < pieces; j++) {
+                sb.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            String text = sb.toString();
+            // Split anywhere, including between the halves of a pair.
+            int chunks = 1 + random.nextInt(4);
+            messages[i] = new String[chunks];
+            int start = 0;
+            for (int j = 0; j < chunks; j++) {
+                int end = j == chunks - 1 ? text.length()
+                        : start + random.nextInt(text.length() - start + 1);
+                messages[i][j] = text.substring(start, end);
+                start = end;
+            }
+        }
+        return messages(random.nextInt(4) == 0 ? "f" : null, messages);
+    }
+
+    private static String show(byte[] bytes) throws IOException {
+        String s = new String(bytes, "UTF-8");
+        return s.length() > 200 ? s.substring(0, 200) + "\u2026" : s;
+    }
+
+    private static boolean compare(String name, Document document)
+            throws SAXException, IOException {
+        byte[] expected = serialize(REFERENCE, document);
+        byte[] actual = serialize(NEW, document);
+        if (Arrays.equals(expected, actual)) {
+            return true;
+        }
+        System.out.println(name + ":");
+        System.out.println("  reference: " + show(expected));
+        System.out.println("  new:       " + show(actual));
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int failures = 0;
+        for (Object[] test : fixed()) {
+            boolean same = compare((String) test[0], (Document) test[1]);
+            System.out.println((same ? "same: " : "DIFFERENT: ") + test[0]);
+            if (!same) {
+                failures++;
+            }
+        }
+        Random random = new Random(seed);
+        int differences = 0;
+        for (int i = 0; i < count; i++) {
+            Document document = random(random);
+            boolean shown = differences < MAX_SHOWN;
+            if (!(shown ? compare("random document " + i, document)
+                    : Arrays.equals(serialize(REFERENCE, document),
+                            serialize(NEW, document)))) {
+                differences++;
+            }
+        }
+        System.out.println(count + " random documents, " + differences
+                + " different");
+        if (failures > 0 || differences > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.localentities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import nu.validator.datatype.data.LanguageData;
+import nu.validator.spec.Spec;
+import nu.validator.spec.html5.Html5SpecBuilder;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * Loads data structures that are expensive to build from their source files
+ * (the HTML spec excerpts and the language subtag registry) from a binary
+ * snapshot made at build time by running this class.
+ *
+ * <p>Each section of the snapshot records a checksum of its source file
+ * (and of any setting that affects the result), so a snapshot that does not
+ * match the files actually packaged is ignored and the data is parsed as
+ * before. Setting the <code>nu.validator.localentities.snapshot</code>
+ * system property to <code>0</code> disables the snapshot.
+ */
+public final class StartupSnapshot {
+
+    private static final Logger log4j = Logger.getLogger(StartupSnapshot.class);
+
+    private static final String RESOURCE = "nu/validator/localentities/files/startup-snapshot";
+
+    private static final String HTML5_SPEC = "html5-spec";
+
+    private static final String LANGUAGE_DATA = "language-data";
+
+    private static final int MAGIC = 0x766E7553;
+
+    private static final int VERSION = 1;
+
+    private static final boolean ENABLED = !"0".equals(System.getProperty(
+            "nu.validator.localentities.snapshot"));
+
+    private static final ClassLoader LOADER = StartupSnapshot.class.getClassLoader();
+
+    private StartupSnapshot() {
+    }
+
+    /**
+     * Returns the HTML spec excerpts, from the snapshot if it is current.
+     */
+    public static Spec loadHtml5Spec() throws IOException, SAXException {
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = openSection(HTML5_SPEC, html5SpecKey())) {
+            if (in != null) {
+                Spec spec = Spec.readFrom(in);
+                log4j.debug(String.format(
+                        "Spec read from startup snapshot in %d ms.",
+                        System.currentTimeMillis() - start));
+                return spec;
+            }
+        } catch (IOException | SAXException e) {
+            log4j.warn("Unusable startup snapshot; parsing the spec.", e);
+        }
+        Spec spec = Html5SpecBuilder.parseSpec(
+                LocalCacheEntityResolver.getHtml5SpecAsStream());
+        log4j.debug(String.format("Spec parsed in %d ms.",
+                System.currentTimeMillis() - start));
+        return spec;
+    }
+
+    /**
+     * Returns the language subtag data, from the snapshot if it is current.
+     */
+    public static LanguageData loadLanguageData() throws IOException {
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = openSection(LANGUAGE_DATA,
+                languageDataKey())) {
+            if (in != null) {
+                LanguageData data = LanguageData.readFrom(in);
+                log4j.debug(String.format(
+                        "Language data read from startup snapshot in %d ms.",
+                        System.currentTimeMillis() - start));
+                return data;
+            }
+        } catch (IOException e) {
+            log4j.warn("Unusable startup snapshot; parsing the registry.", e);
+        }
+        LanguageData data = new LanguageData();
+        log4j.debug(String.format("Language data parsed in %d ms.",
+                System.currentTimeMillis() - start));
+        return data;
+    }
+
+    private static String html5SpecKey() throws IOException {
+        return checksum("nu/validator/localentities/files/html5spec") + " "
+                + System.getProperty("nu.validator.spec.html5-link",
+                        "https://html.spec.whatwg.org/multipage/");
+    }
+
+    private static String languageDataKey() throws IOException {
+        return checksum("nu/validator/localentities/files/subtag-registry");
+    }
+
+    private static String checksum(String resource) throws IOException {
+        try (InputStream in = LOADER.getResourceAsStream(resource)) {
+            if (in == null) {
+                return "missing";
+            }
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+            return Long.toHexString(crc.getValue());
+        }
+    }
+
+    /**
+     * Returns a stream positioned at the start of the named section or
+     * <code>null</code> if there is no snapshot, no such section or the
+     * section was made from different source data.
+     */
+    private static DataInputStream openSection(String name, String key)
+            throws IOException {
+        if (!ENABLED) {
+            return null;
+        }
+        InputStream stream = LOADER.getResourceAsStream(RESOURCE);
+        if (stream == null) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(stream, 65536));
+        boolean found = false;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log4j.debug("Startup snapshot has a different format.");
+                return null;
+            }
+            int sections = in.readInt();
+            for (int i = 0; i < sections; i++) {
+                String sectionName = in.readUTF();
+                String sectionKey = in.readUTF();
+                int length = in.readInt();
+                if (name.equals(sectionName)) {
+                    if (key.equals(sectionKey)) {
+                        found = true;
+                        return in;
+                    }
+                    log4j.info("Startup snapshot section " + name
+                            + " is stale.");
+                    return null;
+                }
+                while (length > 0) {
+                    int skipped = in.skipBytes(length);
+                    if (skipped <= 0) {
+                        throw new IOException("Truncated startup snapshot.");
+                    }
+                    length -= skipped;
+                }
+            }
+            return null;
+        } finally {
+            if (!found) {
+                in.close();
+            }
+        }
+    }
+
+    private static void writeSection(DataOutputStream out, String name,
+            String key, ByteArrayOutputStream section) throws IOException {
+        out.writeUTF(name);
+        out.writeUTF(key);
+        out.writeInt(section.size());
+        section.writeTo(out);
+    }
+
+    /**
+     * Writes the snapshot. Run at build time with the local entities on the
+     * class path.
+     *
+     * @param args
+     *            the path of the snapshot file to write
+     */
+    public static void main(String[] args) throws IOException, SAXException {
+        if (args.length != 1) {
+            System.err.println("Usage: java nu.validator.localentities.StartupSnapshot FILE");
+            System.exit(1);
+        }
+        ByteArrayOutputStream spec = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(spec)) {
+            Html5SpecBuilder.parseSpec(
+                    LocalCacheEntityResolver.getHtml5SpecAsStream()).writeTo(
+                            out);
+        }
+        ByteArrayOutputStream languageData = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(languageData)) {
+            new LanguageData().writeTo(out);
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(args[0])))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(2);
+            writeSection(out, HTML5_SPEC, html5SpecKey(), spec);
+            writeSection(out, LANGUAGE_DATA, languageDataKey(), languageData);
+        }
+    }
+}
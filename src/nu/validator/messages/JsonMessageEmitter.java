@@ -22,6 +22,7 @@
 
 package nu.validator.messages;
 
+import nu.validator.checker.CheckerTimings;
 import nu.validator.json.JsonHandler;
 import nu.validator.messages.types.MessageType;
 import nu.validator.source.SourceHandler;
@@ -39,6 +40,8 @@ public class JsonMessageEmitter extends MessageEmitter {
     private final JsonMessageTextHandler messageTextHandler;
     
     private boolean arrayOpen;
+
+    private CheckerTimings checkerTimings;
     
     /**
      * @param handler
@@ -52,6 +55,17 @@ public class JsonMessageEmitter extends MessageEmitter {
                 asciiQuotes);
     }
 
+    /**
+     * Makes the output end with the time spent in each checker, in
+     * milliseconds, under the key <code>timings</code>.
+     *
+     * @param checkerTimings
+     *            the timings or <code>null</code> for none
+     */
+    public void setCheckerTimings(CheckerTimings checkerTimings) {
+        this.checkerTimings = checkerTimings;
+    }
+
     @Override
     public void endMessage() throws SAXException {
         handler.endObject();
@@ -110,6 +124,15 @@ public class JsonMessageEmitter extends MessageEmitter {
             handler.key("language");
             handler.string(language);
         }
+        if (checkerTimings != null) {
+            handler.key("timings");
+            handler.startObject();
+            for (String name : checkerTimings.getNames()) {
+                handler.key(name);
+                handler.number(checkerTimings.getNanos(name) / 1000000.0);
+            }
+            handler.endObject();
+        }
         handler.endObject();
         handler.endDocument();
     }
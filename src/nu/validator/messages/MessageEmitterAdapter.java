@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +36,7 @@ import java.util.regex.Pattern;
 import java.util.Set;
 
 import nu.validator.checker.NormalizationChecker;
+import nu.validator.checker.TimeBudgetExceededException;
 import nu.validator.checker.DatatypeMismatchException;
 import nu.validator.checker.VnuBadAttrValueException;
 import nu.validator.checker.VnuBadElementNameException;
@@ -43,7 +45,6 @@ import nu.validator.io.DataUri;
 import nu.validator.io.SystemIdIOException;
 import nu.validator.messages.types.MessageType;
 import nu.validator.saxtree.DocumentFragment;
-import nu.validator.saxtree.TreeParser;
 import nu.validator.servlet.imagereview.Image;
 import nu.validator.servlet.imagereview.ImageCollector;
 import nu.validator.source.Location;
@@ -175,6 +176,12 @@ public class MessageEmitterAdapter implements ErrorHandler {
     private static final long MAX_MESSAGES = Integer.parseInt(System.getProperty(
             "nu.validator.messages.limit", "1000"));
 
+    private static final int AGGREGATE_AFTER = Integer.parseInt(System.getProperty(
+            "nu.validator.messages.aggregate", "0"));
+
+    private static final int AGGREGATE_LOCATIONS = Integer.parseInt(System.getProperty(
+            "nu.validator.messages.aggregate.locations", "10"));
+
     private static final Map<String, String[]> validInputTypesByAttributeName = new TreeMap<>();
 
     static {
@@ -434,6 +441,45 @@ public class MessageEmitterAdapter implements ErrorHandler {
 
     private boolean errorsOnly = false;
 
+    private final boolean verdictOnly;
+
+    private boolean failFast = false;
+
+    /**
+     * Occurrences of a repeated message beyond those that were reported
+     * individually.
+     */
+    private static final class Occurrences {
+
+        final MessageType type;
+
+        final String systemId;
+
+        final String message;
+
+        int shown;
+
+        int suppressed;
+
+        final int[] lines = new int[AGGREGATE_LOCATIONS];
+
+        final int[] columns = new int[AGGREGATE_LOCATIONS];
+
+        int locations;
+
+        Occurrences(MessageType type, String systemId, String message) {
+            this.type = type;
+            this.systemId = systemId;
+            this.message = message;
+        }
+    }
+
+    private int aggregateAfter = AGGREGATE_AFTER;
+
+    private final Map<String, Occurrences> occurrences = new LinkedHashMap<>();
+
+    private int suppressed = 0;
+
     @SuppressWarnings("deprecation")
     protected static String scrub(String s) throws SAXException {
         if (s == null) {
@@ -457,8 +503,14 @@ public class MessageEmitterAdapter implements ErrorHandler {
         return builder;
     }
 
+    private void throwIfFailFast() throws SAXException {
+        if (failFast && errors > 0) {
+            throw new FailFastException();
+        }
+    }
+
     private void throwIfTooManyMessages() throws SAXException {
-        if (!batchMode && (warnings + errors > MAX_MESSAGES)) {
+        if (!batchMode && (warnings + errors - suppressed > MAX_MESSAGES)) {
             throw new TooManyErrorsException("Too many messages.");
         }
     }
@@ -475,6 +527,10 @@ public class MessageEmitterAdapter implements ErrorHandler {
         this.lineOffset = lineOffset;
         this.batchMode = batchMode;
         this.imageCollector = imageCollector;
+        this.verdictOnly = messageEmitter instanceof StatusMessageEmitter;
+        if (verdictOnly && sourceCode != null) {
+            sourceCode.setRetainSource(false);
+        }
     }
 
     /**
@@ -490,6 +546,7 @@ public class MessageEmitterAdapter implements ErrorHandler {
         this.lineOffset = 0;
         this.batchMode = false;
         this.imageCollector = null;
+        this.verdictOnly = false;
     }
 
     /**
@@ -513,6 +570,16 @@ public class MessageEmitterAdapter implements ErrorHandler {
         return warnings;
     }
 
+    /**
+     * Counts messages that were emitted without going through this adapter,
+     * such as messages replayed from a cache.
+     */
+    public void addCounts(int errors, int warnings, int fatalErrors) {
+        this.errors += errors;
+        this.warnings += warnings;
+        this.fatalErrors += fatalErrors;
+    }
+
     private boolean isErrors() {
         return !(errors == 0 && fatalErrors == 0);
     }
@@ -537,7 +604,6 @@ public class MessageEmitterAdapter implements ErrorHandler {
         if (!FILE_NOT_CHECKED.matcher(e.getMessage()).matches()) {
             this.warnings++;
         }
-        throwIfTooManyMessages();
         messageFromSAXParseException(MessageType.WARNING, e, exact, null);
     }
 
@@ -577,7 +643,6 @@ public class MessageEmitterAdapter implements ErrorHandler {
                     Html5DatatypeException ex5 = (Html5DatatypeException) dex;
                     if (ex5.isWarning()) {
                         this.warnings++;
-                        throwIfTooManyMessages();
                         messageFromSAXParseException(MessageType.WARNING, e,
                                 exact, null);
                         return;
@@ -586,8 +651,8 @@ public class MessageEmitterAdapter implements ErrorHandler {
             }
         }
         this.errors++;
-        throwIfTooManyMessages();
         messageFromSAXParseException(MessageType.ERROR, e, exact, null);
+        throwIfFailFast();
     }
 
     public void errorWithStart(SAXParseException e, int[] start)
@@ -596,13 +661,13 @@ public class MessageEmitterAdapter implements ErrorHandler {
             return;
         }
         this.errors++;
-        throwIfTooManyMessages();
         int startLine = start[0];
         int startColumn = start[1];
         int lastLine = e.getLineNumber();
         int lastColumn = e.getColumnNumber();
         boolean exact = (startLine == lastLine && startColumn == lastColumn);
         messageFromSAXParseException(MessageType.ERROR, e, exact, start);
+        throwIfFailFast();
     }
 
     /**
@@ -619,7 +684,8 @@ public class MessageEmitterAdapter implements ErrorHandler {
      */
     private void fatalError(SAXParseException e, boolean exact)
             throws SAXException {
-        if ((!batchMode && fatalErrors > 0) || nonDocumentErrors > 0) {
+        if ((!batchMode && fatalErrors > 0) || nonDocumentErrors > 0
+                || e instanceof FailFastException) {
             return;
         }
         this.fatalErrors++;
@@ -664,6 +730,16 @@ public class MessageEmitterAdapter implements ErrorHandler {
         message(MessageType.SCHEMA, e, null, -1, -1, false, null);
     }
 
+    /**
+     * Reports that checking was stopped because it ran out of time. The
+     * messages reported before stand; the result is indeterminate.
+     */
+    public void timeBudgetExceeded(TimeBudgetExceededException e)
+            throws SAXException {
+        this.nonDocumentErrors++;
+        message(MessageType.NON_DOCUMENT, e, null, -1, -1, false, null);
+    }
+
     public void start(String documentUri) throws SAXException {
         emitter.startMessages(scrub(shortenDataUri(documentUri)), showSource);
     }
@@ -678,6 +754,7 @@ public class MessageEmitterAdapter implements ErrorHandler {
 
     public void end(String successMessage, String failureMessage,
             String language) throws SAXException {
+        emitAggregates();
         ResultHandler resultHandler = emitter.startResult();
         if (resultHandler != null) {
             if (isIndeterminate()) {
@@ -724,6 +801,10 @@ public class MessageEmitterAdapter implements ErrorHandler {
             }
             emitter.endFullSource();
         }
+        if (verdictOnly) {
+            ((StatusMessageEmitter) emitter).setCounts(errors, warnings,
+                    fatalErrors);
+        }
         emitter.endMessages(language);
     }
 
@@ -810,6 +891,10 @@ public class MessageEmitterAdapter implements ErrorHandler {
             }
             return;
         }
+        if (verdictOnly) {
+            throwIfTooManyMessages();
+            return;
+        }
         if (loggingOk
                 && (type.getSuperType() == "error")
                 && spec != EmptySpec.THE_INSTANCE
@@ -822,6 +907,12 @@ public class MessageEmitterAdapter implements ErrorHandler {
         if (errorsOnly && type.getSuperType() == "info") {
             return;
         }
+        if (aggregateAfter > 0 && msg != null
+                && aggregate(type, msg, systemId, oneBasedLine,
+                        oneBasedColumn)) {
+            return;
+        }
+        throwIfTooManyMessages();
         String uri = sourceCode.getUri();
         if (oneBasedLine > -1
                 && (uri == systemId || (uri != null && uri.equals(systemId)))) {
@@ -842,6 +933,89 @@ public class MessageEmitterAdapter implements ErrorHandler {
         }
     }
 
+    /**
+     * Counts an occurrence of a message and returns <code>true</code> if it
+     * should not be reported individually because the same message has
+     * already been reported <code>aggregateAfter</code> times.
+     */
+    private boolean aggregate(MessageType type, String msg, String systemId,
+            int oneBasedLine, int oneBasedColumn) {
+        if (type != MessageType.ERROR && type != MessageType.WARNING
+                && type != MessageType.INFO) {
+            return false;
+        }
+        String normalized = normalizeForAggregation(msg);
+        String key = type.getSubType() + '\u0000' + systemId + '\u0000'
+                + normalized;
+        Occurrences group = occurrences.get(key);
+        if (group == null) {
+            group = new Occurrences(type, systemId, normalized);
+            occurrences.put(key, group);
+        }
+        if (group.shown < aggregateAfter) {
+            group.shown++;
+            return false;
+        }
+        group.suppressed++;
+        if (type != MessageType.INFO) {
+            suppressed++;
+        }
+        if (oneBasedLine > -1 && group.locations < AGGREGATE_LOCATIONS) {
+            group.lines[group.locations] = oneBasedLine;
+            group.columns[group.locations] = oneBasedColumn;
+            group.locations++;
+        }
+        return true;
+    }
+
+    private static String normalizeForAggregation(String msg) {
+        StringBuilder sb = new StringBuilder(msg.length());
+        boolean space = false;
+        for (int i = 0; i < msg.length(); i++) {
+            char c = msg.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reports one message per repeated message that had occurrences left
+     * out, with their number and the first few locations.
+     */
+    private void emitAggregates() throws SAXException {
+        for (Occurrences group : occurrences.values()) {
+            if (group.suppressed == 0) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(group.message);
+            sb.append(" (").append(group.suppressed).append(
+                    group.suppressed == 1 ? " more occurrence" : " more occurrences");
+            for (int i = 0; i < group.locations; i++) {
+                sb.append(i == 0 ? ": " : "; ");
+                sb.append("line ").append(group.lines[i]);
+                if (group.columns[i] > -1) {
+                    sb.append(", column ").append(group.columns[i]);
+                }
+            }
+            if (group.suppressed > group.locations && group.locations > 0) {
+                sb.append("; and ").append(
+                        group.suppressed - group.locations).append(" more");
+            }
+            sb.append(".)");
+            messageWithoutExtract(group.type, new Exception(sb.toString()),
+                    group.systemId, -1, -1);
+        }
+        occurrences.clear();
+    }
+
     private void messageWithRange(MessageType type, Exception message,
             String systemId, int oneBasedLine, int oneBasedColumn, int[] start)
             throws SAXException {
@@ -1460,11 +1634,10 @@ public class MessageEmitterAdapter implements ErrorHandler {
         if (!fragments.isEmpty()) {
             ContentHandler ch = emitter.startElaboration();
             if (ch != null) {
-                TreeParser treeParser = new TreeParser(ch, null);
                 XhtmlSaxEmitter xhtmlSaxEmitter = new XhtmlSaxEmitter(ch);
                 xhtmlSaxEmitter.startElement("dl");
                 for (DocumentFragment fragment : fragments) {
-                    treeParser.parse(fragment);
+                    SerializedFragments.emit(ch, fragment);
                 }
                 xhtmlSaxEmitter.endElement("dl");
             }
@@ -1482,11 +1655,10 @@ public class MessageEmitterAdapter implements ErrorHandler {
         if (dds != null) {
             ContentHandler ch = emitter.startElaboration();
             if (ch != null) {
-                TreeParser treeParser = new TreeParser(ch, null);
                 XhtmlSaxEmitter xhtmlSaxEmitter = new XhtmlSaxEmitter(ch);
                 xhtmlSaxEmitter.startElement("dl");
                 emitContentModelDt(xhtmlSaxEmitter, elt);
-                treeParser.parse(dds);
+                SerializedFragments.emit(ch, dds);
                 xhtmlSaxEmitter.endElement("dl");
             }
             emitter.endElaboration();
@@ -1500,16 +1672,15 @@ public class MessageEmitterAdapter implements ErrorHandler {
         if (contentModelDds != null || contextDds != null) {
             ContentHandler ch = emitter.startElaboration();
             if (ch != null) {
-                TreeParser treeParser = new TreeParser(ch, null);
                 XhtmlSaxEmitter xhtmlSaxEmitter = new XhtmlSaxEmitter(ch);
                 xhtmlSaxEmitter.startElement("dl");
                 if (contextDds != null) {
                     emitContextDt(xhtmlSaxEmitter, child);
-                    treeParser.parse(contextDds);
+                    SerializedFragments.emit(ch, contextDds);
                 }
                 if (contentModelDds != null) {
                     emitContentModelDt(xhtmlSaxEmitter, parent);
-                    treeParser.parse(contentModelDds);
+                    SerializedFragments.emit(ch, contentModelDds);
                 }
                 xhtmlSaxEmitter.endElement("dl");
             }
@@ -1540,11 +1711,10 @@ public class MessageEmitterAdapter implements ErrorHandler {
             if (dds != null) {
                 ContentHandler ch = emitter.startElaboration();
                 if (ch != null) {
-                    TreeParser treeParser = new TreeParser(ch, null);
                     XhtmlSaxEmitter xhtmlSaxEmitter = new XhtmlSaxEmitter(ch);
                     xhtmlSaxEmitter.startElement("dl");
                     emitElementSpecificAttributesDt(xhtmlSaxEmitter, elt);
-                    treeParser.parse(dds);
+                    SerializedFragments.emit(ch, dds);
                     xhtmlSaxEmitter.endElement("dl");
                 }
                 emitter.endElaboration();
@@ -1779,6 +1949,29 @@ public class MessageEmitterAdapter implements ErrorHandler {
         this.errorsOnly = errorsOnly;
     }
 
+    /**
+     * Sets how many occurrences of the same message are reported
+     * individually before further occurrences are only counted and listed
+     * in a single message at the end. Zero reports every occurrence.
+     *
+     * @param aggregateAfter
+     *            the number of occurrences to report individually
+     */
+    public void setAggregateAfter(int aggregateAfter) {
+        this.aggregateAfter = aggregateAfter;
+    }
+
+    /**
+     * Sets whether parsing stops with a <code>FailFastException</code> as
+     * soon as an error has been counted.
+     *
+     * @param failFast
+     *            <code>true</code> to stop at the first error
+     */
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
     /**
      * @throws SAXException
      * @see nu.validator.messages.MessageEmitter#endMessage()
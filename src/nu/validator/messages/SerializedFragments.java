@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.messages;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nu.validator.saxtree.DocumentFragment;
+import nu.validator.saxtree.TreeParser;
+import nu.validator.xml.SplicingHtmlSerializer;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Writes the spec and advice fragments used in message elaborations.
+ *
+ * <p>The fragments come from the spec and the advice files, which do not
+ * change while the validator runs, and the same few are written for every
+ * repeated error on a page. When the output is a
+ * <code>SplicingHtmlSerializer</code>, as for <code>out=html</code>
+ * results, each fragment is serialized the first time it is used and its
+ * markup is written directly after that instead of walking the tree again.
+ * Other content handlers get the SAX events as before.
+ */
+final class SerializedFragments {
+
+    private static final ConcurrentMap<DocumentFragment, char[]> HTML = new ConcurrentHashMap<>();
+
+    private SerializedFragments() {
+    }
+
+    /**
+     * Writes a fragment to a content handler.
+     *
+     * @param contentHandler
+     *            the handler to write to
+     * @param fragment
+     *            the fragment
+     * @throws SAXException
+     *             if the handler throws
+     */
+    static void emit(ContentHandler contentHandler, DocumentFragment fragment)
+            throws SAXException {
+        if (contentHandler instanceof SplicingHtmlSerializer) {
+            char[] markup = HTML.get(fragment);
+            if (markup == null) {
+                markup = SplicingHtmlSerializer.serialize(fragment);
+                HTML.putIfAbsent(fragment, markup);
+            }
+            ((SplicingHtmlSerializer) contentHandler).writeSerialized(markup);
+        } else {
+            new TreeParser(contentHandler, null).parse(fragment);
+        }
+    }
+}
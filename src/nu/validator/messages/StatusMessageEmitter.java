@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.messages;
+
+import java.util.Locale;
+
+import nu.validator.json.JsonHandler;
+import nu.validator.messages.types.MessageType;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Reports only the verdict and the message counts as a small JSON object,
+ * for example <code>{"result":"failure","errors":2,"warnings":0,"fatalErrors":0}</code>.
+ * 
+ * <p><code>MessageEmitterAdapter</code> does not format individual messages
+ * or keep the source when it emits to this class.
+ */
+public class StatusMessageEmitter extends MessageEmitter implements
+        ResultHandler {
+
+    private final JsonHandler handler;
+
+    private final String callback;
+
+    private Result result = Result.INDETERMINATE;
+
+    private int errors;
+
+    private int warnings;
+
+    private int fatalErrors;
+
+    public StatusMessageEmitter(final JsonHandler handler, final String callback) {
+        this.handler = handler;
+        this.callback = callback;
+    }
+
+    void setCounts(int errors, int warnings, int fatalErrors) {
+        this.errors = errors;
+        this.warnings = warnings;
+        this.fatalErrors = fatalErrors;
+    }
+
+    @Override
+    public void startMessage(MessageType type, String systemId,
+            int oneBasedFirstLine, int oneBasedFirstColumn,
+            int oneBasedLastLine, int oneBasedLastColumn, boolean exact)
+            throws SAXException {
+    }
+
+    @Override
+    public void endMessage() throws SAXException {
+    }
+
+    @Override
+    public ResultHandler startResult() throws SAXException {
+        return this;
+    }
+
+    @Override
+    public void startResult(Result result) throws SAXException {
+        this.result = result;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length)
+            throws SAXException {
+    }
+
+    @Override
+    public void endResult() throws SAXException {
+    }
+
+    @Override
+    public void endMessages(String language) throws SAXException {
+        handler.startDocument(callback);
+        handler.startObject();
+        handler.key("result");
+        handler.string(result.name().toLowerCase(Locale.ROOT));
+        handler.key("errors");
+        handler.number(errors);
+        handler.key("warnings");
+        handler.number(warnings);
+        handler.key("fatalErrors");
+        handler.number(fatalErrors);
+        handler.endObject();
+        handler.endDocument();
+    }
+}
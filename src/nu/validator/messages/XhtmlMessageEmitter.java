@@ -25,7 +25,6 @@ package nu.validator.messages;
 
 import nu.validator.messages.types.MessageType;
 import nu.validator.saxtree.DocumentFragment;
-import nu.validator.saxtree.TreeParser;
 import nu.validator.servlet.imagereview.Image;
 import nu.validator.source.SourceHandler;
 import nu.validator.xml.AttributesImpl;
@@ -99,8 +98,6 @@ public class XhtmlMessageEmitter extends MessageEmitter implements ImageReviewHa
     private int oneBasedLastColumn;
 
     private boolean willShowSource;
-    
-    private final TreeParser treeParser;
 
     /**
      * @param contentHandler
@@ -111,7 +108,6 @@ public class XhtmlMessageEmitter extends MessageEmitter implements ImageReviewHa
         this.emitter = new XhtmlSaxEmitter(contentHandler);
         this.messageTextHandler = new XhtmlMessageTextHandler(emitter);
         this.extractHandler = new XhtmlExtractHandler(emitter);
-        this.treeParser = new TreeParser(contentHandler, null);
     }
 
     private void maybeOpenList() throws SAXException {
@@ -407,7 +403,7 @@ public class XhtmlMessageEmitter extends MessageEmitter implements ImageReviewHa
         this.emitter.endElement("h2");
 
         if (instruction != null) {
-            treeParser.parse(instruction);
+            SerializedFragments.emit(contentHandler, instruction);
         }
 
         return this;
@@ -513,7 +509,7 @@ public class XhtmlMessageEmitter extends MessageEmitter implements ImageReviewHa
         this.emitter.characters(heading);
         this.emitter.endElement("h3");               
         
-        treeParser.parse(instruction);
+        SerializedFragments.emit(contentHandler, instruction);
         
         this.emitter.startElementWithClass("table", "imagereview");     
         this.emitter.startElement("colgroup"); 
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.messages.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import nu.validator.htmlparser.sax.HtmlSerializer;
+import nu.validator.htmlparser.sax.XmlSerializer;
+import nu.validator.messages.XhtmlMessageEmitter;
+import nu.validator.saxtree.Characters;
+import nu.validator.saxtree.DocumentFragment;
+import nu.validator.saxtree.TreeBuilder;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Checks the serializer the servlet uses for <code>out=html</code>
+ * results against the parser's plain <code>HtmlSerializer</code>, which
+ * it replaced.
+ *
+ * <p>A page that writes the same spec fragment several times through
+ * <code>XhtmlMessageEmitter</code> must come out byte for byte the same
+ * from both. The fragment has escaped text and attribute values, void and
+ * boolean-attribute elements, a <code>pre</code> with a leading newline, a
+ * non-BMP character and an element from another namespace. Then the
+ * fragment is changed between two uses: the <code>out=html</code>
+ * serializer must write the markup cached on the first use, and the
+ * <code>out=xhtml</code> serializer must walk the changed tree.
+ *
+ * <p>The servlet's serializer factory is package-private, so it is looked
+ * up reflectively.
+ */
+public class SerializedFragmentsTester {
+
+    private static final String NS = "http://www.w3.org/1999/xhtml";
+
+    private static final char[] HEADING = "Images".toCharArray();
+
+    private static final char[] CHANGE = "changed".toCharArray();
+
+    private static void text(TreeBuilder builder, String text)
+            throws SAXException {
+        char[] ch = text.toCharArray();
+        builder.characters(ch, 0, ch.length);
+    }
+
+    private static DocumentFragment fragment() throws SAXException {
+        TreeBuilder builder = new TreeBuilder(false, true);
+        builder.startDocument();
+        AttributesImpl attrs = new AttributesImpl();
+        attrs.addAttribute("", "title", "title", "CDATA",
+                "a & b \"c\" <d> \u00A0");
+        builder.startElement(NS, "p", "p", attrs);
+        text(builder, "Spec text < & > \u00A0 \uD83D\uDE00.");
+        builder.startElement(NS, "br", "br", new AttributesImpl());
+        builder.endElement(NS, "br", "br");
+        attrs = new AttributesImpl();
+        attrs.addAttribute("", "disabled", "disabled", "CDATA", "");
+        attrs.addAttribute("", "type", "type", "CDATA", "checkbox");
+        builder.startElement(NS, "input", "input", attrs);
+        builder.endElement(NS, "input", "input");
+        builder.endElement(NS, "p", "p");
+        builder.startElement(NS, "pre", "pre", new AttributesImpl());
+        text(builder, "\n<code>");
+        builder.endElement(NS, "pre", "pre");
+        builder.startElement("http://www.w3.org/2000/svg", "svg", "svg",
+                new AttributesImpl());
+        builder.endElement("http://www.w3.org/2000/svg", "svg", "svg");
+        builder.endDocument();
+        return (DocumentFragment) builder.getRoot();
+    }
+
+    private interface Serializers {
+        ContentHandler create(OutputStream out);
+    }
+
+    /**
+     * Writes a page with the fragment in it three times, with an optional
+     * change to the fragment after the first time.
+     */
+    private static byte[] page(Serializers serializers, boolean change)
+            throws SAXException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ContentHandler serializer = serializers.create(out);
+        XhtmlMessageEmitter emitter = new XhtmlMessageEmitter(serializer);
+        DocumentFragment fragment = fragment();
+        serializer.startDocument();
+        serializer.startElement(NS, "html", "html", new AttributesImpl());
+        serializer.startElement(NS, "body", "body", new AttributesImpl());
+        for (int i = 0; i < 3; i++) {
+            emitter.startImageGroup(HEADING, fragment, true);
+            emitter.endImageGroup();
+            if (change && i == 0) {
+                fragment.appendChild(new Characters(null, CHANGE, 0,
+                        CHANGE.length));
+            }
+        }
+        serializer.endElement(NS, "body", "body");
+        serializer.endElement(NS, "html", "html");
+        serializer.endDocument();
+        return out.toByteArray();
+    }
+
+    private static boolean contains(byte[] page, char[] text) {
+        return new String(page, StandardCharsets.UTF_8).indexOf(
+                new String(text)) != -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Method newHtmlSerializer = Class.forName(
+                "nu.validator.servlet.VerifierServletTransaction").getDeclaredMethod(
+                "newHtmlSerializer", OutputStream.class);
+        newHtmlSerializer.setAccessible(true);
+        Serializers html = new Serializers() {
+            @Override
+            public ContentHandler create(OutputStream out) {
+                try {
+                    return (ContentHandler) newHtmlSerializer.invoke(null,
+                            out);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        Serializers plain = new Serializers() {
+            @Override
+            public ContentHandler create(OutputStream out) {
+                return new HtmlSerializer(out);
+            }
+        };
+        Serializers xhtml = new Serializers() {
+            @Override
+            public ContentHandler create(OutputStream out) {
+                return new XmlSerializer(out);
+            }
+        };
+        byte[] expected = page(plain, false);
+        byte[] actual = page(html, false);
+        boolean same = Arrays.equals(expected, actual);
+        boolean htmlCached = !contains(page(html, true), CHANGE);
+        boolean xhtmlCached = !contains(page(xhtml, true), CHANGE);
+        System.out.println("out=html page: "
+                + (same ? "identical" : "different") + " ("
+                + actual.length + " bytes)");
+        System.out.println("out=html: "
+                + (htmlCached ? "cached markup" : "tree walk"));
+        System.out.println("out=xhtml: "
+                + (xhtmlCached ? "cached markup" : "tree walk"));
+        if (!same) {
+            System.out.println("expected:");
+            System.out.println(new String(expected, StandardCharsets.UTF_8));
+            System.out.println("actual:");
+            System.out.println(new String(actual, StandardCharsets.UTF_8));
+        }
+        if (!same || !htmlCached || xhtmlCached) {
+            System.exit(1);
+        }
+    }
+}
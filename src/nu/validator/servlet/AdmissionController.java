@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.servlet;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the validations running at once when the
+ * <code>nu.validator.servlet.admission</code> system property is
+ * <code>1</code>.
+ *
+ * <p>Each validation reserves an estimate of the memory it needs, based on
+ * the size of the request body or, when the document is fetched or the
+ * body is chunked, on <code>nu.validator.servlet.max-file-size</code>. A
+ * validation starts when fewer than
+ * <code>nu.validator.servlet.admission.max-concurrent</code> validations
+ * are running and its estimate fits in what is left of
+ * <code>nu.validator.servlet.admission.memory-budget</code>. Otherwise the
+ * request waits in one of two lanes without holding a thread: documents of
+ * at most <code>nu.validator.servlet.admission.small-size</code> bytes are
+ * admitted before any larger ones, and the validation is started by
+ * whichever thread releases the permit it gets. Requests that find
+ * <code>nu.validator.servlet.admission.queue-size</code> requests waiting,
+ * or that wait longer than
+ * <code>nu.validator.servlet.admission.max-wait</code> milliseconds, get a
+ * 503 response with a <code>Retry-After</code> header. The counters are
+ * shown on the statistics page.
+ *
+ * <p>With <code>nu.validator.servlet.async</code>, requests are admitted
+ * after the fetch stage, so documents still downloading hold no permit.
+ */
+final class AdmissionController {
+
+    private static final Logger log4j = Logger.getLogger(AdmissionController.class);
+
+    static final AdmissionController CONTROLLER;
+
+    static {
+        if ("1".equals(System.getProperty("nu.validator.servlet.admission"))) {
+            CONTROLLER = new AdmissionController(
+                    Integer.parseInt(System.getProperty(
+                            "nu.validator.servlet.admission.max-concurrent",
+                            Integer.toString(2 * Runtime.getRuntime().availableProcessors()))),
+                    Long.parseLong(System.getProperty(
+                            "nu.validator.servlet.admission.memory-budget",
+                            Long.toString(Runtime.getRuntime().maxMemory() / 2))),
+                    Integer.parseInt(System.getProperty(
+                            "nu.validator.servlet.admission.queue-size",
+                            "100")),
+                    Long.parseLong(System.getProperty(
+                            "nu.validator.servlet.admission.max-wait",
+                            "10000")),
+                    Long.parseLong(System.getProperty(
+                            "nu.validator.servlet.admission.small-size",
+                            "65536")),
+                    Integer.parseInt(System.getProperty(
+                            "nu.validator.servlet.admission.retry-after",
+                            "5")));
+        } else {
+            CONTROLLER = null;
+        }
+    }
+
+    private static final long SIZE_LIMIT = Integer.parseInt(System.getProperty(
+            "nu.validator.servlet.max-file-size", "2097152"));
+
+    /**
+     * The memory a validation needs regardless of the document: parser,
+     * checker and emitter state.
+     */
+    private static final long BASE_COST = 1024 * 1024;
+
+    /**
+     * The memory a validation needs per byte of input: the decoded text,
+     * the copy kept by <code>SourceCode</code>, the parse events buffered
+     * for the checkers and the serialized messages.
+     */
+    private static final long COST_PER_BYTE = 12;
+
+    /**
+     * A permission to run one validation. Releasing it more than once has
+     * no effect.
+     */
+    final class Permit {
+
+        private final long cost;
+
+        private boolean released;
+
+        private Permit(long cost) {
+            this.cost = cost;
+        }
+
+        void release() {
+            List<Waiter> admittedWaiters;
+            synchronized (AdmissionController.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                running--;
+                reserved -= cost;
+                admittedWaiters = admitWaiters();
+            }
+            start(admittedWaiters);
+        }
+    }
+
+    /**
+     * What to do with a request once it is admitted or turned away.
+     */
+    interface Admission {
+
+        /**
+         * Starts the validation. Called on the thread that asked for
+         * admission if a permit is free and otherwise on the thread that
+         * releases one, so this must hand the work off rather than do it.
+         *
+         * @param permit
+         *            the permit to release once the validation is done
+         */
+        void admitted(Permit permit);
+
+        /**
+         * Finishes the request after a 503 response has been sent.
+         */
+        void rejected();
+    }
+
+    private static final class Waiter {
+
+        final long cost;
+
+        final HttpServletResponse response;
+
+        final Admission admission;
+
+        ScheduledFuture<?> timeout;
+
+        Permit permit;
+
+        Waiter(long cost, HttpServletResponse response, Admission admission) {
+            this.cost = cost;
+            this.response = response;
+            this.admission = admission;
+        }
+    }
+
+    private final int maxConcurrent;
+
+    private final long memoryBudget;
+
+    private final int queueSize;
+
+    private final long maxWait;
+
+    private final long smallSize;
+
+    private final String retryAfter;
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final ArrayDeque<Waiter> smallLane = new ArrayDeque<>();
+
+    private final ArrayDeque<Waiter> largeLane = new ArrayDeque<>();
+
+    private int running;
+
+    private long reserved;
+
+    private long admitted;
+
+    private long queued;
+
+    private long rejectedQueueFull;
+
+    private long rejectedTimedOut;
+
+    private int maxQueueDepth;
+
+    private AdmissionController(int maxConcurrent, long memoryBudget,
+            int queueSize, long maxWait, long smallSize, int retryAfter) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.memoryBudget = memoryBudget;
+        this.queueSize = queueSize;
+        this.maxWait = maxWait;
+        this.smallSize = smallSize;
+        this.retryAfter = Integer.toString(retryAfter);
+        this.timer = new ScheduledThreadPoolExecutor(1,
+                new ValidationDispatcher.NamedThreadFactory("vnu-admission-"));
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns the size of the document a request will check as far as it
+     * can be known before reading it.
+     */
+    private static long documentSize(HttpServletRequest request) {
+        long length = request.getContentLength();
+        if (length >= 0 && !"GET".equals(request.getMethod())) {
+            return Math.min(length, SIZE_LIMIT);
+        }
+        String query = request.getQueryString();
+        if ((length < 0 && "POST".equals(request.getMethod()))
+                || (query != null && (query.startsWith("doc=")
+                        || query.contains("&doc=")))) {
+            return SIZE_LIMIT;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a permit if one is free right away and nobody is waiting
+     * ahead of the request.
+     *
+     * @param request
+     *            the request
+     * @return a permit to release once the validation is done or
+     *         <code>null</code> if the request would have to wait
+     */
+    Permit tryAdmit(HttpServletRequest request) {
+        long size = documentSize(request);
+        long cost = cost(size);
+        synchronized (this) {
+            if (mayPass(size) && fits(cost)) {
+                return grant(cost);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Admits a request now or once a permit is released, without blocking
+     * the calling thread. A request that cannot be queued or that waits
+     * too long gets a 503 response.
+     *
+     * @param request
+     *            the request
+     * @param response
+     *            the response
+     * @param admission
+     *            what to do once the request is admitted or turned away
+     * @throws IOException
+     *             if sending the 503 response fails
+     */
+    void admit(HttpServletRequest request, HttpServletResponse response,
+            Admission admission) throws IOException {
+        long size = documentSize(request);
+        long cost = cost(size);
+        Permit permit = null;
+        synchronized (this) {
+            if (mayPass(size) && fits(cost)) {
+                permit = grant(cost);
+            } else if (smallLane.size() + largeLane.size() < queueSize) {
+                final Waiter waiter = new Waiter(cost, response, admission);
+                lane(size).add(waiter);
+                queued++;
+                maxQueueDepth = Math.max(maxQueueDepth,
+                        smallLane.size() + largeLane.size());
+                waiter.timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeOut(waiter);
+                    }
+                }, maxWait, TimeUnit.MILLISECONDS);
+                return;
+            } else {
+                rejectedQueueFull++;
+            }
+        }
+        if (permit != null) {
+            admission.admitted(permit);
+            return;
+        }
+        log4j.debug("Rejected a validation of " + size + " bytes.");
+        reject(response, admission);
+    }
+
+    private void timeOut(Waiter waiter) {
+        List<Waiter> admittedWaiters;
+        synchronized (this) {
+            if (!smallLane.remove(waiter) && !largeLane.remove(waiter)) {
+                return;
+            }
+            rejectedTimedOut++;
+            // The waiter may have been holding up the ones behind it.
+            admittedWaiters = admitWaiters();
+        }
+        try {
+            reject(waiter.response, waiter.admission);
+        } catch (IOException e) {
+            log4j.debug("reject", e);
+        } finally {
+            start(admittedWaiters);
+        }
+    }
+
+    private void reject(HttpServletResponse response, Admission admission)
+            throws IOException {
+        try {
+            response.setHeader("Retry-After", retryAfter);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Too many concurrent validations.");
+        } finally {
+            admission.rejected();
+        }
+    }
+
+    private long cost(long size) {
+        // A document too big for the budget runs when nothing else does.
+        return Math.min(memoryBudget, BASE_COST + COST_PER_BYTE * size);
+    }
+
+    private ArrayDeque<Waiter> lane(long size) {
+        return size <= smallSize ? smallLane : largeLane;
+    }
+
+    /**
+     * Returns whether a request may be admitted without queueing, which it
+     * may not when requests it should not overtake are waiting.
+     */
+    private boolean mayPass(long size) {
+        return smallLane.isEmpty()
+                && (lane(size) == smallLane || largeLane.isEmpty());
+    }
+
+    private boolean fits(long cost) {
+        return running < maxConcurrent && reserved + cost <= memoryBudget;
+    }
+
+    private Permit grant(long cost) {
+        running++;
+        reserved += cost;
+        admitted++;
+        return new Permit(cost);
+    }
+
+    /**
+     * Admits waiting requests, small documents first, for as long as they
+     * fit. No request is admitted past one that does not fit, so a large
+     * document at the head of its lane is not overtaken indefinitely by the
+     * smaller ones behind it. The waiters returned are started by the
+     * caller once it no longer holds the lock.
+     */
+    private List<Waiter> admitWaiters() {
+        List<Waiter> admittedWaiters = new ArrayList<>();
+        ArrayDeque<Waiter> lane = smallLane;
+        for (;;) {
+            Waiter waiter = lane.peek();
+            if (waiter == null && lane == smallLane) {
+                lane = largeLane;
+                continue;
+            }
+            if (waiter == null || !fits(waiter.cost)) {
+                break;
+            }
+            lane.poll();
+            waiter.permit = grant(waiter.cost);
+            waiter.timeout.cancel(false);
+            admittedWaiters.add(waiter);
+        }
+        return admittedWaiters;
+    }
+
+    private void start(List<Waiter> admittedWaiters) {
+        for (Waiter waiter : admittedWaiters) {
+            waiter.admission.admitted(waiter.permit);
+        }
+    }
+
+    /**
+     * Returns the counters for the statistics page as pairs of a label and
+     * a value.
+     */
+    synchronized Object[] metrics() {
+        return new Object[] { //
+                "Admission: validations running", running, //
+                "Admission: memory reserved (MB)", reserved / (1024 * 1024), //
+                "Admission: requests waiting (small documents)", smallLane.size(), //
+                "Admission: requests waiting (large documents)", largeLane.size(), //
+                "Admission: most requests waiting at once", maxQueueDepth, //
+                "Admission: requests admitted", admitted, //
+                "Admission: requests that had to wait", queued, //
+                "Admission: rejected, queue full", rejectedQueueFull, //
+                "Admission: rejected, waited too long", rejectedTimedOut, //
+        };
+    }
+}
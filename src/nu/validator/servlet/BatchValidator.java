@@ -0,0 +1,676 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.servlet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import nu.validator.checker.TimeBudget;
+import nu.validator.checker.TimeBudgetExceededException;
+import nu.validator.json.JsonHandler;
+import nu.validator.json.Serializer;
+import nu.validator.messages.JsonMessageEmitter;
+import nu.validator.messages.MessageEmitterAdapter;
+import nu.validator.messages.TooManyErrorsException;
+import nu.validator.source.SourceCode;
+import nu.validator.validation.SimpleDocumentValidator;
+import nu.validator.xml.SystemErrErrorHandler;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Validates many documents posted in one request and streams back one JSON
+ * result per line (NDJSON) as soon as each document has been checked.
+ *
+ * <p>The request body is either <code>multipart/form-data</code>, where
+ * every file part is a document, or <code>application/x-ndjson</code>, where
+ * every line is an object with a <code>content</code> member and optional
+ * <code>id</code>, <code>contentType</code>, <code>errorsOnly</code> and
+ * <code>filterPattern</code> members. The <code>errorsonly</code> and
+ * <code>filterpattern</code> query parameters set the defaults for all
+ * documents; <code>parallelism</code> lowers the number of documents
+ * checked at once.
+ *
+ * <p>Each result line is the object the regular endpoint produces for
+ * <code>out=json</code>, plus <code>id</code> and <code>timing</code>
+ * members. Documents are checked on pooled pipelines (see
+ * <code>SimpleDocumentValidator</code>) that are set up once per schema and
+ * reused across documents and requests, by a shared executor whose size is
+ * set by the <code>nu.validator.servlet.batch.parallelism</code> system
+ * property.
+ */
+final class BatchValidator {
+
+    private static final Logger log4j = Logger.getLogger(BatchValidator.class);
+
+    private static final int PARALLELISM = Integer.parseInt(System.getProperty(
+            "nu.validator.servlet.batch.parallelism",
+            Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+    private static final int MAX_ITEMS = Integer.parseInt(System.getProperty(
+            "nu.validator.servlet.batch.max-items", "1000"));
+
+    private static final String HTML_SCHEMA = "http://s.validator.nu/html5-all.rnc";
+
+    private static final String XHTML_SCHEMA = "http://s.validator.nu/xhtml5-all.rnc";
+
+    private static final String SVG_SCHEMA = "http://s.validator.nu/svg-xhtml5-rdf-mathml.rnc";
+
+    private static final String SUCCESS_MESSAGE = "The document validates according to the specified schema(s).";
+
+    private static final String FAILURE_MESSAGE = "There were errors.";
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+            PARALLELISM, new ValidationDispatcher.NamedThreadFactory(
+                    "vnu-batch-"));
+
+    private static final ConcurrentLinkedQueue<Pipeline> PIPELINES = new ConcurrentLinkedQueue<>();
+
+    private final HttpServletRequest request;
+
+    private final HttpServletResponse response;
+
+    private final Semaphore inFlight;
+
+    private final int parallelism;
+
+    private final boolean errorsOnly;
+
+    private final String filterPattern;
+
+    private OutputStream out;
+
+    private volatile boolean aborted = false;
+
+    private int count = 0;
+
+    BatchValidator(HttpServletRequest request, HttpServletResponse response) {
+        this.request = request;
+        this.response = response;
+        int requested = PARALLELISM;
+        try {
+            String param = request.getParameter("parallelism");
+            if (param != null) {
+                requested = Math.max(1, Integer.parseInt(param));
+            }
+        } catch (NumberFormatException e) {
+        }
+        this.parallelism = Math.min(requested, PARALLELISM);
+        this.inFlight = new Semaphore(parallelism);
+        this.errorsOnly = "yes".equals(request.getParameter("errorsonly"));
+        this.filterPattern = request.getParameter("filterpattern");
+    }
+
+    void service() throws IOException {
+        String contentType = request.getContentType();
+        boolean multipart = ServletFileUpload.isMultipartContent(request);
+        if (!multipart && (contentType == null
+                || !contentType.toLowerCase().startsWith(
+                        "application/x-ndjson"))) {
+            response.sendError(
+                    HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Expected multipart/form-data or application/x-ndjson.");
+            return;
+        }
+        response.setContentType("application/x-ndjson; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        out = response.getOutputStream();
+        try {
+            if (multipart) {
+                readMultipart();
+            } else {
+                readNdjson();
+            }
+        } catch (FileUploadException e) {
+            log4j.debug("readMultipart", e);
+            submit(new Item(Integer.toString(count + 1), null, null,
+                    errorsOnly, filterPattern, e.getMessage()));
+        } finally {
+            // Wait for the documents still being checked.
+            inFlight.acquireUninterruptibly(parallelism);
+            inFlight.release(parallelism);
+        }
+    }
+
+    private void readMultipart() throws IOException, FileUploadException {
+        FileItemIterator iter = new ServletFileUpload().getItemIterator(
+                request);
+        while (iter.hasNext() && !aborted) {
+            FileItemStream part = iter.next();
+            if (part.isFormField()) {
+                continue;
+            }
+            String name = part.getName();
+            String type = normalizeType(part.getContentType());
+            if (type == null && name != null) {
+                type = MultipartFormDataFilter.typeForFileName(name);
+            }
+            byte[] content;
+            try (InputStream in = part.openStream()) {
+                content = readFully(in);
+            }
+            if (!submitIfAllowed(name == null ? part.getFieldName() : name,
+                    content, type == null ? "text/html" : type, errorsOnly,
+                    filterPattern)) {
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked") private void readNdjson()
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                request.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null && !aborted) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String defaultId = Integer.toString(count + 1);
+            Map<String, Object> object;
+            try {
+                Object parsed = JSON.parse(line);
+                if (!(parsed instanceof Map)) {
+                    throw new IllegalStateException("Not a JSON object.");
+                }
+                object = (Map<String, Object>) parsed;
+            } catch (RuntimeException e) {
+                if (!submitError(defaultId,
+                        "Malformed batch item: " + e.getMessage())) {
+                    return;
+                }
+                continue;
+            }
+            Object id = object.get("id");
+            Object content = object.get("content");
+            Object type = object.get("contentType");
+            Object itemErrorsOnly = object.get("errorsOnly");
+            Object itemFilterPattern = object.get("filterPattern");
+            String itemId = id == null ? defaultId : id.toString();
+            if (!(content instanceof String)) {
+                if (!submitError(itemId,
+                        "Batch item has no \u201Ccontent\u201D string.")) {
+                    return;
+                }
+                continue;
+            }
+            if (!submitIfAllowed(itemId,
+                    ((String) content).getBytes(StandardCharsets.UTF_8),
+                    type instanceof String ? normalizeType((String) type)
+                            : "text/html",
+                    itemErrorsOnly instanceof Boolean
+                            ? ((Boolean) itemErrorsOnly).booleanValue()
+                            : errorsOnly,
+                    itemFilterPattern instanceof String
+                            ? (String) itemFilterPattern
+                            : filterPattern)) {
+                return;
+            }
+        }
+    }
+
+    private boolean submitIfAllowed(String id, byte[] content, String type,
+            boolean itemErrorsOnly, String itemFilterPattern) {
+        if (count >= MAX_ITEMS) {
+            submitError(id, "Too many documents in one batch. The limit is "
+                    + MAX_ITEMS + ".");
+            return false;
+        }
+        submit(new Item(id, content, type, itemErrorsOnly,
+                itemFilterPattern, null));
+        return true;
+    }
+
+    private boolean submitError(String id, String message) {
+        if (count >= MAX_ITEMS) {
+            return false;
+        }
+        submit(new Item(id, null, null, errorsOnly, filterPattern, message));
+        return true;
+    }
+
+    private void submit(final Item item) {
+        count++;
+        inFlight.acquireUninterruptibly();
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(check(item));
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void write(byte[] result) {
+        if (result == null || aborted) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                out.write(result);
+                out.flush();
+            } catch (IOException e) {
+                // The client went away; stop reading further documents.
+                log4j.debug("write", e);
+                aborted = true;
+            }
+        }
+    }
+
+    private byte[] check(Item item) {
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ItemJsonHandler handler = new ItemJsonHandler(new Serializer(buffer),
+                item, start);
+        Pipeline pipeline = null;
+        boolean reusable = true;
+        try {
+            MessageEmitterAdapter errorHandler;
+            if (item.error != null) {
+                errorHandler = newErrorHandler(item, null, handler);
+                errorHandler.start(null);
+                errorHandler.ioError(new IOException(item.error));
+            } else {
+                String schemaUrl = schemaForType(item.contentType);
+                if (schemaUrl == null) {
+                    errorHandler = newErrorHandler(item, null, handler);
+                    errorHandler.start(null);
+                    errorHandler.ioError(new IOException(
+                            "Unsupported content type \u201C"
+                                    + item.contentType + "\u201D."));
+                } else {
+                    pipeline = takePipeline(schemaUrl);
+                    errorHandler = newErrorHandler(item, pipeline, handler);
+                    pipeline.errorHandler.setDelegate(errorHandler);
+                    errorHandler.start(null);
+                    reusable = false;
+                    TimeBudget.start(VerifierServletTransaction.TIME_BUDGET,
+                            VerifierServletTransaction.CPU_BUDGET);
+                    try {
+                        pipeline.check(item);
+                    } catch (TooManyErrorsException e) {
+                        errorHandler.fatalError(e);
+                    } catch (TimeBudgetExceededException e) {
+                        errorHandler.timeBudgetExceeded(e);
+                    } catch (SAXParseException e) {
+                        // Already reported to the error handler.
+                    } catch (IOException e) {
+                        errorHandler.ioError(e);
+                    } finally {
+                        TimeBudget.end();
+                    }
+                    reusable = true;
+                }
+            }
+            errorHandler.end(SUCCESS_MESSAGE, FAILURE_MESSAGE, null);
+            return buffer.toByteArray();
+        } catch (Exception | Error e) {
+            log4j.error("Batch item " + item.id + " failed.", e);
+            return internalErrorResult(item, start);
+        } finally {
+            if (pipeline != null) {
+                pipeline.errorHandler.setDelegate(null);
+                if (reusable) {
+                    PIPELINES.offer(pipeline);
+                }
+            }
+        }
+    }
+
+    private byte[] internalErrorResult(Item item, long start) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            MessageEmitterAdapter errorHandler = newErrorHandler(item, null,
+                    new ItemJsonHandler(new Serializer(buffer), item, start));
+            errorHandler.start(null);
+            errorHandler.internalError(null,
+                    "Oops. That was not supposed to happen. A bug manifested itself in the application internals. Unable to continue. Sorry. The admin was notified.");
+            errorHandler.end(SUCCESS_MESSAGE, FAILURE_MESSAGE, null);
+            return buffer.toByteArray();
+        } catch (SAXException e) {
+            log4j.error("Batch item " + item.id + " failed.", e);
+            return null;
+        }
+    }
+
+    private MessageEmitterAdapter newErrorHandler(Item item,
+            Pipeline pipeline, JsonHandler handler) {
+        String filterString = VerifierServletTransaction.getSystemFilterString();
+        if (item.filterPattern != null && !"".equals(item.filterPattern)) {
+            String scrubbed = VerifierServletTransaction.scrub(
+                    item.filterPattern);
+            filterString = "".equals(filterString) ? scrubbed
+                    : filterString + "|" + scrubbed;
+        }
+        Pattern pattern = null;
+        if (!"".equals(filterString)) {
+            try {
+                pattern = Pattern.compile(filterString);
+            } catch (PatternSyntaxException e) {
+                log4j.debug("filterPattern", e);
+            }
+        }
+        MessageEmitterAdapter errorHandler = new MessageEmitterAdapter(
+                pattern,
+                pipeline == null ? new SourceCode()
+                        : pipeline.validator.getSourceCode(),
+                false, null, 0, false,
+                new JsonMessageEmitter(handler, null, false));
+        errorHandler.setHtml(true);
+        errorHandler.setErrorsOnly(item.errorsOnly);
+        if ("text/css".equals(item.contentType)) {
+            errorHandler.setLineOffset(-1);
+        }
+        return errorHandler;
+    }
+
+    private static Pipeline takePipeline(String schemaUrl) throws Exception {
+        for (Pipeline pipeline : PIPELINES) {
+            if (schemaUrl.equals(pipeline.schemaUrl)
+                    && PIPELINES.remove(pipeline)) {
+                return pipeline;
+            }
+        }
+        return new Pipeline(schemaUrl);
+    }
+
+    private static String schemaForType(String type) {
+        if ("text/html".equals(type) || "text/css".equals(type)) {
+            return HTML_SCHEMA;
+        } else if ("application/xhtml+xml".equals(type)) {
+            return XHTML_SCHEMA;
+        } else if ("image/svg+xml".equals(type)) {
+            return SVG_SCHEMA;
+        }
+        return null;
+    }
+
+    private static String normalizeType(String type) {
+        if (type == null) {
+            return null;
+        }
+        int semicolon = type.indexOf(';');
+        if (semicolon != -1) {
+            type = type.substring(0, semicolon);
+        }
+        type = type.trim().toLowerCase();
+        if ("".equals(type) || "application/octet-stream".equals(type)) {
+            return null;
+        }
+        return type;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            baos.write(buffer, 0, n);
+        }
+        return baos.toByteArray();
+    }
+
+    private static final class Item {
+
+        final String id;
+
+        final byte[] content;
+
+        final String contentType;
+
+        final boolean errorsOnly;
+
+        final String filterPattern;
+
+        final String error;
+
+        final long submitted = System.currentTimeMillis();
+
+        Item(String id, byte[] content, String contentType,
+                boolean errorsOnly, String filterPattern, String error) {
+            this.id = id;
+            this.content = content;
+            this.contentType = contentType;
+            this.errorsOnly = errorsOnly;
+            this.filterPattern = filterPattern;
+            this.error = error;
+        }
+    }
+
+    /**
+     * A parser and validator set up for one schema. Message reporting goes
+     * through a retargetable error handler so that the pipeline can be
+     * reused for documents with different emitters.
+     */
+    private static final class Pipeline {
+
+        final String schemaUrl;
+
+        final SimpleDocumentValidator validator;
+
+        final DelegatingErrorHandler errorHandler = new DelegatingErrorHandler();
+
+        Pipeline(String schemaUrl) throws Exception {
+            this.schemaUrl = schemaUrl;
+            this.validator = new SimpleDocumentValidator(false, false,
+                    !"0".equals(System.getProperty(
+                            "nu.validator.checker.enableLangDetection")));
+            validator.setUpMainSchema(schemaUrl, new SystemErrErrorHandler());
+            validator.setUpValidatorAndParsers(errorHandler, true, false);
+        }
+
+        void check(Item item) throws IOException, SAXException {
+            InputSource is = new InputSource(
+                    new ByteArrayInputStream(item.content));
+            if ("text/css".equals(item.contentType)) {
+                is.setEncoding("UTF-8");
+                validator.checkCssInputSource(is);
+            } else if ("text/html".equals(item.contentType)) {
+                validator.checkHtmlInputSource(is);
+            } else {
+                validator.checkXmlInputSource(is);
+            }
+        }
+    }
+
+    private static final class DelegatingErrorHandler implements ErrorHandler {
+
+        private ErrorHandler delegate;
+
+        void setDelegate(ErrorHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void warning(SAXParseException exception) throws SAXException {
+            if (delegate != null) {
+                delegate.warning(exception);
+            }
+        }
+
+        @Override
+        public void error(SAXParseException exception) throws SAXException {
+            if (delegate != null) {
+                delegate.error(exception);
+            }
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception)
+                throws SAXException {
+            if (delegate != null) {
+                delegate.fatalError(exception);
+            }
+        }
+    }
+
+    /**
+     * Passes the JSON of a result through and adds the <code>id</code> and
+     * <code>timing</code> members just before the top-level object ends.
+     */
+    private static final class ItemJsonHandler implements JsonHandler {
+
+        private final JsonHandler delegate;
+
+        private final Item item;
+
+        private final long start;
+
+        private int depth = 0;
+
+        ItemJsonHandler(JsonHandler delegate, Item item, long start) {
+            this.delegate = delegate;
+            this.item = item;
+            this.start = start;
+        }
+
+        @Override
+        public void startDocument(String callback) throws SAXException {
+            delegate.startDocument(callback);
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            delegate.endDocument();
+        }
+
+        @Override
+        public void startArray() throws SAXException {
+            depth++;
+            delegate.startArray();
+        }
+
+        @Override
+        public void endArray() throws SAXException {
+            depth--;
+            delegate.endArray();
+        }
+
+        @Override
+        public void startObject() throws SAXException {
+            depth++;
+            delegate.startObject();
+        }
+
+        @Override
+        public void key(String key) throws SAXException {
+            delegate.key(key);
+        }
+
+        @Override
+        public void endObject() throws SAXException {
+            if (depth == 1) {
+                delegate.key("id");
+                delegate.string(item.id);
+                delegate.key("timing");
+                delegate.startObject();
+                delegate.key("queuedMillis");
+                delegate.number(start - item.submitted);
+                delegate.key("validationMillis");
+                delegate.number(System.currentTimeMillis() - start);
+                delegate.endObject();
+            }
+            depth--;
+            delegate.endObject();
+        }
+
+        @Override
+        public void startString() throws SAXException {
+            delegate.startString();
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+                throws SAXException {
+            delegate.characters(ch, start, length);
+        }
+
+        @Override
+        public void endString() throws SAXException {
+            delegate.endString();
+        }
+
+        @Override
+        public void string(String string) throws SAXException {
+            delegate.string(string);
+        }
+
+        @Override
+        public void number(int number) throws SAXException {
+            delegate.number(number);
+        }
+
+        @Override
+        public void number(long number) throws SAXException {
+            delegate.number(number);
+        }
+
+        @Override
+        public void number(float number) throws SAXException {
+            delegate.number(number);
+        }
+
+        @Override
+        public void number(double number) throws SAXException {
+            delegate.number(number);
+        }
+
+        @Override
+        public void bool(boolean bool) throws SAXException {
+            delegate.bool(bool);
+        }
+    }
+}
@@ -69,6 +69,9 @@ public class Main {
     private static final long SIZE_LIMIT = Integer.parseInt(System.getProperty(
             "nu.validator.servlet.max-file-size", "2097152"));
 
+    private static final int MAX_THREADS = Integer.parseInt(System.getProperty(
+            "nu.validator.servlet.max-threads", "100"));
+
     private static final boolean isRunningInsideDockerContainer() {
         try (BufferedReader reader = new BufferedReader( //
                 new InputStreamReader(new FileInputStream("/proc/1/cgroup"),
@@ -141,6 +144,56 @@ public class Main {
                 host, port));
     }
 
+    private static FilterHolder asyncSupported(FilterHolder holder) {
+        holder.setAsyncSupported(true);
+        return holder;
+    }
+
+    /**
+     * Starts the server and runs the warm-up, if any, in the foreground or
+     * in the background.
+     */
+    private static void start(final Server server,
+            ServerConnector serverConnector,
+            final ServerConnector warmUpConnector, final Logger log4j)
+            throws Exception {
+        server.start();
+        if (warmUpConnector == null) {
+            return;
+        }
+        if (WarmUp.WARM_UP.isBackground()) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        WarmUp.WARM_UP.run(warmUpConnector.getLocalPort());
+                    } finally {
+                        try {
+                            warmUpConnector.stop();
+                            server.removeConnector(warmUpConnector);
+                        } catch (Exception e) {
+                            log4j.warn(
+                                    "Could not close the warm-up connector.",
+                                    e);
+                        }
+                    }
+                }
+            }, "vnu-warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            try {
+                WarmUp.WARM_UP.run(warmUpConnector.getLocalPort());
+            } finally {
+                // Open the service even if the warm-up broke; /ready tells.
+                server.addConnector(serverConnector);
+                serverConnector.start();
+                warmUpConnector.stop();
+                server.removeConnector(warmUpConnector);
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         if (!"1".equals(System.getProperty(
                 "nu.validator.servlet.read-local-log4j-properties"))) {
@@ -165,17 +218,20 @@ public class Main {
         gzipHandler.setIncludedMethods("POST", "GET");
         gzipHandler.setInflateBufferSize(2048);
         gzipHandler.setHandler(contextHandler);
-        contextHandler.addFilter(new FilterHolder(new InboundSizeLimitFilter(
-                SIZE_LIMIT)), "/*", EnumSet.of(DispatcherType.REQUEST));
-        contextHandler.addFilter(new FilterHolder(new InboundGzipFilter()),
+        contextHandler.addFilter(asyncSupported(new FilterHolder(
+                new InboundSizeLimitFilter(SIZE_LIMIT))), "/*",
+                EnumSet.of(DispatcherType.REQUEST));
+        contextHandler.addFilter(
+                asyncSupported(new FilterHolder(new InboundGzipFilter())),
                 "/*", EnumSet.of(DispatcherType.REQUEST));
         contextHandler.addFilter(
-                new FilterHolder(new MultipartFormDataFilter()), "/*",
-                EnumSet.of(DispatcherType.REQUEST));
-        contextHandler.addServlet(new ServletHolder(new VerifierServlet()),
-                "/*");
+                asyncSupported(new FilterHolder(new MultipartFormDataFilter())),
+                "/*", EnumSet.of(DispatcherType.REQUEST));
+        ServletHolder servletHolder = new ServletHolder(new VerifierServlet());
+        servletHolder.setAsyncSupported(true);
+        contextHandler.addServlet(servletHolder, "/*");
 
-        Server server = new Server(new QueuedThreadPool(100));
+        Server server = new Server(new QueuedThreadPool(MAX_THREADS));
         server.setHandler(contextHandler);
         server.setHandler(gzipHandler);
 
@@ -185,7 +241,23 @@ public class Main {
         int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
         serverConnector.setPort(port);
         serverConnector.setHost(BIND_ADDRESS);
-        server.setConnectors(new Connector[] { serverConnector });
+        ServerConnector warmUpConnector = null;
+        if (WarmUp.WARM_UP == null) {
+            server.setConnectors(new Connector[] { serverConnector });
+        } else {
+            // The warm-up requests go to a loopback connector of their own,
+            // whatever the bind address. Unless warming up in the
+            // background, the service connector opens after the warm-up.
+            warmUpConnector = new ServerConnector(server);
+            warmUpConnector.setHost("127.0.0.1");
+            warmUpConnector.setPort(0);
+            if (WarmUp.WARM_UP.isBackground()) {
+                server.setConnectors(new Connector[] { serverConnector,
+                        warmUpConnector });
+            } else {
+                server.setConnectors(new Connector[] { warmUpConnector });
+            }
+        }
 
         int stopPort = -1;
         if (args.length > 1) {
@@ -200,7 +272,7 @@ public class Main {
 
             }
 
-            server.start();
+            start(server, serverConnector, warmUpConnector, log4j);
             emitStartupMessage(log4j, serverConnector.getHost(), port);
 
             try (ServerSocket serverSocket = new ServerSocket(stopPort, 0,
@@ -211,7 +283,7 @@ public class Main {
                 s.getOutputStream().close();
             }
         } else {
-            server.start();
+            start(server, serverConnector, warmUpConnector, log4j);
             emitStartupMessage(log4j, serverConnector.getHost(), port);
         }
     }
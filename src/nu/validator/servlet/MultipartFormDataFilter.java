@@ -79,6 +79,18 @@ public final class MultipartFormDataFilter implements Filter {
         EXTENSION_TO_TYPE.put("csl", "application/xml");
     }
 
+    /**
+     * Returns the content type implied by the extension of a file name or
+     * <code>null</code> if the extension is not known.
+     */
+    static String typeForFileName(String fileName) {
+        Matcher m = EXTENSION.matcher(fileName);
+        if (m.matches()) {
+            return EXTENSION_TO_TYPE.get(m.group(1));
+        }
+        return null;
+    }
+
     private static String utf8ByteStreamToString(InputStream stream)
             throws IOException {
         CharsetDecoder dec = Charset.forName("UTF-8").newDecoder();
@@ -127,7 +139,8 @@ public final class MultipartFormDataFilter implements Filter {
             FilterChain chain) throws IOException, ServletException {
         HttpServletRequest request = (HttpServletRequest) req;
         HttpServletResponse response = (HttpServletResponse) res;
-        if (ServletFileUpload.isMultipartContent(request)) {
+        if (ServletFileUpload.isMultipartContent(request)
+                && !VerifierServlet.BATCH_PATH.equals(request.getPathInfo())) {
             try {
                 boolean utf8 = false;
                 String contentType = null;
@@ -169,10 +182,7 @@ public final class MultipartFormDataFilter implements Filter {
                             request.setAttribute(
                                     "nu.validator.servlet.MultipartFormDataFilter.filename",
                                     fileName);
-                            Matcher m = EXTENSION.matcher(fileName);
-                            if (m.matches()) {
-                                contentType = EXTENSION_TO_TYPE.get(m.group(1));
-                            }
+                            contentType = typeForFileName(fileName);
                         }
                         if (contentType == null) {
                             contentType = "text/html";
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the serialized results of checking POSTed documents when the
+ * <code>nu.validator.servlet.result-cache</code> system property is
+ * <code>1</code>.
+ *
+ * <p>Results are keyed by a SHA-256 hash of the decoded request body and of
+ * every option that can change the output (see
+ * <code>VerifierServletTransaction.resultCacheOptions</code>). The cache
+ * holds at most <code>nu.validator.servlet.result-cache.size</code> bytes
+ * of results (64 MB by default) and drops results older than
+ * <code>nu.validator.servlet.result-cache.ttl</code> seconds (one hour by
+ * default).
+ *
+ * <p>Results that depend on remote resources are not cached: those of
+ * <code>parser=xmldtd</code> requests, which load external entities, and
+ * those of checks that fetched anything, such as an external schema.
+ */
+final class ResultCache {
+
+    static final ResultCache INSTANCE;
+
+    static {
+        if ("1".equals(System.getProperty("nu.validator.servlet.result-cache"))) {
+            INSTANCE = new ResultCache(
+                    Long.parseLong(System.getProperty(
+                            "nu.validator.servlet.result-cache.size",
+                            Long.toString(64L * 1024 * 1024))),
+                    Long.parseLong(System.getProperty(
+                            "nu.validator.servlet.result-cache.ttl",
+                            "3600")) * 1000);
+        } else {
+            INSTANCE = null;
+        }
+    }
+
+    static final class Entry {
+
+        final String contentType;
+
+        final byte[] body;
+
+        final long expires;
+
+        Entry(String contentType, byte[] body, long expires) {
+            this.contentType = contentType;
+            this.body = body;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Passes output through while keeping a copy of it, up to a limit.
+     */
+    static final class Recorder extends FilterOutputStream {
+
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private final long limit;
+
+        private boolean overflowed;
+
+        Recorder(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            record(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            record(b, off, len);
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (overflowed) {
+                return;
+            }
+            if (copy.size() + len > limit) {
+                overflowed = true;
+                copy.reset();
+                return;
+            }
+            copy.write(b, off, len);
+        }
+
+        /**
+         * Returns the recorded output or <code>null</code> if it exceeded
+         * the limit.
+         */
+        byte[] toByteArray() {
+            return overflowed ? null : copy.toByteArray();
+        }
+    }
+
+    private final long maxSize;
+
+    private final long ttl;
+
+    private long size;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(
+            16, 0.75f, true);
+
+    private ResultCache(long maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Computes the cache key for a document and its options.
+     */
+    static String key(byte[] document, String options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(document);
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the largest result worth keeping.
+     */
+    long maxEntrySize() {
+        return maxSize / 8;
+    }
+
+    synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            size -= entry.body.length;
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void put(String key, String contentType, byte[] body) {
+        if (body.length > maxEntrySize()) {
+            return;
+        }
+        Entry old = entries.put(key, new Entry(contentType, body,
+                System.currentTimeMillis() + ttl));
+        if (old != null) {
+            size -= old.body.length;
+        }
+        size += body.length;
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+        while (size > maxSize && iter.hasNext()) {
+            size -= iter.next().getValue().body.length;
+            iter.remove();
+        }
+    }
+}
@@ -24,9 +24,12 @@ package nu.validator.servlet;
 
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletResponse;
 
+import nu.validator.checker.CheckerTimings;
 import nu.validator.htmlparser.sax.HtmlSerializer;
 import nu.validator.xml.EmptyAttributes;
 
@@ -51,6 +54,32 @@ public class Statistics {
 
     private static final char[] VALIDATIONS_PER_SECOND = "Validations per second".toCharArray();
 
+    private static final char[] CHECKER_TIMINGS = "Checker timings".toCharArray();
+
+    private static final char[] TIMING_NAME = "Checker".toCharArray();
+
+    private static final char[] TIMING_COUNT = "Validations".toCharArray();
+
+    private static final char[] TIMING_MEAN = "Mean ms".toCharArray();
+
+    /**
+     * The number of histogram buckets: under 1 ms, one for each power of two
+     * up to 1024 ms and 1024 ms or more.
+     */
+    private static final int TIMING_BUCKETS = 12;
+
+    private static final String[] TIMING_BUCKET_NAMES = new String[TIMING_BUCKETS];
+
+    static {
+        TIMING_BUCKET_NAMES[0] = "< 1 ms";
+        for (int i = 1; i < TIMING_BUCKETS - 1; i++) {
+            TIMING_BUCKET_NAMES[i] = (1 << (i - 1)) + "\u2013" + (1 << i)
+                    + " ms";
+        }
+        TIMING_BUCKET_NAMES[TIMING_BUCKETS - 1] = "\u2265 "
+                + (1 << (TIMING_BUCKETS - 2)) + " ms";
+    }
+
     private static final char[] SORT_LANGS_SCRIPT = (""
             + " var rows = document.querySelectorAll('tr');"
             + " var langRows = new Array();"
@@ -131,6 +160,12 @@ public class Statistics {
         CUSTOM_ENC("Encoding: manually set"), //
         PARSER_XML_EXTERNAL("Parser: set to XML with external entities"), //
         XMLNS_FILTER("Parser: XMLNS filter set"), //
+        HTTP_CACHE_HIT("HTTP cache: resources served from cache"), //
+        HTTP_CACHE_REVALIDATED("HTTP cache: resources revalidated"), //
+        HTTP_CACHE_MISS("HTTP cache: resources downloaded"), //
+        HTTP_CACHE_BYTES_SAVED("HTTP cache: bytes not downloaded"), //
+        RESULT_CACHE_HIT("Result cache: results served from cache"), //
+        TIME_BUDGET_EXCEEDED("Time budget: validations stopped"), //
         LOGIC_ERROR("Logic errors in schema stats"), //
         ARIA_LABEL_MISUSE_FOUND("aria-label misuse found"), //
         HGROUP_FOUND("<hgroup> found"), //
@@ -576,6 +611,12 @@ public class Statistics {
 
     private final long[] counters;
 
+    /**
+     * For each checker or schema name: the number of validations, the total
+     * nanoseconds and the histogram buckets.
+     */
+    private final Map<String, long[]> timings = new TreeMap<>();
+
     private Statistics() {
         counters = new long[Field.values().length];
     }
@@ -588,14 +629,39 @@ public class Statistics {
         counters[field.ordinal()]++;
     }
 
+    public void addToField(Field field, long n) {
+        counters[field.ordinal()] += n;
+    }
+
+    public void addCheckerTimings(CheckerTimings checkerTimings) {
+        for (String name : checkerTimings.getNames()) {
+            long nanos = checkerTimings.getNanos(name);
+            long[] timing = timings.get(name);
+            if (timing == null) {
+                timing = new long[2 + TIMING_BUCKETS];
+                timings.put(name, timing);
+            }
+            timing[0]++;
+            timing[1] += nanos;
+            long millis = nanos / 1000000;
+            timing[2 + Math.min(TIMING_BUCKETS - 1,
+                    64 - Long.numberOfLeadingZeros(millis))]++;
+        }
+    }
+
     public void writeToResponse(HttpServletResponse response)
             throws IOException {
         try {
             long totalCopy;
             long[] countersCopy = new long[counters.length];
+            Map<String, long[]> timingsCopy = new TreeMap<>();
             synchronized (this) {
                 totalCopy = total;
                 System.arraycopy(counters, 0, countersCopy, 0, counters.length);
+                for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+                    timingsCopy.put(entry.getKey(),
+                            entry.getValue().clone());
+                }
             }
             double totalDouble = totalCopy;
             double uptimeMillis = System.currentTimeMillis() - startTime;
@@ -639,6 +705,14 @@ public class Statistics {
                 characters(ch, totalDouble / (uptimeMillis / 1000.0));
                 endElement(ch, "dd");
 
+                if (AdmissionController.CONTROLLER != null) {
+                    writeMetrics(ch, AdmissionController.CONTROLLER.metrics());
+                }
+
+                if (WarmUp.WARM_UP != null) {
+                    writeMetrics(ch, WarmUp.WARM_UP.metrics());
+                }
+
                 endElement(ch, "dl");
 
                 startElement(ch, "table");
@@ -678,6 +752,54 @@ public class Statistics {
                 }
                 endElement(ch, "tbody");
                 endElement(ch, "table");
+
+                if (!timingsCopy.isEmpty()) {
+                    startElement(ch, "h2");
+                    characters(ch, CHECKER_TIMINGS);
+                    endElement(ch, "h2");
+                    startElement(ch, "table");
+                    startElement(ch, "thead");
+                    startElement(ch, "tr");
+                    startElement(ch, "th");
+                    characters(ch, TIMING_NAME);
+                    endElement(ch, "th");
+                    startElement(ch, "th");
+                    characters(ch, TIMING_COUNT);
+                    endElement(ch, "th");
+                    startElement(ch, "th");
+                    characters(ch, TIMING_MEAN);
+                    endElement(ch, "th");
+                    for (String bucketName : TIMING_BUCKET_NAMES) {
+                        startElement(ch, "th");
+                        characters(ch, bucketName);
+                        endElement(ch, "th");
+                    }
+                    endElement(ch, "tr");
+                    endElement(ch, "thead");
+                    startElement(ch, "tbody");
+                    for (Map.Entry<String, long[]> entry : timingsCopy.entrySet()) {
+                        long[] timing = entry.getValue();
+                        startElement(ch, "tr");
+                        startElement(ch, "td");
+                        characters(ch, entry.getKey());
+                        endElement(ch, "td");
+                        startElement(ch, "td");
+                        characters(ch, timing[0]);
+                        endElement(ch, "td");
+                        startElement(ch, "td");
+                        characters(ch, timing[1] / 1000000.0 / timing[0]);
+                        endElement(ch, "td");
+                        for (int i = 0; i < TIMING_BUCKETS; i++) {
+                            startElement(ch, "td");
+                            characters(ch, timing[2 + i]);
+                            endElement(ch, "td");
+                        }
+                        endElement(ch, "tr");
+                    }
+                    endElement(ch, "tbody");
+                    endElement(ch, "table");
+                }
+
                 startElement(ch, "script");
                 characters(ch, SORT_LANGS_SCRIPT);
                 endElement(ch, "script");
@@ -691,6 +813,18 @@ public class Statistics {
         }
     }
 
+    private void writeMetrics(ContentHandler ch, Object[] metrics)
+            throws SAXException {
+        for (int i = 0; i < metrics.length; i += 2) {
+            startElement(ch, "dt");
+            characters(ch, metrics[i].toString());
+            endElement(ch, "dt");
+            startElement(ch, "dd");
+            characters(ch, metrics[i + 1].toString());
+            endElement(ch, "dd");
+        }
+    }
+
     private void characters(ContentHandler ch, double d) throws SAXException {
         // Let's just create a new DecimalFormat each time to avoid the
         // complexity of recycling an instance correctly without threading
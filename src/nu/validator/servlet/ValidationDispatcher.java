@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs validation transactions off the container's request threads when
+ * the <code>nu.validator.servlet.async</code> system property is
+ * <code>1</code>.
+ *
+ * <p>Requests are put in asynchronous mode and pass through two stages.
+ * The fetch stage downloads the document named by the <code>doc</code>
+ * parameter (see <code>PrudentHttpEntityResolver.prefetch</code>); its
+ * threads spend their time waiting on remote hosts, so there can be many of
+ * them. The validation stage parses and checks the document; its size
+ * follows the number of processors. Slow remote hosts therefore no longer
+ * tie up the threads that do the actual checking, and the number of
+ * concurrent validations is no longer tied to the container thread pool.
+ * With <code>nu.validator.servlet.admission</code>, a request asks for
+ * admission between the two stages, so a download in progress holds no
+ * admission permit. Requests that find the validation queue full get a 503
+ * response.
+ */
+final class ValidationDispatcher {
+
+    interface Task {
+        void run() throws ServletException, IOException;
+    }
+
+    private static final Logger log4j = Logger.getLogger(ValidationDispatcher.class);
+
+    static final ValidationDispatcher DISPATCHER;
+
+    static {
+        if ("1".equals(System.getProperty("nu.validator.servlet.async"))) {
+            DISPATCHER = new ValidationDispatcher(
+                    Integer.parseInt(System.getProperty(
+                            "nu.validator.servlet.async.fetch-threads",
+                            "200")),
+                    Integer.parseInt(System.getProperty(
+                            "nu.validator.servlet.async.validation-threads",
+                            Integer.toString(Runtime.getRuntime().availableProcessors()))),
+                    Integer.parseInt(System.getProperty(
+                            "nu.validator.servlet.async.queue-size",
+                            "1000")));
+        } else {
+            DISPATCHER = null;
+        }
+    }
+
+    private final ExecutorService fetchExecutor;
+
+    private final ExecutorService validationExecutor;
+
+    private ValidationDispatcher(int fetchThreads, int validationThreads,
+            int queueSize) {
+        // Fetch threads are only created on demand and retire when idle.
+        fetchExecutor = new ThreadPoolExecutor(0, fetchThreads, 60L,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory("vnu-fetch-"));
+        validationExecutor = new ThreadPoolExecutor(validationThreads,
+                validationThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new NamedThreadFactory("vnu-validation-"));
+    }
+
+    /**
+     * Runs a transaction asynchronously.
+     *
+     * @param request
+     *            the request
+     * @param response
+     *            the response
+     * @param prefetch
+     *            whether the document should be downloaded in the fetch
+     *            stage before the transaction runs
+     * @param task
+     *            the transaction
+     * @throws IOException
+     *             if sending a 503 response fails
+     */
+    void dispatch(final HttpServletRequest request,
+            final HttpServletResponse response, boolean prefetch,
+            final Task task) throws IOException {
+        final AsyncContext context = request.startAsync(request, response);
+        // Validation is bounded by the HTTP client timeouts instead.
+        context.setTimeout(0);
+        if (prefetch) {
+            submit(fetchExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        VerifierServletTransaction.prefetchDocument(request);
+                    } catch (RuntimeException e) {
+                        // The transaction fetches the document itself then.
+                        log4j.debug("prefetchDocument", e);
+                    }
+                    try {
+                        admit(request, response, context, task);
+                    } catch (IOException e) {
+                        log4j.debug("admit", e);
+                    }
+                }
+            }, response, context, null);
+        } else {
+            admit(request, response, context, task);
+        }
+    }
+
+    private void admit(HttpServletRequest request,
+            final HttpServletResponse response, final AsyncContext context,
+            final Task task) throws IOException {
+        if (AdmissionController.CONTROLLER == null) {
+            submit(validationExecutor, validation(task, response, context,
+                    null), response, context, null);
+            return;
+        }
+        AdmissionController.CONTROLLER.admit(request, response,
+                new AdmissionController.Admission() {
+                    @Override
+                    public void admitted(AdmissionController.Permit permit) {
+                        try {
+                            submit(validationExecutor, validation(task,
+                                    response, context, permit), response,
+                                    context, permit);
+                        } catch (IOException e) {
+                            log4j.debug("submit", e);
+                        }
+                    }
+
+                    @Override
+                    public void rejected() {
+                        context.complete();
+                    }
+                });
+    }
+
+    /**
+     * Returns a runnable that runs a transaction in asynchronous mode,
+     * sends a 500 response if it fails before committing one, and then
+     * completes the request and releases the permit.
+     */
+    static Runnable validation(final Task task,
+            final HttpServletResponse response, final AsyncContext context,
+            final AdmissionController.Permit permit) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (ServletException | IOException | RuntimeException e) {
+                    log4j.error("Asynchronous validation failed.", e);
+                    if (!response.isCommitted()) {
+                        try {
+                            response.sendError(
+                                    HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        } catch (IOException ex) {
+                            log4j.debug("sendError", ex);
+                        }
+                    }
+                } finally {
+                    complete(context, permit);
+                }
+            }
+        };
+    }
+
+    private static void complete(AsyncContext context,
+            AdmissionController.Permit permit) {
+        if (permit != null) {
+            permit.release();
+        }
+        context.complete();
+    }
+
+    private void submit(ExecutorService executor, Runnable runnable,
+            HttpServletResponse response, AsyncContext context,
+            AdmissionController.Permit permit) throws IOException {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            try {
+                response.setHeader("Retry-After", "5");
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Too many concurrent validations.");
+            } finally {
+                complete(context, permit);
+            }
+        }
+    }
+
+    static final class NamedThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        private final String prefix;
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -64,6 +65,8 @@ public class VerifierServlet extends HttpServlet {
 
     static final String PARSETREE_PATH = System.getProperty("nu.validator.servlet.path.parsetree", "/parsetree/");
 
+    static final String BATCH_PATH = System.getProperty("nu.validator.servlet.path.batch", "/batch/");
+
     private static final byte[] GENERIC_ROBOTS_TXT;
 
     private static final byte[] HTML5_ROBOTS_TXT;
@@ -98,6 +101,8 @@ public class VerifierServlet extends HttpServlet {
             Integer.parseInt(System.getProperty("nu.validator.servlet.connection-timeout","5000")),
             Integer.parseInt(System.getProperty("nu.validator.servlet.socket-timeout","5000")),
             Integer.parseInt(System.getProperty("nu.validator.servlet.max-requests","100")));
+        PrudentHttpEntityResolver.setFetchDeadline(
+            Integer.parseInt(System.getProperty("nu.validator.servlet.fetch-deadline","30000")));
         // force some class loading
         new VerifierServletTransaction(null, null);
         new MessageEmitterAdapter(null, null, false, null, 0, false, null);
@@ -191,6 +196,9 @@ public class VerifierServlet extends HttpServlet {
         } else if (Statistics.STATISTICS != null && "/stats.html".equals(request.getPathInfo())) {
             Statistics.STATISTICS.writeToResponse(response);
             return;
+        } else if (WarmUp.READY_PATH.equals(request.getPathInfo())) {
+            WarmUp.writeReadiness(response);
+            return;
         }
         doPost(request, response);
     }
@@ -241,8 +249,8 @@ public class VerifierServlet extends HttpServlet {
      *      javax.servlet.http.HttpServletResponse)
      */
     @Override
-    protected void doPost(HttpServletRequest request,
-            HttpServletResponse response) throws ServletException, IOException {
+    protected void doPost(final HttpServletRequest request,
+            final HttpServletResponse response) throws ServletException, IOException {
         String method = request.getMethod();
         String pathInfo = request.getPathInfo();
         String referer = request.getHeader("Referer");
@@ -278,13 +286,42 @@ public class VerifierServlet extends HttpServlet {
         if ("validator.nu".equals(serverName) && "/html5/".equals(pathInfo)) {
                 response.setStatus(HttpServletResponse.SC_MOVED_PERMANENTLY);
                 response.setHeader("Location", "http://html5.validator.nu/" + (query == null ? "" : "?" + query));
+        } else if (hostMatch(GENERIC_HOST, serverName) && BATCH_PATH.equals(pathInfo)) {
+            response.setHeader("Access-Control-Allow-Origin", "*");
+            response.setHeader("Access-Control-Allow-Headers", "content-type");
+            if (isOptions) {
+                sendPostOnlyOptions(request, response);
+            } else if (!"POST".equals(method)) {
+                response.setHeader("Allow", "POST, OPTIONS");
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            } else {
+                ValidationDispatcher.Task task = new ValidationDispatcher.Task() {
+                    @Override
+                    public void run() throws IOException {
+                        new BatchValidator(request, response).service();
+                    }
+                };
+                if (AdmissionController.CONTROLLER == null) {
+                    task.run();
+                } else {
+                    runAdmitted(request, response, task);
+                }
+            }
         } else if (hostMatch(GENERIC_HOST, serverName) && GENERIC_PATH.equals(pathInfo)) {
             response.setHeader("Access-Control-Allow-Origin", "*");
             response.setHeader("Access-Control-Allow-Headers", "content-type");
             if (isOptions) {
                 sendOptions(request, response);
             } else {
-                new VerifierServletTransaction(request, response).service();
+                runTransaction(request, response, true,
+                        new ValidationDispatcher.Task() {
+                            @Override
+                            public void run()
+                                    throws ServletException, IOException {
+                                new VerifierServletTransaction(request,
+                                        response).service();
+                            }
+                        });
             }
         } else if (hostMatch(HTML5_HOST, serverName) && HTML5_PATH.equals(pathInfo)) {
             response.setHeader("Access-Control-Allow-Origin", "*");
@@ -292,7 +329,15 @@ public class VerifierServlet extends HttpServlet {
             if (isOptions) {
                 sendOptions(request, response);
             } else {
-                new Html5ConformanceCheckerTransaction(request, response).service();
+                runTransaction(request, response, true,
+                        new ValidationDispatcher.Task() {
+                            @Override
+                            public void run()
+                                    throws ServletException, IOException {
+                                new Html5ConformanceCheckerTransaction(request,
+                                        response).service();
+                            }
+                        });
             }
         } else if (hostMatch(PARSETREE_HOST, serverName) && PARSETREE_PATH.equals(pathInfo)) {
             if (isOptions) {
@@ -305,6 +350,57 @@ public class VerifierServlet extends HttpServlet {
         }
     }
 
+    private void runTransaction(HttpServletRequest request,
+            HttpServletResponse response, boolean prefetch,
+            ValidationDispatcher.Task task)
+            throws ServletException, IOException {
+        if (ValidationDispatcher.DISPATCHER != null) {
+            // Admission happens once the document has been fetched.
+            ValidationDispatcher.DISPATCHER.dispatch(request, response,
+                    prefetch, task);
+        } else if (AdmissionController.CONTROLLER != null) {
+            runAdmitted(request, response, task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs a task on this thread if a permit is free and otherwise puts the
+     * request in asynchronous mode until one is, so that waiting requests
+     * do not hold container threads.
+     */
+    private void runAdmitted(HttpServletRequest request,
+            final HttpServletResponse response,
+            final ValidationDispatcher.Task task)
+            throws ServletException, IOException {
+        AdmissionController.Permit permit = AdmissionController.CONTROLLER.tryAdmit(
+                request);
+        if (permit != null) {
+            try {
+                task.run();
+            } finally {
+                permit.release();
+            }
+            return;
+        }
+        final AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(0);
+        AdmissionController.CONTROLLER.admit(request, response,
+                new AdmissionController.Admission() {
+                    @Override
+                    public void admitted(AdmissionController.Permit permit) {
+                        context.start(ValidationDispatcher.validation(task,
+                                response, context, permit));
+                    }
+
+                    @Override
+                    public void rejected() {
+                        context.complete();
+                    }
+                });
+    }
+
     private void sendGetOnlyOptions(HttpServletRequest request, HttpServletResponse response) {
         response.setHeader("Allow", "GET, HEAD, OPTIONS");
         response.setHeader("Access-Control-Allow-Methods", "GET, HEAD, POST, OPTIONS");
@@ -312,6 +408,14 @@ public class VerifierServlet extends HttpServlet {
         response.setContentLength(0);
     }
 
+    private void sendPostOnlyOptions(HttpServletRequest request, HttpServletResponse response) {
+        response.setHeader("Access-Control-Max-Age", "43200"); // 12 hours
+        response.setHeader("Allow", "POST, OPTIONS");
+        response.setHeader("Access-Control-Allow-Methods", "POST, OPTIONS");
+        response.setContentType("application/octet-stream");
+        response.setContentLength(0);
+    }
+
     private void sendOptions(HttpServletRequest request, HttpServletResponse response) {
         response.setHeader("Access-Control-Max-Age", "43200"); // 12 hours
         response.setHeader("Allow", "GET, HEAD, POST, OPTIONS");
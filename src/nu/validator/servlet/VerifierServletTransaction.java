@@ -25,6 +25,7 @@ package nu.validator.servlet;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -48,6 +49,10 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,9 +61,15 @@ import javax.servlet.http.HttpServletRequest;
 
 import javax.servlet.http.HttpServletResponse;
 
+import nu.validator.checker.Checker;
+import nu.validator.checker.CheckerTimings;
 import nu.validator.checker.LanguageDetectingChecker;
+import nu.validator.checker.TimeBudget;
+import nu.validator.checker.TimeBudgetChecker;
+import nu.validator.checker.TimeBudgetExceededException;
 import nu.validator.checker.XmlPiChecker;
 import nu.validator.checker.jing.CheckerSchema;
+import nu.validator.checker.jing.TimedValidator;
 import nu.validator.checker.schematronequiv.Assertions;
 import nu.validator.gnu.xml.aelfred2.FatalSAXException;
 import nu.validator.gnu.xml.aelfred2.SAXDriver;
@@ -67,15 +78,16 @@ import nu.validator.htmlparser.common.DocumentModeHandler;
 import nu.validator.htmlparser.common.Heuristics;
 import nu.validator.htmlparser.common.XmlViolationPolicy;
 import nu.validator.htmlparser.sax.HtmlParser;
-import nu.validator.htmlparser.sax.HtmlSerializer;
 import nu.validator.htmlparser.sax.XmlSerializer;
 import nu.validator.io.BoundedInputStream;
 import nu.validator.io.DataUri;
 import nu.validator.io.StreamBoundException;
 import nu.validator.localentities.LocalCacheEntityResolver;
+import nu.validator.localentities.StartupSnapshot;
 import nu.validator.messages.GnuMessageEmitter;
 import nu.validator.messages.JsonMessageEmitter;
 import nu.validator.messages.MessageEmitterAdapter;
+import nu.validator.messages.StatusMessageEmitter;
 import nu.validator.messages.TextMessageEmitter;
 import nu.validator.messages.TooManyErrorsException;
 import nu.validator.messages.XhtmlMessageEmitter;
@@ -84,7 +96,6 @@ import nu.validator.servlet.imagereview.ImageCollector;
 import nu.validator.servlet.OutlineBuildingXMLReaderWrapper.Section;
 import nu.validator.source.SourceCode;
 import nu.validator.spec.Spec;
-import nu.validator.spec.html5.Html5SpecBuilder;
 import nu.validator.xml.AttributesImpl;
 import nu.validator.xml.AttributesPermutingXMLReaderWrapper;
 import nu.validator.xml.BaseUriTracker;
@@ -93,11 +104,13 @@ import nu.validator.xml.CombineContentHandler;
 import nu.validator.xml.ContentTypeParser;
 import nu.validator.xml.ContentTypeParser.NonXmlContentTypeException;
 import nu.validator.xml.DataUriEntityResolver;
+import nu.validator.xml.HttpResponseCache;
 import nu.validator.xml.IdFilter;
 import nu.validator.xml.NamespaceDroppingXMLReaderWrapper;
 import nu.validator.xml.NullEntityResolver;
 import nu.validator.xml.PrudentHttpEntityResolver;
 import nu.validator.xml.PrudentHttpEntityResolver.ResourceNotRetrievableException;
+import nu.validator.xml.SplicingHtmlSerializer;
 import nu.validator.xml.SystemErrErrorHandler;
 import nu.validator.xml.TypedInputSource;
 import nu.validator.xml.WiretapXMLReaderWrapper;
@@ -147,7 +160,7 @@ import com.ibm.icu.text.Normalizer;
 class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver {
 
     private enum OutputFormat {
-        HTML, XHTML, TEXT, XML, JSON, RELAXED, SOAP, UNICORN, GNU
+        HTML, XHTML, TEXT, XML, JSON, RELAXED, SOAP, UNICORN, GNU, STATUS
     }
 
     private static final Logger log4j = Logger.getLogger(VerifierServletTransaction.class);
@@ -303,7 +316,11 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
 
     private static String[] preloadedSchemaUrls;
 
-    private static Schema[] preloadedSchemas;
+    private static PresetSchema[] preloadedSchemas;
+
+    private static CountDownLatch hotSchemasLatch;
+
+    private static final AtomicInteger hotSchemaFailures = new AtomicInteger();
 
     private final static String cannotRecover = "Cannot recover after last"
             + " error. Any further errors will be ignored.";
@@ -338,6 +355,15 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
     private static final long SIZE_LIMIT = Integer.parseInt(System.getProperty(
             "nu.validator.servlet.max-file-size", "2097152"));
 
+    static final long TIME_BUDGET = Long.parseLong(System.getProperty(
+            "nu.validator.servlet.time-budget", "0"));
+
+    static final long CPU_BUDGET = Long.parseLong(System.getProperty(
+            "nu.validator.servlet.cpu-budget", "0"));
+
+    private static final boolean CHECKER_TIMINGS = "1".equals(
+            System.getProperty("nu.validator.servlet.checker-timings"));
+
     private static String systemFilterString = "";
 
     private final static String FILTER_FILE = System.getProperty(
@@ -380,6 +406,22 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
 
     private boolean methodIsGet;
 
+    /**
+     * The POSTed document read ahead for the result cache. Has one byte
+     * more than <code>SIZE_LIMIT</code> if the body was longer.
+     */
+    private byte[] postBody;
+
+    private boolean resultCacheable = true;
+
+    private boolean timeBudgetExceeded = false;
+
+    /**
+     * The time spent in each checker and schema, or <code>null</code> if
+     * they are not being timed.
+     */
+    private CheckerTimings checkerTimings;
+
     private SourceCode sourceCode = new SourceCode();
 
     private Deque<Section> outline;
@@ -492,18 +534,7 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
 
             log4j.debug("The cache path prefix is: " + prefix);
 
-            ErrorHandler eh = new SystemErrErrorHandler();
-            LocalCacheEntityResolver er = new LocalCacheEntityResolver(new NullEntityResolver());
-            er.setAllowRnc(true);
-            PropertyMapBuilder pmb = new PropertyMapBuilder();
-            pmb.put(ValidateProperty.ERROR_HANDLER, eh);
-            pmb.put(ValidateProperty.ENTITY_RESOLVER, er);
-            pmb.put(ValidateProperty.XML_READER_CREATOR,
-                    new VerifierServletXMLReaderCreator(eh, er));
-            RngProperty.CHECK_ID_IDREF.add(pmb);
-            PropertyMap pMap = pmb.toPropertyMap();
-
-            log4j.debug("Parsing set up. Starting to read schemas.");
+            log4j.debug("Parsing set up. Setting up schemas.");
 
             SortedMap<String, Schema> schemaMap = new TreeMap<>();
 
@@ -544,47 +575,31 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             schemaMap.put("http://c.validator.nu/langdetect/",
                     CheckerSchema.LANGUAGE_DETECTING_CHECKER);
 
+            // Preset schemas are compiled on first use; see PresetSchema.
             for (String presetUrl : presetUrls) {
                 for (String url : SPACE.split(presetUrl)) {
-                    if (schemaMap.get(url) == null && !isCheckerUrl(url)) {
-                        Schema sch = schemaByUrl(url, er, pMap);
-                        schemaMap.put(url, sch);
+                    if (!schemaMap.containsKey(url) && !isCheckerUrl(url)) {
+                        schemaMap.put(url, null);
                     }
                 }
             }
 
-            log4j.debug("Schemas read.");
-
             preloadedSchemaUrls = new String[schemaMap.size()];
-            preloadedSchemas = new Schema[schemaMap.size()];
+            preloadedSchemas = new PresetSchema[schemaMap.size()];
             int i = 0;
             for (Map.Entry<String, Schema> entry : schemaMap.entrySet()) {
                 preloadedSchemaUrls[i] = entry.getKey().intern();
                 Schema s = entry.getValue();
-                String u = entry.getKey();
-                if (isDataAttributeDroppingSchema(u)) {
-                    s = new DataAttributeDroppingSchemaWrapper(
-                            s);
-                }
-                if (isXmlLangAllowingSchema(u)) {
-                    s = new XmlLangAttributeDroppingSchemaWrapper(s);
-                }
-                if (isRoleAttributeFilteringSchema(u)) {
-                    s = new RoleAttributeFilteringSchemaWrapper(s);
-                }
-                if (isTemplateElementDroppingSchema(u)) {
-                    s = new TemplateElementDroppingSchemaWrapper(s);
-                }
-                if (isCustomElementNamespaceChangingSchema(u)) {
-                    s = new NamespaceChangingSchemaWrapper(s);
-                }
-                preloadedSchemas[i] = s;
+                preloadedSchemas[i] = new PresetSchema(preloadedSchemaUrls[i],
+                        s == null ? null : wrapPresetSchema(entry.getKey(), s));
                 i++;
             }
 
+            startSchemaWarmUp();
+
             log4j.debug("Reading spec.");
 
-            html5spec = Html5SpecBuilder.parseSpec(LocalCacheEntityResolver.getHtml5SpecAsStream());
+            html5spec = StartupSnapshot.loadHtml5Spec();
 
             log4j.debug("Spec read.");
 
@@ -619,6 +634,149 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
         }
     }
 
+    private static Schema wrapPresetSchema(String url, Schema s) {
+        if (isDataAttributeDroppingSchema(url)) {
+            s = new DataAttributeDroppingSchemaWrapper(s);
+        }
+        if (isXmlLangAllowingSchema(url)) {
+            s = new XmlLangAttributeDroppingSchemaWrapper(s);
+        }
+        if (isRoleAttributeFilteringSchema(url)) {
+            s = new RoleAttributeFilteringSchemaWrapper(s);
+        }
+        if (isTemplateElementDroppingSchema(url)) {
+            s = new TemplateElementDroppingSchemaWrapper(s);
+        }
+        if (isCustomElementNamespaceChangingSchema(url)) {
+            s = new NamespaceChangingSchemaWrapper(s);
+        }
+        return s;
+    }
+
+    /**
+     * Compiles the hot schemas (<code>nu.validator.servlet.hot-schemas</code>)
+     * and, depending on <code>nu.validator.servlet.schema-warm-up</code>, the
+     * other preset schemas on a small pool of background threads. Requests
+     * that need a schema before then compile it themselves. Hot schemas that
+     * fail to compile are counted, and the service is not reported ready.
+     */
+    private static void startSchemaWarmUp() {
+        String warmUp = System.getProperty(
+                "nu.validator.servlet.schema-warm-up", "hot");
+        List<PresetSchema> queue = new ArrayList<>();
+        for (String url : SPACE.split(System.getProperty(
+                "nu.validator.servlet.hot-schemas",
+                "http://s.validator.nu/html5-all.rnc").trim())) {
+            if ("".equals(url)) {
+                continue;
+            }
+            int i = Arrays.binarySearch(preloadedSchemaUrls, url);
+            if (i < 0) {
+                log4j.warn("Not a preset schema: " + url);
+            } else if (!preloadedSchemas[i].isCompiled()) {
+                queue.add(preloadedSchemas[i]);
+            }
+        }
+        int hot = queue.size();
+        if ("all".equals(warmUp)) {
+            for (PresetSchema schema : preloadedSchemas) {
+                if (!schema.isCompiled() && !queue.contains(schema)) {
+                    queue.add(schema);
+                }
+            }
+        } else if (!"hot".equals(warmUp)) {
+            queue.clear();
+            hot = 0;
+        }
+        hotSchemasLatch = new CountDownLatch(hot);
+        if (queue.isEmpty()) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        int threads = Math.min(queue.size(), Integer.parseInt(
+                System.getProperty("nu.validator.servlet.schema-warm-up-threads",
+                        "2")));
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ValidationDispatcher.NamedThreadFactory(
+                        "vnu-schema-warm-up-"));
+        for (int i = 0; i < queue.size(); i++) {
+            final PresetSchema schema = queue.get(i);
+            final boolean isHot = i < hot;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        schema.get();
+                    } catch (Exception e) {
+                        log4j.error("Could not compile " + schema.url, e);
+                        if (isHot) {
+                            hotSchemaFailures.incrementAndGet();
+                        }
+                    } finally {
+                        if (isHot) {
+                            hotSchemasLatch.countDown();
+                            if (hotSchemasLatch.getCount() == 0) {
+                                logHotSchemasDone(start);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    private static void logHotSchemasDone(long start) {
+        long millis = System.currentTimeMillis() - start;
+        int failures = hotSchemaFailures.get();
+        if (failures == 0) {
+            log4j.info(String.format("Hot schemas ready in %d ms.", millis));
+        } else {
+            log4j.error(String.format("%d hot schemas failed to compile"
+                    + " (%d ms); the service is not reported ready.",
+                    failures, millis));
+        }
+    }
+
+    /**
+     * Returns whether the schema warm-up has tried to compile every hot
+     * schema, whether or not it succeeded.
+     */
+    static boolean isSchemaWarmUpDone() {
+        return hotSchemasLatch.getCount() == 0;
+    }
+
+    /**
+     * Returns whether a hot schema failed to compile during the warm-up.
+     */
+    static boolean isSchemaWarmUpFailed() {
+        return hotSchemaFailures.get() > 0;
+    }
+
+    /**
+     * Returns the serializer used for <code>out=html</code> results: the
+     * parser's HTML serializer, which also writes the spec fragments of
+     * message elaborations from their cached markup.
+     *
+     * @param out
+     *            the response stream
+     * @return the serializer
+     */
+    static SplicingHtmlSerializer newHtmlSerializer(OutputStream out) {
+        return new SplicingHtmlSerializer(out);
+    }
+
+    /**
+     * Returns the schema URLs of the presets.
+     */
+    static String[] getPresetUrls() {
+        return presetUrls.clone();
+    }
+
+    static String getSystemFilterString() {
+        return systemFilterString;
+    }
+
     @SuppressWarnings("deprecation")
     protected static String scrub(CharSequence s) {
         return Normalizer.normalize(
@@ -692,6 +850,49 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
         return false;
     }
 
+    /**
+     * Downloads the document named by the <code>doc</code> parameter of a
+     * GET request ahead of validation, applying the same deny-list and
+     * redirect checks as <code>service()</code>. The buffered response is
+     * picked up by the <code>PrudentHttpEntityResolver</code> created in
+     * <code>validate()</code>.
+     *
+     * @param request
+     *            the request whose document to prefetch
+     */
+    static void prefetchDocument(HttpServletRequest request) {
+        if (!("GET".equals(request.getMethod())
+                || "HEAD".equals(request.getMethod()))) {
+            return;
+        }
+        String doc = request.getParameter("doc");
+        if (doc == null) {
+            doc = request.getParameter("file");
+        }
+        if (doc == null || "".equals(doc)) {
+            return;
+        }
+        for (String domain : DENY_LIST) {
+            if (!"".equals(domain) && doc.contains(domain)) {
+                return;
+            }
+        }
+        if ((doc.contains("google.")) || (doc.contains("yahoo."))
+                || (doc.contains("outlook.live."))) {
+            return;
+        }
+        if (request.getParameter("acceptlanguage") != null) {
+            request.setAttribute(
+                    "http://validator.nu/properties/accept-language",
+                    scrub(request.getParameter("acceptlanguage")));
+        }
+        String ua = USER_AGENT;
+        if (request.getParameter("useragent") != null) {
+            ua = scrub(request.getParameter("useragent"));
+        }
+        PrudentHttpEntityResolver.prefetch(doc, ua, SIZE_LIMIT, request);
+    }
+
     /**
      * @param request
      * @param response
@@ -753,6 +954,8 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
                 outputFormat = OutputFormat.XML;
             } else if ("json".equals(outFormat)) {
                 outputFormat = OutputFormat.JSON;
+            } else if ("status".equals(outFormat)) {
+                outputFormat = OutputFormat.STATUS;
             } else {
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST,
                         "Unsupported output format");
@@ -788,7 +991,8 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
         }
 
         String callback = null;
-        if (outputFormat == OutputFormat.JSON) {
+        if (outputFormat == OutputFormat.JSON
+                || outputFormat == OutputFormat.STATUS) {
             callback = request.getParameter("callback");
             if (callback != null) {
                 Matcher m = JS_IDENTIFIER.matcher(callback);
@@ -908,6 +1112,8 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
 
         boolean errorsOnly = ("error".equals(request.getParameter("level")));
 
+        boolean failFast = (request.getParameter("failfast") != null);
+
         boolean asciiQuotes = false;
 
         if (!"no".equals(ASCII_QUOTES)) {
@@ -928,12 +1134,55 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             }
         }
 
+        boolean debug = outputFormat == OutputFormat.JSON
+                && request.getParameter("debug") != null;
+        if (CHECKER_TIMINGS || debug) {
+            checkerTimings = new CheckerTimings();
+        }
+
+        String resultCacheKey = null;
+        ResultCache.Recorder recorder = null;
+        // With external entities, the result depends on remote resources.
+        if (ResultCache.INSTANCE != null && !methodIsGet
+                && (WarmUp.WARM_UP == null
+                        || !WarmUp.WARM_UP.isWarmUpRequest(request))
+                && parser != ParserMode.XML_EXTERNAL_ENTITIES_NO_VALIDATION
+                && outputFormat != OutputFormat.HTML
+                && outputFormat != OutputFormat.XHTML
+                && request.getContentLength() <= SIZE_LIMIT) {
+            postBody = readPostBody();
+            if (postBody.length <= SIZE_LIMIT) {
+                resultCacheKey = ResultCache.key(postBody,
+                        resultCacheOptions(filterString));
+                ResultCache.Entry cached = ResultCache.INSTANCE.get(
+                        resultCacheKey);
+                if (cached != null) {
+                    response.setHeader("X-Cache", "HIT");
+                    response.setContentType(cached.contentType);
+                    response.setContentLength(cached.body.length);
+                    out.write(cached.body);
+                    Statistics stats = Statistics.STATISTICS;
+                    if (stats != null) {
+                        synchronized (stats) {
+                            stats.incrementField(
+                                    Statistics.Field.RESULT_CACHE_HIT);
+                        }
+                    }
+                    return;
+                }
+                response.setHeader("X-Cache", "MISS");
+                recorder = new ResultCache.Recorder(out,
+                        ResultCache.INSTANCE.maxEntrySize());
+                out = recorder;
+            }
+        }
+
         try {
             if (outputFormat == OutputFormat.HTML
                     || outputFormat == OutputFormat.XHTML) {
                 if (outputFormat == OutputFormat.HTML) {
                     response.setContentType("text/html; charset=utf-8");
-                    contentHandler = new HtmlSerializer(out);
+                    contentHandler = newHtmlSerializer(out);
                 } else {
                     response.setContentType("application/xhtml+xml");
                     contentHandler = 
@@ -960,28 +1209,100 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
                     errorHandler = new MessageEmitterAdapter(filterPattern,
                             sourceCode, showSource, null, lineOffset, false,
                             new XmlMessageEmitter(new XmlSerializer(out)));
+                } else if (outputFormat == OutputFormat.STATUS) {
+                    if (callback == null) {
+                        response.setContentType("application/json; charset=utf-8");
+                    } else {
+                        response.setContentType("application/javascript; charset=utf-8");
+                    }
+                    errorHandler = new MessageEmitterAdapter(filterPattern,
+                            sourceCode, false, null, lineOffset, false,
+                            new StatusMessageEmitter(
+                                    new nu.validator.json.Serializer(out),
+                                    callback));
                 } else if (outputFormat == OutputFormat.JSON) {
                     if (callback == null) {
                         response.setContentType("application/json; charset=utf-8");
                     } else {
                         response.setContentType("application/javascript; charset=utf-8");
                     }
+                    JsonMessageEmitter jsonEmitter = new JsonMessageEmitter(
+                            new nu.validator.json.Serializer(out), callback,
+                            asciiQuotes);
+                    if (debug) {
+                        // Timings differ from run to run.
+                        resultCacheable = false;
+                        jsonEmitter.setCheckerTimings(checkerTimings);
+                    }
                     errorHandler = new MessageEmitterAdapter(filterPattern,
                             sourceCode, showSource, null, lineOffset, false,
-                            new JsonMessageEmitter(
-                                    new nu.validator.json.Serializer(out),
-                                    callback, asciiQuotes));
+                            jsonEmitter);
                 } else {
                     throw new RuntimeException("Unreachable.");
                 }
                 errorHandler.setErrorsOnly(errorsOnly);
+                errorHandler.setFailFast(failFast);
                 validate();
+                // Results that depend on fetched resources are not cached.
+                if (recorder != null && resultCacheable && !externalSchema
+                        && (httpRes == null || !httpRes.hasFetched())) {
+                    byte[] result = recorder.toByteArray();
+                    if (result != null) {
+                        ResultCache.INSTANCE.put(resultCacheKey,
+                                response.getContentType(), result);
+                    }
+                }
             }
         } catch (SAXException e) {
             log4j.debug("SAXException: " + e.getMessage());
         }
     }
 
+    /**
+     * Reads the request body, stopping after <code>SIZE_LIMIT</code> + 1
+     * bytes.
+     */
+    private byte[] readPostBody() throws IOException {
+        int len = request.getContentLength();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                len < 0 ? 8192 : len);
+        InputStream in = request.getInputStream();
+        byte[] chunk = new byte[8192];
+        long remaining = SIZE_LIMIT + 1;
+        int n;
+        while (remaining > 0 && (n = in.read(chunk, 0,
+                (int) Math.min(chunk.length, remaining))) != -1) {
+            buffer.write(chunk, 0, n);
+            remaining -= n;
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Returns everything besides the document itself that the output of the
+     * transaction depends on.
+     */
+    private String resultCacheOptions(String filterString) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getClass().getName()).append('\n');
+        sb.append(postContentType).append('\n');
+        sb.append(document).append('\n');
+        sb.append(filterString).append('\n');
+        sb.append(request.getHeader("Accept-Language")).append('\n');
+        sb.append(request.getHeader("Content-Language")).append('\n');
+        sb.append(request.getAttribute(
+                "nu.validator.servlet.MultipartFormDataFilter.type")).append(
+                        '\n');
+        List<String> names = Collections.list(request.getParameterNames());
+        Collections.sort(names);
+        for (String name : names) {
+            for (String value : request.getParameterValues(name)) {
+                sb.append(name).append('=').append(value).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
     /**
      * @throws ServletException
      */
@@ -1061,6 +1382,8 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
         entityResolver = new LocalCacheEntityResolver(dataRes);
         setAllowRnc(true);
         setAllowCss(true);
+        TimeBudget.start(TIME_BUDGET, CPU_BUDGET);
+        CheckerTimings.start(checkerTimings);
         try {
             this.errorHandler.start(document);
             PropertyMapBuilder pmb = new PropertyMapBuilder();
@@ -1111,6 +1434,10 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             WiretapXMLReaderWrapper wiretap = new WiretapXMLReaderWrapper(
                     reader);
             ContentHandler recorder = sourceCode.getLocationRecorder();
+            if (TIME_BUDGET > 0 || CPU_BUDGET > 0) {
+                recorder = new CombineContentHandler(new TimeBudgetChecker(),
+                        recorder);
+            }
             if (baseUriTracker == null) {
                 wiretap.setWiretapContentHander(recorder);
             } else {
@@ -1178,6 +1505,11 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             errorHandler.ioError(new IOException(e.getMessage(), null));
         } catch (TooManyErrorsException e) {
             errorHandler.fatalError(e);
+        } catch (TimeBudgetExceededException e) {
+            log4j.info("Time budget exceeded, doc: " + document);
+            resultCacheable = false;
+            timeBudgetExceeded = true;
+            errorHandler.timeBudgetExceeded(e);
         } catch (SAXException e) {
             String msg = e.getMessage();
             if (!cannotRecover.equals(msg) && !changingEncoding.equals(msg)) {
@@ -1185,6 +1517,7 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             }
         } catch (IOException e) {
             isHtmlOrXhtml = false;
+            resultCacheable = false;
             if (e.getCause() instanceof org.apache.http.TruncatedChunkException) {
                 log4j.debug("TruncatedChunkException", e.getCause());
             } else {
@@ -1195,6 +1528,7 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             errorHandler.schemaError(e);
         } catch (RuntimeException e) {
             isHtmlOrXhtml = false;
+            resultCacheable = false;
             log4j.error("RuntimeException, doc: " + document + " schema: "
                     + schemaUrls + " lax: " + laxType, e);
             errorHandler.internalError(
@@ -1202,12 +1536,15 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
                     "Oops. That was not supposed to happen. A bug manifested itself in the application internals. Unable to continue. Sorry. The admin was notified.");
         } catch (Error e) {
             isHtmlOrXhtml = false;
+            resultCacheable = false;
             log4j.error("Error, doc: " + document + " schema: " + schemaUrls
                     + " lax: " + laxType, e);
             errorHandler.internalError(
                     e,
                     "Oops. That was not supposed to happen. A bug manifested itself in the application internals. Unable to continue. Sorry. The admin was notified.");
         } finally {
+            TimeBudget.end();
+            CheckerTimings.end();
             errorHandler.end(successMessage(), failureMessage(),
                     (String) request.getAttribute(
                             "http://validator.nu/properties/document-language"));
@@ -1228,6 +1565,9 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
         if (stats == null) {
             return;
         }
+        if (WarmUp.WARM_UP != null && WarmUp.WARM_UP.isWarmUpRequest(request)) {
+            return;
+        }
         synchronized (stats) {
             stats.incrementTotal();
             if (charsetOverride != null) {
@@ -1246,6 +1586,23 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             if (!filteredNamespaces.isEmpty()) {
                 stats.incrementField(Statistics.Field.XMLNS_FILTER);
             }
+            if (timeBudgetExceeded) {
+                stats.incrementField(Statistics.Field.TIME_BUDGET_EXCEEDED);
+            }
+            if (checkerTimings != null) {
+                stats.addCheckerTimings(checkerTimings);
+            }
+            if (httpRes != null) {
+                HttpResponseCache.Counters cacheCounters = httpRes.getCacheCounters();
+                stats.addToField(Statistics.Field.HTTP_CACHE_HIT,
+                        cacheCounters.getHits());
+                stats.addToField(Statistics.Field.HTTP_CACHE_REVALIDATED,
+                        cacheCounters.getRevalidations());
+                stats.addToField(Statistics.Field.HTTP_CACHE_MISS,
+                        cacheCounters.getMisses());
+                stats.addToField(Statistics.Field.HTTP_CACHE_BYTES_SAVED,
+                        cacheCounters.getBytesSaved());
+            }
             if (laxType) {
                 stats.incrementField(Statistics.Field.LAX_TYPE);
             }
@@ -1782,6 +2139,12 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             langdetect.setHttpContentLanguageHeader(
                     request.getHeader("Content-Language"));
         }
+        if (checkerTimings != null) {
+            return new TimedValidator(validator, checkerTimings,
+                    validatorContentHandler instanceof Checker
+                            ? validatorContentHandler.getClass().getSimpleName()
+                            : url);
+        }
         return validator;
     }
 
@@ -1790,9 +2153,9 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             throws SAXException, IOException, IncorrectSchemaException {
         int i = Arrays.binarySearch(preloadedSchemaUrls, url);
         if (i > -1) {
-            Schema rv = preloadedSchemas[i];
+            PresetSchema preset = preloadedSchemas[i];
             if (options.contains(WrapProperty.ATTRIBUTE_OWNER)) {
-                if (rv instanceof CheckerSchema) {
+                if (preset.isChecker()) {
                     errorHandler.error(new SAXParseException(
                             "A non-schema checker cannot be used as an attribute schema.",
                             null, url, -1, -1));
@@ -1801,7 +2164,7 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
                     // ugly fall through
                 }
             } else {
-                return rv;
+                return preset.get();
             }
         }
 
@@ -1824,6 +2187,65 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
         return sch;
     }
 
+    private static PropertyMap presetPropertyMap() {
+        ErrorHandler eh = new SystemErrErrorHandler();
+        LocalCacheEntityResolver er = new LocalCacheEntityResolver(new NullEntityResolver());
+        er.setAllowRnc(true);
+        PropertyMapBuilder pmb = new PropertyMapBuilder();
+        pmb.put(ValidateProperty.ERROR_HANDLER, eh);
+        pmb.put(ValidateProperty.ENTITY_RESOLVER, er);
+        pmb.put(ValidateProperty.XML_READER_CREATOR,
+                new VerifierServletXMLReaderCreator(eh, er));
+        RngProperty.CHECK_ID_IDREF.add(pmb);
+        return pmb.toPropertyMap();
+    }
+
+    /**
+     * A preset schema that is compiled the first time it is needed. Each
+     * schema has its own lock, so a request waiting for one schema to
+     * compile does not hold up requests that use other schemas.
+     */
+    private static final class PresetSchema {
+
+        final String url;
+
+        private volatile Schema schema;
+
+        PresetSchema(String url, Schema schema) {
+            this.url = url;
+            this.schema = schema;
+        }
+
+        boolean isCompiled() {
+            return schema != null;
+        }
+
+        boolean isChecker() {
+            return schema instanceof CheckerSchema;
+        }
+
+        Schema get() throws SAXException, IOException,
+                IncorrectSchemaException {
+            Schema rv = schema;
+            if (rv != null) {
+                return rv;
+            }
+            synchronized (this) {
+                if (schema == null) {
+                    long start = System.currentTimeMillis();
+                    PropertyMap pMap = presetPropertyMap();
+                    schema = wrapPresetSchema(url, schemaByUrl(url,
+                            (EntityResolver) pMap.get(
+                                    ValidateProperty.ENTITY_RESOLVER),
+                            pMap));
+                    log4j.info(String.format("Compiled %s in %d ms.", url,
+                            System.currentTimeMillis() - start));
+                }
+                return schema;
+            }
+        }
+    }
+
     /**
      * @param url
      * @return
@@ -2260,9 +2682,15 @@ class VerifierServletTransaction implements DocumentModeHandler, SchemaResolver
             }
             documentInput = contentTypeParser.buildTypedInputSource(document,
                     null, postContentType);
+            InputStream body = request.getInputStream();
+            if (postBody != null) {
+                body = postBody.length > SIZE_LIMIT
+                        ? new SequenceInputStream(
+                                new ByteArrayInputStream(postBody), body)
+                        : new ByteArrayInputStream(postBody);
+            }
             documentInput.setByteStream(len < 0 ? new BoundedInputStream(
-                    request.getInputStream(), SIZE_LIMIT, document)
-                    : request.getInputStream());
+                    body, SIZE_LIMIT, document) : body);
             documentInput.setSystemId(request.getHeader("Content-Location"));
         }
         if (imageCollector != null) {
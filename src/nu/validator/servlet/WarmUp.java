@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.servlet;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Warms up the service at startup when the
+ * <code>nu.validator.servlet.warm-up</code> system property is
+ * <code>1</code> or <code>background</code>.
+ *
+ * <p>The warm-up sends a bundled set of documents through every preset
+ * schema (and through the automatic schema choice) in every output format,
+ * <code>nu.validator.servlet.warm-up.iterations</code> times, so that the
+ * schemas are compiled and the hot code is compiled by the JIT before real
+ * requests arrive. The requests go over HTTP to a loopback connector of
+ * their own. With <code>1</code>, the service does not accept other
+ * connections until the warm-up is done; with <code>background</code>, it
+ * does, and the readiness endpoint (<code>/ready</code> by default)
+ * answers 503 until the warm-up is done. The warm-up only counts as done
+ * when all its iterations ran and every request of the last one succeeded;
+ * otherwise the readiness endpoint keeps answering 503. The warm-up
+ * duration and the time and failed requests of each iteration are logged
+ * and shown on the statistics page.
+ */
+final class WarmUp {
+
+    private static final Logger log4j = Logger.getLogger(WarmUp.class);
+
+    static final WarmUp WARM_UP;
+
+    static {
+        String mode = System.getProperty("nu.validator.servlet.warm-up", "0");
+        if ("1".equals(mode) || "background".equals(mode)) {
+            WARM_UP = new WarmUp("background".equals(mode),
+                    Integer.parseInt(System.getProperty(
+                            "nu.validator.servlet.warm-up.iterations", "3")));
+        } else {
+            WARM_UP = null;
+        }
+    }
+
+    static final String READY_PATH = System.getProperty(
+            "nu.validator.servlet.path.ready", "/ready");
+
+    /**
+     * The header that marks warm-up requests, so that they are not counted
+     * in the statistics or put in the result cache.
+     */
+    private static final String HEADER = "X-Vnu-Warm-Up";
+
+    private static final String USER_AGENT = "Validator.nu/LV warm-up";
+
+    private static final String[] FORMATS = { "html", "xhtml", "xml",
+            "json", "gnu", "text", "status" };
+
+    private static final String HTML = "<!DOCTYPE html>\n"
+            + "<html lang=\"en\">\n"
+            + "<head>\n"
+            + "<meta charset=\"utf-8\">\n"
+            + "<meta name=\"viewport\" content=\"width=device-width\">\n"
+            + "<title>Warm-up document</title>\n"
+            + "<link rel=\"stylesheet\" href=\"style.css\">\n"
+            + "<style>\n"
+            + "body { font: 16px/1.5 sans-serif; margin: 0 auto; max-width: 40em }\n"
+            + "@media (min-width: 600px) { nav ul { display: flex } }\n"
+            + "td, th { padding: calc(0.25em + 1px) }\n"
+            + "</style>\n"
+            + "<script type=\"application/ld+json\">{\"@type\": \"WebPage\"}</script>\n"
+            + "</head>\n"
+            + "<body>\n"
+            + "<header><nav aria-label=\"Main\"><ul>\n"
+            + "<li><a href=\"/\">Home</a></li>\n"
+            + "<li><a href=\"#news\" aria-current=\"page\">News</a></li>\n"
+            + "</ul></nav></header>\n"
+            + "<main>\n"
+            + "<article id=\"news\" itemscope itemtype=\"https://schema.org/Article\">\n"
+            + "<h1 itemprop=\"headline\">Caf\u00e9 news</h1>\n"
+            + "<p>Posted <time datetime=\"2020-03-16T10:00Z\" itemprop=\"datePublished\">16 March</time>"
+            + " by <span itemprop=\"author\">A. N. Other</span>.</p>\n"
+            + "<picture><source srcset=\"a.webp 1x, a2.webp 2x\" type=\"image/webp\">"
+            + "<img src=\"a.png\" srcset=\"a2.png 2x\" sizes=\"(min-width: 600px) 50vw, 100vw\""
+            + " width=\"300\" height=\"200\" alt=\"A cup of coffee\"></picture>\n"
+            + "<p style=\"color: #333; margin-top: 1em\" lang=\"fr\">Un caf\u00e9, s\u2019il vous pla\u00eet.</p>\n"
+            + "<table>\n<caption>Prices</caption>\n"
+            + "<thead><tr><th scope=\"col\">Item<th scope=\"col\">Price</thead>\n"
+            + "<tbody><tr><td>Espresso<td>2.00\n<tr><td colspan=\"2\">Free refills</tbody>\n"
+            + "</table>\n"
+            + "<form action=\"/order\" method=\"post\">\n"
+            + "<label>Name <input name=\"name\" required autocomplete=\"name\"></label>\n"
+            + "<label>Email <input type=\"email\" name=\"email\"></label>\n"
+            + "<select name=\"size\"><option value=\"\">Size</option><option>Large</option></select>\n"
+            + "<button>Order</button>\n"
+            + "</form>\n"
+            + "<p>An <center>obsolete</center> element and a <div>misplaced block.</p>\n"
+            + "</article>\n"
+            + "</main>\n"
+            + "<footer><p>&copy; 2020 <a href=\"mailto:info@example.org\">Example</a></p></footer>\n"
+            + "<script src=\"script.js\" async></script>\n"
+            + "</body>\n"
+            + "</html>\n";
+
+    private static final String XHTML = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"en\" lang=\"en\">\n"
+            + "<head><title>Warm-up document</title></head>\n"
+            + "<body>\n"
+            + "<h1>Shapes</h1>\n"
+            + "<p>A circle: <svg xmlns=\"http://www.w3.org/2000/svg\" width=\"20\" height=\"20\">"
+            + "<circle cx=\"10\" cy=\"10\" r=\"8\" fill=\"teal\"/></svg></p>\n"
+            + "<p>An equation: <math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+            + "<mi>x</mi><mo>=</mo><mn>2</mn></math></p>\n"
+            + "<ul><li>One</li><li><p>Two</p></li><li><ul><li>Nested</li></ul></li></ul>\n"
+            + "<p><img src=\"b.png\"/></p>\n"
+            + "</body>\n"
+            + "</html>\n";
+
+    private static final String SVG = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+            + "<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 100 100\">\n"
+            + "<title>Warm-up drawing</title>\n"
+            + "<rect x=\"10\" y=\"10\" width=\"80\" height=\"80\" fill=\"none\" stroke=\"black\"/>\n"
+            + "<path d=\"M10 10 L90 90\" stroke=\"red\"/>\n"
+            + "<text x=\"50\" y=\"50\" text-anchor=\"middle\">Hi</text>\n"
+            + "</svg>\n";
+
+    private static final String CSS = "@charset \"utf-8\";\n"
+            + ":root { --accent: #036 }\n"
+            + "body { color: var(--accent); margin: 0 }\n"
+            + "a:hover { text-decoration: underline }\n"
+            + "@media print { nav { display: none } }\n"
+            + ".grid { display: grid; grid-template-columns: repeat(3, 1fr) }\n"
+            + "p { colour: red }\n";
+
+    private final boolean background;
+
+    private final int iterations;
+
+    private final String token = Long.toHexString(new SecureRandom().nextLong());
+
+    private final List<Long> iterationMillis = new ArrayList<>();
+
+    private final List<Integer> iterationFailures = new ArrayList<>();
+
+    private long durationMillis = -1;
+
+    private boolean done;
+
+    private boolean succeeded;
+
+    private WarmUp(boolean background, int iterations) {
+        this.background = background;
+        this.iterations = Math.max(1, iterations);
+    }
+
+    boolean isBackground() {
+        return background;
+    }
+
+    /**
+     * Returns whether the request was sent by the warm-up.
+     */
+    boolean isWarmUpRequest(HttpServletRequest request) {
+        return token.equals(request.getHeader(HEADER));
+    }
+
+    /**
+     * Returns whether the service is ready: the warm-up, if any, is done and
+     * succeeded and the hot schemas have been compiled without failures.
+     */
+    static boolean isReady() {
+        if (WARM_UP != null) {
+            synchronized (WARM_UP) {
+                if (!WARM_UP.done || !WARM_UP.succeeded) {
+                    return false;
+                }
+            }
+        }
+        return VerifierServletTransaction.isSchemaWarmUpDone()
+                && !VerifierServletTransaction.isSchemaWarmUpFailed();
+    }
+
+    /**
+     * Answers a request for the readiness endpoint.
+     */
+    static void writeReadiness(HttpServletResponse response)
+            throws IOException {
+        boolean ready = isReady();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"ready\":").append(ready);
+        sb.append(",\"schemaWarmUpDone\":").append(
+                VerifierServletTransaction.isSchemaWarmUpDone());
+        sb.append(",\"schemaWarmUpFailed\":").append(
+                VerifierServletTransaction.isSchemaWarmUpFailed());
+        if (WARM_UP != null) {
+            synchronized (WARM_UP) {
+                sb.append(",\"warmUpDone\":").append(WARM_UP.done);
+                sb.append(",\"warmUpSucceeded\":").append(
+                        WARM_UP.succeeded);
+                sb.append(",\"warmUpMillis\":").append(
+                        WARM_UP.durationMillis);
+                sb.append(",\"iterationMillis\":");
+                appendArray(sb, WARM_UP.iterationMillis);
+                sb.append(",\"iterationFailures\":");
+                appendArray(sb, WARM_UP.iterationFailures);
+            }
+        }
+        sb.append("}\n");
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        response.setStatus(ready ? HttpServletResponse.SC_OK
+                : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType("application/json; charset=utf-8");
+        response.setContentLength(body.length);
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(body);
+        }
+    }
+
+    private static void appendArray(StringBuilder sb, List<?> values) {
+        sb.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values.get(i));
+        }
+        sb.append(']');
+    }
+
+    /**
+     * Runs the warm-up against the loopback connector on the given port.
+     */
+    void run(int port) {
+        long start = System.currentTimeMillis();
+        try {
+            String[] presetUrls = VerifierServletTransaction.getPresetUrls();
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                long iterationStart = System.currentTimeMillis();
+                int requests = 0;
+                int failures = 0;
+                for (String format : FORMATS) {
+                    for (int i = -1; i < presetUrls.length; i++) {
+                        String query = "?out=" + format;
+                        if (i >= 0) {
+                            query += "&schema="
+                                    + URLEncoder.encode(presetUrls[i], "UTF-8");
+                        }
+                        failures += send(port, VerifierServlet.GENERIC_HOST,
+                                VerifierServlet.GENERIC_PATH + query,
+                                "text/html", HTML);
+                        failures += send(port, VerifierServlet.GENERIC_HOST,
+                                VerifierServlet.GENERIC_PATH + query,
+                                "application/xhtml+xml", XHTML);
+                        requests += 2;
+                    }
+                    String query = "?out=" + format;
+                    failures += send(port, VerifierServlet.GENERIC_HOST,
+                            VerifierServlet.GENERIC_PATH + query,
+                            "image/svg+xml", SVG);
+                    failures += send(port, VerifierServlet.GENERIC_HOST,
+                            VerifierServlet.GENERIC_PATH + query,
+                            "text/css", CSS);
+                    failures += send(port, VerifierServlet.HTML5_HOST,
+                            VerifierServlet.HTML5_PATH + query, "text/html",
+                            HTML);
+                    requests += 3;
+                }
+                long millis = System.currentTimeMillis() - iterationStart;
+                synchronized (this) {
+                    iterationMillis.add(millis);
+                    iterationFailures.add(failures);
+                    succeeded = iteration == iterations && failures == 0;
+                }
+                log4j.info(String.format(
+                        "Warm-up iteration %d of %d: %d requests in %d ms"
+                                + " (%.1f ms per request, %d failed).",
+                        iteration, iterations, requests, millis,
+                        millis / (double) requests, failures));
+            }
+        } catch (IOException | RuntimeException e) {
+            log4j.error("Warm-up failed.", e);
+        } finally {
+            synchronized (this) {
+                durationMillis = System.currentTimeMillis() - start;
+                done = true;
+            }
+            if (succeeded) {
+                log4j.info(String.format("Warm-up done in %d ms.",
+                        durationMillis));
+            } else {
+                log4j.error(String.format("Warm-up did not succeed after %d ms;"
+                        + " the service is not reported ready.",
+                        durationMillis));
+            }
+        }
+    }
+
+    /**
+     * Posts a document and reads the whole response. Returns 1 if the
+     * request failed and 0 otherwise.
+     */
+    private int send(int port, String host, String path, String contentType,
+            String document) {
+        byte[] body = document.getBytes(StandardCharsets.UTF_8);
+        // A plain socket, unlike HttpURLConnection, can send the Host
+        // header that the servlet matches against the configured hosts.
+        try (Socket socket = new Socket(InetAddress.getByName("127.0.0.1"),
+                port)) {
+            socket.setSoTimeout(120000);
+            OutputStream out = new BufferedOutputStream(
+                    socket.getOutputStream());
+            out.write(("POST " + path + " HTTP/1.1\r\n" //
+                    + "Host: " + ("".equals(host) ? "127.0.0.1" : host)
+                    + "\r\n" //
+                    + "User-Agent: " + USER_AGENT + "\r\n" //
+                    + HEADER + ": " + token + "\r\n" //
+                    + "Content-Type: " + contentType + "; charset=utf-8\r\n" //
+                    + "Content-Length: " + body.length + "\r\n" //
+                    + "Connection: close\r\n" //
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            StringBuilder statusLine = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                statusLine.append((char) c);
+            }
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Discard.
+            }
+            String[] parts = statusLine.toString().split(" ");
+            if (parts.length < 2 || !parts[1].startsWith("2")) {
+                log4j.warn("Warm-up request " + path + " got: " + statusLine);
+                return 1;
+            }
+            return 0;
+        } catch (IOException e) {
+            log4j.warn("Warm-up request " + path + " failed.", e);
+            return 1;
+        }
+    }
+
+    synchronized Object[] metrics() {
+        return new Object[] { //
+                "Warm-up: duration (ms)", durationMillis, //
+                "Warm-up: iteration times (ms)", iterationMillis.toString(), //
+                "Warm-up: failed requests per iteration", iterationFailures.toString(), //
+                "Warm-up: succeeded", succeeded ? "yes" : "no", //
+        };
+    }
+}
@@ -80,10 +80,23 @@ public final class SourceCode implements CharacterHandler {
 
     private boolean isCss = false;
 
+    private boolean retainSource = true;
+
     public SourceCode() {
         this.locationRecorder = new LocationRecorder(this);
     }
 
+    /**
+     * Sets whether the source and the element locations are kept for
+     * extracts. When only the verdict is reported, nothing is kept.
+     * 
+     * @param retainSource
+     *            <code>false</code> to discard the source as it is parsed
+     */
+    public void setRetainSource(boolean retainSource) {
+        this.retainSource = retainSource;
+    }
+
     public void setIsCss() {
         this.isCss = true;
     }
@@ -117,6 +130,9 @@ public final class SourceCode implements CharacterHandler {
     @Override
     public void characters(char[] ch, int start, int length)
             throws SAXException {
+        if (!retainSource) {
+            return;
+        }
         int s = start;
         int end = start + length;
         for (int i = start; i < end; i++) {
@@ -178,11 +194,16 @@ public final class SourceCode implements CharacterHandler {
         reverseSortedLocations.clear();
         lines.clear();
         currentLine = null;
-        newLine();
+        if (retainSource) {
+            newLine();
+        }
         prevWasCr = false;
     }
 
     public void addLocatorLocation(int oneBasedLine, int oneBasedColumn) {
+        if (!retainSource) {
+            return;
+        }
         log4j.debug(oneBasedLine + ", " + oneBasedColumn);
         reverseSortedLocations.add(new Location(this, oneBasedLine - 1,
                 oneBasedColumn - 1));
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.spec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import nu.validator.saxtree.DocumentFragment;
+import nu.validator.saxtree.TreeBuilder;
+import nu.validator.saxtree.TreeParser;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+/**
+ * Writes <code>DocumentFragment</code>s as a compact stream of SAX events
+ * and builds them back, so that spec excerpts can be stored in the startup
+ * snapshot instead of being extracted from the spec on every start.
+ * Locations and comments are not kept; message emitters use neither.
+ */
+final class DocumentFragmentCodec {
+
+    private static final int END = 0;
+
+    private static final int START_ELEMENT = 1;
+
+    private static final int END_ELEMENT = 2;
+
+    private static final int CHARACTERS = 3;
+
+    private static final int START_PREFIX_MAPPING = 4;
+
+    private static final int END_PREFIX_MAPPING = 5;
+
+    private static final int PROCESSING_INSTRUCTION = 6;
+
+    private DocumentFragmentCodec() {
+    }
+
+    static void write(DocumentFragment fragment, final DataOutput out)
+            throws IOException, SAXException {
+        if (fragment == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        try {
+            new TreeParser(new EventWriter(out), null).parse(fragment);
+        } catch (SAXException e) {
+            if (e.getException() instanceof IOException) {
+                throw (IOException) e.getException();
+            }
+            throw e;
+        }
+        out.writeByte(END);
+    }
+
+    static DocumentFragment read(DataInput in) throws IOException,
+            SAXException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        TreeBuilder builder = new TreeBuilder(true, true);
+        builder.setDocumentLocator(new LocatorImpl());
+        for (;;) {
+            int event = in.readByte();
+            switch (event) {
+                case END:
+                    return (DocumentFragment) builder.getRoot();
+                case START_ELEMENT:
+                    String uri = in.readUTF().intern();
+                    String localName = in.readUTF().intern();
+                    String qName = in.readUTF().intern();
+                    AttributesImpl attributes = new AttributesImpl();
+                    int length = in.readInt();
+                    for (int i = 0; i < length; i++) {
+                        attributes.addAttribute(in.readUTF().intern(),
+                                in.readUTF().intern(), in.readUTF().intern(),
+                                in.readUTF(), readString(in));
+                    }
+                    builder.startElement(uri, localName, qName, attributes);
+                    break;
+                case END_ELEMENT:
+                    builder.endElement(in.readUTF().intern(),
+                            in.readUTF().intern(), in.readUTF().intern());
+                    break;
+                case CHARACTERS:
+                    char[] ch = readString(in).toCharArray();
+                    builder.characters(ch, 0, ch.length);
+                    break;
+                case START_PREFIX_MAPPING:
+                    builder.startPrefixMapping(in.readUTF().intern(),
+                            in.readUTF().intern());
+                    break;
+                case END_PREFIX_MAPPING:
+                    builder.endPrefixMapping(in.readUTF().intern());
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    builder.processingInstruction(in.readUTF(), readString(in));
+                    break;
+                default:
+                    throw new IOException("Corrupt fragment in snapshot.");
+            }
+        }
+    }
+
+    /**
+     * Unlike <code>writeUTF</code>, not limited to 64 KB.
+     */
+    private static void writeString(DataOutput out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class EventWriter implements ContentHandler {
+
+        private final DataOutput out;
+
+        EventWriter(DataOutput out) {
+            this.out = out;
+        }
+
+        private SAXException wrap(IOException e) {
+            return new SAXException(e);
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri)
+                throws SAXException {
+            try {
+                out.writeByte(START_PREFIX_MAPPING);
+                out.writeUTF(prefix);
+                out.writeUTF(uri);
+            } catch (IOException e) {
+                throw wrap(e);
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            try {
+                out.writeByte(END_PREFIX_MAPPING);
+                out.writeUTF(prefix);
+            } catch (IOException e) {
+                throw wrap(e);
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes atts) throws SAXException {
+            try {
+                out.writeByte(START_ELEMENT);
+                out.writeUTF(uri);
+                out.writeUTF(localName);
+                out.writeUTF(qName);
+                int length = atts.getLength();
+                out.writeInt(length);
+                for (int i = 0; i < length; i++) {
+                    out.writeUTF(atts.getURI(i));
+                    out.writeUTF(atts.getLocalName(i));
+                    out.writeUTF(atts.getQName(i));
+                    out.writeUTF(atts.getType(i));
+                    writeString(out, atts.getValue(i));
+                }
+            } catch (IOException e) {
+                throw wrap(e);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            try {
+                out.writeByte(END_ELEMENT);
+                out.writeUTF(uri);
+                out.writeUTF(localName);
+                out.writeUTF(qName);
+            } catch (IOException e) {
+                throw wrap(e);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+                throws SAXException {
+            try {
+                out.writeByte(CHARACTERS);
+                writeString(out, new String(ch, start, length));
+            } catch (IOException e) {
+                throw wrap(e);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length)
+                throws SAXException {
+            characters(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(String target, String data)
+                throws SAXException {
+            try {
+                out.writeByte(PROCESSING_INSTRUCTION);
+                out.writeUTF(target);
+                writeString(out, data);
+            } catch (IOException e) {
+                throw wrap(e);
+            }
+        }
+
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+        }
+    }
+}
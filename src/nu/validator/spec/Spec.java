@@ -22,10 +22,16 @@
 
 package nu.validator.spec;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 import nu.validator.saxtree.DocumentFragment;
 
+import org.xml.sax.SAXException;
+
 import com.thaiopensource.xml.util.Name;
 
 public class Spec {
@@ -66,4 +72,61 @@ public class Spec {
         return attributesByElement.get(element);
     }
 
+    /**
+     * Writes this spec in the format read by <code>readFrom</code>.
+     */
+    public void writeTo(DataOutput out) throws IOException, SAXException {
+        out.writeInt(urisByElement.size());
+        for (Map.Entry<Name, String> entry : urisByElement.entrySet()) {
+            writeName(out, entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        writeFragments(out, contextsByElement);
+        writeFragments(out, contentModelsByElement);
+        writeFragments(out, attributesByElement);
+    }
+
+    /**
+     * Reads a spec written by <code>writeTo</code>.
+     */
+    public static Spec readFrom(DataInput in) throws IOException,
+            SAXException {
+        int size = in.readInt();
+        Map<Name, String> urisByElement = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            urisByElement.put(readName(in), in.readUTF());
+        }
+        return new Spec(urisByElement, readFragments(in), readFragments(in),
+                readFragments(in));
+    }
+
+    private static void writeName(DataOutput out, Name name)
+            throws IOException {
+        out.writeUTF(name.getNamespaceUri());
+        out.writeUTF(name.getLocalName());
+    }
+
+    private static Name readName(DataInput in) throws IOException {
+        return new Name(in.readUTF().intern(), in.readUTF().intern());
+    }
+
+    private static void writeFragments(DataOutput out,
+            Map<Name, DocumentFragment> fragments) throws IOException,
+            SAXException {
+        out.writeInt(fragments.size());
+        for (Map.Entry<Name, DocumentFragment> entry : fragments.entrySet()) {
+            writeName(out, entry.getKey());
+            DocumentFragmentCodec.write(entry.getValue(), out);
+        }
+    }
+
+    private static Map<Name, DocumentFragment> readFragments(DataInput in)
+            throws IOException, SAXException {
+        int size = in.readInt();
+        Map<Name, DocumentFragment> fragments = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            fragments.put(readName(in), DocumentFragmentCodec.read(in));
+        }
+        return fragments;
+    }
 }
@@ -36,6 +36,7 @@ import nu.validator.checker.ConformingButObsoleteWarner;
 import nu.validator.checker.MicrodataChecker;
 import nu.validator.checker.NormalizationChecker;
 import nu.validator.checker.TextContentChecker;
+import nu.validator.checker.TimeBudgetChecker;
 import nu.validator.checker.UncheckedSubtreeWarner;
 import nu.validator.checker.UnsupportedFeatureChecker;
 import nu.validator.checker.UsemapChecker;
@@ -52,6 +53,7 @@ import nu.validator.xml.dataattributes.DataAttributeDroppingSchemaWrapper;
 import nu.validator.xml.langattributes.XmlLangAttributeDroppingSchemaWrapper;
 import nu.validator.xml.roleattributes.RoleAttributeFilteringSchemaWrapper;
 import nu.validator.xml.templateelement.TemplateElementDroppingSchemaWrapper;
+import nu.validator.xml.CombineContentHandler;
 import nu.validator.xml.IdFilter;
 import nu.validator.xml.NullEntityResolver;
 import nu.validator.xml.PrudentHttpEntityResolver;
@@ -382,7 +384,9 @@ public class SimpleDocumentValidator {
     private WiretapXMLReaderWrapper getWiretap(XMLReader reader) {
         WiretapXMLReaderWrapper wiretap = new WiretapXMLReaderWrapper(reader);
         ContentHandler recorder = sourceCode.getLocationRecorder();
-        wiretap.setWiretapContentHander(recorder);
+        // Stops parsing when a TimeBudget set by the caller runs out.
+        wiretap.setWiretapContentHander(new CombineContentHandler(
+                new TimeBudgetChecker(), recorder));
         wiretap.setWiretapLexicalHandler((LexicalHandler) recorder);
         return wiretap;
     }
@@ -0,0 +1,654 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.xml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.log4j.Logger;
+
+/**
+ * An HTTP cache for the resources fetched by
+ * <code>PrudentHttpEntityResolver</code>, with a bounded in-memory tier and
+ * an optional bounded on-disk tier.
+ *
+ * <p>Only successful responses are stored, together with the headers that
+ * the resolver inspects (so that a cached resource produces the same
+ * warnings as a fresh one). <code>Cache-Control</code> and
+ * <code>Expires</code> decide freshness; stale entries are revalidated with
+ * <code>If-None-Match</code>/<code>If-Modified-Since</code>. Because the
+ * cache sits inside the resolver, local entities and <code>data:</code> URLs
+ * (handled by <code>LocalCacheEntityResolver</code> and
+ * <code>DataUriEntityResolver</code> in front of it) never reach it.
+ *
+ * <p>The cache is enabled by setting the
+ * <code>nu.validator.xml.http-cache</code> system property to
+ * <code>1</code>. <code>nu.validator.xml.http-cache.memory-size</code> and
+ * <code>nu.validator.xml.http-cache.disk-size</code> bound the tiers in
+ * bytes; <code>nu.validator.xml.http-cache.dir</code> enables the disk tier.
+ */
+public final class HttpResponseCache {
+
+    private static final Logger log4j = Logger.getLogger(HttpResponseCache.class);
+
+    /**
+     * The shared instance or <code>null</code> if caching is disabled.
+     */
+    public static final HttpResponseCache INSTANCE;
+
+    static {
+        if ("1".equals(System.getProperty("nu.validator.xml.http-cache"))) {
+            String dir = System.getProperty("nu.validator.xml.http-cache.dir");
+            INSTANCE = new HttpResponseCache(
+                    Long.parseLong(System.getProperty(
+                            "nu.validator.xml.http-cache.memory-size",
+                            "33554432")),
+                    dir == null || "".equals(dir) ? null : new File(dir),
+                    Long.parseLong(System.getProperty(
+                            "nu.validator.xml.http-cache.disk-size",
+                            "268435456")));
+        } else {
+            INSTANCE = null;
+        }
+    }
+
+    private static final String[] STORED_HEADERS = { "Content-Type",
+            "Content-Language", "Content-Encoding", "X-UA-Compatible",
+            "Content-Security-Policy" };
+
+    /**
+     * Version 2 writes strings as length-prefixed UTF-8 instead of with
+     * <code>writeUTF</code>, which cannot write more than 64 KB.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Entries are written to a file named after the entry file with this
+     * suffix and the thread id, and then renamed.
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Per-transaction cache statistics.
+     */
+    public static final class Counters {
+
+        int hits;
+
+        int revalidations;
+
+        int misses;
+
+        long bytesSaved;
+
+        /**
+         * @return the number of resources served without contacting the
+         *         remote server
+         */
+        public int getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of resources revalidated with a 304 response
+         */
+        public int getRevalidations() {
+            return revalidations;
+        }
+
+        /**
+         * @return the number of resources downloaded in full
+         */
+        public int getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return the number of body bytes not downloaded thanks to the cache
+         */
+        public long getBytesSaved() {
+            return bytesSaved;
+        }
+
+        void add(Counters other) {
+            hits += other.hits;
+            revalidations += other.revalidations;
+            misses += other.misses;
+            bytesSaved += other.bytesSaved;
+        }
+    }
+
+    static final class Entry {
+
+        final String key;
+
+        final long expires;
+
+        final String etag;
+
+        final String lastModified;
+
+        final String[] headers;
+
+        final byte[] body;
+
+        Entry(String key, long expires, String etag, String lastModified,
+                String[] headers, byte[] body) {
+            this.key = key;
+            this.expires = expires;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        long size() {
+            long size = body.length + key.length() * 2 + 64;
+            for (String header : headers) {
+                size += header.length() * 2;
+            }
+            return size;
+        }
+
+        void addValidators(HttpGet m) {
+            if (etag != null) {
+                m.setHeader("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                m.setHeader("If-Modified-Since", lastModified);
+            }
+        }
+
+        /**
+         * Returns a copy of this entry updated from a 304 response.
+         */
+        Entry revalidated(HttpResponse notModified, long now) {
+            long newExpires = expires(notModified, now);
+            Header e = notModified.getFirstHeader("ETag");
+            Header lm = notModified.getFirstHeader("Last-Modified");
+            return new Entry(key, newExpires < 0 ? now : newExpires,
+                    e == null ? etag : e.getValue(),
+                    lm == null ? lastModified : lm.getValue(), headers, body);
+        }
+
+        HttpResponse toResponse() {
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                    200, "OK");
+            for (int i = 0; i < headers.length; i += 2) {
+                response.addHeader(headers[i], headers[i + 1]);
+            }
+            response.setEntity(new ByteArrayEntity(body));
+            return response;
+        }
+    }
+
+    private final long memoryLimit;
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(
+            16, 0.75f, true);
+
+    private long memorySize = 0;
+
+    private final File dir;
+
+    private final long diskLimit;
+
+    private long diskSize = 0;
+
+    private HttpResponseCache(long memoryLimit, File dir, long diskLimit) {
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            log4j.warn("Cannot create HTTP cache directory " + dir
+                    + "; using the in-memory cache only.");
+            dir = null;
+        }
+        this.dir = dir;
+        if (dir != null) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (isTemp(file)) {
+                        // Left behind by a process that stopped mid-write
+                        file.delete();
+                    } else {
+                        diskSize += file.length();
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isTemp(File file) {
+        return file.getName().contains(TEMP_SUFFIX);
+    }
+
+    /**
+     * Computes the cache key of a request. The remote server may vary the
+     * response on the request headers we set, so they are part of the key.
+     */
+    static String key(HttpGet m) {
+        StringBuilder sb = new StringBuilder(m.getURI().toString());
+        for (String name : new String[] { "User-Agent", "Accept-Language" }) {
+            Header header = m.getFirstHeader(name);
+            sb.append('\n');
+            if (header != null) {
+                sb.append(header.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the absolute expiry time of a response or -1 if the response
+     * must not be stored.
+     */
+    private static long expires(HttpResponse response, long now) {
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        boolean noCache = false;
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName().toLowerCase();
+                if ("no-store".equals(name) || "private".equals(name)) {
+                    return -1;
+                } else if ("no-cache".equals(name)) {
+                    noCache = true;
+                } else if ("max-age".equals(name)) {
+                    maxAge = parseSeconds(element.getValue());
+                } else if ("s-maxage".equals(name)) {
+                    sharedMaxAge = parseSeconds(element.getValue());
+                }
+            }
+        }
+        for (Header vary : response.getHeaders("Vary")) {
+            if ("*".equals(vary.getValue().trim())) {
+                return -1;
+            }
+        }
+        if (noCache) {
+            return now;
+        }
+        long age = 0;
+        Header ageHeader = response.getFirstHeader("Age");
+        if (ageHeader != null) {
+            age = Math.max(0, parseSeconds(ageHeader.getValue()));
+        }
+        if (sharedMaxAge > -1) {
+            return now + (sharedMaxAge - age) * 1000;
+        }
+        if (maxAge > -1) {
+            return now + (maxAge - age) * 1000;
+        }
+        Date date = parseDate(response.getFirstHeader("Date"));
+        Date expires = parseDate(response.getFirstHeader("Expires"));
+        if (expires != null) {
+            long base = date == null ? now : date.getTime();
+            return now + (expires.getTime() - base);
+        }
+        Date lastModified = parseDate(response.getFirstHeader("Last-Modified"));
+        if (lastModified != null) {
+            // The RFC 7234 heuristic: a tenth of the time since modification
+            long base = date == null ? now : date.getTime();
+            return now + Math.max(0, base - lastModified.getTime()) / 10;
+        }
+        return now;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Date parseDate(Header header) {
+        if (header == null) {
+            return null;
+        }
+        return DateUtils.parseDate(header.getValue());
+    }
+
+    /**
+     * Creates an entry for a 200 response whose body has been read, or
+     * returns <code>null</code> if the response must not be stored or could
+     * never be revalidated or reused.
+     */
+    static Entry newEntry(String key, HttpResponse response, byte[] body,
+            long now) {
+        long expires = expires(response, now);
+        if (expires < 0) {
+            return null;
+        }
+        Header e = response.getFirstHeader("ETag");
+        Header lm = response.getFirstHeader("Last-Modified");
+        if (expires <= now && e == null && lm == null) {
+            return null;
+        }
+        List<String> headers = new ArrayList<>();
+        for (String name : STORED_HEADERS) {
+            for (Header header : response.getHeaders(name)) {
+                headers.add(header.getName());
+                headers.add(header.getValue());
+            }
+        }
+        return new Entry(key, expires, e == null ? null : e.getValue(),
+                lm == null ? null : lm.getValue(),
+                headers.toArray(new String[headers.size()]), body);
+    }
+
+    Entry get(String key) {
+        synchronized (this) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        if (dir == null) {
+            return null;
+        }
+        Entry entry = readFromDisk(key);
+        if (entry != null) {
+            putInMemory(entry);
+        }
+        return entry;
+    }
+
+    void put(Entry entry) {
+        putInMemory(entry);
+        if (dir != null) {
+            writeToDisk(entry);
+        }
+    }
+
+    private synchronized void putInMemory(Entry entry) {
+        long size = entry.size();
+        if (size > memoryLimit) {
+            return;
+        }
+        Entry old = memory.put(entry.key, entry);
+        if (old != null) {
+            memorySize -= old.size();
+        }
+        memorySize += size;
+        Iterator<Entry> iter = memory.values().iterator();
+        while (memorySize > memoryLimit && iter.hasNext()) {
+            memorySize -= iter.next().size();
+            iter.remove();
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(dir, sb.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION
+                    || !key.equals(readString(in))) {
+                return null;
+            }
+            long expires = in.readLong();
+            String etag = in.readBoolean() ? readString(in) : null;
+            String lastModified = in.readBoolean() ? readString(in) : null;
+            String[] headers = new String[in.readInt()];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = readString(in);
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(key, expires, etag, lastModified, headers, body);
+        } catch (IOException e) {
+            log4j.debug("Reading " + file, e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(Entry entry) {
+        File file = fileFor(entry.key);
+        File temp = new File(dir, file.getName() + TEMP_SUFFIX
+                + Thread.currentThread().getId());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, entry.key);
+                out.writeLong(entry.expires);
+                out.writeBoolean(entry.etag != null);
+                if (entry.etag != null) {
+                    writeString(out, entry.etag);
+                }
+                out.writeBoolean(entry.lastModified != null);
+                if (entry.lastModified != null) {
+                    writeString(out, entry.lastModified);
+                }
+                out.writeInt(entry.headers.length);
+                for (String header : entry.headers) {
+                    writeString(out, header);
+                }
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+            }
+            long oldLength = file.length();
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            boolean evict;
+            synchronized (this) {
+                diskSize += file.length() - oldLength;
+                evict = diskSize > diskLimit;
+            }
+            if (evict) {
+                evictFromDisk();
+            }
+        } catch (IOException e) {
+            log4j.debug("Writing " + file, e);
+            temp.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length.");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes the least recently written files until the disk tier is back
+     * under 90% of its limit. Files still being written by other threads
+     * are left alone; they are counted once they are renamed.
+     */
+    private void evictFromDisk() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !isTemp(file);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                if (diskSize <= diskLimit / 10 * 9) {
+                    break;
+                }
+                long length = file.length();
+                if (file.delete()) {
+                    diskSize -= length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes a request, answering it from the cache when possible. Fresh
+     * entries are returned without network access; stale ones are
+     * revalidated. Cacheable 200 responses have their body buffered (at
+     * most one byte more than <code>sizeLimit</code>) and stored.
+     *
+     * @param client
+     *            the client to use for network access
+     * @param m
+     *            the request with all its headers set
+     * @param sizeLimit
+     *            the size limit of the resolver; -1 means no limit
+     * @param counters
+     *            the statistics to update
+     * @return the response
+     * @throws IOException
+     *             if network access fails
+     */
+    HttpResponse execute(HttpClient client, HttpGet m, long sizeLimit,
+            Counters counters) throws IOException {
+        String key = key(m);
+        long now = System.currentTimeMillis();
+        Entry cached = get(key);
+        if (cached != null) {
+            if (cached.isFresh(now)) {
+                counters.hits++;
+                counters.bytesSaved += cached.body.length;
+                return cached.toResponse();
+            }
+            cached.addValidators(m);
+        }
+        HttpResponse response = client.execute(m);
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (cached != null && statusCode == 304) {
+            m.releaseConnection();
+            cached = cached.revalidated(response, now);
+            put(cached);
+            counters.revalidations++;
+            counters.bytesSaved += cached.body.length;
+            return cached.toResponse();
+        }
+        counters.misses++;
+        HttpEntity entity = response.getEntity();
+        if (statusCode != 200 || entity == null || (sizeLimit > -1
+                && entity.getContentLength() > sizeLimit)) {
+            return response;
+        }
+        byte[] body = PrudentHttpEntityResolver.readAtMost(
+                entity.getContent(), sizeLimit);
+        response.setEntity(new ByteArrayEntity(body));
+        if (sizeLimit < 0 || body.length <= sizeLimit) {
+            Entry entry = newEntry(key, response, body, now);
+            if (entry != null) {
+                put(entry);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Drops all entries from the in-memory tier.
+     */
+    public synchronized void clearMemory() {
+        memory.clear();
+        memorySize = 0;
+    }
+
+    /**
+     * @return a snapshot of the in-memory tier size in bytes
+     */
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * @return the number of entries in the in-memory tier
+     */
+    public synchronized int getMemoryEntryCount() {
+        return memory.size();
+    }
+}
@@ -23,6 +23,8 @@
 
 package nu.validator.xml;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyManagementException;
@@ -30,6 +32,10 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HostnameVerifier;
@@ -60,6 +66,8 @@ import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.LaxRedirectStrategy;
@@ -85,16 +93,36 @@ import io.mola.galimatias.GalimatiasParseException;
 
     private static final Logger log4j = Logger.getLogger(PrudentHttpEntityResolver.class);
 
+    private static final String PREFETCHED_RESPONSE = "http://validator.nu/properties/prefetched-response";
+
     private static HttpClient client;
 
     private static int maxRequests;
 
+    private static int fetchDeadline;
+
+    private static final ScheduledThreadPoolExecutor ABORTER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "vnu-fetch-deadline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        // Fetches usually finish well before their deadline.
+        ABORTER.setRemoveOnCancelPolicy(true);
+    }
+
     private long sizeLimit;
 
     private final ErrorHandler errorHandler;
 
     private int requestsLeft;
 
+    private boolean fetched = false;
+
     private boolean allowRnc = false;
 
     private boolean allowCss = false;
@@ -113,6 +141,8 @@ import io.mola.galimatias.GalimatiasParseException;
 
     private HttpServletRequest request;
 
+    private final HttpResponseCache.Counters cacheCounters = new HttpResponseCache.Counters();
+
     /**
      * Sets the timeouts of the HTTP client.
      *
@@ -180,6 +210,18 @@ import io.mola.galimatias.GalimatiasParseException;
         client = builder.setDefaultRequestConfig(config.build()).build();
     }
 
+    /**
+     * Sets how long <code>prefetch</code> may take in all. The socket
+     * timeout only bounds each wait for data, so a host that sends a byte
+     * now and then could otherwise hold a fetch thread indefinitely.
+     *
+     * @param millis
+     *            the deadline in milliseconds. Zero means no deadline.
+     */
+    public static void setFetchDeadline(int millis) {
+        fetchDeadline = millis;
+    }
+
     public void setUserAgent(String ua) {
         userAgent = ua;
     }
@@ -215,6 +257,7 @@ import io.mola.galimatias.GalimatiasParseException;
                 requestsLeft--;
             }
         }
+        fetched = true;
         HttpGet m = null;
         try {
             URL url = null;
@@ -256,14 +299,7 @@ import io.mola.galimatias.GalimatiasParseException;
                 }
                 throw spe;
             }
-            m.setHeader("User-Agent", userAgent);
-            m.setHeader("Accept", buildAccept());
-            m.setHeader("Accept-Encoding", "gzip");
-            if (request != null && request.getAttribute(
-                    "http://validator.nu/properties/accept-language") != null) {
-                m.setHeader("Accept-Language", (String) request.getAttribute(
-                        "http://validator.nu/properties/accept-language"));
-            }
+            setRequestHeaders(m, userAgent, request);
             log4j.info(systemId);
             try {
                 if (url.port() > 65535) {
@@ -274,7 +310,10 @@ import io.mola.galimatias.GalimatiasParseException;
                     throw new IOException(
                             "Port number must be less than 65536.");
             }
-            HttpResponse response = client.execute(m);
+            HttpResponse response = takePrefetchedResponse(systemId);
+            if (response == null) {
+                response = execute(m, sizeLimit, cacheCounters);
+            }
             boolean ignoreResponseStatus = false;
             if (request != null && request.getAttribute(
                     "http://validator.nu/properties/ignore-response-status") != null) {
@@ -467,6 +506,201 @@ import io.mola.galimatias.GalimatiasParseException;
         }
     }
 
+    private static void setRequestHeaders(HttpGet m, String userAgent,
+            HttpServletRequest request) {
+        m.setHeader("User-Agent", userAgent);
+        m.setHeader("Accept", buildAccept());
+        m.setHeader("Accept-Encoding", "gzip");
+        if (request != null && request.getAttribute(
+                "http://validator.nu/properties/accept-language") != null) {
+            m.setHeader("Accept-Language", (String) request.getAttribute(
+                    "http://validator.nu/properties/accept-language"));
+        }
+    }
+
+    /**
+     * Downloads a resource ahead of validation and buffers the response in
+     * memory as an attribute of the request, so that a later call to
+     * <code>resolveEntity</code> for the same URL (made by a resolver
+     * constructed with the same request) can use it without blocking on the
+     * network. Failures are recorded and rethrown by
+     * <code>resolveEntity</code>, so that they get reported exactly as if the
+     * resource had been fetched there. URLs that would be rejected before
+     * any network access are silently skipped. A fetch still running when
+     * the deadline set with <code>setFetchDeadline</code> passes is aborted
+     * and fails with an <code>IOException</code>.
+     *
+     * @param systemId
+     *            the URL of the resource
+     * @param userAgent
+     *            the User-Agent header value to send
+     * @param sizeLimit
+     *            the maximum number of bytes to buffer; -1 means no limit
+     * @param request
+     *            the request to store the buffered response in
+     */
+    public static void prefetch(String systemId, String userAgent,
+            long sizeLimit, HttpServletRequest request) {
+        final HttpGet m;
+        try {
+            URL url = URL.parse(systemId);
+            String scheme = url.scheme();
+            if (!("http".equals(scheme) || "https".equals(scheme))
+                    || url.port() > 65535) {
+                return;
+            }
+            m = new HttpGet(url.toString());
+        } catch (GalimatiasParseException | IllegalArgumentException e) {
+            return;
+        }
+        setRequestHeaders(m, userAgent, request);
+        PrefetchedResponse prefetched = new PrefetchedResponse(
+                m.getURI().toString());
+        log4j.info(prefetched.systemId);
+        ScheduledFuture<?> deadline = null;
+        if (fetchDeadline > 0) {
+            deadline = ABORTER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    m.abort();
+                }
+            }, fetchDeadline, TimeUnit.MILLISECONDS);
+        }
+        try {
+            HttpResponse response = execute(m, sizeLimit, prefetched.counters);
+            HttpEntity entity = response.getEntity();
+            long len = entity.getContentLength();
+            if (sizeLimit > -1 && len > sizeLimit) {
+                // resolveEntity() rejects this based on the length alone
+                BasicHttpEntity stub = new BasicHttpEntity();
+                stub.setContentLength(len);
+                stub.setContent(new ByteArrayInputStream(new byte[0]));
+                response.setEntity(stub);
+            } else {
+                response.setEntity(new ByteArrayEntity(
+                        readAtMost(entity.getContent(), sizeLimit)));
+            }
+            prefetched.response = response;
+        } catch (IOException | RuntimeException e) {
+            if (m.isAborted()) {
+                prefetched.exception = new SystemIdIOException(
+                        prefetched.systemId,
+                        "Fetching the document took longer than "
+                                + fetchDeadline + " milliseconds.");
+            } else {
+                prefetched.exception = e;
+            }
+            try {
+                m.abort();
+            } catch (Exception ex) {
+                log4j.debug("prefetch, abort", ex);
+            }
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            try {
+                m.releaseConnection();
+            } catch (Exception ex) {
+                log4j.debug("prefetch, releaseConnection", ex);
+            }
+        }
+        request.setAttribute(PREFETCHED_RESPONSE, prefetched);
+    }
+
+    private static HttpResponse execute(HttpGet m, long sizeLimit,
+            HttpResponseCache.Counters counters) throws IOException {
+        if (HttpResponseCache.INSTANCE == null) {
+            return client.execute(m);
+        }
+        return HttpResponseCache.INSTANCE.execute(client, m, sizeLimit,
+                counters);
+    }
+
+    /**
+     * Reads at most one byte more than <code>sizeLimit</code>, so that
+     * the <code>BoundedInputStream</code> wrapped around the buffer still
+     * reports an oversized resource.
+     */
+    static byte[] readAtMost(InputStream in, long sizeLimit)
+            throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (stream == null) {
+                return baos.toByteArray();
+            }
+            long remaining = sizeLimit > -1 ? sizeLimit + 1 : Long.MAX_VALUE;
+            byte[] buffer = new byte[8192];
+            while (remaining > 0) {
+                int n = stream.read(buffer, 0,
+                        (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    break;
+                }
+                baos.write(buffer, 0, n);
+                remaining -= n;
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    private HttpResponse takePrefetchedResponse(String systemId)
+            throws IOException {
+        if (request == null) {
+            return null;
+        }
+        Object attribute = request.getAttribute(PREFETCHED_RESPONSE);
+        if (!(attribute instanceof PrefetchedResponse)) {
+            return null;
+        }
+        PrefetchedResponse prefetched = (PrefetchedResponse) attribute;
+        if (!prefetched.systemId.equals(systemId)) {
+            return null;
+        }
+        request.removeAttribute(PREFETCHED_RESPONSE);
+        cacheCounters.add(prefetched.counters);
+        if (prefetched.exception instanceof IOException) {
+            throw (IOException) prefetched.exception;
+        } else if (prefetched.exception instanceof RuntimeException) {
+            throw (RuntimeException) prefetched.exception;
+        }
+        return prefetched.response;
+    }
+
+    private static final class PrefetchedResponse {
+
+        private final String systemId;
+
+        private HttpResponse response;
+
+        private Exception exception;
+
+        private final HttpResponseCache.Counters counters = new HttpResponseCache.Counters();
+
+        PrefetchedResponse(String systemId) {
+            this.systemId = systemId;
+        }
+    }
+
+    /**
+     * Returns whether this resolver has been asked for a remote resource.
+     *
+     * @return <code>true</code> if <code>resolveEntity</code> was called
+     */
+    public boolean hasFetched() {
+        return fetched;
+    }
+
+    /**
+     * Returns the HTTP cache statistics of the resources fetched by this
+     * resolver.
+     *
+     * @return the cache statistics
+     */
+    public HttpResponseCache.Counters getCacheCounters() {
+        return cacheCounters;
+    }
+
     /**
      * @return Returns the allowRnc.
      */
@@ -567,7 +801,7 @@ import io.mola.galimatias.GalimatiasParseException;
         this.contentTypeParser.setAllowXhtml(allowXhtml);
     }
 
-    private String buildAccept() {
+    private static String buildAccept() {
         return "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
     }
 
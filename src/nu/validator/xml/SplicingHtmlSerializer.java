@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package nu.validator.xml;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import nu.validator.saxtree.DocumentFragment;
+import nu.validator.saxtree.TreeParser;
+
+import org.xml.sax.SAXException;
+
+/**
+ * The HTML serializer from the parser, with a way to write markup that it
+ * serialized earlier. Writing a fragment through <code>serialize</code> and
+ * <code>writeSerialized</code> gives the same bytes as walking the fragment
+ * into this serializer, as long as the fragment is written where text is
+ * escaped and elements are not ignored, that is, in ordinary XHTML content.
+ * 
+ * @version $Id$
+ */
+public class SplicingHtmlSerializer extends
+        nu.validator.htmlparser.sax.HtmlSerializer {
+
+    private final Writer writer;
+
+    /**
+     * Creates a serializer that writes UTF-8 to a stream.
+     * 
+     * @param out
+     *            the stream
+     */
+    public SplicingHtmlSerializer(OutputStream out) {
+        this(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    private SplicingHtmlSerializer(Writer writer) {
+        super(writer);
+        this.writer = writer;
+    }
+
+    /**
+     * Serializes a document fragment once so that it can be written
+     * repeatedly with <code>writeSerialized</code>.
+     * 
+     * @param fragment
+     *            the fragment to serialize
+     * @return the markup of the fragment
+     * @throws SAXException
+     *             if the fragment cannot be walked
+     */
+    public static char[] serialize(DocumentFragment fragment)
+            throws SAXException {
+        CharArrayWriter markup = new CharArrayWriter();
+        new TreeParser(new SplicingHtmlSerializer(markup), null).parse(fragment);
+        return markup.toCharArray();
+    }
+
+    /**
+     * Writes out markup returned by <code>serialize</code>.
+     * 
+     * @param markup
+     *            the markup
+     * @throws SAXException
+     *             if there are IO problems
+     */
+    public void writeSerialized(char[] markup) throws SAXException {
+        try {
+            writer.write(markup);
+        } catch (IOException ioe) {
+            throw (SAXException) new SAXException(ioe).initCause(ioe);
+        }
+    }
+}
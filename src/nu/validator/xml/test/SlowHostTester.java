@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2020 Mozilla Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package nu.validator.xml.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import nu.validator.xml.PrudentHttpEntityResolver;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Runs <code>PrudentHttpEntityResolver.prefetch</code>, as the fetch stage
+ * of the asynchronous mode does, against a local stand-in for slow hosts
+ * and checks how long each fetch takes and how it ends: a host that
+ * answers at once, one that never sends a response, one that stops in the
+ * middle of the body and one that trickles the body a byte at a time,
+ * never waiting long enough for the socket timeout. The first must
+ * succeed, the next two must fail after the socket timeout and the last
+ * must be aborted at the fetch deadline, with the stand-in seeing the
+ * connection closed.
+ */
+public class SlowHostTester {
+
+    private static final int CONNECTION_TIMEOUT = 1000;
+
+    private static final int SOCKET_TIMEOUT = 1000;
+
+    private static final int FETCH_DEADLINE = 3000;
+
+    /**
+     * How much later than expected a fetch may end.
+     */
+    private static final int SLACK = 1000;
+
+    private static final byte[] BODY = "<!DOCTYPE html><title>Hi</title><p>Hi</p>".getBytes(StandardCharsets.US_ASCII);
+
+    private static int failures;
+
+    /**
+     * When the stand-in last saw a connection closed by the client, in
+     * <code>System.nanoTime</code> terms.
+     */
+    private static volatile long lastClosed;
+
+    private static void serve(final ServerSocket server) {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket s = socket) {
+                        answer(s);
+                    } catch (IOException | InterruptedException e) {
+                        lastClosed = System.nanoTime();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void answer(Socket socket)
+            throws IOException, InterruptedException {
+        InputStream in = socket.getInputStream();
+        StringBuilder head = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            head.append((char) c);
+            if (head.length() >= 4
+                    && "\r\n\r\n".equals(head.substring(head.length() - 4))) {
+                break;
+            }
+        }
+        String path = head.toString().split(" ")[1];
+        OutputStream out = socket.getOutputStream();
+        String headers = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/html; charset=utf-8\r\n"
+                + "Content-Length: " + BODY.length + "\r\n\r\n";
+        switch (path) {
+            case "/fast":
+                out.write(headers.getBytes(StandardCharsets.US_ASCII));
+                out.write(BODY);
+                out.flush();
+                break;
+            case "/no-response":
+                waitForClose(in);
+                break;
+            case "/stalled-body":
+                out.write(headers.getBytes(StandardCharsets.US_ASCII));
+                out.write(BODY, 0, 10);
+                out.flush();
+                waitForClose(in);
+                break;
+            case "/trickle":
+                out.write(headers.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                for (int i = 0; i < BODY.length; i++) {
+                    out.write(BODY[i]);
+                    out.flush();
+                    Thread.sleep(SOCKET_TIMEOUT / 5);
+                }
+                break;
+            default:
+                throw new IOException("Unknown path " + path);
+        }
+    }
+
+    private static void waitForClose(InputStream in) throws IOException {
+        if (in.read() == -1) {
+            lastClosed = System.nanoTime();
+        }
+    }
+
+    private static HttpServletRequest request() {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                SlowHostTester.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        switch (method.getName()) {
+                            case "getAttribute":
+                                return attributes.get(args[0]);
+                            case "setAttribute":
+                                attributes.put((String) args[0], args[1]);
+                                return null;
+                            case "removeAttribute":
+                                attributes.remove(args[0]);
+                                return null;
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+
+    private static void check(int port, String path, long minMillis,
+            long maxMillis, boolean succeeds) {
+        String url = "http://127.0.0.1:" + port + path;
+        HttpServletRequest request = request();
+        lastClosed = 0;
+        long start = System.nanoTime();
+        PrudentHttpEntityResolver.prefetch(url, "Validator.nu/LV test",
+                2097152, request);
+        long millis = (System.nanoTime() - start) / 1000000;
+        String outcome;
+        boolean succeeded;
+        try {
+            PrudentHttpEntityResolver resolver = new PrudentHttpEntityResolver(
+                    2097152, true, null, request);
+            resolver.setAllowHtml(true);
+            InputSource is = resolver.resolveEntity(null, url);
+            int length = 0;
+            try (InputStream in = is.getByteStream()) {
+                while (in.read() != -1) {
+                    length++;
+                }
+            }
+            outcome = "ok, " + length + " bytes";
+            succeeded = true;
+        } catch (Exception e) {
+            outcome = e.getClass().getSimpleName() + ": " + e.getMessage();
+            succeeded = false;
+        }
+        String closed = "";
+        if (!succeeds) {
+            // Give the stand-in a moment to notice the closed connection.
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closed = lastClosed == 0 ? ", connection not closed"
+                    : ", connection closed after "
+                            + (lastClosed - start) / 1000000 + " ms";
+        }
+        boolean pass = succeeded == succeeds && millis >= minMillis
+                && millis <= maxMillis && (succeeds || lastClosed != 0);
+        if (!pass) {
+            failures++;
+        }
+        System.out.printf("%-4s %-14s %5d ms  %s%s%n", pass ? "ok" : "FAIL",
+                path, millis, outcome, closed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrudentHttpEntityResolver.setParams(CONNECTION_TIMEOUT,
+                SOCKET_TIMEOUT, 100);
+        PrudentHttpEntityResolver.setFetchDeadline(FETCH_DEADLINE);
+        final ServerSocket server = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve(server);
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        int port = server.getLocalPort();
+        check(port, "/fast", 0, SLACK, true);
+        check(port, "/no-response", SOCKET_TIMEOUT, SOCKET_TIMEOUT + SLACK,
+                false);
+        check(port, "/stalled-body", SOCKET_TIMEOUT, SOCKET_TIMEOUT + SLACK,
+                false);
+        check(port, "/trickle", FETCH_DEADLINE, FETCH_DEADLINE + SLACK, false);
+        server.close();
+        System.out.println(failures + " failures");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}